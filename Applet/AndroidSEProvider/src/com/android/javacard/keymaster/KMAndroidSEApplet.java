@@ -21,8 +21,8 @@ import org.globalplatform.upgrade.UpgradeManager;
 
 public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeListener {
 
-  KMAndroidSEApplet() {
-    super(new KMAndroidSEProvider());
+  KMAndroidSEApplet(short maxOperations, short keySlots) {
+    super(new KMAndroidSEProvider(maxOperations), maxOperations, keySlots);
   }
 
   /**
@@ -33,7 +33,9 @@ public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeLis
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
-    new KMAndroidSEApplet().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+    new KMAndroidSEApplet(readMaxOperations(bArray, bOffset, bLength),
+        readKeySlots(bArray, bOffset, bLength))
+        .register(bArray, (short) (bOffset + 1), bArray[bOffset]);
   }
 
   @Override
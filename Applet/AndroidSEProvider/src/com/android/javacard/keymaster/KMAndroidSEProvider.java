@@ -18,6 +18,7 @@ package com.android.javacard.keymaster;
 import org.globalplatform.upgrade.Element;
 import org.globalplatform.upgrade.UpgradeManager;
 
+import javacard.framework.APDU;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.AESKey;
@@ -30,6 +31,9 @@ import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
 import javacard.security.MessageDigest;
+import javacard.security.PrivateKey;
+import javacard.security.PublicKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -116,7 +120,19 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public static final byte KEYSIZE_256_OFFSET = 0x01;
   public static final short TMP_ARRAY_SIZE = 256;
   private static final short RSA_KEY_SIZE = 256;
-  public static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
+  // RSA CRT private key is P, Q, DP, DQ and PQ, each right aligned in 128 bytes.
+  private static final short RSA_CRT_COMPONENT_SIZE = 128;
+  private static final short RSA_CRT_KEY_SIZE = 640;
+  private static final byte[] pubExponent = {0x01, 0x00, 0x01};
+  // The certificate chain is stored in pages, so a long chain does not need one large array.
+  public static final short CERT_CHAIN_PAGE_SIZE = 2500;
+  public static final byte CERT_CHAIN_PAGES = 3;
+  public static final short CERT_CHAIN_MAX_SIZE =
+      (short) (CERT_CHAIN_PAGE_SIZE * CERT_CHAIN_PAGES);//First 2 bytes for length.
+  private static final byte CERT_CHAIN_READ = 0;
+  private static final byte CERT_CHAIN_WRITE = 1;
+  private static final byte CERT_CHAIN_SEND = 2;
+  private static final short ALG_INDEX_MAP_SIZE = 256;
 
   final byte[] CIPHER_ALGS = {
       Cipher.ALG_AES_BLOCK_128_CBC_NOPAD,
@@ -146,6 +162,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private HMACKey hmacKey;
   // RSA Key Pair
   private KeyPair rsaKeyPair;
+  // RSA Key Pair with CRT private key. Shares the public key with rsaKeyPair.
+  private KeyPair rsaCrtKeyPair;
   // EC Key Pair.
   private KeyPair ecKeyPair;
   // Temporary array.
@@ -158,17 +176,40 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private Object[] sigPool;
   // KMOperationImpl pool
   private Object[] operationPool;
+  // Instances reserved outside the operation slots for the one-shot operation. A one-shot
+  // operation never outlives its command, so there is at most one at any time.
+  private static final short ONE_SHOT_INSTANCES = 1;
+  // Maximum number of operations and instances per cipher/signature algorithm in the pool,
+  // which is the number of operation slots in the repository plus the one-shot instance. As
+  // the repository never hands out more than its slots, a one-shot operation always finds a
+  // free instance even when every slot is busy.
+  private short maxInstances;
+  // Maps the algorithm to its index in CIPHER_ALGS/SIG_ALGS. Pool slots of an algorithm
+  // start at index * maxInstances.
+  private byte[] cipherAlgIndex;
+  private byte[] sigAlgIndex;
+  // Reservation bitmaps, one short per algorithm, where bit n is set if instance n of that
+  // algorithm is reserved. These are transient, so reserving and releasing an instance does
+  // not write to persistent memory. All instances are free after a reset, which is consistent
+  // with all the operations being released on every boot.
+  private short[] cipherPoolReserved;
+  private short[] sigPoolReserved;
+  private short[] operationPoolReserved;
 
   private Signature kdf;
 
   private Signature hmacSignature;
+  // Used to fingerprint key blobs.
+  private MessageDigest sha256Digest;
   //For ImportwrappedKey operations.
   private KMRsaOAEPEncoding rsaOaepDecipher;
+  // For the consistency check of imported RSA CRT keys.
+  private Signature rsaKeyCheck;
 
   // Entropy
   private RandomData rng;
   //For storing root certificate and intermediate certificates.
-  private byte[] certificateChain;
+  private Object[] certificateChain;
   private KMAESKey masterKey;
   private KMECPrivateKey attestationKey;
   private KMHmacKey preSharedKey;
@@ -179,25 +220,46 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return androidSEProvider;
   }
 
-  public KMAndroidSEProvider() {
-    // Re-usable AES,DES and HMAC keys in persisted memory.
+  public KMAndroidSEProvider(short maxOperations) {
+    maxInstances = (short) (maxOperations + ONE_SHOT_INSTANCES);
+    // Re-usable AES,DES and HMAC keys. The key material of these keys is overwritten on every
+    // operation, so they are created in transient memory if the platform supports it.
     aesKeys = new AESKey[2];
-    aesKeys[KEYSIZE_128_OFFSET] = (AESKey) KeyBuilder.buildKey(
-        KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
-    aesKeys[KEYSIZE_256_OFFSET] = (AESKey) KeyBuilder.buildKey(
-        KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256, false);
-    triDesKey = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
-        KeyBuilder.LENGTH_DES3_3KEY, false);
-    hmacKey = (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, (short) 512,
-        false);
-    rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
-    ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+    aesKeys[KEYSIZE_128_OFFSET] = (AESKey) buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET,
+        KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128);
+    aesKeys[KEYSIZE_256_OFFSET] = (AESKey) buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET,
+        KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256);
+    triDesKey = (DESKey) buildKey(KeyBuilder.TYPE_DES_TRANSIENT_RESET,
+        KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY);
+    hmacKey = (HMACKey) buildKey(KeyBuilder.TYPE_HMAC_TRANSIENT_RESET,
+        KeyBuilder.TYPE_HMAC, (short) 512);
+    // Only the private keys are set on every operation, public keys stay persistent.
+    rsaKeyPair = new KeyPair(
+        (PublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC,
+            KeyBuilder.LENGTH_RSA_2048, false),
+        (PrivateKey) buildKey(KeyBuilder.TYPE_RSA_PRIVATE_TRANSIENT_RESET,
+            KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048));
+    rsaCrtKeyPair = new KeyPair(rsaKeyPair.getPublic(),
+        (PrivateKey) buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE_TRANSIENT_RESET,
+            KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048));
+    ecKeyPair = new KeyPair(
+        (PublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC,
+            KeyBuilder.LENGTH_EC_FP_256, false),
+        (PrivateKey) buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_RESET,
+            KeyBuilder.TYPE_EC_FP_PRIVATE, KeyBuilder.LENGTH_EC_FP_256));
     initECKey(ecKeyPair);
 
     // Re-usable cipher and signature instances
-    cipherPool = new Object[(short) (CIPHER_ALGS.length * 4)];
-    sigPool = new Object[(short) (SIG_ALGS.length * 4)];
-    operationPool = new Object[4];
+    cipherPool = new Object[(short) (CIPHER_ALGS.length * maxInstances)];
+    sigPool = new Object[(short) (SIG_ALGS.length * maxInstances)];
+    operationPool = new Object[maxInstances];
+    cipherAlgIndex = createAlgIndexMap(CIPHER_ALGS);
+    sigAlgIndex = createAlgIndexMap(SIG_ALGS);
+    cipherPoolReserved = JCSystem.makeTransientShortArray((short) CIPHER_ALGS.length,
+        JCSystem.CLEAR_ON_RESET);
+    sigPoolReserved = JCSystem.makeTransientShortArray((short) SIG_ALGS.length,
+        JCSystem.CLEAR_ON_RESET);
+    operationPoolReserved = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     // Creates an instance of each cipher algorithm once.
     initializeCipherPool();
     // Creates an instance of each signature algorithm once.
@@ -205,9 +267,11 @@ public class KMAndroidSEProvider implements KMSEProvider {
     initializeOperationPool();
     //RsaOAEP Decipher
     rsaOaepDecipher = new KMRsaOAEPEncoding(KMRsaOAEPEncoding.ALG_RSA_PKCS1_OAEP_SHA256_MGF1_SHA1);
+    rsaKeyCheck = Signature.getInstance(Signature.ALG_RSA_SHA_256_PKCS1, false);
 
     kdf = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
     hmacSignature = Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+    sha256Digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
 
     // Temporary transient array created to use locally inside functions.
     tmpArray = JCSystem.makeTransientByteArray(TMP_ARRAY_SIZE,
@@ -217,7 +281,10 @@ public class KMAndroidSEProvider implements KMSEProvider {
     rng = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
     //Allocate buffer for certificate chain.
     if (!isUpgrading()) {
-      certificateChain = new byte[CERT_CHAIN_MAX_SIZE];
+      certificateChain = new Object[CERT_CHAIN_PAGES];
+      for (byte page = 0; page < CERT_CHAIN_PAGES; page++) {
+        certificateChain[page] = new byte[CERT_CHAIN_PAGE_SIZE];
+      }
       // Initialize attestationKey and preShared key with zeros.
       Util.arrayFillNonAtomic(tmpArray, (short) 0, TMP_ARRAY_SIZE, (byte) 0);
       // Create attestation key of P-256 curve.
@@ -232,8 +299,17 @@ public class KMAndroidSEProvider implements KMSEProvider {
     Util.arrayFillNonAtomic(tmpArray, (short) 0, (short) 256, (byte) 0);
   }
 
+  // Builds the key in transient memory if the platform supports the transient key type,
+  // otherwise falls back to the persistent key type.
+  private Key buildKey(byte transientType, byte persistentType, short keyLength) {
+    try {
+      return KeyBuilder.buildKey(transientType, keyLength, false);
+    } catch (CryptoException exp) {
+      return KeyBuilder.buildKey(persistentType, keyLength, false);
+    }
+  }
+
   private void initECKey(KeyPair ecKeyPair) {
-    ECPrivateKey privKey = (ECPrivateKey) ecKeyPair.getPrivate();
     ECPublicKey pubkey = (ECPublicKey) ecKeyPair.getPublic();
     pubkey.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
     pubkey.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
@@ -241,7 +317,10 @@ public class KMAndroidSEProvider implements KMSEProvider {
     pubkey.setG(secp256r1_UCG, (short) 0, (short) secp256r1_UCG.length);
     pubkey.setK(secp256r1_H);
     pubkey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
+    initECPrivateKey((ECPrivateKey) ecKeyPair.getPrivate());
+  }
 
+  private void initECPrivateKey(ECPrivateKey privKey) {
     privKey.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
     privKey.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
     privKey.setB(secp256r1_B, (short) 0, (short) secp256r1_B.length);
@@ -250,33 +329,30 @@ public class KMAndroidSEProvider implements KMSEProvider {
     privKey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
   }
 
-  private boolean isCipherAlgorithm(byte alg) {
+  // Creates a map from the algorithm to its index in the algorithm list.
+  private byte[] createAlgIndexMap(byte[] algs) {
+    byte[] map = new byte[ALG_INDEX_MAP_SIZE];
+    Util.arrayFillNonAtomic(map, (short) 0, ALG_INDEX_MAP_SIZE, (byte) -1);
     short index = 0;
-    while (index < CIPHER_ALGS.length) {
-      if (CIPHER_ALGS[index++] == alg) {
-        return true;
-      }
+    while (index < algs.length) {
+      map[(short) (algs[index] & 0xFF)] = (byte) index;
+      index++;
     }
-    return false;
+    return map;
   }
 
-  private boolean isSignerAlgorithm(byte alg) {
-    short index = 0;
-    while (index < SIG_ALGS.length) {
-      if (SIG_ALGS[index++] == alg) {
-        return true;
-      }
+  private short getAlgIndex(byte[] algIndexMap, byte alg) {
+    short index = algIndexMap[(short) (alg & 0xFF)];
+    if (index < 0) {
+      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
     }
-    return false;
+    return index;
   }
 
   private void initializeOperationPool() {
     short index = 0;
-    while (index < 4) {
-      operationPool[index] = new KMInstance();
-      ((KMInstance) operationPool[index]).instanceCount = 1;
-      ((KMInstance) operationPool[index]).object = new KMOperationImpl();
-      ((KMInstance) operationPool[index]).reserved = 0;
+    while (index < maxInstances) {
+      operationPool[index] = new KMOperationImpl();
       index++;
     }
   }
@@ -285,10 +361,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private void initializeSigPool() {
     short index = 0;
     while (index < SIG_ALGS.length) {
-      sigPool[index] = new KMInstance();
-      ((KMInstance) sigPool[index]).instanceCount = 1;
-      ((KMInstance) sigPool[index]).object = getSignatureInstance(SIG_ALGS[index]);
-      ((KMInstance) sigPool[index]).reserved = 0;
+      sigPool[(short) (index * maxInstances)] = getSignatureInstance(SIG_ALGS[index]);
       index++;
     }
   }
@@ -320,118 +393,78 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private void initializeCipherPool() {
     short index = 0;
     while (index < CIPHER_ALGS.length) {
-      cipherPool[index] = new KMInstance();
-      ((KMInstance) cipherPool[index]).instanceCount = 1;
-      ((KMInstance) cipherPool[index]).object = getCipherInstance(CIPHER_ALGS[index]);
-      ((KMInstance) cipherPool[index]).reserved = 0;
+      cipherPool[(short) (index * maxInstances)] = getCipherInstance(CIPHER_ALGS[index]);
       index++;
     }
   }
 
   private KMOperationImpl getOperationInstanceFromPool() {
-    return (KMOperationImpl) getInstanceFromPool(operationPool, (byte) 0x00);
+    short index = reserveInstance(operationPoolReserved, (short) 0);
+    return (KMOperationImpl) operationPool[index];
   }
 
   public void releaseOperationInstance(KMOperationImpl operation) {
-    releaseInstance(operationPool, operation);
+    releaseInstance(operationPool, operationPoolReserved, (short) 0, operation);
   }
 
   private Signature getSignatureInstanceFromPool(byte alg) {
-    return (Signature) getInstanceFromPool(sigPool, alg);
+    short algIndex = getAlgIndex(sigAlgIndex, alg);
+    short index = reserveInstance(sigPoolReserved, algIndex);
+    if (sigPool[index] == null) {
+      sigPool[index] = getSignatureInstance(alg);
+    }
+    return (Signature) sigPool[index];
   }
 
   public void releaseSignatureInstance(Signature signer) {
-    releaseInstance(sigPool, signer);
+    releaseInstance(sigPool, sigPoolReserved, getAlgIndex(sigAlgIndex, signer.getAlgorithm()),
+        signer);
   }
 
   private Cipher getCipherInstanceFromPool(byte alg) {
-    return (Cipher) getInstanceFromPool(cipherPool, alg);
+    short algIndex = getAlgIndex(cipherAlgIndex, alg);
+    short index = reserveInstance(cipherPoolReserved, algIndex);
+    if (cipherPool[index] == null) {
+      cipherPool[index] = getCipherInstance(alg);
+    }
+    return (Cipher) cipherPool[index];
   }
 
   public void releaseCipherInstance(Cipher cipher) {
-    releaseInstance(cipherPool, cipher);
-  }
-
-  // This pool implementation can create a maximum of total 4 instances per
-  // algorithm. This function returns the unreserved Cipher/Signature instance
-  // of type algorithm from pool. If there is no unreserved cipher/signature
-  // instance of algorithm type in the pool and Cipher/Signature algorithm
-  // instance count is less than 4 then it creates and returns a new
-  // Cipher/Signature instance of algorithm type. If there is no unreserved
-  // cipher/signature and maximum instance count reaches four it throws
-  // exception.
-  private Object getInstanceFromPool(Object[] pool, byte alg) {
-    short index = 0;
-    short instanceCount = 0;
-    Object object = null;
-    boolean isCipher = isCipherAlgorithm(alg);
-    boolean isSigner = isSignerAlgorithm(alg);
-    short len = (short) pool.length;
-    while (index < len) {
-      if (null == pool[index]) {
-        // No instance of cipher/signature with this algorithm is found
-        if (instanceCount < 4) {
-          pool[index] = new KMInstance();
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).instanceCount = (byte) (++instanceCount);
-          if (isCipher) {
-            ((KMInstance) pool[index]).object = object = getCipherInstance(alg);
-          } else {
-            // Signature
-            ((KMInstance) pool[index]).object = object = getSignatureInstance(alg);
-          }
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        } else {
-          // Cipher/Signature instance count reached its maximum limit.
-          KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
-          break;
-        }
+    releaseInstance(cipherPool, cipherPoolReserved,
+        getAlgIndex(cipherAlgIndex, getCipherAlgorithm(cipher)), cipher);
+  }
+
+  // This pool implementation can create a maximum of maxInstances instances per
+  // algorithm. This function reserves the first unreserved instance of the
+  // algorithm and returns its index in the pool. Instances other than the first
+  // one are created by the caller when they are reserved for the first time. If
+  // all the instances are reserved it throws exception.
+  private short reserveInstance(short[] reserved, short algIndex) {
+    short instance = 0;
+    short mask;
+    while (instance < maxInstances) {
+      mask = (short) (1 << instance);
+      if ((reserved[algIndex] & mask) == 0) {
+        reserved[algIndex] = (short) (reserved[algIndex] | mask);
+        return (short) ((short) (algIndex * maxInstances) + instance);
       }
-      object = ((KMInstance) pool[index]).object;
-      if ((isCipher && (alg == getCipherAlgorithm((Cipher) object)))
-          || ((isSigner && (alg == ((Signature) object).getAlgorithm())))) {
-        instanceCount = ((KMInstance) pool[index]).instanceCount;
-        if (((KMInstance) pool[index]).reserved == 0) {
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        }
-      } else {
-        if (!isCipher && !isSigner) {
-          // OperationImpl
-          if (((KMInstance) pool[index]).reserved == 0) {
-            JCSystem.beginTransaction();
-            ((KMInstance) pool[index]).reserved = 1;
-            JCSystem.commitTransaction();
-            break;
-          }
-        }
-      }
-      object = null;
-      index++;
+      instance++;
     }
-    return object;
+    // Cipher/Signature instance count reached its maximum limit.
+    KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    return 0;
   }
 
-  private void releaseInstance(Object[] pool, Object object) {
-    short index = 0;
-    short len = (short) pool.length;
-    while (index < len) {
-      if (pool[index] != null) {
-        if (object == ((KMInstance) pool[index]).object) {
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).reserved = 0;
-          JCSystem.commitTransaction();
-          break;
-        }
-      } else {
-        // Reached end.
+  private void releaseInstance(Object[] pool, short[] reserved, short algIndex, Object object) {
+    short index = (short) (algIndex * maxInstances);
+    short instance = 0;
+    while (instance < maxInstances) {
+      if (object == pool[(short) (index + instance)]) {
+        reserved[algIndex] = (short) (reserved[algIndex] & (short) ~(1 << instance));
         break;
       }
-      index++;
+      instance++;
     }
   }
 
@@ -505,18 +538,72 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return privKey;
   }
 
+  public KeyPair createRsaCrtKeyPair() {
+    rsaCrtKeyPair.genKeyPair();
+    return rsaCrtKeyPair;
+  }
+
+  public RSAPrivateCrtKey createRsaCrtKey(byte[] privBuffer, short privOff,
+      short privLength) {
+    if (privLength != RSA_CRT_KEY_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaCrtKeyPair.getPrivate();
+    privKey.setP(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setQ(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setDP1(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setDQ1(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setPQ(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    return privKey;
+  }
+
+  // Key blobs created before CRT support hold the private exponent, newer ones hold the CRT
+  // parameters. The two are told apart by the length of the secret.
+  private PrivateKey createRsaPrivateKey(byte[] privBuffer, short privOff,
+      short privLength, byte[] modBuffer, short modOff, short modLength) {
+    if (privLength == RSA_CRT_KEY_SIZE) {
+      return createRsaCrtKey(privBuffer, privOff, privLength);
+    }
+    return createRsaKey(modBuffer, modOff, modLength, privBuffer, privOff, privLength);
+  }
+
+  // Copies the RSA CRT component from tmpArray into the buf, right aligned in
+  // RSA_CRT_COMPONENT_SIZE bytes.
+  private void copyRsaCrtComponent(short len, byte[] buf, short start) {
+    if (len > RSA_CRT_COMPONENT_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayCopyNonAtomic(tmpArray, (short) 0,
+        buf, (short) (start + RSA_CRT_COMPONENT_SIZE - len), len);
+  }
+
   public KeyPair createECKeyPair() {
+    getEcPrivateKey();
     ecKeyPair.genKeyPair();
     return ecKeyPair;
   }
 
   public ECPrivateKey createEcKey(byte[] privBuffer, short privOff,
       short privLength) {
-    ECPrivateKey privKey = (ECPrivateKey) ecKeyPair.getPrivate();
+    ECPrivateKey privKey = getEcPrivateKey();
     privKey.setS(privBuffer, privOff, privLength);
     return privKey;
   }
 
+  // Domain parameters of a transient private key are cleared along with the key on reset,
+  // so they are set again before the key is used.
+  private ECPrivateKey getEcPrivateKey() {
+    ECPrivateKey privKey = (ECPrivateKey) ecKeyPair.getPrivate();
+    if (privKey.getType() == KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_RESET) {
+      initECPrivateKey(privKey);
+    }
+    return privKey;
+  }
+
   @Override
   public short createSymmetricKey(byte alg, short keysize, byte[] buf,
       short startOff) {
@@ -543,6 +630,11 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
+        if (RSA_CRT_KEY_SIZE == privKeyLength) {
+          createRsaCrtAsymmetricKey(privKeyBuf, privKeyStart, pubModBuf, pubModStart,
+              pubModLength, lengths);
+          break;
+        }
         if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
@@ -583,6 +675,36 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
+  private void createRsaCrtAsymmetricKey(byte[] privKeyBuf, short privKeyStart,
+      byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
+    if (RSA_KEY_SIZE != pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    KeyPair rsaKey = createRsaCrtKeyPair();
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaKey.getPrivate();
+    // Copy P, Q, DP, DQ and PQ.
+    Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, RSA_CRT_KEY_SIZE, (byte) 0);
+    copyRsaCrtComponent(privKey.getP(tmpArray, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(privKey.getQ(tmpArray, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(privKey.getDP1(tmpArray, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(privKey.getDQ1(tmpArray, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(privKey.getPQ(tmpArray, (short) 0), privKeyBuf, privKeyStart);
+    Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
+    lengths[0] = RSA_CRT_KEY_SIZE;
+    //Copy modulus
+    lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(tmpArray, (short) 0);
+    if (lengths[1] > pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
+    Util.arrayCopyNonAtomic(tmpArray, (short) 0,
+        pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+  }
+
   @Override
   public boolean importSymmetricKey(byte alg, short keysize, byte[] buf,
       short startOff, short length) {
@@ -609,8 +731,11 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short pubModStart, short pubModLength) {
     switch (alg) {
       case KMType.RSA:
-        createRsaKey(pubModBuf, pubModStart, pubModLength, privKeyBuf,
-            privKeyStart, privKeyLength);
+        PrivateKey rsaKey = createRsaPrivateKey(privKeyBuf, privKeyStart, privKeyLength,
+            pubModBuf, pubModStart, pubModLength);
+        if (privKeyLength == RSA_CRT_KEY_SIZE) {
+          return isRsaKeyPairConsistent(rsaKey, pubModBuf, pubModStart, pubModLength);
+        }
         break;
       case KMType.EC:
         createEcKey(privKeyBuf, privKeyStart, privKeyLength);
@@ -622,6 +747,23 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return true;
   }
 
+  // The CRT parameters do not contain the modulus, so they are checked against the modulus and
+  // the public exponent by signing with the private key and verifying with the public key.
+  private boolean isRsaKeyPairConsistent(PrivateKey privKey, byte[] modBuffer, short modOff,
+      short modLength) {
+    RSAPublicKey pubKey = (RSAPublicKey) rsaKeyPair.getPublic();
+    pubKey.setModulus(modBuffer, modOff, modLength);
+    pubKey.setExponent(pubExponent, (short) 0, (short) pubExponent.length);
+    try {
+      rsaKeyCheck.init(privKey, Signature.MODE_SIGN);
+      short len = rsaKeyCheck.sign(modBuffer, modOff, modLength, tmpArray, (short) 0);
+      rsaKeyCheck.init(pubKey, Signature.MODE_VERIFY);
+      return rsaKeyCheck.verify(modBuffer, modOff, modLength, tmpArray, (short) 0, len);
+    } finally {
+      clean();
+    }
+  }
+
   @Override
   public void getTrueRandomNumber(byte[] buf, short start, short length) {
     newRandomNumber(buf, start, length);
@@ -803,14 +945,20 @@ public class KMAndroidSEProvider implements KMSEProvider {
         macLength);
   }
 
+  @Override
+  public short messageDigest256(byte[] data, short dataStart, short dataLength,
+      byte[] digest, short digestStart) {
+    sha256Digest.reset();
+    return sha256Digest.doFinal(data, dataStart, dataLength, digest, digestStart);
+  }
+
   @Override
   public short rsaDecipherOAEP256(byte[] secret, short secretStart,
       short secretLength, byte[] modBuffer, short modOff, short modLength,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, (short) secretStart, (short) secretLength);
-    key.setModulus(modBuffer, (short) modOff, (short) modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaOaepDecipher.init(key, Cipher.MODE_DECRYPT);
     return rsaOaepDecipher.doFinal(inputDataBuf, (short) inputDataStart, (short) inputDataLength,
         outputDataBuf, (short) outputDataStart);
@@ -1025,9 +1173,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
       opMode = Signature.MODE_SIGN;
     }
     Signature rsaSigner = getSignatureInstanceFromPool(alg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaSigner.init(key, opMode);
     return rsaSigner;
   }
@@ -1037,9 +1184,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short modLength) {
     byte cipherAlg = mapCipherAlg(KMType.RSA, (byte) padding, (byte) 0, (byte) digest);
     Cipher rsaCipher = getCipherInstanceFromPool(cipherAlg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     return rsaCipher;
   }
@@ -1048,8 +1194,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short secretStart, short secretLength) {
     byte alg = mapSignature256Alg(KMType.EC, (byte) 0, (byte) digest);
     Signature ecSigner = null;
-    ECPrivateKey key = (ECPrivateKey) ecKeyPair.getPrivate();
-    key.setS(secret, secretStart, secretLength);
+    ECPrivateKey key = createEcKey(secret, secretStart, secretLength);
     ecSigner = getSignatureInstanceFromPool(alg);
     ecSigner.init(key, Signature.MODE_SIGN);
     return ecSigner;
@@ -1121,10 +1266,41 @@ public class KMAndroidSEProvider implements KMSEProvider {
   @Override
   public void clearCertificateChain() {
     JCSystem.beginTransaction();
-    Util.arrayFillNonAtomic(certificateChain, (short) 0, CERT_CHAIN_MAX_SIZE, (byte) 0);
+    for (byte page = 0; page < CERT_CHAIN_PAGES; page++) {
+      Util.arrayFillNonAtomic((byte[]) certificateChain[page], (short) 0, CERT_CHAIN_PAGE_SIZE,
+          (byte) 0);
+    }
     JCSystem.commitTransaction();
   }
 
+  // Reads, writes or sends the part of the chain which starts at chainOff bytes after the length.
+  // The part can span the pages.
+  private void accessCertificateChain(byte mode, short chainOff, byte[] buf, short bufOff,
+      short len) {
+    short pos = (short) (chainOff + 2);
+    while (len > 0) {
+      byte[] page = (byte[]) certificateChain[(short) (pos / CERT_CHAIN_PAGE_SIZE)];
+      short pageOff = (short) (pos % CERT_CHAIN_PAGE_SIZE);
+      short chunk = (short) (CERT_CHAIN_PAGE_SIZE - pageOff);
+      if (chunk > len) {
+        chunk = len;
+      }
+      switch (mode) {
+        case CERT_CHAIN_READ:
+          Util.arrayCopyNonAtomic(page, pageOff, buf, bufOff, chunk);
+          break;
+        case CERT_CHAIN_WRITE:
+          Util.arrayCopyNonAtomic(buf, bufOff, page, pageOff, chunk);
+          break;
+        default:
+          APDU.getCurrentAPDU().sendBytesLong(page, pageOff, chunk);
+      }
+      pos += chunk;
+      bufOff += chunk;
+      len -= chunk;
+    }
+  }
+
   //This function supports multi-part request data.
   @Override
   public void persistPartialCertificateChain(byte[] buf, short offset, short len, short totalLen) {
@@ -1138,27 +1314,31 @@ public class KMAndroidSEProvider implements KMSEProvider {
     if (totalLen > (short) (CERT_CHAIN_MAX_SIZE - 2)) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
-    short persistedLen = Util.getShort(certificateChain, (short) 0);
+    short persistedLen = getCertificateChainLength();
     if (persistedLen > totalLen) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     JCSystem.beginTransaction();
-    Util.setShort(certificateChain, (short) 0, (short) (len + persistedLen));
-    Util.arrayCopyNonAtomic(buf, offset, certificateChain,
-        (short) (persistedLen + 2), len);
+    Util.setShort((byte[]) certificateChain[0], (short) 0, (short) (len + persistedLen));
+    accessCertificateChain(CERT_CHAIN_WRITE, persistedLen, buf, offset, len);
     JCSystem.commitTransaction();
   }
 
   @Override
   public short readCertificateChain(byte[] buf, short offset) {
-    short len = Util.getShort(certificateChain, (short) 0);
-    Util.arrayCopyNonAtomic(certificateChain, (short) 2, buf, offset, len);
+    short len = getCertificateChainLength();
+    accessCertificateChain(CERT_CHAIN_READ, (short) 0, buf, offset, len);
     return len;
   }
 
+  @Override
+  public void sendCertificateChain(short offset, short len) {
+    accessCertificateChain(CERT_CHAIN_SEND, offset, null, (short) 0, len);
+  }
+
   @Override
   public short getCertificateChainLength() {
-    return Util.getShort(certificateChain, (short) 0);
+    return Util.getShort((byte[]) certificateChain[0], (short) 0);
   }
 
   @Override
@@ -1176,20 +1356,35 @@ public class KMAndroidSEProvider implements KMSEProvider {
     // To be filled
   }
 
+  // The first page of the certificate chain is saved where the previous versions saved the
+  // whole chain, in a single array of the page size, and the other pages are saved after the
+  // keys. So the data of a previous version restores as the first page.
   @Override
   public void onSave(Element element) {
-    element.write(certificateChain);
+    element.write(certificateChain[0]);
     KMAESKey.onSave(element, masterKey);
     KMECPrivateKey.onSave(element, attestationKey);
     KMHmacKey.onSave(element, preSharedKey);
+    for (byte page = 1; page < CERT_CHAIN_PAGES; page++) {
+      element.write(certificateChain[page]);
+    }
   }
 
   @Override
   public void onRestore(Element element) {
-    certificateChain = (byte[]) element.readObject();
+    certificateChain = new Object[CERT_CHAIN_PAGES];
+    certificateChain[0] = element.readObject();
     masterKey = KMAESKey.onRestore(element);
     attestationKey = KMECPrivateKey.onRestore(element);
     preSharedKey = KMHmacKey.onRestore(element);
+    for (byte page = 1; page < CERT_CHAIN_PAGES; page++) {
+      // The data of a previous version has no other pages.
+      if (element.canReadObject() > 0) {
+        certificateChain[page] = element.readObject();
+      } else {
+        certificateChain[page] = new byte[CERT_CHAIN_PAGE_SIZE];
+      }
+    }
   }
 
   @Override
@@ -1204,7 +1399,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
   @Override
   public short getBackupObjectCount() {
     short count =
-        (short) (1 /*Certificate chain */ +
+        (short) (CERT_CHAIN_PAGES /*Certificate chain */ +
             KMAESKey.getBackupObjectCount() +
             KMECPrivateKey.getBackupObjectCount() +
             KMHmacKey.getBackupObjectCount());
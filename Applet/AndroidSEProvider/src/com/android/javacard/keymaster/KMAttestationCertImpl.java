@@ -20,15 +20,20 @@ import com.android.javacard.keymaster.KMByteBlob;
 import com.android.javacard.keymaster.KMECPrivateKey;
 import com.android.javacard.keymaster.KMMasterKey;
 
+import javacard.framework.APDU;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.AESKey;
+import javacard.security.ECPrivateKey;
+import javacard.security.Signature;
 
 // The class encodes strongbox generated amd signed attestation certificate. This only encodes
 // required fields of the certificates. It is not meant to be generic X509 cert encoder.
 // Whatever fields that are fixed are added as byte arrays. The Extensions are encoded as per
 // the values.
-// The certificate is assembled with leafs first and then the sequences.
+// The certificate is never held in memory as a whole. A length pass computes the lengths of the
+// DER elements, then the TBS certificate is emitted in order through a small buffer which is fed
+// to the signer, and finally the certificate is emitted once more and sent to the host.
 
 public class KMAttestationCertImpl implements KMAttestationCert {
 
@@ -90,15 +95,49 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   private static final byte SERIAL_NUM = (byte) 0x01;
   private static final byte X509_VERSION = (byte) 0x02;
 
-  private static short certStart;
-  private static short signatureOffset;
-  private static short tbsOffset;
+  // Below are the allowed softwareEnforced Authorization tags inside the attestation certificate's
+  // extension, in the order they are encoded.
+  private static final short[] swTagIds = {
+      KMType.UNLOCKED_DEVICE_REQUIRED, KMType.ACTIVE_DATETIME,
+      KMType.ORIGINATION_EXPIRE_DATETIME, KMType.USAGE_EXPIRE_DATETIME,
+      KMType.CREATION_DATETIME, KMType.ATTESTATION_APPLICATION_ID};
+  // Below are the allowed hardwareEnforced Authorization tags inside the attestation certificate's
+  // extension, in the order they are encoded.
+  private static final short[] hwTagIds = {
+      KMType.PURPOSE, KMType.ALGORITHM, KMType.KEYSIZE, KMType.DIGEST, KMType.PADDING,
+      KMType.ECCURVE, KMType.RSA_PUBLIC_EXPONENT, KMType.ROLLBACK_RESISTANCE,
+      KMType.NO_AUTH_REQUIRED, KMType.USER_AUTH_TYPE, KMType.AUTH_TIMEOUT,
+      KMType.ALLOW_WHILE_ON_BODY, KMType.TRUSTED_USER_PRESENCE_REQUIRED,
+      KMType.TRUSTED_CONFIRMATION_REQUIRED, KMType.APPLICATION_ID, KMType.ORIGIN,
+      KMType.ROOT_OF_TRUST, KMType.OS_VERSION, KMType.OS_PATCH_LEVEL,
+      KMType.VENDOR_PATCH_LEVEL, KMType.BOOT_PATCH_LEVEL};
+
+  // Emission passes - only counting the bytes, feeding them to the signer, sending them or
+  // writing them to the template.
+  private static final byte MODE_LENGTH = 0;
+  private static final byte MODE_SIGN = 1;
+  private static final byte MODE_SEND = 2;
+  private static final byte MODE_TEMPLATE = 3;
+  // The template holds the length of the header fields, the header fields up to the issuer and
+  // the root of trust.
+  private static final short TEMPLATE_HEADER_LEN_SIZE = 2;
+  // Maximum number of DER elements whose length is computed by the length pass.
+  private static final short MAX_NODES = 128;
+
+  private static byte mode;
+  private static short position;
+  private static short nodeIndex;
+  private static short[] nodeLengths;
+  private static byte[] buffer;
+  private static short bufStart;
+  private static short bufEnd;
+  private static short bufPtr;
   private static short tbsLength;
+  private static short certLength;
+  private static short signatureLength;
+  private static Signature signer;
+  private static short template;
 
-  private static short stackPtr;
-  private static byte[] stack;
-  private static short start;
-  private static short length;
   //  private static KMRepository repo;
   private static short uniqueId;
   private static short attChallenge;
@@ -133,13 +172,20 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   }
 
   private static void init() {
-    stack = null;
-    stackPtr = 0;
-    certStart = 0;
-    signatureOffset = 0;
-    start = 0;
-    length = 0;
+    buffer = null;
+    bufStart = 0;
+    bufEnd = 0;
+    bufPtr = 0;
     tbsLength = 0;
+    certLength = 0;
+    signatureLength = 0;
+    template = KMType.INVALID_VALUE;
+    if (nodeLengths == null) {
+      nodeLengths = JCSystem.makeTransientShortArray(MAX_NODES, JCSystem.CLEAR_ON_RESET);
+    }
+    if (signer == null) {
+      signer = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+    }
     if (swParams == null) {
       swParams = JCSystem.makeTransientShortArray((short) MAX_PARAMS, JCSystem.CLEAR_ON_RESET);
     }
@@ -279,130 +325,150 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     }
   }
 
-  private static void pushTbsCert(boolean rsaCert) {
-    short last = stackPtr;
-    pushExtensions();
+  // TBSCertificate ::= SEQUENCE {
+  //         version                    [0] EXPLICIT INTEGER, # Value 2
+  //         serialNumber               INTEGER,
+  //         signature                  AlgorithmIdentifier,
+  //         issuer                     Name,
+  //         validity                   Validity,
+  //         subject                    Name,
+  //         subjectPublicKeyInfo       SubjectPublicKeyInfo,
+  //         extensions                 [3] EXPLICIT Extensions
+  //     }
+  private static void emitTbsCert() {
+    short node = beginSequence();
+    if (template != KMType.INVALID_VALUE) {
+      emitBytes(
+          KMByteBlob.cast(template).getBuffer(),
+          (short) (KMByteBlob.cast(template).getStartOff() + TEMPLATE_HEADER_LEN_SIZE),
+          getTemplateHeaderLength());
+    } else {
+      emitTbsHeader();
+    }
+    emitValidity();
+    // subject
+    emitBytes(X509Subject, (short) 0, (short) X509Subject.length);
     // subject public key info
     if (rsaCert) {
-      pushRsaSubjectKeyInfo();
+      emitRsaSubjectKeyInfo();
     } else {
-      pushEccSubjectKeyInfo();
+      emitEccSubjectKeyInfo();
     }
-    // subject
-    pushBytes(X509Subject, (short) 0, (short) X509Subject.length);
-    pushValidity();
+    emitExtensions();
+    end(node);
+  }
+
+  // The fields of the TBS certificate up to the issuer, which are the same for all the keys.
+  private static void emitTbsHeader() {
+    // Version
+    emitByte((byte) 0xA0);
+    emitByte((byte) 0x03);
+    emitIntegerHeader((short) 1);
+    emitByte(X509_VERSION);
+    // Serial Number
+    emitIntegerHeader((short) 1);
+    emitByte(SERIAL_NUM);
+    // Algorithm Id
+    emitBytes(X509SignAlgIdentifier, (short) 0, (short) X509SignAlgIdentifier.length);
     // issuer - der encoded
-    pushBytes(
+    emitBytes(
         KMByteBlob.cast(issuer).getBuffer(),
         KMByteBlob.cast(issuer).getStartOff(),
         KMByteBlob.cast(issuer).length());
-    // Algorithm Id
-    pushAlgorithmId(X509SignAlgIdentifier);
-    // Serial Number
-    pushByte(SERIAL_NUM);
-    pushIntegerHeader((short) 1);
-    // Version
-    pushByte(X509_VERSION);
-    pushIntegerHeader((short) 1);
-    pushByte((byte) 0x03);
-    pushByte((byte) 0xA0);
-    // Finally sequence header.
-    pushSequenceHeader((short) (last - stackPtr));
   }
 
-  private static void pushExtensions() {
-    short last = stackPtr;
+  private static short getTemplateHeaderLength() {
+    return Util.getShort(KMByteBlob.cast(template).getBuffer(),
+        KMByteBlob.cast(template).getStartOff());
+  }
+
+  private static void emitExtensions() {
+    // Extensions have explicit tag of [3]
+    short node = begin((byte) 0xA3);
+    short extensions = beginSequence();
+    emitKeyDescription();
     if (keyUsage != 0) {
-      pushKeyUsage(keyUsage, unusedBits);
+      emitKeyUsage();
     }
-    pushKeyDescription();
-    pushSequenceHeader((short) (last - stackPtr));
-    // Extensions have explicit tag of [3]
-    pushLength((short) (last - stackPtr));
-    pushByte((byte) 0xA3);
+    end(extensions);
+    end(node);
   }
 
   // Time SEQUENCE{UTCTime, UTC or Generalized Time)
-  private static void pushValidity() {
-    short last = stackPtr;
-    if (notAfter != 0) {
-      pushBytes(
-          KMByteBlob.cast(notAfter).getBuffer(),
-          KMByteBlob.cast(notAfter).getStartOff(),
-          KMByteBlob.cast(notAfter).length());
-    } else {
+  private static void emitValidity() {
+    if (notAfter == 0) {
       KMException.throwIt(KMError.INVALID_DATA);
     }
-    pushTimeHeader(KMByteBlob.cast(notAfter).length());
-    pushBytes(
-        KMByteBlob.cast(notBefore).getBuffer(),
-        KMByteBlob.cast(notBefore).getStartOff(),
-        KMByteBlob.cast(notBefore).length());
-    pushTimeHeader(KMByteBlob.cast(notBefore).length());
-    pushSequenceHeader((short) (last - stackPtr));
+    short node = beginSequence();
+    emitTime(notBefore);
+    emitTime(notAfter);
+    end(node);
   }
 
-  private static void pushTimeHeader(short len) {
+  private static void emitTime(short time) {
+    short len = KMByteBlob.cast(time).length();
     if (len == 13) { // UTC Time
-      pushLength((short) 0x0D);
-      pushByte((byte) 0x17);
+      emitByte((byte) 0x17);
     } else if (len == 15) { // Generalized Time
-      pushLength((short) 0x0F);
-      pushByte((byte) 0x18);
+      emitByte((byte) 0x18);
     } else {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
+    emitLength(len);
+    emitBytes(KMByteBlob.cast(time).getBuffer(), KMByteBlob.cast(time).getStartOff(), len);
   }
 
   // SEQUENCE{SEQUENCE{algId, NULL}, bitString{SEQUENCE{ modulus as positive integer, public
   // exponent
   // as positive integer}
-  private static void pushRsaSubjectKeyInfo() {
-    short last = stackPtr;
-    pushBytes(pubExponent, (short) 0, (short) pubExponent.length);
-    pushIntegerHeader((short) pubExponent.length);
-    pushBytes(
-        KMByteBlob.cast(pubKey).getBuffer(),
-        KMByteBlob.cast(pubKey).getStartOff(),
-        KMByteBlob.cast(pubKey).length());
-
+  private static void emitRsaSubjectKeyInfo() {
+    short node = beginSequence();
+    emitRsaEncryption();
+    short bitString = beginBitString((byte) 0x00);
+    short key = beginSequence();
     // encode modulus as positive if the MSB is 1.
     if (KMByteBlob.cast(pubKey).get((short) 0) < 0) {
-      pushByte((byte) 0x00);
-      pushIntegerHeader((short) (KMByteBlob.cast(pubKey).length() + 1));
+      emitIntegerHeader((short) (KMByteBlob.cast(pubKey).length() + 1));
+      emitByte((byte) 0x00);
     } else {
-      pushIntegerHeader(KMByteBlob.cast(pubKey).length());
+      emitIntegerHeader(KMByteBlob.cast(pubKey).length());
     }
-    pushSequenceHeader((short) (last - stackPtr));
-    pushBitStringHeader((byte) 0x00, (short) (last - stackPtr));
-    pushRsaEncryption();
-    pushSequenceHeader((short) (last - stackPtr));
+    emitBytes(
+        KMByteBlob.cast(pubKey).getBuffer(),
+        KMByteBlob.cast(pubKey).getStartOff(),
+        KMByteBlob.cast(pubKey).length());
+    emitIntegerHeader((short) pubExponent.length);
+    emitBytes(pubExponent, (short) 0, (short) pubExponent.length);
+    end(key);
+    end(bitString);
+    end(node);
   }
 
   // SEQUENCE{SEQUENCE{ecPubKey, prime256v1}, bitString{pubKey}}
-  private static void pushEccSubjectKeyInfo() {
-    short last = stackPtr;
-    pushBytes(
+  private static void emitEccSubjectKeyInfo() {
+    short node = beginSequence();
+    emitEcDsa();
+    short bitString = beginBitString((byte) 0x00);
+    emitBytes(
         KMByteBlob.cast(pubKey).getBuffer(),
         KMByteBlob.cast(pubKey).getStartOff(),
         KMByteBlob.cast(pubKey).length());
-    pushBitStringHeader((byte) 0x00, KMByteBlob.cast(pubKey).length());
-    pushEcDsa();
-    pushSequenceHeader((short) (last - stackPtr));
+    end(bitString);
+    end(node);
   }
 
-  private static void pushEcDsa() {
-    short last = stackPtr;
-    pushBytes(prime256v1, (short) 0, (short) prime256v1.length);
-    pushBytes(eccPubKey, (short) 0, (short) eccPubKey.length);
-    pushSequenceHeader((short) (last - stackPtr));
+  private static void emitEcDsa() {
+    short node = beginSequence();
+    emitBytes(eccPubKey, (short) 0, (short) eccPubKey.length);
+    emitBytes(prime256v1, (short) 0, (short) prime256v1.length);
+    end(node);
   }
 
-  private static void pushRsaEncryption() {
-    short last = stackPtr;
-    pushNullHeader();
-    pushBytes(rsaEncryption, (short) 0, (short) rsaEncryption.length);
-    pushSequenceHeader((short) (last - stackPtr));
+  private static void emitRsaEncryption() {
+    short node = beginSequence();
+    emitBytes(rsaEncryption, (short) 0, (short) rsaEncryption.length);
+    emitNull();
+    end(node);
   }
 
   // KeyDescription ::= SEQUENCE {
@@ -415,80 +481,68 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   //         softwareEnforced           AuthorizationList, # See below
   //         hardwareEnforced           AuthorizationList, # See below
   //     }
-  private static void pushKeyDescription() {
-    short last = stackPtr;
-    pushHWParams();
-    pushSWParams();
+  private static void emitKeyDescription() {
+    short node = beginSequence();
+    emitBytes(androidExtn, (short) 0, (short) androidExtn.length);
+    short octetString = beginOctetString();
+    short description = beginSequence();
+    emitIntegerHeader((short) 1);
+    emitByte(ATTESTATION_VERSION);
+    emitEnumerated(KMType.STRONGBOX);
+    emitIntegerHeader((short) 1);
+    emitByte(KEYMASTER_VERSION);
+    emitEnumerated(KMType.STRONGBOX);
+    emitOctetString(
+        KMByteBlob.cast(attChallenge).getBuffer(),
+        KMByteBlob.cast(attChallenge).getStartOff(),
+        KMByteBlob.cast(attChallenge).length());
     if (uniqueId != 0) {
-      pushOctetString(
+      emitOctetString(
           KMByteBlob.cast(uniqueId).getBuffer(),
           KMByteBlob.cast(uniqueId).getStartOff(),
           KMByteBlob.cast(uniqueId).length());
     } else {
-      pushOctetStringHeader((short) 0);
+      emitByte((byte) 0x04);
+      emitLength((short) 0);
     }
-    pushOctetString(
-        KMByteBlob.cast(attChallenge).getBuffer(),
-        KMByteBlob.cast(attChallenge).getStartOff(),
-        KMByteBlob.cast(attChallenge).length());
-    pushEnumerated(KMType.STRONGBOX);
-    pushByte(KEYMASTER_VERSION);
-    pushIntegerHeader((short) 1);
-    pushEnumerated(KMType.STRONGBOX);
-    pushByte(ATTESTATION_VERSION);
-    pushIntegerHeader((short) 1);
-    pushSequenceHeader((short) (last - stackPtr));
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushBytes(androidExtn, (short) 0, (short) androidExtn.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushSWParams() {
-    short last = stackPtr;
-    // Below are the allowed softwareEnforced Authorization tags inside the attestation certificate's extension.
-    short[] tagIds = {
-        KMType.ATTESTATION_APPLICATION_ID, KMType.CREATION_DATETIME,
-        KMType.USAGE_EXPIRE_DATETIME, KMType.ORIGINATION_EXPIRE_DATETIME,
-        KMType.ACTIVE_DATETIME, KMType.UNLOCKED_DEVICE_REQUIRED};
+    emitSWParams();
+    emitHWParams();
+    end(description);
+    end(octetString);
+    end(node);
+  }
+
+  private static void emitSWParams() {
+    short node = beginSequence();
     byte index = 0;
     do {
-      pushParams(swParams, swParamsIndex, tagIds[index]);
-    } while (++index < tagIds.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushHWParams() {
-    short last = stackPtr;
-    // Below are the allowed hardwareEnforced Authorization tags inside the attestation certificate's extension.
-    short[] tagIds = {
-        KMType.BOOT_PATCH_LEVEL, KMType.VENDOR_PATCH_LEVEL,
-        KMType.OS_PATCH_LEVEL, KMType.OS_VERSION, KMType.ROOT_OF_TRUST,
-        KMType.ORIGIN, KMType.APPLICATION_ID,
-        KMType.TRUSTED_CONFIRMATION_REQUIRED,
-        KMType.TRUSTED_USER_PRESENCE_REQUIRED, KMType.ALLOW_WHILE_ON_BODY,
-        KMType.AUTH_TIMEOUT, KMType.USER_AUTH_TYPE, KMType.NO_AUTH_REQUIRED,
-        KMType.ROLLBACK_RESISTANCE, KMType.RSA_PUBLIC_EXPONENT,
-        KMType.ECCURVE, KMType.PADDING, KMType.DIGEST, KMType.KEYSIZE,
-        KMType.ALGORITHM, KMType.PURPOSE};
+      emitParams(swParams, swParamsIndex, swTagIds[index]);
+    } while (++index < swTagIds.length);
+    end(node);
+  }
 
+  private static void emitHWParams() {
+    short node = beginSequence();
     byte index = 0;
     do {
-      if (tagIds[index] == KMType.ROOT_OF_TRUST) {
-        pushRoT();
-        continue;
-      }
-      if (pushParams(hwParams, hwParamsIndex, tagIds[index])) {
+      if (hwTagIds[index] == KMType.ROOT_OF_TRUST) {
+        if (template != KMType.INVALID_VALUE) {
+          emitTemplateRoT();
+        } else {
+          emitRoT();
+        }
         continue;
       }
-    } while (++index < tagIds.length);
-    pushSequenceHeader((short) (last - stackPtr));
+      emitParams(hwParams, hwParamsIndex, hwTagIds[index]);
+    } while (++index < hwTagIds.length);
+    end(node);
   }
 
-  private static boolean pushParams(short[] params, short len, short tagId) {
+  private static boolean emitParams(short[] params, short len, short tagId) {
     short index = 0;
     while (index < len) {
       if (tagId == KMTag.getKey(params[index])) {
-        pushTag(params[index]);
+        emitTag(params[index]);
         return true;
       }
       index++;
@@ -496,14 +550,14 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     return false;
   }
 
-  private static void pushTag(short tag) {
+  private static void emitTag(short tag) {
     short type = KMTag.getTagType(tag);
     short tagId = KMTag.getKey(tag);
     short val;
     switch (type) {
       case KMType.BYTES_TAG:
         val = KMByteTag.cast(tag).getValue();
-        pushBytesTag(
+        emitBytesTag(
             tagId,
             KMByteBlob.cast(val).getBuffer(),
             KMByteBlob.cast(val).getStartOff(),
@@ -511,11 +565,11 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         break;
       case KMType.ENUM_TAG:
         val = KMEnumTag.cast(tag).getValue();
-        pushEnumTag(tagId, (byte) val);
+        emitEnumTag(tagId, (byte) val);
         break;
       case KMType.ENUM_ARRAY_TAG:
         val = KMEnumArrayTag.cast(tag).getValues();
-        pushEnumArrayTag(
+        emitEnumArrayTag(
             tagId,
             KMByteBlob.cast(val).getBuffer(),
             KMByteBlob.cast(val).getStartOff(),
@@ -525,7 +579,7 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       case KMType.ULONG_TAG:
       case KMType.DATE_TAG:
         val = KMIntegerTag.cast(tag).getValue();
-        pushIntegerTag(
+        emitIntegerTag(
             tagId,
             KMInteger.cast(val).getBuffer(),
             KMInteger.cast(val).getStartOff(),
@@ -536,11 +590,10 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         // According to keymaster hal only one user secure id is used but this conflicts with
         //  tag type which is ULONG-REP. Currently this is encoded as SET OF INTEGERS
         val = KMIntegerArrayTag.cast(tag).getValues();
-        pushIntegerArrayTag(tagId, val);
+        emitIntegerArrayTag(tagId, val);
         break;
       case KMType.BOOL_TAG:
-        val = KMBoolTag.cast(tag).getVal();
-        pushBoolTag(tagId);
+        emitBoolTag(tagId);
         break;
       default:
         KMException.throwIt(KMError.INVALID_TAG);
@@ -560,121 +613,114 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   //          Unverified                 (2),
   //          Failed                     (3),
   //      }
-  private static void pushRoT() {
-    short last = stackPtr;
-    // verified boot hash
-    pushOctetString(
-        KMByteBlob.cast(verifiedHash).getBuffer(),
-        KMByteBlob.cast(verifiedHash).getStartOff(),
-        KMByteBlob.cast(verifiedHash).length());
-
-    pushEnumerated(verifiedState);
-
-    pushBoolean(deviceLocked);
+  private static void emitRoT() {
+    short node = beginTagId(KMType.ROOT_OF_TRUST);
+    short rot = beginSequence();
     // verified boot Key
-    pushOctetString(
+    emitOctetString(
         KMByteBlob.cast(verifiedBootKey).getBuffer(),
         KMByteBlob.cast(verifiedBootKey).getStartOff(),
         KMByteBlob.cast(verifiedBootKey).length());
-
-    // Finally sequence header
-    pushSequenceHeader((short) (last - stackPtr));
-    // ... and tag Id
-    pushTagIdHeader(KMType.ROOT_OF_TRUST, (short) (last - stackPtr));
+    emitBoolean(deviceLocked);
+    emitEnumerated(verifiedState);
+    // verified boot hash
+    emitOctetString(
+        KMByteBlob.cast(verifiedHash).getBuffer(),
+        KMByteBlob.cast(verifiedHash).getStartOff(),
+        KMByteBlob.cast(verifiedHash).length());
+    end(rot);
+    end(node);
   }
 
-  private static void pushOctetString(byte[] buf, short start, short len) {
-    pushBytes(buf, start, len);
-    pushOctetStringHeader(len);
+  private static void emitTemplateRoT() {
+    short start = (short) (TEMPLATE_HEADER_LEN_SIZE + getTemplateHeaderLength());
+    emitBytes(
+        KMByteBlob.cast(template).getBuffer(),
+        (short) (KMByteBlob.cast(template).getStartOff() + start),
+        (short) (KMByteBlob.cast(template).length() - start));
   }
 
-  private static void pushBoolean(byte val) {
-    pushByte(val);
-    pushBooleanHeader((short) 1);
+  private static void emitOctetString(byte[] buf, short start, short len) {
+    emitByte((byte) 0x04);
+    emitLength(len);
+    emitBytes(buf, start, len);
   }
 
-  private static void pushBooleanHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x01);
+  private static void emitBoolean(byte val) {
+    emitByte((byte) 0x01);
+    emitLength((short) 1);
+    emitByte(val);
   }
 
   // Only SET of INTEGERS supported are padding, digest, purpose and blockmode
   // All of these are enum array tags i.e. byte long values
-  private static void pushEnumArrayTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    short index = 0;
-    while (index < len) {
-      pushByte(buf[(short) (start + index)]);
-      pushIntegerHeader((short) 1);
-      index++;
+  private static void emitEnumArrayTag(short tagId, byte[] buf, short start, short len) {
+    short node = beginTagId(tagId);
+    short set = beginSet();
+    // The values are encoded last to first.
+    short index = len;
+    while (index > 0) {
+      index--;
+      emitIntegerHeader((short) 1);
+      emitByte(buf[(short) (start + index)]);
     }
-    pushSetHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+    end(set);
+    end(node);
   }
 
   // Only SET of INTEGERS supported are padding, digest, purpose and blockmode
   // All of these are enum array tags i.e. byte long values
-  private static void pushIntegerArrayTag(short tagId, short arr) {
-    short last = stackPtr;
-    short index = 0;
-    short len = KMArray.cast(arr).length();
+  private static void emitIntegerArrayTag(short tagId, short arr) {
+    short node = beginTagId(tagId);
+    short set = beginSet();
+    // The values are encoded last to first.
+    short index = KMArray.cast(arr).length();
     short ptr;
-    while (index < len) {
+    while (index > 0) {
+      index--;
       ptr = KMArray.cast(arr).get(index);
-      pushInteger(
+      emitInteger(
           KMInteger.cast(ptr).getBuffer(),
           KMInteger.cast(ptr).getStartOff(),
           KMInteger.cast(ptr).length());
-      index++;
     }
-    pushSetHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
-  }
-
-  private static void pushSetHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x31);
-  }
-
-  private static void pushEnumerated(byte val) {
-    short last = stackPtr;
-    pushByte(val);
-    pushEnumeratedHeader((short) (last - stackPtr));
+    end(set);
+    end(node);
   }
 
-  private static void pushEnumeratedHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x0A);
+  private static void emitEnumerated(byte val) {
+    emitByte((byte) 0x0A);
+    emitLength((short) 1);
+    emitByte(val);
   }
 
-  private static void pushBoolTag(short tagId) {
-    short last = stackPtr;
-    pushNullHeader();
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void emitBoolTag(short tagId) {
+    short node = beginTagId(tagId);
+    emitNull();
+    end(node);
   }
 
-  private static void pushNullHeader() {
-    pushByte((byte) 0);
-    pushByte((byte) 0x05);
+  private static void emitNull() {
+    emitByte((byte) 0x05);
+    emitByte((byte) 0);
   }
 
-  private static void pushEnumTag(short tagId, byte val) {
-    short last = stackPtr;
-    pushByte(val);
-    pushIntegerHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void emitEnumTag(short tagId, byte val) {
+    short node = beginTagId(tagId);
+    emitIntegerHeader((short) 1);
+    emitByte(val);
+    end(node);
   }
 
-  private static void pushIntegerTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    pushInteger(buf, start, len);
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void emitIntegerTag(short tagId, byte[] buf, short start, short len) {
+    short node = beginTagId(tagId);
+    emitInteger(buf, start, len);
+    end(node);
   }
 
   // Ignore leading zeros. Only Unsigned Integers are required hence if MSB is set then add 0x00
   // as most significant byte.
-  private static void pushInteger(byte[] buf, short start, short len) {
-    short last = stackPtr;
+  private static void emitInteger(byte[] buf, short start, short len) {
     byte index = 0;
     while (index < (byte) len) {
       if (buf[(short) (start + index)] != 0) {
@@ -683,168 +729,266 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       index++;
     }
     if (index == (byte) len) {
-      pushByte((byte) 0x00);
+      emitIntegerHeader((short) 1);
+      emitByte((byte) 0x00);
+    } else if (buf[(short) (start + index)] < 0) { // MSB is 1
+      emitIntegerHeader((short) (len - index + 1));
+      emitByte((byte) 0x00); // always unsigned int
+      emitBytes(buf, (short) (start + index), (short) (len - index));
     } else {
-      pushBytes(buf, (short) (start + index), (short) (len - index));
-      if (buf[(short) (start + index)] < 0) { // MSB is 1
-        pushByte((byte) 0x00); // always unsigned int
-      }
+      emitIntegerHeader((short) (len - index));
+      emitBytes(buf, (short) (start + index), (short) (len - index));
     }
-    pushIntegerHeader((short) (last - stackPtr));
   }
 
   // Bytes Tag is a octet string and tag id is added explicitly
-  private static void pushBytesTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    pushBytes(buf, start, len);
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void emitBytesTag(short tagId, byte[] buf, short start, short len) {
+    short node = beginTagId(tagId);
+    emitOctetString(buf, start, len);
+    end(node);
+  }
+
+  // SEQUENCE {ObjId, OCTET STRING{BIT STRING{keyUsage}}}
+  private static void emitKeyUsage() {
+    short node = beginSequence();
+    emitBytes(keyUsageExtn, (short) 0, (short) keyUsageExtn.length);
+    short octetString = beginOctetString();
+    short bitString = beginBitString(unusedBits);
+    emitByte(keyUsage);
+    end(bitString);
+    end(octetString);
+    end(node);
+  }
+
+  private static void emitIntegerHeader(short len) {
+    emitByte((byte) 0x02);
+    emitLength(len);
+  }
+
+  private static short beginSequence() {
+    return begin((byte) 0x30);
+  }
+
+  private static short beginSet() {
+    return begin((byte) 0x31);
+  }
+
+  private static short beginOctetString() {
+    return begin((byte) 0x04);
+  }
+
+  // The unused bits byte is the first byte of the bit string content.
+  private static short beginBitString(byte unusedBits) {
+    short node = begin((byte) 0x03);
+    emitByte(unusedBits);
+    return node;
   }
 
   // tag id <= 30 ---> 0xA0 | {tagId}
   // 30 < tagId < 128 ---> 0xBF 0x{tagId}
   // tagId >= 128 ---> 0xBF 0x80+(tagId/128) 0x{tagId - (128*(tagId/128))}
-  private static void pushTagIdHeader(short tagId, short len) {
-    pushLength(len);
+  private static short beginTagId(short tagId) {
     short count = (short) (tagId / 128);
     if (count > 0) {
-      pushByte((byte) (tagId - (128 * count)));
-      pushByte((byte) (0x80 + count));
-      pushByte((byte) 0xBF);
+      emitByte((byte) 0xBF);
+      emitByte((byte) (0x80 + count));
+      emitByte((byte) (tagId - (128 * count)));
     } else if (tagId > 30) {
-      pushByte((byte) tagId);
-      pushByte((byte) 0xBF);
+      emitByte((byte) 0xBF);
+      emitByte((byte) tagId);
     } else {
-      pushByte((byte) (0xA0 | (byte) tagId));
+      emitByte((byte) (0xA0 | (byte) tagId));
     }
+    return beginContent();
   }
 
-  // SEQUENCE {ObjId, OCTET STRING{BIT STRING{keyUsage}}}
-  private static void pushKeyUsage(byte keyUsage, byte unusedBits) {
-    short last = stackPtr;
-    pushByte(keyUsage);
-    pushBitStringHeader(unusedBits, (short) (last - stackPtr));
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushBytes(keyUsageExtn, (short) 0, (short) keyUsageExtn.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushAlgorithmId(byte[] algId) {
-    pushBytes(algId, (short) 0, (short) algId.length);
-  }
-
-  private static void pushIntegerHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x02);
-  }
-
-  private static void pushOctetStringHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x04);
+  private static short begin(byte tag) {
+    emitByte(tag);
+    return beginContent();
   }
 
-  private static void pushSequenceHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x30);
+  // Starts the content of a DER element whose length is not known upfront. The length pass
+  // records where the content starts and end() turns that into the length, which the later passes
+  // emit here. The element is identified by its position in the emission order, which is the same
+  // in every pass.
+  private static short beginContent() {
+    if (nodeIndex >= MAX_NODES) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    short node = nodeIndex;
+    nodeIndex++;
+    if (mode == MODE_LENGTH) {
+      nodeLengths[node] = position;
+    } else {
+      emitLength(nodeLengths[node]);
+    }
+    return node;
   }
 
-  private static void pushBitStringHeader(byte unusedBits, short len) {
-    pushByte(unusedBits);
-    pushLength((short) (len + 1)); // 1 extra byte for unused bits byte
-    pushByte((byte) 0x03);
+  private static void end(short node) {
+    if (mode == MODE_LENGTH) {
+      nodeLengths[node] = (short) (position - nodeLengths[node]);
+      // Only counts the length bytes, which are emitted by beginContent in the later passes.
+      emitLength(nodeLengths[node]);
+    }
   }
 
-  private static void pushLength(short len) {
+  private static void emitLength(short len) {
     if (len < 128) {
-      pushByte((byte) len);
+      emitByte((byte) len);
     } else if (len < 256) {
-      pushByte((byte) len);
-      pushByte((byte) 0x81);
+      emitByte((byte) 0x81);
+      emitByte((byte) len);
     } else {
-      pushShort(len);
-      pushByte((byte) 0x82);
+      emitByte((byte) 0x82);
+      emitByte((byte) (len >> 8));
+      emitByte((byte) len);
     }
   }
 
-  private static void pushShort(short val) {
-    decrementStackPtr((short) 2);
-    Util.setShort(stack, stackPtr, val);
+  private static short getLengthSize(short len) {
+    if (len < 128) {
+      return 1;
+    } else if (len < 256) {
+      return 2;
+    }
+    return 3;
   }
 
-  private static void pushByte(byte val) {
-    decrementStackPtr((short) 1);
-    stack[stackPtr] = val;
+  private static void emitByte(byte val) {
+    position++;
+    if (mode == MODE_LENGTH) {
+      return;
+    }
+    buffer[bufPtr] = val;
+    bufPtr++;
+    if (bufPtr == bufEnd) {
+      drain();
+    }
   }
 
-  private static void pushBytes(byte[] buf, short start, short len) {
-    decrementStackPtr(len);
-    if (buf != null) {
-      Util.arrayCopyNonAtomic(buf, start, stack, stackPtr, len);
+  private static void emitBytes(byte[] buf, short start, short len) {
+    position += len;
+    if (mode == MODE_LENGTH) {
+      return;
+    }
+    short chunk;
+    while (len > 0) {
+      chunk = (short) (bufEnd - bufPtr);
+      if (chunk > len) {
+        chunk = len;
+      }
+      Util.arrayCopyNonAtomic(buf, start, buffer, bufPtr, chunk);
+      bufPtr += chunk;
+      start += chunk;
+      len -= chunk;
+      if (bufPtr == bufEnd) {
+        drain();
+      }
     }
   }
 
-  private static void decrementStackPtr(short cnt) {
-    stackPtr = (short) (stackPtr - cnt);
-    if (start > stackPtr) {
-      KMException.throwIt(KMError.UNKNOWN_ERROR);
+  // Hands the emitted bytes over to the signer or sends them to the host. The template is
+  // written in place and its size is checked upfront.
+  private static void drain() {
+    short len = (short) (bufPtr - bufStart);
+    if (len == 0 || mode == MODE_TEMPLATE) {
+      return;
     }
+    if (mode == MODE_SIGN) {
+      signer.update(buffer, bufStart, len);
+    } else {
+      APDU.getCurrentAPDU().sendBytesLong(buffer, bufStart, len);
+    }
+    bufPtr = bufStart;
+  }
+
+  private static void startPass(byte passMode) {
+    mode = passMode;
+    position = 0;
+    nodeIndex = 0;
+    bufPtr = bufStart;
   }
 
   @Override
-  public KMAttestationCert buffer(byte[] buf, short bufStart, short maxLen) {
-    stack = buf;
-    start = bufStart;
-    length = maxLen;
-    stackPtr = (short) (start + length);
-    return this;
+  public short encodeTemplate(byte[] buf, short bufStart, short maxLen) {
+    startPass(MODE_LENGTH);
+    emitTbsHeader();
+    short headerLength = position;
+    emitRoT();
+    short len = (short) (TEMPLATE_HEADER_LEN_SIZE + position);
+    if (len > maxLen) {
+      return 0;
+    }
+    Util.setShort(buf, bufStart, headerLength);
+    buffer = buf;
+    KMAttestationCertImpl.bufStart = (short) (bufStart + TEMPLATE_HEADER_LEN_SIZE);
+    bufEnd = (short) (bufStart + len);
+    startPass(MODE_TEMPLATE);
+    emitTbsHeader();
+    emitRoT();
+    buffer = null;
+    return len;
   }
 
   @Override
-  public short getCertStart() {
-    return certStart;
+  public KMAttestationCert template(short obj) {
+    template = obj;
+    return this;
   }
 
   @Override
-  public short getCertEnd() {
-    return (short) (start + length - 1);
+  public KMAttestationCert buffer(byte[] buf, short bufStart, short maxLen) {
+    // The signature is kept at the end of the buffer, the rest holds the emitted bytes.
+    if (maxLen <= ECDSA_MAX_SIG_LEN) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    buffer = buf;
+    KMAttestationCertImpl.bufStart = bufStart;
+    bufEnd = (short) (bufStart + maxLen - ECDSA_MAX_SIG_LEN);
+    return this;
   }
 
   @Override
   public short getCertLength() {
-    return (short) (getCertEnd() - getCertStart() + 1);
+    return (short) (1 + getLengthSize(certLength) + certLength);
   }
 
   @Override
   public void build() {
-    short last = stackPtr;
-    decrementStackPtr((short) ECDSA_MAX_SIG_LEN);
-    signatureOffset = stackPtr;
-    pushBitStringHeader((byte) 0, (short) (last - stackPtr));
-    pushAlgorithmId(X509SignAlgIdentifier);
-    tbsLength = stackPtr;
-    pushTbsCert(rsaCert);
-    tbsOffset = stackPtr;
-    tbsLength = (short) (tbsLength - tbsOffset);
-    pushSequenceHeader((short) (last - stackPtr));
-    certStart = stackPtr;
-    KMAndroidSEProvider androidSeProvider = KMAndroidSEProvider.getInstance();
-    short sigLen = androidSeProvider
-        .ecSign256(
-            androidSeProvider.getAttestationKey(),
-            stack,
-            tbsOffset,
-            tbsLength,
-            stack,
-            signatureOffset);
-    if (sigLen != ECDSA_MAX_SIG_LEN) {
-      // Update the lengths appropriately.
-      stackPtr = (short) (signatureOffset - 1);
-      pushLength((short) (sigLen + 1));
-      stackPtr = tbsOffset;
-      last -= (short) (ECDSA_MAX_SIG_LEN - sigLen);
-      pushLength((short) (last - stackPtr));
-      length -= (short) (ECDSA_MAX_SIG_LEN - sigLen);
+    // Compute the lengths of the elements of the TBS certificate.
+    startPass(MODE_LENGTH);
+    emitTbsCert();
+    tbsLength = position;
+    // Emit the TBS certificate in order and sign it.
+    startPass(MODE_SIGN);
+    signer.init(getAttestationKey(), Signature.MODE_SIGN);
+    emitTbsCert();
+    if (position != tbsLength) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
+    signatureLength = signer.sign(buffer, bufStart, (short) (bufPtr - bufStart), buffer, bufEnd);
+    // SEQUENCE{tbsCertificate, signatureAlgorithm, BIT STRING{signature}}
+    certLength = (short) (tbsLength + X509SignAlgIdentifier.length + 1
+        + getLengthSize((short) (signatureLength + 1)) + signatureLength + 1);
+  }
+
+  @Override
+  public void send() {
+    startPass(MODE_SEND);
+    emitByte((byte) 0x30);
+    emitLength(certLength);
+    emitTbsCert();
+    emitBytes(X509SignAlgIdentifier, (short) 0, (short) X509SignAlgIdentifier.length);
+    emitByte((byte) 0x03);
+    emitLength((short) (signatureLength + 1)); // 1 extra byte for unused bits byte
+    emitByte((byte) 0x00);
+    emitBytes(buffer, bufEnd, signatureLength);
+    drain();
+  }
+
+  private static ECPrivateKey getAttestationKey() {
+    return ((KMECPrivateKey) KMAndroidSEProvider.getInstance().getAttestationKey()).getPrivateKey();
   }
 
   @Override
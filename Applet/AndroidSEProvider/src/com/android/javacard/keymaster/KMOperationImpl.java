@@ -23,8 +23,6 @@ import javacardx.crypto.Cipher;
 
 public class KMOperationImpl implements KMOperation {
 
-  private Cipher cipher;
-  private Signature signature;
   private static final short CIPHER_ALG_OFFSET = 0x00;
   private static final short PADDING_OFFSET = 0x01;
   private static final short OPER_MODE_OFFSET = 0x02;
@@ -33,10 +31,23 @@ public class KMOperationImpl implements KMOperation {
   //This will hold the length of the buffer stored inside the
   //Java Card after the GCM update operation.
   private static final short AES_GCM_UPDATE_LEN_OFFSET = 0x05;
+  //This will hold the length of the RSA input buffered by the update operation.
+  private static final short RSA_INPUT_LEN_OFFSET = 0x06;
   private short[] parameters;
+  // RSA input is buffered until finish, as the cipher can only process a whole
+  // block of at most the modulus length.
+  private static final short RSA_INPUT_MAX_SIZE = 256;
+  private byte[] rsaInput;
+  // Cipher and Signature instances are held in transient memory, so that
+  // setting them does not write to persistent memory.
+  private static final short CIPHER_OFFSET = 0x00;
+  private static final short SIGNATURE_OFFSET = 0x01;
+  private Object[] operationInst;
 
   public KMOperationImpl() {
-    parameters = JCSystem.makeTransientShortArray((short) 6, JCSystem.CLEAR_ON_RESET);
+    parameters = JCSystem.makeTransientShortArray((short) 7, JCSystem.CLEAR_ON_RESET);
+    rsaInput = JCSystem.makeTransientByteArray(RSA_INPUT_MAX_SIZE, JCSystem.CLEAR_ON_RESET);
+    operationInst = JCSystem.makeTransientObjectArray((short) 2, JCSystem.CLEAR_ON_RESET);
   }
 
   public short getMode() {
@@ -80,21 +91,26 @@ public class KMOperationImpl implements KMOperation {
   }
 
   public void setCipher(Cipher cipher) {
-    JCSystem.beginTransaction();
-    this.cipher = cipher;
-    JCSystem.commitTransaction();
+    operationInst[CIPHER_OFFSET] = cipher;
   }
 
   public void setSignature(Signature signer) {
-    JCSystem.beginTransaction();
-    this.signature = signer;
-    JCSystem.commitTransaction();
+    operationInst[SIGNATURE_OFFSET] = signer;
+  }
+
+  private Cipher getCipher() {
+    return (Cipher) operationInst[CIPHER_OFFSET];
+  }
+
+  private Signature getSignature() {
+    return (Signature) operationInst[SIGNATURE_OFFSET];
   }
 
   private void resetCipher() {
     setCipher(null);
     parameters[MAC_LENGTH_OFFSET] = 0;
     parameters[AES_GCM_UPDATE_LEN_OFFSET] = 0;
+    parameters[RSA_INPUT_LEN_OFFSET] = 0;
     parameters[BLOCK_MODE_OFFSET] = 0;
     parameters[OPER_MODE_OFFSET] = 0;
     parameters[CIPHER_ALG_OFFSET] = 0;
@@ -104,7 +120,11 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short update(byte[] inputDataBuf, short inputDataStart,
                       short inputDataLength, byte[] outputDataBuf, short outputDataStart) {
-    short len = cipher.update(inputDataBuf, inputDataStart, inputDataLength,
+    if (parameters[CIPHER_ALG_OFFSET] == KMType.RSA) {
+      bufferRsaInput(inputDataBuf, inputDataStart, inputDataLength);
+      return 0;
+    }
+    short len = getCipher().update(inputDataBuf, inputDataStart, inputDataLength,
       outputDataBuf, outputDataStart);
     if (parameters[CIPHER_ALG_OFFSET] == KMType.AES && parameters[BLOCK_MODE_OFFSET] == KMType.GCM) {
       // Every time Block size data is stored as intermediate result.
@@ -116,7 +136,7 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short update(byte[] inputDataBuf, short inputDataStart,
                       short inputDataLength) {
-    signature.update(inputDataBuf, inputDataStart, inputDataLength);
+    getSignature().update(inputDataBuf, inputDataStart, inputDataLength);
     return 0;
   }
 
@@ -131,7 +151,17 @@ public class KMOperationImpl implements KMOperation {
     short padding = parameters[PADDING_OFFSET];
     short len = 0;
     try {
-      if (cipherAlg == KMType.AES && blockMode == KMType.GCM) {
+      if (cipherAlg == KMType.RSA) {
+        if (parameters[RSA_INPUT_LEN_OFFSET] != 0) {
+          bufferRsaInput(inputDataBuf, inputDataStart, inputDataLen);
+          inputDataBuf = rsaInput;
+          inputDataStart = 0;
+          inputDataLen = parameters[RSA_INPUT_LEN_OFFSET];
+        }
+        if (padding == KMType.PADDING_NONE && inputDataLen != RSA_INPUT_MAX_SIZE) {
+          KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+        }
+      } else if (cipherAlg == KMType.AES && blockMode == KMType.GCM) {
         if (mode == KMType.DECRYPT) {
           inputDataLen = (short) (inputDataLen - macLength);
         }
@@ -161,7 +191,7 @@ public class KMOperationImpl implements KMOperation {
         inputDataLen = inputlen;
         inputDataStart = 0;
       }
-      len = cipher.doFinal(inputDataBuf, inputDataStart, inputDataLen,
+      len = getCipher().doFinal(inputDataBuf, inputDataStart, inputDataLen,
         outputDataBuf, outputDataStart);
       if ((cipherAlg == KMType.AES || cipherAlg == KMType.DES) &&
         padding == KMType.PKCS7 && mode == KMType.DECRYPT) {
@@ -186,10 +216,10 @@ public class KMOperationImpl implements KMOperation {
         }
       } else if (cipherAlg == KMType.AES && blockMode == KMType.GCM) {
         if (mode == KMType.ENCRYPT) {
-          len += ((AEADCipher) cipher).retrieveTag(outputDataBuf,
+          len += ((AEADCipher) getCipher()).retrieveTag(outputDataBuf,
             (short) (outputDataStart + len), macLength);
         } else {
-          boolean verified = ((AEADCipher) cipher).verifyTag(inputDataBuf,
+          boolean verified = ((AEADCipher) getCipher()).verifyTag(inputDataBuf,
             (short) (inputDataStart + inputDataLen), macLength, macLength);
           if (!verified) {
             KMException.throwIt(KMError.VERIFICATION_FAILED);
@@ -198,21 +228,30 @@ public class KMOperationImpl implements KMOperation {
       }
     } finally {
       KMAndroidSEProvider.getInstance().clean();
-      KMAndroidSEProvider.getInstance().releaseCipherInstance(cipher);
+      KMAndroidSEProvider.getInstance().releaseCipherInstance(getCipher());
       resetCipher();
     }
     return len;
   }
 
+  private void bufferRsaInput(byte[] buf, short start, short len) {
+    short bufferedLen = parameters[RSA_INPUT_LEN_OFFSET];
+    if (len > (short) (RSA_INPUT_MAX_SIZE - bufferedLen)) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    Util.arrayCopyNonAtomic(buf, start, rsaInput, bufferedLen, len);
+    parameters[RSA_INPUT_LEN_OFFSET] = (short) (bufferedLen + len);
+  }
+
   @Override
   public short sign(byte[] inputDataBuf, short inputDataStart,
                     short inputDataLength, byte[] signBuf, short signStart) {
     short len = 0;
     try {
-      len = signature.sign(inputDataBuf, inputDataStart, inputDataLength,
+      len = getSignature().sign(inputDataBuf, inputDataStart, inputDataLength,
         signBuf, signStart);
     } finally {
-      KMAndroidSEProvider.getInstance().releaseSignatureInstance(signature);
+      KMAndroidSEProvider.getInstance().releaseSignatureInstance(getSignature());
       setSignature(null);
     }
     return len;
@@ -223,10 +262,10 @@ public class KMOperationImpl implements KMOperation {
                         short inputDataLength, byte[] signBuf, short signStart, short signLength) {
     boolean ret = false;
     try {
-      ret = signature.verify(inputDataBuf, inputDataStart, inputDataLength,
+      ret = getSignature().verify(inputDataBuf, inputDataStart, inputDataLength,
         signBuf, signStart, signLength);
     } finally {
-      KMAndroidSEProvider.getInstance().releaseSignatureInstance(signature);
+      KMAndroidSEProvider.getInstance().releaseSignatureInstance(getSignature());
       setSignature(null);
     }
     return ret;
@@ -234,12 +273,12 @@ public class KMOperationImpl implements KMOperation {
 
   @Override
   public void abort() {
-    if (cipher != null) {
-      KMAndroidSEProvider.getInstance().releaseCipherInstance(cipher);
+    if (getCipher() != null) {
+      KMAndroidSEProvider.getInstance().releaseCipherInstance(getCipher());
       resetCipher();
     }
-    if (signature != null) {
-      KMAndroidSEProvider.getInstance().releaseSignatureInstance(signature);
+    if (getSignature() != null) {
+      KMAndroidSEProvider.getInstance().releaseSignatureInstance(getSignature());
       setSignature(null);
     }
     KMAndroidSEProvider.getInstance().releaseOperationInstance(this);
@@ -247,7 +286,7 @@ public class KMOperationImpl implements KMOperation {
 
   @Override
   public void updateAAD(byte[] dataBuf, short dataStart, short dataLength) {
-    ((AEADCipher) cipher).updateAAD(dataBuf, dataStart, dataLength);
+    ((AEADCipher) getCipher()).updateAAD(dataBuf, dataStart, dataLength);
   }
 
   @Override
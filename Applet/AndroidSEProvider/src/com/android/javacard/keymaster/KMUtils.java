@@ -19,219 +19,115 @@ import javacard.framework.Util;
 
 public class KMUtils {
 
-  // 64 bit unsigned calculations for time
-  public static final byte[] oneSecMsec = {
-      0, 0, 0, 0, 0, 0, 0x03, (byte) 0xE8}; // 1000 msec
-  public static final byte[] oneMinMsec = {
-      0, 0, 0, 0, 0, 0, (byte) 0xEA, 0x60}; // 60000 msec
-  public static final byte[] oneHourMsec = {
-      0, 0, 0, 0, 0, 0x36, (byte) 0xEE, (byte) 0x80}; // 3600000 msec
-  public static final byte[] oneDayMsec = {
-      0, 0, 0, 0, 0x05, 0x26, 0x5C, 0x00}; // 86400000 msec
-  public static final byte[] oneMonthMsec = {
-      0, 0, 0, 0, (byte) 0x9C, (byte) 0xBE, (byte) 0xBD, 0x50}; // 2629746000 msec
-  public static final byte[] leapYearMsec = {
-      0, 0, 0, 0x07, (byte) 0x5C, (byte) 0xD7, (byte) 0x88, 0x00}; //31622400000;
-  public static final byte[] yearMsec = {
-      0, 0, 0, 0x07, 0x57, (byte) 0xB1, 0x2C, 0x00}; //31536000000
-  //Leap year(366) + 3 * 365
-  public static final byte[] fourYrsMsec = {
-      0, 0, 0, 0x1D, 0x63, (byte) 0xEB, 0x0C, 0x00};//126230400000
+  // 64 bit unsigned calculations for time. The numbers are 8 bytes big endian, which are added,
+  // subtracted and compared as 4 shorts.
   public static final byte[] firstJan2020 = {
       0, 0, 0x01, 0x6F, 0x5E, 0x66, (byte) 0xE8, 0x00}; // 1577836800000 msec
   public static final byte[] firstJan2051 = {
       0, 0, 0x02, 0x53, 0x26, (byte) 0x0E, (byte) 0x1C, 0x00}; // 2556144000000
   // msec
-  public static final byte[] febMonthLeapMSec = {
-      0, 0, 0, 0, (byte) 0x95, 0x58, 0x6C, 0x00}; //2505600000
-  public static final byte[] febMonthMsec = {
-      0, 0, 0, 0, (byte) 0x90, 0x32, 0x10, 0x00}; //2419200000
-  public static final byte[] ThirtyOneDaysMonthMsec = {
-      0, 0, 0, 0, (byte) 0x9F, (byte) 0xA5, 0x24, 0x00};//2678400000
-  public static final byte[] ThirtDaysMonthMsec = {
-      0, 0, 0, 0, (byte) 0x9A, 0x7E, (byte) 0xC8, 0x00};//2592000000
-  public static final short year2051 = 2051;
-  public static final short year2020 = 2020;
+  // Last second of the generalized time - 31 Dec 9999 23:59:59, later times are converted to it.
+  public static final byte[] lastSec9999 = {
+      0, 0, (byte) 0xE6, 0x77, (byte) 0xD2, 0x1F, (byte) 0xD8, 0x18}; // 253402300799000 msec
+  // Days from 1 Jan 1970 to 1 Mar 2000. Years are counted from March, so that the leap day is the
+  // last day of a year, and 2000 is the start of a 400 year cycle of the calendar.
+  public static final short mar2000Days = 11017;
+  public static final short year2000 = 2000;
+  // Cumulative days before each month of a year which starts in March.
+  public static final short[] daysBeforeMonth = {
+      0, 31, 61, 92, 122, 153, 184, 214, 245, 275, 306, 337};
 
   // --------------------------------------
   public static short convertToDate(short time, byte[] scratchPad,
       boolean utcFlag) {
 
-    short yrsCount = 0;
-    short monthCount = 1;
-    short dayCount = 1;
-    short hhCount = 0;
-    short mmCount = 0;
-    short ssCount = 0;
+    short yrsCount;
+    short monthCount;
+    short dayCount;
+    short hhCount;
+    short mmCount;
+    short ssCount;
+    short era;
+    short yoe;
+    short doy;
+    short tmp;
     byte Z = 0x5A;
-    boolean from2020 = true;
     Util.arrayFillNonAtomic(scratchPad, (short) 0, (short) 256, (byte) 0);
     Util.arrayCopyNonAtomic(KMInteger.cast(time).getBuffer(),
         KMInteger.cast(time).getStartOff(), scratchPad,
         (short) (8 - KMInteger.cast(time).length()), KMInteger.cast(time)
             .length());
     // If the time is less then 1 Jan 2020 then it is an error
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, firstJan2020, (short) 0,
-        (short) 8) < 0) {
+    if (compare(scratchPad, (short) 0, firstJan2020, (short) 0) < 0) {
       KMException.throwIt(KMError.INVALID_ARGUMENT);
     }
     if (utcFlag
-        && KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, firstJan2051,
-        (short) 0, (short) 8) >= 0) {
+        && compare(scratchPad, (short) 0, firstJan2051, (short) 0) >= 0) {
       KMException.throwIt(KMError.INVALID_ARGUMENT);
     }
-
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, firstJan2051, (short) 0,
-        (short) 8) < 0) {
-      Util.arrayCopyNonAtomic(firstJan2020, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    } else {
-      from2020 = false;
-      Util.arrayCopyNonAtomic(firstJan2051, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-    // divide the given time with four yrs msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, fourYrsMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(fourYrsMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      yrsCount = divide(scratchPad, (short) 0, (short) 8, (short) 16); // quotient
-      // is
-      // multiple
-      // of 4
-      yrsCount = (short) (yrsCount * 4); // number of yrs.
-      // copy reminder as new dividend
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
+    if (compare(scratchPad, (short) 0, lastSec9999, (short) 0) > 0) {
+      Util.arrayCopyNonAtomic(lastSec9999, (short) 0, scratchPad, (short) 0, (short) 8);
     }
 
-    //Get the leap year index starting from the (base Year + yrsCount) Year.
-    short leapYrIdx = getLeapYrIndex(from2020, yrsCount);
+    // Split the time in days, hours, minutes and seconds.
+    divide(scratchPad, (short) 0, (short) 1000);
+    ssCount = divide(scratchPad, (short) 0, (short) 60);
+    mmCount = divide(scratchPad, (short) 0, (short) 60);
+    hhCount = divide(scratchPad, (short) 0, (short) 24);
 
-    // if leap year index is 0, then the number of days for the 1st year will be 366 days.
-    // if leap year index is not 0, then the number of days for the 1st year will be 365 days.
-    if (((leapYrIdx == 0) &&
-        (KMInteger
-            .unsignedByteArrayCompare(scratchPad, (short) 0, leapYearMsec, (short) 0, (short) 8)
-            >= 0)) ||
-        ((leapYrIdx != 0) &&
-            (KMInteger
-                .unsignedByteArrayCompare(scratchPad, (short) 0, yearMsec, (short) 0, (short) 8)
-                >= 0))) {
-      for (short i = 0; i < 4; i++) {
-        yrsCount++;
-        if (i == leapYrIdx) {
-          Util.arrayCopyNonAtomic(leapYearMsec, (short) 0, scratchPad,
-              (short) 8, (short) 8);
-        } else {
-          Util.arrayCopyNonAtomic(yearMsec, (short) 0, scratchPad, (short) 8,
-              (short) 8);
-        }
-        subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-        Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-            (short) 8);
-        if (((short) (i + 1) == leapYrIdx)) {
-          if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, leapYearMsec,
-              (short) 0, (short) 8) < 0) {
-            break;
-          }
-        } else {
-          if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, yearMsec,
-              (short) 0, (short) 8) < 0) {
-            break;
-          }
-        }
-      }
-    }
+    // Split the days since 1 Mar 2000 in 400 year cycles of 146097 (27 * 7 * 773) days and the
+    // day of the cycle.
+    set(scratchPad, (short) 8, mar2000Days);
+    subtract(scratchPad, (short) 0, (short) 8, (short) 0);
+    copy(scratchPad, (short) 0, (short) 8);
+    divide(scratchPad, (short) 8, (short) 27);
+    divide(scratchPad, (short) 8, (short) 7);
+    divide(scratchPad, (short) 8, (short) 773);
+    era = Util.getShort(scratchPad, (short) 14);
+    multiply(scratchPad, (short) 8, (short) 189);
+    multiply(scratchPad, (short) 8, (short) 773);
+    subtract(scratchPad, (short) 0, (short) 8, (short) 0);
 
-    // total yrs from 1970
-    if (from2020) {
-      yrsCount = (short) (year2020 + yrsCount);
-    } else {
-      yrsCount = (short) (year2051 + yrsCount);
+    // Year of the cycle is (day - day / 1460 + day / 36524 - day / 146096) / 365, which removes
+    // the leap days of every 4th year except of the 100th year unless it is the 400th year.
+    // 36524 is 4 * 23 * 397.
+    copy(scratchPad, (short) 0, (short) 8);
+    divide(scratchPad, (short) 8, (short) 1460);
+    tmp = Util.getShort(scratchPad, (short) 14);
+    copy(scratchPad, (short) 0, (short) 8);
+    divide(scratchPad, (short) 8, (short) 4);
+    divide(scratchPad, (short) 8, (short) 23);
+    divide(scratchPad, (short) 8, (short) 397);
+    yoe = Util.getShort(scratchPad, (short) 14);
+    tmp -= yoe;
+    if (yoe == 4) {
+      // Last day of the cycle.
+      tmp++;
     }
+    copy(scratchPad, (short) 0, (short) 8);
+    set(scratchPad, (short) 16, tmp);
+    subtract(scratchPad, (short) 8, (short) 16, (short) 8);
+    divide(scratchPad, (short) 8, (short) 365);
+    yoe = Util.getShort(scratchPad, (short) 14);
 
-    // divide the given time with one month msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneMonthMsec, (short) 0,
-        (short) 8) >= 0) {
-      for (short i = 0; i < 12; i++) {
-        if (i == 1) {
-          // Feb month
-          if (isLeapYear(yrsCount)) {
-            // Leap year 29 days
-            Util.arrayCopyNonAtomic(febMonthLeapMSec, (short) 0, scratchPad,
-                (short) 8, (short) 8);
-          } else {
-            // 28 days
-            Util.arrayCopyNonAtomic(febMonthMsec, (short) 0, scratchPad,
-                (short) 8, (short) 8);
-          }
-        } else if (((i <= 6) && ((i % 2 == 0))) || ((i > 6) && ((i % 2 == 1)))) {
-          Util.arrayCopyNonAtomic(ThirtyOneDaysMonthMsec, (short) 0,
-              scratchPad, (short) 8, (short) 8);
-        } else {
-          // 30 Days
-          Util.arrayCopyNonAtomic(ThirtDaysMonthMsec, (short) 0, scratchPad,
-              (short) 8, (short) 8);
-        }
+    // Day of the year, which starts in March.
+    set(scratchPad, (short) 8, yoe);
+    multiply(scratchPad, (short) 8, (short) 365);
+    set(scratchPad, (short) 16, (short) ((short) (yoe / 4) - (short) (yoe / 100)));
+    add(scratchPad, (short) 8, (short) 16, (short) 8);
+    subtract(scratchPad, (short) 0, (short) 8, (short) 0);
+    doy = Util.getShort(scratchPad, (short) 6);
 
-        if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, scratchPad, (short) 8,
-            (short) 8) >= 0) {
-          subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-          Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-              (short) 8);
-        } else {
-          break;
-        }
-        monthCount++;
-      }
-    }
-
-    // divide the given time with one day msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneDayMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneDayMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      dayCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      dayCount++;
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    // divide the given time with one hour msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneHourMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneHourMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      hhCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    // divide the given time with one minute msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneMinMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneMinMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      mmCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    // divide the given time with one second msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneSecMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneSecMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      ssCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
+    // Month and day of the month from the cumulative days of the months.
+    monthCount = (short) ((short) ((short) (5 * doy) + 2) / 153);
+    dayCount = (short) (doy - daysBeforeMonth[monthCount] + 1);
+    yrsCount = (short) (year2000 + (short) (era * 400) + yoe);
+    if (monthCount < 10) {
+      monthCount += 3;
+    } else {
+      // January and February belong to the next year.
+      monthCount -= 9;
+      yrsCount++;
     }
 
     // Now convert to ascii string YYMMDDhhmmssZ or YYYYMMDDhhmmssZ
@@ -269,30 +165,46 @@ public class KMUtils {
     return len;
   }
 
-  // Use Euclid's formula: dividend = quotient*divisor + remainder
-  // i.e. dividend - quotient*divisor = remainder where remainder < divisor.
-  // so this is division by subtraction until remainder remains.
-  public static short divide(byte[] buf, short dividend, short divisor,
-      short remainder) {
-    short expCnt = 1;
-    short q = 0;
-    // first increase divisor so that it becomes greater then dividend.
-    while (compare(buf, divisor, dividend) < 0) {
-      shiftLeft(buf, divisor);
-      expCnt = (short) (expCnt << 1);
+  // Long division of the number by a divisor less than 2048. The quotient replaces the number and
+  // the remainder is returned. The digits are nibbles, so the partial remainder fits in a short.
+  public static short divide(byte[] buf, short num, short divisor) {
+    short rem = 0;
+    short digit;
+    short quotient;
+    byte index = 0;
+    while (index < 8) {
+      digit = (short) (buf[(short) (num + index)] & 0xFF);
+      rem = (short) ((short) (rem << 4) | (short) (digit >> 4));
+      quotient = (short) ((short) (rem / divisor) << 4);
+      rem = (short) (rem % divisor);
+      rem = (short) ((short) (rem << 4) | (short) (digit & 0x0F));
+      quotient |= (short) (rem / divisor);
+      rem = (short) (rem % divisor);
+      buf[(short) (num + index)] = (byte) quotient;
+      index++;
     }
-    // Now subtract divisor from dividend if dividend is greater then divisor.
-    // Copy remainder in the dividend and repeat.
-    while (expCnt != 0) {
-      if (compare(buf, dividend, divisor) >= 0) {
-        subtract(buf, dividend, divisor, remainder);
-        copy(buf, remainder, dividend);
-        q = (short) (q + expCnt);
-      }
-      expCnt = (short) (expCnt >> 1);
-      shiftRight(buf, divisor);
+    return rem;
+  }
+
+  // Multiplies the number by a multiplier less than 2048 in place, a nibble at a time.
+  public static void multiply(byte[] buf, short num, short multiplier) {
+    short carry = 0;
+    short low;
+    short high;
+    byte index = 7;
+    while (index >= 0) {
+      low = (short) ((short) (buf[(short) (num + index)] & 0x0F) * multiplier + carry);
+      carry = (short) (low >> 4);
+      high = (short) ((short) ((buf[(short) (num + index)] >> 4) & 0x0F) * multiplier + carry);
+      carry = (short) (high >> 4);
+      buf[(short) (num + index)] = (byte) ((short) (high << 4) | (short) (low & 0x0F));
+      index--;
     }
-    return q;
+  }
+
+  public static void set(byte[] buf, short num, short val) {
+    Util.arrayFillNonAtomic(buf, num, (short) 6, (byte) 0);
+    Util.setShort(buf, (short) (num + 6), val);
   }
 
   public static void copy(byte[] buf, short from, short to) {
@@ -300,113 +212,73 @@ public class KMUtils {
   }
 
   public static byte compare(byte[] buf, short lhs, short rhs) {
-    return KMInteger.unsignedByteArrayCompare(buf, lhs, buf, rhs, (short) 8);
+    return compare(buf, lhs, buf, rhs);
   }
 
-  public static void shiftLeft(byte[] buf, short start) {
-    byte index = 7;
-    byte carry = 0;
-    byte tmp;
-    while (index >= 0) {
-      tmp = buf[(short) (start + index)];
-      buf[(short) (start + index)] = (byte) (buf[(short) (start + index)] << 1);
-      buf[(short) (start + index)] = (byte) (buf[(short) (start + index)] + carry);
-      if (tmp < 0) {
-        carry = 1;
-      } else {
-        carry = 0;
-      }
-      index--;
-    }
-  }
-
-  public static void shiftRight(byte[] buf, short start) {
+  public static byte compare(byte[] lhsBuf, short lhs, byte[] rhsBuf, short rhs) {
+    short x;
+    short y;
     byte index = 0;
-    byte carry = 0;
-    byte tmp;
     while (index < 8) {
-      tmp = (byte) (buf[(short) (start + index)] & 0x01);
-      buf[(short) (start + index)] = (byte) (buf[(short) (start + index)] >> 1);
-      buf[(short) (start + index)] = (byte) (buf[(short) (start + index)] & 0x7F);
-      buf[(short) (start + index)] = (byte) (buf[(short) (start + index)] | carry);
-      if (tmp == 1) {
-        carry = (byte) 0x80;
-      } else {
-        carry = 0;
+      x = Util.getShort(lhsBuf, (short) (lhs + index));
+      y = Util.getShort(rhsBuf, (short) (rhs + index));
+      if (x != y) {
+        return (byte) (lessThan(x, y) ? -1 : 1);
       }
-      index++;
+      index += 2;
     }
+    return 0;
   }
 
   public static void add(byte[] buf, short op1, short op2, short result) {
-    byte index = 7;
-    byte carry = 0;
-    short tmp;
+    byte index = 6;
+    short carry = 0;
+    short x;
+    short sum;
     while (index >= 0) {
-      tmp = (short) (buf[(short) (op1 + index)] + buf[(short) (op2 + index)] + carry);
-      carry = 0;
-      if (tmp > 255) {
-        carry = 1; // max unsigned byte value is 255
-      }
-      buf[(short) (result + index)] = (byte) (tmp & (byte) 0xFF);
-      index--;
+      x = Util.getShort(buf, (short) (op1 + index));
+      sum = (short) (x + Util.getShort(buf, (short) (op2 + index)) + carry);
+      // The sum wraps around if there is a carry.
+      carry = (short) ((lessThan(sum, x) || (carry == 1 && sum == x)) ? 1 : 0);
+      Util.setShort(buf, (short) (result + index), sum);
+      index -= 2;
     }
   }
 
   // subtraction by borrowing.
   public static void subtract(byte[] buf, short op1, short op2, short result) {
-    byte borrow = 0;
-    byte index = 7;
-    short r;
+    byte index = 6;
+    short borrow = 0;
     short x;
     short y;
     while (index >= 0) {
-      x = (short) (buf[(short) (op1 + index)] & 0xFF);
-      y = (short) (buf[(short) (op2 + index)] & 0xFF);
-      r = (short) (x - y - borrow);
-      borrow = 0;
-      if (r < 0) {
-        borrow = 1;
-        r = (short) (r + 256); // max unsigned byte value is 255
-      }
-      buf[(short) (result + index)] = (byte) (r & 0xFF);
-      index--;
+      x = Util.getShort(buf, (short) (op1 + index));
+      y = Util.getShort(buf, (short) (op2 + index));
+      Util.setShort(buf, (short) (result + index), (short) (x - y - borrow));
+      borrow = (short) ((lessThan(x, y) || (borrow == 1 && x == y)) ? 1 : 0);
+      index -= 2;
     }
   }
 
+  // Unsigned comparison of two shorts.
+  private static boolean lessThan(short x, short y) {
+    return (short) (x ^ (short) 0x8000) < (short) (y ^ (short) 0x8000);
+  }
+
   public static short countTemporalCount(byte[] bufTime, short timeOff,
       short timeLen, byte[] scratchPad, short offset) {
-    Util.arrayFillNonAtomic(scratchPad, (short) offset, (short) 24, (byte) 0);
+    Util.arrayFillNonAtomic(scratchPad, (short) offset, (short) 8, (byte) 0);
     Util.arrayCopyNonAtomic(
         bufTime,
         timeOff,
         scratchPad,
         (short) (offset + 8 - timeLen),
         timeLen);
-    Util.arrayCopyNonAtomic(oneMonthMsec, (short) 0, scratchPad, (short) (offset + 8),
-        (short) 8);
-    return divide(scratchPad, (short) 0, (short) 8, (short) 16);
-  }
-
-  public static boolean isLeapYear(short year) {
-    if ((short) (year % 4) == (short) 0) {
-      if (((short) (year % 100) == (short) 0) &&
-          ((short) (year % 400)) != (short) 0) {
-        return false;
-      }
-      return true;
-    }
-    return false;
+    // A month is 2629746000 (1000 * 486 * 7 * 773) msec.
+    divide(scratchPad, offset, (short) 1000);
+    divide(scratchPad, offset, (short) 486);
+    divide(scratchPad, offset, (short) 7);
+    divide(scratchPad, offset, (short) 773);
+    return Util.getShort(scratchPad, (short) (offset + 6));
   }
-
-  public static short getLeapYrIndex(boolean from2020, short yrsCount) {
-    short newBaseYr = (short) (from2020 ? (year2020 + yrsCount) : (year2051 + yrsCount));
-    for (short i = 0; i < 4; i++) {
-      if (isLeapYear((short) (newBaseYr + i))) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-}
\ No newline at end of file
+}
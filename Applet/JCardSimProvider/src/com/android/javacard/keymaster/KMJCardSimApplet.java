@@ -17,8 +17,8 @@ package com.android.javacard.keymaster;
 
 public class KMJCardSimApplet extends KMKeymasterApplet {
 
-  KMJCardSimApplet() {
-    super(new KMJCardSimulator());
+  KMJCardSimApplet(short maxOperations, short keySlots) {
+    super(new KMJCardSimulator(maxOperations), maxOperations, keySlots);
   }
 
   /**
@@ -29,7 +29,8 @@ public class KMJCardSimApplet extends KMKeymasterApplet {
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
-    new KMJCardSimApplet().register();
+    new KMJCardSimApplet(readMaxOperations(bArray, bOffset, bLength),
+        readKeySlots(bArray, bOffset, bLength)).register();
   }
 
 }
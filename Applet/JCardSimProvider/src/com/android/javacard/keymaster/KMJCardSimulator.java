@@ -24,9 +24,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -40,6 +42,9 @@ import javacard.security.HMACKey;
 import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -72,23 +77,42 @@ public class KMJCardSimulator implements KMSEProvider {
   public static final short MAX_RND_NUM_SIZE = 64;
   public static final short ENTROPY_POOL_SIZE = 16; // simulator does not support 256 bit aes keys
   public static final byte[] aesICV = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-  private static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
+  // The certificate chain is stored in pages, so a long chain does not need one large array.
+  private static final short CERT_CHAIN_PAGE_SIZE = 2500;
+  private static final byte CERT_CHAIN_PAGES = 3;
+  private static final short CERT_CHAIN_MAX_SIZE =
+      (short) (CERT_CHAIN_PAGE_SIZE * CERT_CHAIN_PAGES);//First 2 bytes for length.
+  private static final byte CERT_CHAIN_READ = 0;
+  private static final byte CERT_CHAIN_WRITE = 1;
+  private static final byte CERT_CHAIN_SEND = 2;
   private static final short RSA_KEY_SIZE = 256;
+  // RSA CRT private key is P, Q, DP, DQ and PQ, each right aligned in 128 bytes.
+  private static final short RSA_CRT_COMPONENT_SIZE = 128;
+  private static final short RSA_CRT_KEY_SIZE = 640;
+  private static final byte[] pubExponent = {0x01, 0x00, 0x01};
+  // Operation instances reserved outside the operation slots for the one-shot operation.
+  private static final short ONE_SHOT_INSTANCES = 1;
 
 
   public static boolean jcardSim = false;
   private static Signature kdf;
   private static Signature hmacSignature;
+  private static MessageDigest sha256Digest;
 
   private static byte[] rngCounter;
   private static AESKey aesRngKey;
   private static Cipher aesRngCipher;
   private static byte[] entropyPool;
   private static byte[] rndNum;
-  private byte[] certificateChain;
+  private Object[] certificateChain;
   private KMAESKey masterKey;
   private KMECPrivateKey attestationKey;
   private KMHmacKey preSharedKey;
+  // Operations are bounded like the operation pool of an SE provider: one instance per
+  // operation slot plus the one-shot instance. The reserved count is transient, so all the
+  // instances are free after a reset.
+  private short maxInstances;
+  private short[] reservedInstances;
 
   private static KMJCardSimulator jCardSimulator = null;
 
@@ -97,10 +121,13 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   // Implements Oracle Simulator based restricted crypto provider
-  public KMJCardSimulator() {
+  public KMJCardSimulator(short maxOperations) {
+    maxInstances = (short) (maxOperations + ONE_SHOT_INSTANCES);
+    reservedInstances = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     // Various Keys
     kdf = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
     hmacSignature = Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+    sha256Digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
     // RNG
     rndNum = JCSystem.makeTransientByteArray(MAX_RND_NUM_SIZE, JCSystem.CLEAR_ON_RESET);
     entropyPool = JCSystem.makeTransientByteArray(ENTROPY_POOL_SIZE, JCSystem.CLEAR_ON_RESET);
@@ -114,7 +141,10 @@ public class KMJCardSimulator implements KMSEProvider {
     aesRngKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
     // various ciphers
     //Allocate buffer for certificate chain.
-    certificateChain = new byte[CERT_CHAIN_MAX_SIZE];
+    certificateChain = new Object[CERT_CHAIN_PAGES];
+    for (byte page = 0; page < CERT_CHAIN_PAGES; page++) {
+      certificateChain[page] = new byte[CERT_CHAIN_PAGE_SIZE];
+    }
     jCardSimulator = this;
   }
 
@@ -136,6 +166,83 @@ public class KMJCardSimulator implements KMSEProvider {
 
   }
 
+  public KeyPair createRsaCrtKeyPair() {
+    KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+    rsaKeyPair.genKeyPair();
+    return rsaKeyPair;
+  }
+
+  public RSAPrivateCrtKey createRsaCrtKey(byte[] privBuffer, short privOff, short privLength) {
+    if (privLength != RSA_CRT_KEY_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) KeyBuilder
+        .buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+    privKey.setP(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setQ(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setDP1(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setDQ1(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    privOff += RSA_CRT_COMPONENT_SIZE;
+    privKey.setPQ(privBuffer, privOff, RSA_CRT_COMPONENT_SIZE);
+    return privKey;
+  }
+
+  // Key blobs created before CRT support hold the private exponent, newer ones hold the CRT
+  // parameters. The two are told apart by the length of the secret.
+  private PrivateKey createRsaPrivateKey(byte[] privBuffer, short privOff, short privLength,
+      byte[] modBuffer, short modOff, short modLength) {
+    if (privLength == RSA_CRT_KEY_SIZE) {
+      return createRsaCrtKey(privBuffer, privOff, privLength);
+    }
+    return createRsaKey(modBuffer, modOff, modLength, privBuffer, privOff, privLength);
+  }
+
+  // Copies the RSA CRT component into the buf, right aligned in RSA_CRT_COMPONENT_SIZE bytes.
+  private void copyRsaCrtComponent(byte[] component, short len, byte[] buf, short start) {
+    if (len > RSA_CRT_COMPONENT_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayCopyNonAtomic(component, (short) 0,
+        buf, (short) (start + RSA_CRT_COMPONENT_SIZE - len), len);
+  }
+
+  private void createRsaCrtAsymmetricKey(byte[] privKeyBuf, short privKeyStart,
+      byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
+    if (RSA_KEY_SIZE != pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    KeyPair rsaKey = createRsaCrtKeyPair();
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaKey.getPrivate();
+    // Copy P, Q, DP, DQ and PQ.
+    byte[] component = new byte[RSA_KEY_SIZE];
+    Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, RSA_CRT_KEY_SIZE, (byte) 0);
+    copyRsaCrtComponent(component, privKey.getP(component, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(component, privKey.getQ(component, (short) 0), privKeyBuf, privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(component, privKey.getDP1(component, (short) 0), privKeyBuf,
+        privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(component, privKey.getDQ1(component, (short) 0), privKeyBuf,
+        privKeyStart);
+    privKeyStart += RSA_CRT_COMPONENT_SIZE;
+    copyRsaCrtComponent(component, privKey.getPQ(component, (short) 0), privKeyBuf,
+        privKeyStart);
+    lengths[0] = RSA_CRT_KEY_SIZE;
+    //Copy modulus
+    byte[] mod = new byte[RSA_KEY_SIZE];
+    lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(mod, (short) 0);
+    if (lengths[1] > pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
+    Util.arrayCopyNonAtomic(mod, (short) 0,
+        pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+  }
+
 
   public KeyPair createECKeyPair() {
     KeyPair ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
@@ -220,6 +327,11 @@ public class KMJCardSimulator implements KMSEProvider {
       byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
+        if (RSA_CRT_KEY_SIZE == privKeyLength) {
+          createRsaCrtAsymmetricKey(privKeyBuf, privKeyStart, pubModBuf, pubModStart,
+              pubModLength, lengths);
+          break;
+        }
         if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
@@ -285,8 +397,11 @@ public class KMJCardSimulator implements KMSEProvider {
       short privKeyLength, byte[] pubModBuf, short pubModStart, short pubModLength) {
     switch (alg) {
       case KMType.RSA:
-        RSAPrivateKey rsaKey = createRsaKey(pubModBuf, pubModStart, pubModLength, privKeyBuf,
-            privKeyStart, privKeyLength);
+        PrivateKey rsaKey = createRsaPrivateKey(privKeyBuf, privKeyStart, privKeyLength,
+            pubModBuf, pubModStart, pubModLength);
+        if (privKeyLength == RSA_CRT_KEY_SIZE) {
+          return isRsaKeyPairConsistent(rsaKey, pubModBuf, pubModStart, pubModLength);
+        }
         break;
       case KMType.EC:
         ECPrivateKey ecPrivKey = createEcKey(privKeyBuf, privKeyStart, privKeyLength);
@@ -298,6 +413,21 @@ public class KMJCardSimulator implements KMSEProvider {
     return true;
   }
 
+  // The CRT parameters do not contain the modulus, so they are checked against the modulus and
+  // the public exponent by signing with the private key and verifying with the public key.
+  private boolean isRsaKeyPairConsistent(PrivateKey privKey, byte[] modBuffer, short modOff,
+      short modLength) {
+    RSAPublicKey pubKey = (RSAPublicKey) KeyBuilder
+        .buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
+    pubKey.setModulus(modBuffer, modOff, modLength);
+    pubKey.setExponent(pubExponent, (short) 0, (short) pubExponent.length);
+    byte[] signature = new byte[RSA_KEY_SIZE];
+    Signature signer = Signature.getInstance(Signature.ALG_RSA_SHA_256_PKCS1, false);
+    signer.init(privKey, Signature.MODE_SIGN);
+    short len = signer.sign(modBuffer, modOff, modLength, signature, (short) 0);
+    signer.init(pubKey, Signature.MODE_VERIFY);
+    return signer.verify(modBuffer, modOff, modLength, signature, (short) 0, len);
+  }
 
   public HMACKey createHMACKey(byte[] secretBuffer, short secretOff, short secretLength) {
     HMACKey key = null;
@@ -570,6 +700,13 @@ public class KMJCardSimulator implements KMSEProvider {
     return hmacVerify(key, data, dataStart, dataLength, mac, macStart, macLength);
   }
 
+  @Override
+  public short messageDigest256(byte[] data, short dataStart, short dataLength,
+      byte[] digest, short digestStart) {
+    sha256Digest.reset();
+    return sha256Digest.doFinal(data, dataStart, dataLength, digest, digestStart);
+  }
+
   @Override
   public short rsaDecipherOAEP256(byte[] secret, short secretStart, short secretLength,
       byte[] modBuffer, short modOff, short modLength,
@@ -594,22 +731,36 @@ public class KMJCardSimulator implements KMSEProvider {
           KMCipher cipher = createSymmetricCipher(alg, purpose, blockMode, padding, keyBuf,
               keyStart, keyLength,
               ivBuf, ivStart, ivLength);
-          return new KMOperationImpl(cipher);
+          return reserveOperationInstance(new KMOperationImpl(cipher));
         } else {
           KMCipher aesGcm = createAesGcmCipher(purpose, macLength, keyBuf, keyStart, keyLength,
               ivBuf, ivStart, ivLength);
-          return new KMOperationImpl(aesGcm);
+          return reserveOperationInstance(new KMOperationImpl(aesGcm));
         }
       case KMType.HMAC:
         Signature signerVerifier = createHmacSignerVerifier(purpose, digest, keyBuf, keyStart,
             keyLength);
-        return new KMOperationImpl(signerVerifier);
+        return reserveOperationInstance(new KMOperationImpl(signerVerifier));
       default:
         CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
     }
     return null;
   }
 
+  private KMOperationImpl reserveOperationInstance(KMOperationImpl operation) {
+    if (reservedInstances[0] >= maxInstances) {
+      KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    }
+    reservedInstances[0]++;
+    return operation;
+  }
+
+  public void releaseOperationInstance() {
+    if (reservedInstances[0] > 0) {
+      reservedInstances[0]--;
+    }
+  }
+
   @Override
   public KMOperation initAsymmetricOperation(byte purpose, byte alg, byte padding, byte digest,
       byte[] privKeyBuf, short privKeyStart, short privKeyLength,
@@ -627,13 +778,13 @@ public class KMJCardSimulator implements KMSEProvider {
                   pubModBuf,
                   pubModStart,
                   pubModLength);
-          return new KMOperationImpl(signer);
+          return reserveOperationInstance(new KMOperationImpl(signer));
         case KMType.DECRYPT:
           KMCipher decipher =
               createRsaDecipher(
                   padding, digest, privKeyBuf, privKeyStart, privKeyLength, pubModBuf, pubModStart,
                   pubModLength);
-          return new KMOperationImpl(decipher);
+          return reserveOperationInstance(new KMOperationImpl(decipher));
         default:
           KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
       }
@@ -642,7 +793,7 @@ public class KMJCardSimulator implements KMSEProvider {
         case KMType.SIGN:
           Signature signer =
               createEcSigner(digest, privKeyBuf, privKeyStart, privKeyLength);
-          return new KMOperationImpl(signer);
+          return reserveOperationInstance(new KMOperationImpl(signer));
         default:
           KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
       }
@@ -659,10 +810,8 @@ public class KMJCardSimulator implements KMSEProvider {
           secretLength, modBuffer, modOff, modLength);
     }
     Cipher rsaCipher = Cipher.getInstance(cipherAlg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMCipherImpl inst = new KMCipherImpl(rsaCipher);
     inst.setCipherAlgorithm(KMType.RSA);
@@ -707,7 +856,12 @@ public class KMJCardSimulator implements KMSEProvider {
             .generatePublic(pubSpec);
         rsaCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, pubKey, oaepSpec);
       } else {
-        RSAPrivateKeySpec privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        RSAPrivateKeySpec privSpec;
+        if (secretLen == RSA_CRT_KEY_SIZE) {
+          privSpec = createRsaPrivateCrtKeySpec(modInt, exp);
+        } else {
+          privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        }
         java.security.interfaces.RSAPrivateKey privKey = (java.security.interfaces.RSAPrivateKey) kf
             .generatePrivate(privSpec);
         rsaCipher.init(javax.crypto.Cipher.DECRYPT_MODE, privKey, oaepSpec);
@@ -738,6 +892,23 @@ public class KMJCardSimulator implements KMSEProvider {
     return ret;
   }
 
+  // JCE needs the private exponent along with the CRT parameters, so it is derived from P, Q
+  // and the public exponent 0x010001.
+  private RSAPrivateCrtKeySpec createRsaPrivateCrtKeySpec(BigInteger modInt, byte[] crt) {
+    BigInteger[] params = new BigInteger[5];
+    byte[] component = new byte[RSA_CRT_COMPONENT_SIZE];
+    for (short i = 0; i < params.length; i++) {
+      Util.arrayCopyNonAtomic(crt, (short) (i * RSA_CRT_COMPONENT_SIZE), component, (short) 0,
+          RSA_CRT_COMPONENT_SIZE);
+      params[i] = new BigInteger(1, component);
+    }
+    BigInteger pubExp = BigInteger.valueOf(0x010001);
+    BigInteger phi = params[0].subtract(BigInteger.ONE)
+        .multiply(params[1].subtract(BigInteger.ONE));
+    return new RSAPrivateCrtKeySpec(modInt, pubExp, pubExp.modInverse(phi), params[0], params[1],
+        params[2], params[3], params[4]);
+  }
+
   private String toHexString(byte[] num) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < num.length; i++) {
@@ -756,10 +927,8 @@ public class KMJCardSimulator implements KMSEProvider {
           modBuffer, modOff, modLength);
     }
     Signature rsaSigner = Signature.getInstance((byte) alg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaSigner.init(key, Signature.MODE_SIGN);
     return rsaSigner;
   }
@@ -768,10 +937,8 @@ public class KMJCardSimulator implements KMSEProvider {
       byte[] secret, short secretStart, short secretLength,
       byte[] modBuffer, short modOff, short modLength) {
     Cipher rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE,
-        KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength,
+        modBuffer, modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMRsa2048NoDigestSignature inst = new KMRsa2048NoDigestSignature(rsaCipher, (byte) padding,
         modBuffer, modOff, modLength);
@@ -1168,14 +1335,19 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   public short readCertificateChain(byte[] buf, short offset) {
-    short len = Util.getShort(certificateChain, (short) 0);
-    Util.arrayCopyNonAtomic(certificateChain, (short) 2, buf, offset, len);
+    short len = getCertificateChainLength();
+    accessCertificateChain(CERT_CHAIN_READ, (short) 0, buf, offset, len);
     return len;
   }
 
+  @Override
+  public void sendCertificateChain(short offset, short len) {
+    accessCertificateChain(CERT_CHAIN_SEND, offset, null, (short) 0, len);
+  }
+
   @Override
   public short getCertificateChainLength() {
-    return Util.getShort(certificateChain, (short) 0);
+    return Util.getShort((byte[]) certificateChain[0], (short) 0);
   }
 
   @Override
@@ -1195,10 +1367,41 @@ public class KMJCardSimulator implements KMSEProvider {
   @Override
   public void clearCertificateChain() {
     JCSystem.beginTransaction();
-    Util.arrayFillNonAtomic(certificateChain, (short) 0, CERT_CHAIN_MAX_SIZE, (byte) 0);
+    for (byte page = 0; page < CERT_CHAIN_PAGES; page++) {
+      Util.arrayFillNonAtomic((byte[]) certificateChain[page], (short) 0, CERT_CHAIN_PAGE_SIZE,
+          (byte) 0);
+    }
     JCSystem.commitTransaction();
   }
 
+  // Reads, writes or sends the part of the chain which starts at chainOff bytes after the length.
+  // The part can span the pages.
+  private void accessCertificateChain(byte mode, short chainOff, byte[] buf, short bufOff,
+      short len) {
+    short pos = (short) (chainOff + 2);
+    while (len > 0) {
+      byte[] page = (byte[]) certificateChain[(short) (pos / CERT_CHAIN_PAGE_SIZE)];
+      short pageOff = (short) (pos % CERT_CHAIN_PAGE_SIZE);
+      short chunk = (short) (CERT_CHAIN_PAGE_SIZE - pageOff);
+      if (chunk > len) {
+        chunk = len;
+      }
+      switch (mode) {
+        case CERT_CHAIN_READ:
+          Util.arrayCopyNonAtomic(page, pageOff, buf, bufOff, chunk);
+          break;
+        case CERT_CHAIN_WRITE:
+          Util.arrayCopyNonAtomic(buf, bufOff, page, pageOff, chunk);
+          break;
+        default:
+          APDU.getCurrentAPDU().sendBytesLong(page, pageOff, chunk);
+      }
+      pos += chunk;
+      bufOff += chunk;
+      len -= chunk;
+    }
+  }
+
   @Override
   public void persistPartialCertificateChain(byte[] buf, short offset,
       short len, short totalLen) {
@@ -1212,14 +1415,13 @@ public class KMJCardSimulator implements KMSEProvider {
     if (totalLen > (short) (CERT_CHAIN_MAX_SIZE - 2)) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
-    short persistedLen = Util.getShort(certificateChain, (short) 0);
+    short persistedLen = getCertificateChainLength();
     if (persistedLen > totalLen) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     JCSystem.beginTransaction();
-    Util.setShort(certificateChain, (short) 0, (short) (len + persistedLen));
-    Util.arrayCopyNonAtomic(buf, offset, certificateChain,
-        (short) (persistedLen + 2), len);
+    Util.setShort((byte[]) certificateChain[0], (short) 0, (short) (len + persistedLen));
+    accessCertificateChain(CERT_CHAIN_WRITE, persistedLen, buf, offset, len);
     JCSystem.commitTransaction();
   }
 
@@ -1237,12 +1439,27 @@ public class KMJCardSimulator implements KMSEProvider {
   public void clearDeviceBooted(boolean resetBootFlag) {
   }
 
+  // Only the certificate chain is backed up, in the layout of the Android SE provider without
+  // its keys. The first page is saved like the single chain array of the previous versions.
   @Override
   public void onSave(Element ele) {
+    for (byte page = 0; page < CERT_CHAIN_PAGES; page++) {
+      ele.write(certificateChain[page]);
+    }
   }
 
   @Override
   public void onRestore(Element ele) {
+    certificateChain = new Object[CERT_CHAIN_PAGES];
+    certificateChain[0] = ele.readObject();
+    for (byte page = 1; page < CERT_CHAIN_PAGES; page++) {
+      // The data of a previous version has no other pages.
+      if (ele.canReadObject() > 0) {
+        certificateChain[page] = ele.readObject();
+      } else {
+        certificateChain[page] = new byte[CERT_CHAIN_PAGE_SIZE];
+      }
+    }
   }
 
   @Override
@@ -1252,7 +1469,7 @@ public class KMJCardSimulator implements KMSEProvider {
 
   @Override
   public short getBackupObjectCount() {
-    return 0;
+    return CERT_CHAIN_PAGES;
   }
 
   @Override
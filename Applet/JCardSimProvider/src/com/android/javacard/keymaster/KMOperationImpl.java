@@ -15,12 +15,19 @@
  */
 package com.android.javacard.keymaster;
 
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
 import javacard.security.Signature;
 
 public class KMOperationImpl implements KMOperation {
 
+  // RSA input is buffered until finish, as the cipher can only process a whole
+  // block of at most the modulus length.
+  private static final short RSA_INPUT_MAX_SIZE = 256;
   private KMCipher cipher;
   private Signature signature;
+  private byte[] rsaInput;
+  private short rsaInputLen;
 
   public KMOperationImpl(KMCipher cipher) {
     this.cipher = cipher;
@@ -35,6 +42,10 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short update(byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
+    if (cipher.getCipherAlgorithm() == KMType.RSA) {
+      bufferRsaInput(inputDataBuf, inputDataStart, inputDataLength);
+      return 0;
+    }
     return cipher
         .update(inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
   }
@@ -48,10 +59,33 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short finish(byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
+    if (cipher.getCipherAlgorithm() == KMType.RSA) {
+      if (rsaInputLen != 0) {
+        bufferRsaInput(inputDataBuf, inputDataStart, inputDataLength);
+        inputDataBuf = rsaInput;
+        inputDataStart = 0;
+        inputDataLength = rsaInputLen;
+      }
+      if (cipher.getPaddingAlgorithm() == KMType.PADDING_NONE
+          && inputDataLength != RSA_INPUT_MAX_SIZE) {
+        KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+      }
+    }
     return cipher
         .doFinal(inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
   }
 
+  private void bufferRsaInput(byte[] buf, short start, short len) {
+    if (rsaInput == null) {
+      rsaInput = JCSystem.makeTransientByteArray(RSA_INPUT_MAX_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+    if (len > (short) (RSA_INPUT_MAX_SIZE - rsaInputLen)) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    Util.arrayCopyNonAtomic(buf, start, rsaInput, rsaInputLen, len);
+    rsaInputLen += len;
+  }
+
   @Override
   public short sign(byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] signBuf, short signStart) {
@@ -67,7 +101,7 @@ public class KMOperationImpl implements KMOperation {
 
   @Override
   public void abort() {
-    // do nothing
+    KMJCardSimulator.getInstance().releaseOperationInstance();
   }
 
   @Override
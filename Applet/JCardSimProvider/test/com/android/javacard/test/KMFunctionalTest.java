@@ -29,14 +29,18 @@ import com.android.javacard.keymaster.KMEnum;
 import com.android.javacard.keymaster.KMEnumArrayTag;
 import com.android.javacard.keymaster.KMEnumTag;
 import com.android.javacard.keymaster.KMError;
+import com.android.javacard.keymaster.KMException;
 import com.android.javacard.keymaster.KMHardwareAuthToken;
 import com.android.javacard.keymaster.KMHmacSharingParameters;
 import com.android.javacard.keymaster.KMInteger;
+import com.android.javacard.keymaster.KMIntegerArrayTag;
 import com.android.javacard.keymaster.KMIntegerTag;
 import com.android.javacard.keymaster.KMKeyCharacteristics;
 import com.android.javacard.keymaster.KMKeyParameters;
 import com.android.javacard.keymaster.KMKeymasterApplet;
 import com.android.javacard.keymaster.KMRepository;
+import com.android.javacard.keymaster.KMTag;
+import com.android.javacard.keymaster.KMUtils;
 import com.android.javacard.keymaster.KMType;
 import com.android.javacard.keymaster.KMVerificationToken;
 import com.licel.jcardsim.smartcardio.CardSimulator;
@@ -51,14 +55,20 @@ import javacard.security.RSAPublicKey;
 import javacard.security.Signature;
 import javacardx.crypto.Cipher;
 
+import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
@@ -66,7 +76,12 @@ import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.MGF1ParameterSpec;
+import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.spec.RSAPublicKeySpec;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -78,6 +93,7 @@ import javax.crypto.spec.PSource;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
+import org.globalplatform.upgrade.Element;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -118,6 +134,12 @@ public class KMFunctionalTest {
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_GET_OPERATION_STATS_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_LOAD_KEY_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  private static final byte INS_UNLOAD_KEY_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
+  private static final byte INS_BEGIN_LOADED_KEY_CMD = INS_END_KM_PROVISION_CMD + 26; //0x3A
+  private static final byte INS_ONESHOT_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 27; //0x3B
+  private static final byte INS_GET_CERT_CHAIN_PART_CMD = INS_END_KM_PROVISION_CMD + 28; //0x3C
 
   private static final byte[] kEcPrivKey = {
       (byte) 0x21, (byte) 0xe0, (byte) 0x86, (byte) 0x43, (byte) 0x2a,
@@ -453,12 +475,14 @@ public class KMFunctionalTest {
   private static final int BOOT_PATCH_LEVEL = 1;
 
   private CardSimulator simulator;
+  // Peak heap use of the last command sent by transmitOnEmptyHeap.
+  private short heapPeak;
   private KMEncoder encoder;
   private KMDecoder decoder;
   private KMSEProvider cryptoProvider;
 
   public KMFunctionalTest() {
-    cryptoProvider = new KMJCardSimulator();
+    cryptoProvider = new KMJCardSimulator(KMRepository.DEFAULT_MAX_OPS);
     simulator = new CardSimulator();
     encoder = new KMEncoder();
     decoder = new KMDecoder();
@@ -497,18 +521,21 @@ public class KMFunctionalTest {
   }
 
   private void setBootParams(CardSimulator simulator, short bootPatchLevel) {
+    setBootParams(simulator, bootPatchLevel, "00011122233344455566677788899900".getBytes(),
+        KMType.VERIFIED_BOOT);
+  }
+
+  private void setBootParams(CardSimulator simulator, short bootPatchLevel, byte[] bootKey,
+      byte bootState) {
     // Argument 0 boot patch level
     short bootpatchPtr = KMInteger.uint_16((short) bootPatchLevel);
     // Argument 1 Verified Boot Key
-    byte[] bootKeyHash = "00011122233344455566677788899900".getBytes();
-    short bootKeyPtr = KMByteBlob.instance(bootKeyHash, (short) 0,
-        (short) bootKeyHash.length);
+    short bootKeyPtr = KMByteBlob.instance(bootKey, (short) 0, (short) bootKey.length);
     // Argument 2 Verified Boot Hash
-    short bootHashPtr = KMByteBlob.instance(bootKeyHash, (short) 0,
-        (short) bootKeyHash.length);
+    byte[] bootHash = "00011122233344455566677788899900".getBytes();
+    short bootHashPtr = KMByteBlob.instance(bootHash, (short) 0, (short) bootHash.length);
     // Argument 3 Verified Boot State
-    short bootStatePtr = KMEnum.instance(KMType.VERIFIED_BOOT_STATE,
-        KMType.VERIFIED_BOOT);
+    short bootStatePtr = KMEnum.instance(KMType.VERIFIED_BOOT_STATE, bootState);
     // Argument 4 Device Locked
     short deviceLockedPtr = KMEnum.instance(KMType.DEVICE_LOCKED,
         KMType.DEVICE_LOCKED_FALSE);
@@ -689,7 +716,17 @@ public class KMFunctionalTest {
 
 
   private CommandAPDU encodeApdu(byte ins, short cmd) {
-    byte[] buf = new byte[2500];
+    return encodeApdu(ins, cmd, new byte[2500]);
+  }
+
+  // Encodes the cert chain provisioning command, as a long chain does not fit in the buffer
+  // used by encodeApdu.
+  private CommandAPDU encodeCertChainApdu(short chainPtr) {
+    return encodeApdu((byte) INS_PROVISION_ATTESTATION_CERT_CHAIN_CMD, chainPtr,
+        new byte[KMByteBlob.cast(chainPtr).length() + 16]);
+  }
+
+  private CommandAPDU encodeApdu(byte ins, short cmd, byte[] buf) {
     buf[0] = (byte) 0x80;
     buf[1] = ins;
     buf[2] = (byte) 0x40;
@@ -908,6 +945,110 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testRsaImportCrtKeySignVerify() throws NoSuchAlgorithmException {
+    init();
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+    kpg.initialize(2048);
+    RSAPrivateCrtKey rsaKey = (RSAPrivateCrtKey) kpg.generateKeyPair().getPrivate();
+    byte[] respBuf = importRsaCrtKey(rsaKey, rsaKey.getModulus());
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    short inst = KMKeyCharacteristics.exp();
+    KMArray.cast(ret).add((short) 2, inst);
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    // Sign with the imported CRT key and verify with the public key.
+    byte[] plainData = "Hello World 123!".getBytes();
+    short inParams = getRsaParams(KMType.SHA2_256, KMType.RSA_PKCS1_1_5_SIGN);
+    ret = processMessage(plainData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.SIGN,
+        KMKeyParameters.instance(inParams),
+        (short) 0, null, false, false
+    );
+    short signPtr = KMArray.cast(ret).get((short) 2);
+    byte[] signatureData = new byte[KMByteBlob.cast(signPtr).length()];
+    KMByteBlob.cast(signPtr).getValues(signatureData, (short) 0);
+    Assert.assertTrue(rsaVerifyMessage(plainData, (short) 0, (short) plainData.length,
+        signatureData, (short) 0, (short) signatureData.length,
+        KMType.SHA2_256, KMType.RSA_PKCS1_1_5_SIGN, keyBlob));
+    // CRT parameters that do not belong to the modulus are rejected.
+    RSAPrivateCrtKey otherKey = (RSAPrivateCrtKey) kpg.generateKeyPair().getPrivate();
+    respBuf = importRsaCrtKey(rsaKey, otherKey.getModulus());
+    ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    error = translateExtendedErrorCodes(KMInteger.cast(ret).getShort());
+    Assert.assertEquals(error, KMError.INVALID_ARGUMENT);
+    cleanUp();
+  }
+
+  // Imports the RSA key as its private exponent and modulus followed by the CRT parameters and
+  // returns the response.
+  private byte[] importRsaCrtKey(RSAPrivateCrtKey rsaKey, BigInteger modulus) {
+    BigInteger[] crtParams = {rsaKey.getPrimeP(), rsaKey.getPrimeQ(),
+        rsaKey.getPrimeExponentP(), rsaKey.getPrimeExponentQ(), rsaKey.getCrtCoefficient()};
+    short keyMaterial = KMArray.instance((short) 7);
+    KMArray.cast(keyMaterial).add((short) 0,
+        toByteBlob(rsaKey.getPrivateExponent(), (short) 256));
+    KMArray.cast(keyMaterial).add((short) 1, toByteBlob(modulus, (short) 256));
+    for (short i = 0; i < crtParams.length; i++) {
+      KMArray.cast(keyMaterial).add((short) (i + 2), toByteBlob(crtParams[i], (short) 128));
+    }
+    byte[] blob = new byte[1200];
+    short len = encoder.encode(keyMaterial, blob, (short) 0);
+    // The key material is encoded, so its large blobs are released from the heap the test shares
+    // with the applet.
+    KMRepository.instance().clean();
+    byte[] pub = new byte[]{0x00, 0x01, 0x00, 0x01};
+    short arrPtr = KMArray.instance((short) 7);
+    short keySize = KMIntegerTag
+        .instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 2048));
+    short byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.SHA2_256);
+    short digest = KMEnumArrayTag.instance(KMType.DIGEST, byteBlob);
+    short rsaPubExpTag = KMIntegerTag.instance(KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
+        KMInteger.uint_32(pub, (short) 0));
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.RSA_PKCS1_1_5_SIGN);
+    short padding = KMEnumArrayTag.instance(KMType.PADDING, byteBlob);
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.SIGN);
+    short purpose = KMEnumArrayTag.instance(KMType.PURPOSE, byteBlob);
+    KMArray.cast(arrPtr).add((short) 0, KMBoolTag.instance(KMType.NO_AUTH_REQUIRED));
+    KMArray.cast(arrPtr).add((short) 1, keySize);
+    KMArray.cast(arrPtr).add((short) 2, digest);
+    KMArray.cast(arrPtr).add((short) 3, rsaPubExpTag);
+    KMArray.cast(arrPtr).add((short) 4, KMEnumTag.instance(KMType.ALGORITHM, KMType.RSA));
+    KMArray.cast(arrPtr).add((short) 5, padding);
+    KMArray.cast(arrPtr).add((short) 6, purpose);
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    short keyFormatPtr = KMEnum.instance(KMType.KEY_FORMAT, KMType.RAW);
+    arrPtr = KMArray.instance((short) 3);
+    KMArray arg = KMArray.cast(arrPtr);
+    arg.add((short) 0, keyParams);
+    arg.add((short) 1, keyFormatPtr);
+    arg.add((short) 2, KMByteBlob.instance(blob, (short) 0, len));
+    CommandAPDU apdu = encodeApdu((byte) INS_IMPORT_KEY_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    return response.getBytes();
+  }
+
+  // Returns the big integer as unsigned big endian byte blob of the given length.
+  private short toByteBlob(BigInteger num, short length) {
+    byte[] val = num.toByteArray();
+    short blob = KMByteBlob.instance(length);
+    short copyLen = (short) Math.min(val.length, length);
+    Util.arrayCopyNonAtomic(val, (short) (val.length - copyLen), KMByteBlob.cast(blob).getBuffer(),
+        (short) (KMByteBlob.cast(blob).getStartOff() + length - copyLen), copyLen);
+    return blob;
+  }
+
   @Test
   public void testDeviceLocked() {
     init();
@@ -963,6 +1104,186 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testAuthTokenCache() {
+    init();
+    byte[] hmacKey = new byte[32];
+    cryptoProvider.newRandomNumber(hmacKey, (short) 0, (short) 32);
+    KMRepository.instance().initComputedHmac(hmacKey, (short) 0, (short) 32);
+    short aesKey = generateAesDesKey(KMType.AES, (short) 128, null, null, true);
+    short keyBlobPtr = KMArray.cast(aesKey).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    // The second lock presents the cached verification token.
+    deviceLock(createVerificationToken());
+    deviceLock(createVerificationToken());
+    Assert.assertEquals(KMError.OK, beginWithHwToken(keyBlob, createHwToken((short) 2, false)));
+    // A cached mac is not accepted for a token with another timestamp.
+    deviceLock(createVerificationToken());
+    Assert.assertEquals(KMError.DEVICE_LOCKED,
+        beginWithHwToken(keyBlob, createHwToken((short) 2, true)));
+    // The cached token is still accepted.
+    Assert.assertEquals(KMError.OK, beginWithHwToken(keyBlob, createHwToken((short) 2, false)));
+    // The cached tokens are no longer valid once the computed hmac key changes.
+    deviceLock(createVerificationToken());
+    short hwToken = createHwToken((short) 2, false);
+    byte[] mac = new byte[32];
+    short ptr = KMHardwareAuthToken.cast(hwToken).getMac();
+    KMByteBlob.cast(ptr).getValue(mac, (short) 0, (short) mac.length);
+    cryptoProvider.newRandomNumber(hmacKey, (short) 0, (short) 32);
+    KMRepository.instance().initComputedHmac(hmacKey, (short) 0, (short) 32);
+    deviceLock(createVerificationToken());
+    hwToken = createHwToken((short) 2, false);
+    KMHardwareAuthToken.cast(hwToken).setMac(KMByteBlob.instance(mac, (short) 0, (short) 32));
+    Assert.assertEquals(KMError.DEVICE_LOCKED, beginWithHwToken(keyBlob, hwToken));
+    cleanUp();
+  }
+
+  @Test
+  public void testAuthPerOperationWithTamperedToken() {
+    init();
+    byte[] hmacKey = new byte[32];
+    cryptoProvider.newRandomNumber(hmacKey, (short) 0, (short) 32);
+    KMRepository.instance().initComputedHmac(hmacKey, (short) 0, (short) 32);
+    byte[] keyBlob = generateAuthPerOperationAesKey((short) 5);
+    byte[] plainData = "Hello World 123!".getBytes();
+    byte[] opHandleBuf = new byte[KMRepository.OPERATION_HANDLE_SIZE];
+    // A token with the mac of another token is rejected by update.
+    beginAuthPerOperation(keyBlob, opHandleBuf);
+    short opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    short ret = update(opHandle,
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), (short) 0,
+        createOperationHwToken(opHandleBuf, (short) 5, true), (short) 0);
+    Assert.assertEquals(KMError.KEY_USER_NOT_AUTHENTICATED, ret);
+    // The failed update releases the operation.
+    opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    ret = update(opHandle,
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), (short) 0,
+        createOperationHwToken(opHandleBuf, (short) 5, true), (short) 0);
+    Assert.assertEquals(KMError.INVALID_OPERATION_HANDLE, ret);
+    // A tampered token is rejected by finish too.
+    beginAuthPerOperation(keyBlob, opHandleBuf);
+    opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    finish(opHandle, KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), null,
+        (short) 0, createOperationHwToken(opHandleBuf, (short) 5, true), (short) 0,
+        KMError.KEY_USER_NOT_AUTHENTICATED);
+    cleanUp();
+  }
+
+  // Generates an AES key which needs a password auth token of the user for every operation.
+  private byte[] generateAuthPerOperationAesKey(short secureId) {
+    short arrPtr = KMArray.instance((short) 7);
+    KMArray.cast(arrPtr).add((short) 0, KMIntegerTag
+        .instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 128)));
+    short byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.ECB);
+    KMArray.cast(arrPtr).add((short) 1, KMEnumArrayTag.instance(KMType.BLOCK_MODE, byteBlob));
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.PKCS7);
+    KMArray.cast(arrPtr).add((short) 2, KMEnumArrayTag.instance(KMType.PADDING, byteBlob));
+    KMArray.cast(arrPtr).add((short) 3, KMEnumTag.instance(KMType.ALGORITHM, KMType.AES));
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.ENCRYPT);
+    KMArray.cast(arrPtr).add((short) 4, KMEnumArrayTag.instance(KMType.PURPOSE, byteBlob));
+    KMArray.cast(arrPtr).add((short) 5,
+        KMEnumTag.instance(KMType.USER_AUTH_TYPE, (byte) KMType.PASSWORD));
+    short sids = KMArray.instance((short) 1);
+    KMArray.cast(sids).add((short) 0, KMInteger.uint_16(secureId));
+    KMArray.cast(arrPtr).add((short) 6,
+        KMIntegerArrayTag.instance(KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID, sids));
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    arrPtr = KMArray.instance((short) 1);
+    KMArray.cast(arrPtr).add((short) 0, keyParams);
+    ResponseAPDU response = simulator.transmitCommand(
+        encodeApdu((byte) INS_GENERATE_KEY_CMD, arrPtr));
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    short keyChar = KMKeyCharacteristics.exp();
+    KMArray.cast(ret).add((short) 2, keyChar);
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    return keyBlob;
+  }
+
+  // Begins an encrypt operation with the key and copies its handle to opHandleBuf.
+  private void beginAuthPerOperation(byte[] keyBlob, byte[] opHandleBuf) {
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    short ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0);
+    short opHandle = KMArray.cast(ret).get((short) 2);
+    KMInteger.cast(opHandle).getValue(opHandleBuf, (short) 0, (short) opHandleBuf.length);
+  }
+
+  // Returns a password auth token of the user for the operation. If tampered is true, the
+  // token carries the mac of a token with another timestamp.
+  private short createOperationHwToken(byte[] opHandleBuf, short userId, boolean tampered) {
+    short hwToken = KMHardwareAuthToken.instance();
+    KMHardwareAuthToken.cast(hwToken).setChallenge(KMInteger.uint_64(opHandleBuf, (short) 0));
+    KMHardwareAuthToken.cast(hwToken).setUserId(KMInteger.uint_16(userId));
+    KMHardwareAuthToken.cast(hwToken).setTimestamp(KMInteger.uint_16((short) 1));
+    KMHardwareAuthToken.cast(hwToken)
+        .setHwAuthenticatorType(KMEnum.instance(KMType.USER_AUTH_TYPE, (byte) KMType.PASSWORD));
+    hwToken = signHwToken(hwToken);
+    if (tampered) {
+      KMHardwareAuthToken.cast(hwToken).setTimestamp(KMInteger.uint_16((short) 2));
+    }
+    return hwToken;
+  }
+
+  private short createVerificationToken() {
+    short verToken = KMVerificationToken.instance();
+    KMVerificationToken.cast(verToken).setTimestamp(KMInteger.uint_16((short) 1));
+    return signVerificationToken(verToken);
+  }
+
+  // Returns a password auth token with the given timestamp, which is signed with the timestamp
+  // incremented if tampered is true.
+  private short createHwToken(short timestamp, boolean tampered) {
+    short hwToken = KMHardwareAuthToken.instance();
+    KMHardwareAuthToken.cast(hwToken).setTimestamp(KMInteger.uint_16(timestamp));
+    KMHardwareAuthToken.cast(hwToken)
+        .setHwAuthenticatorType(KMEnum.instance(KMType.USER_AUTH_TYPE, (byte) KMType.PASSWORD));
+    hwToken = signHwToken(hwToken);
+    if (tampered) {
+      KMHardwareAuthToken.cast(hwToken).setTimestamp(KMInteger.uint_16((short) (timestamp + 1)));
+    }
+    return hwToken;
+  }
+
+  // Begins a decrypt operation with the hw token, aborts it and returns the error of begin.
+  private short beginWithHwToken(byte[] keyBlob, short hwToken) {
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    short arrPtr = KMArray.instance((short) 4);
+    KMArray.cast(arrPtr).add((short) 0, KMEnum.instance(KMType.PURPOSE, KMType.DECRYPT));
+    KMArray.cast(arrPtr).add((short) 1,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(arrPtr).add((short) 2, KMKeyParameters.instance(inParams));
+    KMArray.cast(arrPtr).add((short) 3, hwToken);
+    CommandAPDU apdu = encodeApdu((byte) INS_BEGIN_OPERATION_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMKeyParameters.exp());
+    KMArray.cast(ret).add((short) 2, KMInteger.exp());
+    byte[] respBuf = response.getBytes();
+    if (respBuf.length <= 5) {
+      ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+      return KMInteger.cast(ret).getShort();
+    }
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    abort(KMArray.cast(ret).get((short) 2));
+    return error;
+  }
+
   private short signHwToken(short hwToken) {
     short len = 0;
     byte[] scratchPad = new byte[256];
@@ -1160,24 +1481,45 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  // Returns the fields of the key blob in the order of the version 0 key blob.
   private short extractKeyBlobArray(byte[] buf, short off, short buflen) {
-    short ret = KMArray.instance((short) 5);
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_SECRET, KMByteBlob.exp());
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_NONCE, KMByteBlob.exp());
-    short ptr = KMKeyCharacteristics.exp();
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, ptr);
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, KMByteBlob.exp());
-    ret =
-        decoder.decodeArray(
-            ret,
-            buf, off, buflen);
-    short len = KMArray.cast(ret).length();
-    ptr = KMArray.cast(ret).get((short) 4);
-//    print(KMByteBlob.cast(ptr).getBuffer(),KMByteBlob.cast(ptr).getStartOff(),KMByteBlob.cast(ptr).length());
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2,
+        buf[(short) (off + KMKeymasterApplet.KEY_BLOB_V2_VERSION)]);
+    short hwParams = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_HW_PARAMS);
+    short swParams = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_SW_PARAMS);
+    short pubKey = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_PUB_KEY);
+    short nonce = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_NONCE);
+    short authTag = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_AUTH_TAG);
+    short secret = getKeyBlobOffset(buf, off, KMKeymasterApplet.KEY_BLOB_V2_SECRET);
+    short hw = KMKeyParameters.readRecords(buf, (short) (off + hwParams),
+        (short) (swParams - hwParams),
+        (short) (buf[(short) (off + KMKeymasterApplet.KEY_BLOB_V2_HW_COUNT)] & 0xFF));
+    short sw = KMKeyParameters.readRecords(buf, (short) (off + swParams),
+        (short) (pubKey - swParams),
+        (short) (buf[(short) (off + KMKeymasterApplet.KEY_BLOB_V2_SW_COUNT)] & 0xFF));
+    short keyChar = KMKeyCharacteristics.instance();
+    KMKeyCharacteristics.cast(keyChar).setHardwareEnforced(hw);
+    KMKeyCharacteristics.cast(keyChar).setSoftwareEnforced(sw);
+    short len = (short) (nonce > pubKey ? 5 : 4);
+    short ret = KMArray.instance(len);
+    short ptr = KMByteBlob.instance(buf, (short) (off + secret), (short) (buflen - secret));
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_SECRET, ptr);
+    ptr = KMByteBlob.instance(buf, (short) (off + authTag), (short) (secret - authTag));
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, ptr);
+    ptr = KMByteBlob.instance(buf, (short) (off + nonce), (short) (authTag - nonce));
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_NONCE, ptr);
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, keyChar);
+    if (len == 5) {
+      ptr = KMByteBlob.instance(buf, (short) (off + pubKey), (short) (nonce - pubKey));
+      KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, ptr);
+    }
     return ret;
   }
 
+  private short getKeyBlobOffset(byte[] buf, short off, byte section) {
+    return Util.getShort(buf, (short) (off + section));
+  }
+
   private short extractKeyBlobArray(short keyBlob) {
     return extractKeyBlobArray(KMByteBlob.cast(keyBlob).getBuffer(), KMByteBlob
         .cast(keyBlob).getStartOff(), KMByteBlob.cast(keyBlob).length());
@@ -1887,6 +2229,99 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testGetKeyCharacteristicsWithCachedKeyBlob() {
+    init();
+    byte[] clientId = "clientId".getBytes();
+    byte[] appData = "appData".getBytes();
+    byte[] wrongAppData = "wrongAppData".getBytes();
+    short ret = generateRsaKey(clientId, appData);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    // First request verifies the key blob and caches it, second request is served from cache.
+    short error = getKeyCharacteristicsError(keyBlob, clientId, appData);
+    Assert.assertEquals(error, KMError.OK);
+    error = getKeyCharacteristicsError(keyBlob, clientId, appData);
+    Assert.assertEquals(error, KMError.OK);
+    // Cached key blob must not be served with different application data.
+    error = getKeyCharacteristicsError(keyBlob, clientId, wrongAppData);
+    Assert.assertEquals(error, KMError.INVALID_KEY_BLOB);
+    cleanUp();
+  }
+
+  @Test
+  public void testKeyBlobCacheHit() throws GeneralSecurityException {
+    init();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    byte[] plainData = "Hello World 123!".getBytes();
+    byte[] nonce = new byte[16];
+    byte[] cipherData = EncryptMessage(plainData,
+        getAesDesParams(KMType.AES, KMType.ECB, KMType.PADDING_NONE, nonce), keyBlob);
+    // The first use verifies the key blob and caches its secret.
+    byte[] digest = keyBlobDigest(keyBlob);
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMRepository.instance().readCachedKeyBlobSecret(digest, (short) 0));
+    // Replace the cached secret, so the next use of the key blob shows whether its secret is
+    // taken from the cache.
+    byte[] cachedKey = new byte[16];
+    Arrays.fill(cachedKey, (byte) 0x5A);
+    KMRepository.instance().clearKeyBlobCache();
+    KMRepository.instance().cacheKeyBlobSecret(digest, (short) 0, cachedKey, (short) 0,
+        (short) cachedKey.length);
+    byte[] output = EncryptMessage(plainData,
+        getAesDesParams(KMType.AES, KMType.ECB, KMType.PADDING_NONE, nonce), keyBlob);
+    javax.crypto.Cipher aes = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+    aes.init(javax.crypto.Cipher.ENCRYPT_MODE,
+        new javax.crypto.spec.SecretKeySpec(cachedKey, "AES"));
+    Assert.assertArrayEquals(aes.doFinal(plainData), output);
+    Assert.assertFalse(Arrays.equals(cipherData, output));
+    cleanUp();
+  }
+
+  // Computes the key blob cache digest of a key blob used without application id and
+  // application data.
+  private byte[] keyBlobDigest(byte[] keyBlob) throws NoSuchAlgorithmException {
+    java.security.MessageDigest sha256 = java.security.MessageDigest.getInstance("SHA-256");
+    byte[] input = new byte[KMRepository.KEY_BLOB_DIGEST_SIZE + 4];
+    System.arraycopy(sha256.digest(keyBlob), 0, input, 0, KMRepository.KEY_BLOB_DIGEST_SIZE);
+    Util.setShort(input, KMRepository.KEY_BLOB_DIGEST_SIZE, KMType.INVALID_VALUE);
+    Util.setShort(input, (short) (KMRepository.KEY_BLOB_DIGEST_SIZE + 2), KMType.INVALID_VALUE);
+    return sha256.digest(input);
+  }
+
+  private short getKeyCharacteristicsError(byte[] keyBlob, byte[] clientId, byte[] appData) {
+    short arrPtr = KMArray.instance((short) 3);
+    KMArray.cast(arrPtr)
+        .add((short) 0, KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(arrPtr)
+        .add((short) 1, KMByteBlob.instance(clientId, (short) 0, (short) clientId.length));
+    KMArray.cast(arrPtr)
+        .add((short) 2, KMByteBlob.instance(appData, (short) 0, (short) appData.length));
+    CommandAPDU apdu = encodeApdu((byte) INS_GET_KEY_CHARACTERISTICS_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    byte[] respBuf = response.getBytes();
+    short len = (short) respBuf.length;
+    if (len > 5) {
+      short ret = KMArray.instance((short) 2);
+      KMArray.cast(ret).add((short) 0, KMInteger.exp());
+      short inst = KMKeyCharacteristics.exp();
+      KMArray.cast(ret).add((short) 1, inst);
+      ret = decoder.decode(ret, respBuf, (short) 0, len);
+      return KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    }
+    if (len == 3) {
+      return respBuf[0];
+    }
+    if (len == 4) {
+      return respBuf[1];
+    }
+    return Util.getShort(respBuf, (short) 0);
+  }
+
   @Test
   public void testGetKeyCharacteristicsSuccess() {
     init();
@@ -2126,28 +2561,42 @@ public class KMFunctionalTest {
   @Test
   public void testWithRsa256Oaep() {
     init();
-    testEncryptDecryptWithRsa(KMType.SHA2_256, KMType.RSA_OAEP);
+    testEncryptDecryptWithRsa(KMType.SHA2_256, KMType.RSA_OAEP, false);
     cleanUp();
   }
 
   @Test
   public void testWithRsaSha1Oaep() {
     init();
-    testEncryptDecryptWithRsa(KMType.SHA1, KMType.RSA_OAEP);
+    testEncryptDecryptWithRsa(KMType.SHA1, KMType.RSA_OAEP, false);
     cleanUp();
   }
 
   @Test
   public void testWithRsaNonePkcs1() {
     init();
-    testEncryptDecryptWithRsa(KMType.DIGEST_NONE, KMType.RSA_PKCS1_1_5_ENCRYPT);
+    testEncryptDecryptWithRsa(KMType.DIGEST_NONE, KMType.RSA_PKCS1_1_5_ENCRYPT, false);
     cleanUp();
   }
 
   @Test
   public void testWithRsaNoneNoPad() {
     init();
-    testEncryptDecryptWithRsa(KMType.DIGEST_NONE, KMType.PADDING_NONE);
+    testEncryptDecryptWithRsa(KMType.DIGEST_NONE, KMType.PADDING_NONE, false);
+    cleanUp();
+  }
+
+  @Test
+  public void testWithRsa256OaepWithUpdate() {
+    init();
+    testEncryptDecryptWithRsa(KMType.SHA2_256, KMType.RSA_OAEP, true);
+    cleanUp();
+  }
+
+  @Test
+  public void testWithRsaNoneNoPadWithUpdate() {
+    init();
+    testEncryptDecryptWithRsa(KMType.DIGEST_NONE, KMType.PADDING_NONE, true);
     cleanUp();
   }
 
@@ -2671,53 +3120,371 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
-  public void testAttestKey(byte[] keyBlob) {
-    short arrPtr = KMArray.instance((short) 2);
-    KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
-        KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
-    KMArray.cast(arrPtr).add((short) 1, KMByteTag.instance(KMType.ATTESTATION_CHALLENGE,
-        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
-    short keyParams = KMKeyParameters.instance(arrPtr);
-    short args = KMArray.instance((short) 2);
-    KMArray.cast(args)
-        .add((short) 0, KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
-    KMArray.cast(args).add((short) 1, keyParams);
-    CommandAPDU apdu = encodeApdu((byte) INS_ATTEST_KEY_CMD, args);
-    //print(apdu.getBytes(),(short)0,(short)apdu.getBytes().length);
-    ResponseAPDU response = simulator.transmitCommand(apdu);
-    short ret = KMArray.instance((short) 2);
-    short arrBlobs = KMArray.instance((short) 1);
-    KMArray.cast(arrBlobs).add((short) 0, KMByteBlob.exp());
-    KMArray.cast(ret).add((short) 0, KMInteger.exp());
-    KMArray.cast(ret).add((short) 1, arrBlobs);
-    byte[] respBuf = response.getBytes();
-    short len = (short) respBuf.length;
-    //(respBuf,(short)0,(short)respBuf.length);
-    ret = decoder.decode(ret, respBuf, (short) 0, len);
-    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
-    Assert.assertEquals(error, KMError.OK);
-    arrBlobs = KMArray.cast(ret).get((short) 1);
-    short cert = KMArray.cast(arrBlobs).get((short) 0);
-    //printCert(KMByteBlob.cast(cert).getBuffer(),KMByteBlob.cast(cert).getStartOff(),KMByteBlob.cast(cert).length());
-  }
-
   @Test
-  public void testUpgradeKey() {
+  public void testAttestKeyWithCertTemplate() {
     init();
-    short ret = generateHmacKey(null, null);
-    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    short key = generateEcKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
     byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
-    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
         KMByteBlob.cast(keyBlobPtr).getStartOff(),
         keyBlob, (short) 0, (short) keyBlob.length);
-    short keyCharacteristics = KMArray.cast(ret).get((short) 2);
-    short hwParams = KMKeyCharacteristics.cast(keyCharacteristics).getHardwareEnforced();
-    short swParams = KMKeyCharacteristics.cast(keyCharacteristics).getSoftwareEnforced();
-    short osVersion = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_VERSION, hwParams);
-    osVersion = KMIntegerTag.cast(osVersion).getValue();
-    short osPatch = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_PATCH_LEVEL, hwParams);
-    osPatch = KMIntegerTag.cast(osPatch).getValue();
-    Assert.assertEquals(KMInteger.cast(osVersion).getShort(), 1);
+    // The first attestation builds the certificate template, the second one reuses it.
+    byte[] bootKey = "00011122233344455566677788899900".getBytes();
+    assertRootOfTrust(attestKey(keyBlob, attChallenge), bootKey, KMType.VERIFIED_BOOT);
+    assertRootOfTrust(attestKey(keyBlob, attChallenge), bootKey, KMType.VERIFIED_BOOT);
+    // The template is built again after the boot parameters change. The key blob is bound to
+    // the root of trust, so a new key is attested.
+    bootKey = "99988877766655544433322211100011".getBytes();
+    setBootParams(simulator, (short) BOOT_PATCH_LEVEL, bootKey, KMType.SELF_SIGNED_BOOT);
+    key = generateEcKey(null, null);
+    keyBlobPtr = KMArray.cast(key).get((short) 1);
+    keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    assertRootOfTrust(attestKey(keyBlob, attChallenge), bootKey, KMType.SELF_SIGNED_BOOT);
+    cleanUp();
+  }
+
+  // Asserts the verified boot key and the verified boot state of the RootOfTrust, which is
+  // the [704] field of the key description in the attestation extension.
+  private void assertRootOfTrust(byte[] certBuf, byte[] bootKey, byte bootState) {
+    byte[] ext = null;
+    try {
+      X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+          .generateCertificate(new ByteArrayInputStream(certBuf));
+      ext = cert.getExtensionValue("1.3.6.1.4.1.11129.2.1.17");
+    } catch (GeneralSecurityException e) {
+      Assert.fail(e.toString());
+    }
+    Assert.assertNotNull(ext);
+    byte[] rotTag = {(byte) 0xBF, (byte) 0x85, 0x40};
+    int off = 0;
+    while (off < ext.length - rotTag.length
+        && !Arrays.equals(rotTag, Arrays.copyOfRange(ext, off, off + rotTag.length))) {
+      off++;
+    }
+    Assert.assertTrue(off < ext.length - rotTag.length);
+    off = skipDerHeader(ext, off + rotTag.length - 1);
+    // RootOfTrust ::= SEQUENCE {verifiedBootKey, deviceLocked, verifiedBootState, ...}
+    Assert.assertEquals(0x30, ext[off]);
+    off = skipDerHeader(ext, off);
+    Assert.assertEquals(0x04, ext[off]);
+    int keyOff = skipDerHeader(ext, off);
+    Assert.assertArrayEquals(bootKey, Arrays.copyOfRange(ext, keyOff, keyOff + bootKey.length));
+    off = keyOff + bootKey.length;
+    Assert.assertEquals(0x01, ext[off]);
+    off = skipDerHeader(ext, off) + 1;
+    Assert.assertArrayEquals(new byte[] {0x0A, 0x01, bootState},
+        Arrays.copyOfRange(ext, off, off + 3));
+  }
+
+  // Returns the offset of the value of the DER element whose tag ends at off.
+  private int skipDerHeader(byte[] buf, int off) {
+    int len = buf[off + 1] & 0xFF;
+    if (len < 0x80) {
+      return off + 2;
+    }
+    return off + 2 + (len & 0x7F);
+  }
+
+  @Test
+  public void testAttestRsaKeyWithLargeChallenge() {
+    init();
+    short key = generateRsaKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    // The certificate is larger than the heap buffers used to build certificates earlier.
+    byte[] challenge = new byte[1200];
+    new Random().nextBytes(challenge);
+    short certLen = testAttestKey(keyBlob, challenge);
+    Assert.assertTrue(certLen > 2048);
+    cleanUp();
+  }
+
+  @Test
+  public void testGetCertChainInParts() {
+    // The cert chain can only be provisioned before provisioning is locked.
+    AID appletAID = AIDUtil.create("A000000062");
+    simulator.installApplet(appletAID, KMJCardSimApplet.class);
+    simulator.selectApplet(appletAID);
+    // The cert chain is longer than a page of the cert chain storage.
+    byte[] chain = new byte[6000];
+    for (short i = 0; i < chain.length; i += kEcAttestCert.length) {
+      System.arraycopy(kEcAttestCert, 0, chain, i, Math.min(kEcAttestCert.length, chain.length - i));
+    }
+    short chainPtr = KMByteBlob.instance((short) chain.length);
+    Util.arrayCopyNonAtomic(chain, (short) 0, KMByteBlob.cast(chainPtr).getBuffer(),
+        KMByteBlob.cast(chainPtr).getStartOff(), (short) chain.length);
+    CommandAPDU apdu = encodeCertChainApdu(chainPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    byte[] respBuf = response.getBytes();
+    short ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(ret).getShort());
+    provisionSigningKey(simulator);
+    provisionCertificateParams(simulator);
+    provisionSharedSecret(simulator);
+    provisionAttestIds(simulator);
+    setBootParams(simulator, (short) BOOT_PATCH_LEVEL);
+    setAndroidOSSystemProperties(simulator, (short) OS_VERSION, (short) OS_PATCH_LEVEL,
+        (short) VENDOR_PATCH_LEVEL);
+    provisionLocked(simulator);
+    // Read the whole cert chain, which is array{KMError.OK, KMByteBlob}.
+    response = simulator.transmitCommand(
+        new CommandAPDU(0x80, INS_GET_CERT_CHAIN_CMD, 0x40, 0x00, 0x10000));
+    Assert.assertEquals(0x9000, response.getSW());
+    respBuf = response.getData();
+    Assert.assertEquals((byte) 0x82, respBuf[0]);
+    Assert.assertEquals(KMError.OK, respBuf[1]);
+    byte[] encodedChain = Arrays.copyOfRange(respBuf, 2, respBuf.length);
+    Assert.assertArrayEquals(chain, Arrays.copyOfRange(encodedChain,
+        encodedChain.length - chain.length, encodedChain.length));
+    // Read the cert chain in parts, which cross the pages of the storage.
+    byte[] parts = new byte[encodedChain.length];
+    short offset = 0;
+    while (offset < parts.length) {
+      short len = (short) Math.min(1000, parts.length - offset);
+      ret = getCertChainPart(offset, len);
+      Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+      Assert.assertEquals(encodedChain.length,
+          KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort());
+      short part = KMArray.cast(ret).get((short) 2);
+      Assert.assertEquals(len, KMByteBlob.cast(part).length());
+      Util.arrayCopyNonAtomic(KMByteBlob.cast(part).getBuffer(),
+          KMByteBlob.cast(part).getStartOff(), parts, offset, len);
+      offset += len;
+    }
+    Assert.assertArrayEquals(encodedChain, parts);
+    // The part must lie within the cert chain.
+    short arrPtr = KMArray.instance((short) 2);
+    KMArray.cast(arrPtr).add((short) 0, KMInteger.uint_16((short) (encodedChain.length - 10)));
+    KMArray.cast(arrPtr).add((short) 1, KMInteger.uint_16((short) 11));
+    response = simulator.transmitCommand(encodeApdu((byte) INS_GET_CERT_CHAIN_PART_CMD, arrPtr));
+    respBuf = response.getBytes();
+    ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.INVALID_ARGUMENT, KMInteger.cast(ret).getShort());
+    cleanUp();
+  }
+
+  @Test
+  public void testRestoreCertChainOfPreviousVersion() {
+    // Previous versions saved the cert chain as a single array, with its length first.
+    byte[] oldChain = new byte[2500];
+    Util.setShort(oldChain, (short) 0, (short) kEcAttestCert.length);
+    Util.arrayCopyNonAtomic(kEcAttestCert, (short) 0, oldChain, (short) 2,
+        (short) kEcAttestCert.length);
+    BackupElement element = new BackupElement();
+    element.write(oldChain);
+    element.initRead();
+    cryptoProvider.onRestore(element);
+    byte[] chain = new byte[6000];
+    Assert.assertEquals(kEcAttestCert.length, cryptoProvider.getCertificateChainLength());
+    Assert.assertEquals(kEcAttestCert.length, cryptoProvider.readCertificateChain(chain, (short) 0));
+    Assert.assertArrayEquals(kEcAttestCert, Arrays.copyOf(chain, kEcAttestCert.length));
+    // The restored chain can grow over all the pages.
+    for (short i = 0; i < chain.length; i++) {
+      chain[i] = (byte) i;
+    }
+    cryptoProvider.clearCertificateChain();
+    cryptoProvider.persistPartialCertificateChain(chain, (short) 0, (short) chain.length,
+        (short) chain.length);
+    // It is saved and restored in the current layout.
+    element = new BackupElement();
+    cryptoProvider.onSave(element);
+    Assert.assertEquals(cryptoProvider.getBackupObjectCount(), element.objects.size());
+    Assert.assertSame(oldChain, element.objects.get(0));
+    element.initRead();
+    KMSEProvider restored = new KMJCardSimulator(KMRepository.DEFAULT_MAX_OPS);
+    restored.onRestore(element);
+    byte[] restoredChain = new byte[chain.length];
+    Assert.assertEquals(chain.length, restored.readCertificateChain(restoredChain, (short) 0));
+    Assert.assertArrayEquals(chain, restoredChain);
+  }
+
+  // Keeps the objects of an upgrade backup in memory.
+  private static class BackupElement implements Element {
+
+    private final ArrayList<Object> objects = new ArrayList<>();
+    private int readIndex;
+
+    @Override
+    public Element write(boolean value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Element write(byte value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Element write(short value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Element write(Object value) {
+      objects.add(value);
+      return this;
+    }
+
+    @Override
+    public short canWriteBoolean() {
+      return 0;
+    }
+
+    @Override
+    public short canWriteByte() {
+      return 0;
+    }
+
+    @Override
+    public short canWriteShort() {
+      return 0;
+    }
+
+    @Override
+    public short canWriteObject() {
+      return Short.MAX_VALUE;
+    }
+
+    @Override
+    public void initRead() {
+      readIndex = 0;
+    }
+
+    @Override
+    public boolean readBoolean() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte readByte() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short readShort() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object readObject() {
+      return objects.get(readIndex++);
+    }
+
+    @Override
+    public short canReadBoolean() {
+      return 0;
+    }
+
+    @Override
+    public short canReadByte() {
+      return 0;
+    }
+
+    @Override
+    public short canReadShort() {
+      return 0;
+    }
+
+    @Override
+    public short canReadObject() {
+      return (short) (objects.size() - readIndex);
+    }
+  }
+
+  public short getCertChainPart(short offset, short len) {
+    short arrPtr = KMArray.instance((short) 2);
+    KMArray.cast(arrPtr).add((short) 0, KMInteger.uint_16(offset));
+    KMArray.cast(arrPtr).add((short) 1, KMInteger.uint_16(len));
+    CommandAPDU apdu = encodeApdu((byte) INS_GET_CERT_CHAIN_PART_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    return decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+  }
+
+  public void testAttestKey(byte[] keyBlob) {
+    testAttestKey(keyBlob, attChallenge);
+  }
+
+  public short testAttestKey(byte[] keyBlob, byte[] challenge) {
+    return (short) attestKey(keyBlob, challenge).length;
+  }
+
+  // Attests the key and returns the certificate, after checking its signature.
+  private byte[] attestKey(byte[] keyBlob, byte[] challenge) {
+    short arrPtr = KMArray.instance((short) 2);
+    KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
+        KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
+    KMArray.cast(arrPtr).add((short) 1, KMByteTag.instance(KMType.ATTESTATION_CHALLENGE,
+        KMByteBlob.instance(challenge, (short) 0, (short) challenge.length)));
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    short args = KMArray.instance((short) 2);
+    KMArray.cast(args)
+        .add((short) 0, KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(args).add((short) 1, keyParams);
+    CommandAPDU apdu = encodeApdu((byte) INS_ATTEST_KEY_CMD, args);
+    //print(apdu.getBytes(),(short)0,(short)apdu.getBytes().length);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 2);
+    short arrBlobs = KMArray.instance((short) 1);
+    KMArray.cast(arrBlobs).add((short) 0, KMByteBlob.exp());
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, arrBlobs);
+    byte[] respBuf = response.getBytes();
+    short len = (short) respBuf.length;
+    //(respBuf,(short)0,(short)respBuf.length);
+    ret = decoder.decode(ret, respBuf, (short) 0, len);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    arrBlobs = KMArray.cast(ret).get((short) 1);
+    short cert = KMArray.cast(arrBlobs).get((short) 0);
+    //printCert(KMByteBlob.cast(cert).getBuffer(),KMByteBlob.cast(cert).getStartOff(),KMByteBlob.cast(cert).length());
+    // The certificate must be well formed and signed by the provisioned attestation key.
+    byte[] certBuf = new byte[KMByteBlob.cast(cert).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(cert).getBuffer(), KMByteBlob.cast(cert).getStartOff(),
+        certBuf, (short) 0, (short) certBuf.length);
+    try {
+      CertificateFactory factory = CertificateFactory.getInstance("X.509");
+      X509Certificate attestCert = (X509Certificate) factory
+          .generateCertificate(new ByteArrayInputStream(certBuf));
+      X509Certificate signingCert = (X509Certificate) factory
+          .generateCertificate(new ByteArrayInputStream(kEcAttestCert));
+      attestCert.verify(signingCert.getPublicKey());
+    } catch (GeneralSecurityException e) {
+      Assert.fail(e.toString());
+    }
+    return certBuf;
+  }
+
+  @Test
+  public void testUpgradeKey() {
+    init();
+    short ret = generateHmacKey(null, null);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    short keyCharacteristics = KMArray.cast(ret).get((short) 2);
+    short hwParams = KMKeyCharacteristics.cast(keyCharacteristics).getHardwareEnforced();
+    short swParams = KMKeyCharacteristics.cast(keyCharacteristics).getSoftwareEnforced();
+    short osVersion = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_VERSION, hwParams);
+    osVersion = KMIntegerTag.cast(osVersion).getValue();
+    short osPatch = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_PATCH_LEVEL, hwParams);
+    osPatch = KMIntegerTag.cast(osPatch).getValue();
+    Assert.assertEquals(KMInteger.cast(osVersion).getShort(), 1);
     Assert.assertEquals(KMInteger.cast(osPatch).getShort(), 1);
     short NO_UPGRADE = 0x01;
     short UPGRADE = 0x02;
@@ -2780,6 +3547,635 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testSystemPropertiesUpdateAfterRead() {
+    init();
+    // Key generation reads the system properties, after which they are updated.
+    for (int i = 0; i < 2; i++) {
+      if (i == 1) {
+        setAndroidOSSystemProperties(simulator, (short) (OS_VERSION + 1),
+            (short) (OS_PATCH_LEVEL + 1), (short) VENDOR_PATCH_LEVEL);
+      }
+      short ret = generateHmacKey(null, null);
+      short keyCharacteristics = KMArray.cast(ret).get((short) 2);
+      short hwParams = KMKeyCharacteristics.cast(keyCharacteristics).getHardwareEnforced();
+      short osVersion = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_VERSION, hwParams);
+      osVersion = KMIntegerTag.cast(osVersion).getValue();
+      short osPatch = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.OS_PATCH_LEVEL, hwParams);
+      osPatch = KMIntegerTag.cast(osPatch).getValue();
+      Assert.assertEquals(OS_VERSION + i, KMInteger.cast(osVersion).getShort());
+      Assert.assertEquals(OS_PATCH_LEVEL + i, KMInteger.cast(osPatch).getShort());
+    }
+    cleanUp();
+  }
+
+  @Test
+  public void testDecodeKeyParameters() {
+    init();
+    // The tags of a typical generateKey request for an RSA key.
+    byte[] dateTime = {0, 0, 0x01, 0x73, 0x51, 0x7C, (byte) 0xCC, 0x00};
+    byte[] pub = {0, 1, 0, 1};
+    short arrPtr = KMArray.instance((short) 26);
+    short tagIndex = 0;
+    short byteBlob = KMByteBlob.instance((short) 4);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.SIGN);
+    KMByteBlob.cast(byteBlob).add((short) 1, KMType.VERIFY);
+    KMByteBlob.cast(byteBlob).add((short) 2, KMType.ENCRYPT);
+    KMByteBlob.cast(byteBlob).add((short) 3, KMType.DECRYPT);
+    KMArray.cast(arrPtr).add(tagIndex++, KMEnumArrayTag.instance(KMType.PURPOSE, byteBlob));
+    byteBlob = KMByteBlob.instance((short) 2);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.DIGEST_NONE);
+    KMByteBlob.cast(byteBlob).add((short) 1, KMType.SHA2_256);
+    KMArray.cast(arrPtr).add(tagIndex++, KMEnumArrayTag.instance(KMType.DIGEST, byteBlob));
+    byteBlob = KMByteBlob.instance((short) 2);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.RSA_PKCS1_1_5_SIGN);
+    KMByteBlob.cast(byteBlob).add((short) 1, KMType.RSA_PSS);
+    KMArray.cast(arrPtr).add(tagIndex++, KMEnumArrayTag.instance(KMType.PADDING, byteBlob));
+    KMArray.cast(arrPtr).add(tagIndex++, KMEnumTag.instance(KMType.ALGORITHM, KMType.RSA));
+    KMArray.cast(arrPtr).add(tagIndex++, KMEnumTag.instance(KMType.USER_AUTH_TYPE, (byte) 0x02));
+    KMArray.cast(arrPtr).add(tagIndex++,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 2048)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.ULONG_TAG,
+        KMType.RSA_PUBLIC_EXPONENT, KMInteger.uint_32(pub, (short) 0)));
+    KMArray.cast(arrPtr).add(tagIndex++,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.AUTH_TIMEOUT, KMInteger.uint_16((short) 60)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.UINT_TAG,
+        KMType.MAX_USES_PER_BOOT, KMInteger.uint_16((short) 100)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.UINT_TAG,
+        KMType.MIN_SEC_BETWEEN_OPS, KMInteger.uint_16((short) 1)));
+    KMArray.cast(arrPtr).add(tagIndex++,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.USERID, KMInteger.uint_16((short) 10)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.ACTIVE_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.CREATION_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.ORIGINATION_EXPIRE_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.USAGE_EXPIRE_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    short sids = KMArray.instance((short) 2);
+    KMArray.cast(sids).add((short) 0, KMInteger.uint_64(dateTime, (short) 0));
+    KMArray.cast(sids).add((short) 1, KMInteger.uint_64(dateTime, (short) 0));
+    KMArray.cast(arrPtr).add(tagIndex++,
+        KMIntegerArrayTag.instance(KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID, sids));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.INCLUDE_UNIQUE_ID));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.RESET_SINCE_ID_ROTATION));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.ROLLBACK_RESISTANCE));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.UNLOCKED_DEVICE_REQUIRED));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.ALLOW_WHILE_ON_BODY));
+    KMArray.cast(arrPtr).add(tagIndex++, KMBoolTag.instance(KMType.CALLER_NONCE));
+    KMArray.cast(arrPtr).add(tagIndex++, KMByteTag.instance(KMType.APPLICATION_ID,
+        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMByteTag.instance(KMType.APPLICATION_DATA,
+        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
+        KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
+    KMArray.cast(arrPtr).add(tagIndex++, KMByteTag.instance(KMType.ATTESTATION_CHALLENGE,
+        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+    byte[] buf = new byte[1024];
+    short len = encoder.encode(KMKeyParameters.instance(arrPtr), buf, (short) 0);
+    // Every tag type is decoded through the dispatch table, so the decoded parameters encode
+    // back to the same bytes.
+    short keyParams = decoder.decode(KMKeyParameters.exp(), buf, (short) 0, len);
+    short vals = KMKeyParameters.cast(keyParams).getVals();
+    Assert.assertEquals(tagIndex, KMArray.cast(vals).length());
+    byte[] out = new byte[1024];
+    Assert.assertEquals(len, encoder.encode(keyParams, out, (short) 0));
+    Assert.assertEquals(0, Util.arrayCompare(buf, (short) 0, out, (short) 0, len));
+    cleanUp();
+  }
+
+  @Test
+  public void testKeyBlobFormat() {
+    init();
+    compareKeyBlobFormats(generateRsaKey(null, null));
+    compareKeyBlobFormats(generateEcKey(null, null));
+    compareKeyBlobFormats(generateAesDesKey(KMType.AES, (short) 128, null, null, false));
+    compareKeyBlobFormats(generateAesDesKey(KMType.DES, (short) 168, null, null, false));
+    compareKeyBlobFormats(generateHmacKey(null, null));
+    cleanUp();
+  }
+
+  // Checks that the version 2 key blob is smaller than the version 1 key blob holding the same
+  // fields and that both hold the same key characteristics.
+  private void compareKeyBlobFormats(short ret) {
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short keyBlob = KMArray.cast(ret).get((short) 1);
+    short len = KMByteBlob.cast(keyBlob).length();
+    byte[] blob = new byte[len];
+    KMByteBlob.cast(keyBlob).getValue(blob, (short) 0, len);
+    short blobArr = extractKeyBlobArray(blob, (short) 0, len);
+    short arrLen = KMArray.cast(blobArr).length();
+    short authDataArr = KMArray.instance((short) (arrLen - 3));
+    short ptr = KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_KEYCHAR);
+    KMArray.cast(authDataArr).add(KMKeymasterApplet.AUTH_DATA_KEYCHAR, ptr);
+    if (arrLen == 5) {
+      ptr = KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_PUB_KEY);
+      KMArray.cast(authDataArr).add(KMKeymasterApplet.AUTH_DATA_PUB_KEY, ptr);
+    }
+    byte[] authData = new byte[1024];
+    short authDataLen = encoder.encode(authDataArr, authData, (short) 0);
+    short v1Arr = KMArray.instance(KMKeymasterApplet.KEY_BLOB_V1_SIZE);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_VERSION,
+        KMInteger.uint_8(KMKeymasterApplet.KEY_BLOB_VERSION_1));
+    ptr = KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_SECRET);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_SECRET, ptr);
+    ptr = KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_NONCE);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_NONCE, ptr);
+    ptr = KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_AUTH_TAG);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_AUTH_TAG, ptr);
+    ptr = KMByteBlob.instance(authData, (short) 0, authDataLen);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_AUTH_DATA, ptr);
+    short v1Len = encoder.encode(v1Arr, new byte[2048], (short) 0);
+    Assert.assertTrue(len < v1Len);
+    // The key characteristics decoded from the version 1 auth data encode to the same bytes.
+    short exp = KMArray.instance((short) 2);
+    ptr = KMKeyCharacteristics.exp();
+    KMArray.cast(exp).add(KMKeymasterApplet.AUTH_DATA_KEYCHAR, ptr);
+    KMArray.cast(exp).add(KMKeymasterApplet.AUTH_DATA_PUB_KEY, KMByteBlob.exp());
+    short v1AuthData = decoder.decodeArray(exp, authData, (short) 0, authDataLen);
+    byte[] v1KeyChar = new byte[1024];
+    short v1KeyCharLen = encoder.encode(
+        KMArray.cast(v1AuthData).get(KMKeymasterApplet.AUTH_DATA_KEYCHAR), v1KeyChar, (short) 0);
+    byte[] v2KeyChar = new byte[1024];
+    short v2KeyCharLen = encoder.encode(
+        KMArray.cast(blobArr).get(KMKeymasterApplet.KEY_BLOB_KEYCHAR), v2KeyChar, (short) 0);
+    Assert.assertEquals(v1KeyCharLen, v2KeyCharLen);
+    Assert.assertEquals(0,
+        Util.arrayCompare(v1KeyChar, (short) 0, v2KeyChar, (short) 0, v1KeyCharLen));
+  }
+
+  @Test
+  public void testKeyBlobV1WithLargeApplicationId() {
+    init();
+    // The application id is large enough to push the application data out of the encoded
+    // hidden parameters that fit in the key derivation input.
+    byte[] clientId = new byte[200];
+    Arrays.fill(clientId, (byte) 0x41);
+    byte[] appData = "appData".getBytes();
+    byte[] wrongAppData = "wrongAppData".getBytes();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, clientId, appData, false);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    byte[] keyBlob = makeKeyBlobV1(KMArray.cast(ret).get((short) 2), clientId, appData);
+    Assert.assertEquals(KMError.OK, getKeyCharacteristicsError(keyBlob, clientId, appData));
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB,
+        getKeyCharacteristicsError(keyBlob, clientId, wrongAppData));
+    cleanUp();
+  }
+
+  @Test
+  public void testKeyBlobWithLargeApplicationId() {
+    init();
+    byte[] clientId = new byte[200];
+    Arrays.fill(clientId, (byte) 0x41);
+    byte[] appData = "appData".getBytes();
+    byte[] wrongAppData = "wrongAppData".getBytes();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, clientId, appData, false);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2,
+        keyBlob[KMKeymasterApplet.KEY_BLOB_V2_VERSION]);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB,
+        getKeyCharacteristicsError(keyBlob, clientId, wrongAppData));
+    Assert.assertEquals(KMError.OK, getKeyCharacteristicsError(keyBlob, clientId, appData));
+    cleanUp();
+  }
+
+  // Seals a random AES key with the given key characteristics into a version 1 key blob, the
+  // way the applet derives the key of a version 1 key blob.
+  private byte[] makeKeyBlobV1(short keyChar, byte[] clientId, byte[] appData) {
+    short authDataArr = KMArray.instance((short) 1);
+    KMArray.cast(authDataArr).add(KMKeymasterApplet.AUTH_DATA_KEYCHAR, keyChar);
+    byte[] authData = new byte[1024];
+    short authDataLen = encoder.encode(authDataArr, authData, (short) 0);
+    // Derivation input is the digest of the hidden parameters followed by the auth data.
+    short hidden = KMKeyParameters.makeHidden(
+        KMByteBlob.instance(clientId, (short) 0, (short) clientId.length),
+        KMByteBlob.instance(appData, (short) 0, (short) appData.length),
+        KMRepository.instance().readROT(), new byte[16]);
+    byte[] hiddenBuf = new byte[1024];
+    short hiddenLen = encoder.encode(KMKeyParameters.cast(hidden).getVals(), hiddenBuf, (short) 0);
+    byte[] kdfInput = new byte[256];
+    short digestLen = cryptoProvider.messageDigest256(hiddenBuf, (short) 0, hiddenLen, kdfInput,
+        (short) 0);
+    Util.arrayCopyNonAtomic(authData, (short) 0, kdfInput, digestLen,
+        (short) Math.min(authDataLen, kdfInput.length - digestLen));
+    byte[] derivedKey = new byte[32];
+    cryptoProvider.hmacKDF(KMJCardSimulator.getInstance().getMasterKey(), kdfInput, (short) 0,
+        (short) kdfInput.length, derivedKey, (short) 0);
+    byte[] secret = new byte[16];
+    cryptoProvider.newRandomNumber(secret, (short) 0, (short) secret.length);
+    byte[] nonce = new byte[12];
+    cryptoProvider.newRandomNumber(nonce, (short) 0, (short) nonce.length);
+    byte[] encSecret = new byte[16];
+    byte[] authTag = new byte[16];
+    cryptoProvider.aesGCMEncrypt(derivedKey, (short) 0, (short) 16, secret, (short) 0,
+        (short) secret.length, encSecret, (short) 0, nonce, (short) 0, (short) nonce.length,
+        authData, (short) 0, authDataLen, authTag, (short) 0, (short) authTag.length);
+    short v1Arr = KMArray.instance(KMKeymasterApplet.KEY_BLOB_V1_SIZE);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_VERSION,
+        KMInteger.uint_8(KMKeymasterApplet.KEY_BLOB_VERSION_1));
+    short ptr = KMByteBlob.instance(encSecret, (short) 0, (short) encSecret.length);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_SECRET, ptr);
+    ptr = KMByteBlob.instance(nonce, (short) 0, (short) nonce.length);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_NONCE, ptr);
+    ptr = KMByteBlob.instance(authTag, (short) 0, (short) authTag.length);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_AUTH_TAG, ptr);
+    ptr = KMByteBlob.instance(authData, (short) 0, authDataLen);
+    KMArray.cast(v1Arr).add(KMKeymasterApplet.KEY_BLOB_V1_AUTH_DATA, ptr);
+    byte[] keyBlob = new byte[2048];
+    short keyBlobLen = encoder.encode(v1Arr, keyBlob, (short) 0);
+    return Arrays.copyOf(keyBlob, keyBlobLen);
+  }
+
+  @Test
+  public void testConvertToDate() {
+    init();
+    String[] times = {
+        "2020-01-01T00:00:00Z", "2020-02-29T12:30:45Z", "2050-12-31T23:59:59Z",
+        "2051-01-01T00:00:00Z", "2100-02-28T23:59:59Z", "2100-03-01T00:00:00Z",
+        "2399-12-31T23:59:59Z", "2400-02-29T00:00:00Z", "2400-03-01T00:00:00Z",
+        "9999-12-31T23:59:59Z"};
+    for (String time : times) {
+      long msec = Instant.parse(time).toEpochMilli();
+      Assert.assertEquals(time, expectedDate(msec, false), convertToDate(msec, false));
+      // Milliseconds are dropped.
+      Assert.assertEquals(time, expectedDate(msec, false), convertToDate(msec + 999, false));
+      if (msec < Instant.parse("2051-01-01T00:00:00Z").toEpochMilli()) {
+        Assert.assertEquals(time, expectedDate(msec, true), convertToDate(msec, true));
+      } else {
+        // UTC time only has two digits for the year.
+        Assert.assertEquals(time, "error " + KMError.INVALID_ARGUMENT, convertToDate(msec, true));
+      }
+    }
+    // Times before 2020 are rejected.
+    long msec = Instant.parse("2019-12-31T23:59:59Z").toEpochMilli();
+    Assert.assertEquals("error " + KMError.INVALID_ARGUMENT, convertToDate(msec, false));
+    // Times after 9999 are converted to the last second of the generalized time.
+    long[] lateTimes = {
+        Instant.parse("9999-12-31T23:59:59.999Z").toEpochMilli() + 1,
+        Instant.parse("+12345-06-15T10:00:00Z").toEpochMilli(),
+        Long.MAX_VALUE};
+    for (long time : lateTimes) {
+      Assert.assertEquals("99991231235959Z", convertToDate(time, false));
+    }
+    cleanUp();
+  }
+
+  @Test
+  public void testCountTemporalCount() {
+    // A month is 2629746000 msec, the average month of the 400 year calendar cycle.
+    long[] times = {
+        0, 2629745999L, 2629746000L, Instant.parse("2020-01-01T00:00:00Z").toEpochMilli(),
+        Instant.parse("2051-01-01T00:00:00Z").toEpochMilli(),
+        Instant.parse("4000-06-30T23:59:59.999Z").toEpochMilli()};
+    byte[] scratchPad = new byte[16];
+    for (long time : times) {
+      byte[] buf = toUint64(time);
+      // Leading zero bytes of the time can be left out.
+      short len = 8;
+      short off = 0;
+      while (len > 1 && buf[off] == 0) {
+        off++;
+        len--;
+      }
+      Arrays.fill(scratchPad, (byte) 0xFF);
+      Assert.assertEquals(time / 2629746000L,
+          KMUtils.countTemporalCount(buf, off, len, scratchPad, (short) 5));
+    }
+  }
+
+  // Converts the epoch time in msec to a date and returns it, or the error thrown.
+  private String convertToDate(long time, boolean utc) {
+    short timePtr = KMInteger.uint_64(toUint64(time), (short) 0);
+    try {
+      short date = KMUtils.convertToDate(timePtr, new byte[256], utc);
+      byte[] buf = new byte[KMByteBlob.cast(date).length()];
+      KMByteBlob.cast(date).getValues(buf, (short) 0);
+      return new String(buf, StandardCharsets.US_ASCII);
+    } catch (KMException e) {
+      return "error " + KMException.getReason();
+    }
+  }
+
+  private String expectedDate(long time, boolean utc) {
+    return DateTimeFormatter.ofPattern(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'")
+        .withZone(ZoneOffset.UTC).format(Instant.ofEpochMilli(time));
+  }
+
+  private byte[] toUint64(long value) {
+    byte[] buf = new byte[8];
+    for (short i = 0; i < buf.length; i++) {
+      buf[i] = (byte) (value >>> (56 - 8 * i));
+    }
+    return buf;
+  }
+
+  @Test
+  public void testHeapMarkAndReset() {
+    init();
+    KMRepository repository = KMRepository.instance();
+    repository.clean();
+    repository.resetHeapPeak();
+    short outer = repository.markHeap();
+    short kept = repository.alloc((short) 16);
+    Util.arrayFillNonAtomic(repository.getHeap(), kept, (short) 16, (byte) 0x11);
+    short inner = repository.markHeap();
+    short temp = repository.alloc((short) 64);
+    Util.arrayFillNonAtomic(repository.getHeap(), temp, (short) 64, (byte) 0x5A);
+    short available = repository.getAvailableMemory();
+    // The inner phase frees and zeroes its temporaries, but not what was allocated before.
+    repository.resetHeap(inner);
+    Assert.assertEquals(available + 64, repository.getAvailableMemory());
+    for (short i = 0; i < 64; i++) {
+      Assert.assertEquals(0, repository.getHeap()[(short) (temp + i)]);
+    }
+    Assert.assertEquals(0x11, repository.getHeap()[(short) (kept + 15)]);
+    Assert.assertEquals(temp, repository.alloc((short) 1));
+    repository.resetHeap(outer);
+    Assert.assertEquals(kept, repository.alloc((short) 1));
+    // The peak is the highest heap index reached, not the current one.
+    Assert.assertEquals((short) (temp + 64), repository.getHeapPeak());
+    cleanUp();
+  }
+
+  // The peaks are measured with every phase freeing its temporaries. Without that the peaks are
+  // 2251 bytes for key generation and 851 bytes for the first key characteristics lookup.
+  @Test
+  public void testCommandHeapPeak() {
+    init();
+    // Key generation derives the key encryption key and lays out the key blob, which is trimmed.
+    short arrPtr = KMArray.instance((short) 6);
+    KMArray.cast(arrPtr).add((short) 0, KMBoolTag.instance(KMType.NO_AUTH_REQUIRED));
+    KMArray.cast(arrPtr).add((short) 1,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 128)));
+    KMArray.cast(arrPtr).add((short) 2, KMEnumTag.instance(KMType.ALGORITHM, KMType.AES));
+    short byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.ECB);
+    KMArray.cast(arrPtr).add((short) 3, KMEnumArrayTag.instance(KMType.BLOCK_MODE, byteBlob));
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.PKCS7);
+    KMArray.cast(arrPtr).add((short) 4, KMEnumArrayTag.instance(KMType.PADDING, byteBlob));
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.ENCRYPT);
+    KMArray.cast(arrPtr).add((short) 5, KMEnumArrayTag.instance(KMType.PURPOSE, byteBlob));
+    short args = KMArray.instance((short) 1);
+    KMArray.cast(args).add((short) 0, KMKeyParameters.instance(arrPtr));
+    ResponseAPDU response = transmitOnEmptyHeap(encodeApdu((byte) INS_GENERATE_KEY_CMD, args));
+    Assert.assertTrue(heapPeak <= 1893);
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    KMArray.cast(ret).add((short) 2, KMKeyCharacteristics.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    // The first lookup of the key blob digests and decrypts it, keeping only the digest and the
+    // secret. The second one is a cache hit.
+    short[] peaks = new short[2];
+    for (int i = 0; i < 2; i++) {
+      args = KMArray.instance((short) 3);
+      KMArray.cast(args).add((short) 0,
+          KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+      KMArray.cast(args).add((short) 1, KMByteBlob.instance((short) 0));
+      KMArray.cast(args).add((short) 2, KMByteBlob.instance((short) 0));
+      response = transmitOnEmptyHeap(encodeApdu((byte) INS_GET_KEY_CHARACTERISTICS_CMD, args));
+      peaks[i] = heapPeak;
+      ret = KMArray.instance((short) 2);
+      KMArray.cast(ret).add((short) 0, KMInteger.exp());
+      KMArray.cast(ret).add((short) 1, KMKeyCharacteristics.exp());
+      respBuf = response.getBytes();
+      ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+      Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    }
+    Assert.assertTrue(peaks[0] <= 780);
+    Assert.assertTrue(peaks[1] < peaks[0]);
+    cleanUp();
+  }
+
+  // Transmits the command with an empty heap and keeps the peak heap use of the command.
+  private ResponseAPDU transmitOnEmptyHeap(CommandAPDU apdu) {
+    KMRepository.instance().clean();
+    KMRepository.instance().resetHeapPeak();
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    heapPeak = KMRepository.instance().getHeapPeak();
+    Assert.assertEquals(0x9000, response.getSW());
+    return response;
+  }
+
+  @Test
+  public void testReadMalformedRecords() {
+    init();
+    byte bool = (byte) (KMType.BOOL_TAG >> 8);
+    byte bytes = (byte) (KMType.BYTES_TAG >> 8);
+    byte enumTag = (byte) (KMType.ENUM_TAG >> 8);
+    byte uint = (byte) (KMType.UINT_TAG >> 8);
+    byte[] noAuth = {bool, (byte) (KMType.NO_AUTH_REQUIRED >> 8), (byte) KMType.NO_AUTH_REQUIRED};
+    Assert.assertEquals(KMError.OK, readRecordsError(noAuth, (short) 1));
+    // Counts, which the bytes cannot hold.
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(noAuth, (short) 2));
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(noAuth, (short) -1));
+    // Truncated record header.
+    byte[] record = {bool, (byte) (KMType.NO_AUTH_REQUIRED >> 8), (byte) KMType.NO_AUTH_REQUIRED,
+        bool, 0x00};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    // Negative, oversized and truncated byte string lengths.
+    byte appId0 = (byte) (KMType.APPLICATION_ID >> 8);
+    byte appId1 = (byte) KMType.APPLICATION_ID;
+    record = new byte[] {bytes, appId0, appId1, (byte) 0xFF, (byte) 0xFF, 0x01};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {bytes, appId0, appId1, 0x7F, (byte) 0xFF, 0x01};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {bytes, appId0, appId1, 0x00, 0x02, 0x01};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {bytes, appId0, appId1, 0x00, 0x01, 0x01};
+    Assert.assertEquals(KMError.OK, readRecordsError(record, (short) 1));
+    // Unknown enum value and tag.
+    byte alg0 = (byte) (KMType.ALGORITHM >> 8);
+    byte alg1 = (byte) KMType.ALGORITHM;
+    record = new byte[] {enumTag, alg0, alg1, 0x7E};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {enumTag, alg0, alg1};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {enumTag, 0x7F, 0x7F, KMType.AES};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    // Integers longer than their type or the record.
+    byte keySize0 = (byte) (KMType.KEYSIZE >> 8);
+    byte keySize1 = (byte) KMType.KEYSIZE;
+    record = new byte[] {uint, keySize0, keySize1, 0x05, 0x00, 0x00, 0x00, 0x01, 0x00};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {uint, keySize0, keySize1, 0x02, 0x01};
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, readRecordsError(record, (short) 1));
+    record = new byte[] {uint, keySize0, keySize1, 0x02, 0x01, 0x00};
+    Assert.assertEquals(KMError.OK, readRecordsError(record, (short) 1));
+    cleanUp();
+  }
+
+  // Reads the records and returns the error thrown by readRecords or OK.
+  private short readRecordsError(byte[] records, short count) {
+    try {
+      KMKeyParameters.readRecords(records, (short) 0, (short) records.length, count);
+      return KMError.OK;
+    } catch (KMException e) {
+      return KMException.getReason();
+    }
+  }
+
+  @Test
+  public void testParseMalformedKeyBlob() {
+    init();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    Assert.assertEquals(KMError.OK, getKeyCharacteristicsError(keyBlob, new byte[0], new byte[0]));
+    // A nonce offset, which makes the auth tag and secret offsets overflow. The nonce takes 12
+    // bytes and the auth tag 16 bytes.
+    byte[] malformed = keyBlob.clone();
+    short nonce = (short) 0x7FF8;
+    Util.setShort(malformed, KMKeymasterApplet.KEY_BLOB_V2_NONCE, nonce);
+    Util.setShort(malformed, KMKeymasterApplet.KEY_BLOB_V2_AUTH_TAG, (short) (nonce + 12));
+    Util.setShort(malformed, KMKeymasterApplet.KEY_BLOB_V2_SECRET, (short) (nonce + 28));
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB,
+        getKeyCharacteristicsError(malformed, new byte[0], new byte[0]));
+    // A hardware enforced tag count, which the records do not hold.
+    malformed = keyBlob.clone();
+    malformed[KMKeymasterApplet.KEY_BLOB_V2_HW_COUNT] = (byte) 0xFF;
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB,
+        getKeyCharacteristicsError(malformed, new byte[0], new byte[0]));
+    cleanUp();
+  }
+
+  @Test
+  public void testFindTag() {
+    init();
+    short[] tags = {
+        KMType.UINT_TAG, KMType.KEYSIZE,
+        KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
+        KMType.UINT_TAG, KMType.MIN_MAC_LENGTH,
+        KMType.UINT_TAG, KMType.USERID,
+        KMType.UINT_TAG, KMType.OS_VERSION,
+        KMType.UINT_TAG, KMType.OS_PATCH_LEVEL,
+        KMType.UINT_TAG, KMType.VENDOR_PATCH_LEVEL,
+        KMType.UINT_TAG, KMType.BOOT_PATCH_LEVEL,
+        KMType.UINT_TAG, KMType.MAC_LENGTH,
+    };
+    short count = (short) (tags.length / 2);
+    short arrPtr = KMArray.instance((short) (count + 3));
+    short index = 0;
+    while (index < count) {
+      KMArray.cast(arrPtr).add(index, KMIntegerTag.instance(tags[2 * index],
+          tags[2 * index + 1], KMInteger.uint_16(index)));
+      index++;
+    }
+    // Tags of other types with the same keys and a repeated tag.
+    KMArray.cast(arrPtr).add(index++, KMEnumTag.instance(KMType.ALGORITHM, KMType.AES));
+    KMArray.cast(arrPtr).add(index++, KMBoolTag.instance(KMType.NO_AUTH_REQUIRED));
+    KMArray.cast(arrPtr).add(index, KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE,
+        KMInteger.uint_16((short) 0x100)));
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    index = 0;
+    while (index < count) {
+      short tag = KMKeyParameters.findTag(tags[2 * index], tags[2 * index + 1], keyParams);
+      Assert.assertEquals(index, KMInteger.cast(KMIntegerTag.cast(tag).getValue()).getShort());
+      index++;
+    }
+    short tag = KMKeyParameters.findTag(KMType.ENUM_TAG, KMType.ALGORITHM, keyParams);
+    Assert.assertEquals(KMType.AES, KMEnumTag.cast(tag).getValue());
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED, keyParams));
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.ULONG_TAG, KMType.KEYSIZE, keyParams));
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.BOOL_TAG, KMType.CALLER_NONCE, keyParams));
+    // Parameters created from a modified copy of the array find the replaced tags.
+    short modifiedArrPtr = KMArray.instance(KMArray.cast(arrPtr).length());
+    index = 0;
+    while (index < KMArray.cast(arrPtr).length()) {
+      tag = KMArray.cast(arrPtr).get(index);
+      KMArray.cast(modifiedArrPtr).add(index, tag);
+      index++;
+    }
+    tag = KMEnumTag.instance(KMType.ALGORITHM, KMType.RSA);
+    KMArray.cast(modifiedArrPtr).add(count, tag);
+    tag = KMBoolTag.instance(KMType.CALLER_NONCE);
+    KMArray.cast(modifiedArrPtr).add((short) (count + 1), tag);
+    keyParams = KMKeyParameters.instance(modifiedArrPtr);
+    tag = KMKeyParameters.findTag(KMType.ENUM_TAG, KMType.ALGORITHM, keyParams);
+    Assert.assertEquals(KMType.RSA, KMEnumTag.cast(tag).getValue());
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.BOOL_TAG, KMType.CALLER_NONCE, keyParams));
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED, keyParams));
+    cleanUp();
+  }
+
+  @Test
+  public void testMakeKeyCharacteristics() {
+    init();
+    byte[] dateTime = {0, 0, 0x01, 0x73, 0x51, 0x7C, (byte) 0xCC, 0x00};
+    short arrPtr = KMArray.instance((short) 7);
+    KMArray.cast(arrPtr).add((short) 0, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.CREATION_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    KMArray.cast(arrPtr).add((short) 1, KMEnumTag.instance(KMType.ALGORITHM, KMType.AES));
+    KMArray.cast(arrPtr).add((short) 2, KMByteTag.instance(KMType.APPLICATION_ID,
+        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+    KMArray.cast(arrPtr).add((short) 3,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.USERID, KMInteger.uint_16((short) 10)));
+    KMArray.cast(arrPtr).add((short) 4,
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 128)));
+    KMArray.cast(arrPtr).add((short) 5, KMBoolTag.instance(KMType.ALLOW_WHILE_ON_BODY));
+    KMArray.cast(arrPtr).add((short) 6, KMIntegerTag.instance(KMType.DATE_TAG,
+        KMType.ACTIVE_DATETIME, KMInteger.uint_64(dateTime, (short) 0)));
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    short version = KMInteger.uint_16((short) OS_VERSION);
+    short keyChars = KMKeyParameters.makeKeyCharacteristics(keyParams, KMType.GENERATED,
+        version, version, version, version, new byte[256]);
+    // The hardware enforced tags are followed by the origin and the system properties.
+    short hwParams = KMKeyCharacteristics.cast(keyChars).getHardwareEnforced();
+    short hwVals = KMKeyParameters.cast(hwParams).getVals();
+    Assert.assertEquals(7, KMArray.cast(hwVals).length());
+    Assert.assertEquals(KMType.ALGORITHM, KMTag.getKey(KMArray.cast(hwVals).get((short) 0)));
+    Assert.assertEquals(KMType.KEYSIZE, KMTag.getKey(KMArray.cast(hwVals).get((short) 1)));
+    Assert.assertEquals(KMType.ORIGIN, KMTag.getKey(KMArray.cast(hwVals).get((short) 2)));
+    // The software enforced tags keep the order of the key parameters.
+    short swParams = KMKeyCharacteristics.cast(keyChars).getSoftwareEnforced();
+    short swVals = KMKeyParameters.cast(swParams).getVals();
+    Assert.assertEquals(3, KMArray.cast(swVals).length());
+    Assert.assertEquals(KMType.CREATION_DATETIME,
+        KMTag.getKey(KMArray.cast(swVals).get((short) 0)));
+    Assert.assertEquals(KMType.USERID, KMTag.getKey(KMArray.cast(swVals).get((short) 1)));
+    Assert.assertEquals(KMType.ACTIVE_DATETIME,
+        KMTag.getKey(KMArray.cast(swVals).get((short) 2)));
+    Assert.assertTrue(KMKeyParameters.hasUnsupportedTags(keyParams));
+    cleanUp();
+  }
+
+  @Test
+  public void testCachedDataIsCopied() {
+    init();
+    KMRepository repository = KMRepository.instance();
+    short osPatch = repository.getOsPatch();
+    short bootKey = repository.getVerifiedBootKey();
+    byte[] bootKeyValue = new byte[KMByteBlob.cast(bootKey).length()];
+    KMByteBlob.cast(bootKey).getValues(bootKeyValue, (short) 0);
+    // Modifying the returned instances must not change the cached entries.
+    byte[] zeros = new byte[bootKeyValue.length];
+    KMInteger.cast(osPatch).setValue(zeros, (short) 0);
+    KMByteBlob.cast(bootKey).setValue(zeros, (short) 0, (short) zeros.length);
+    Assert.assertEquals(OS_PATCH_LEVEL, KMInteger.cast(repository.getOsPatch()).getShort());
+    bootKey = repository.getVerifiedBootKey();
+    Assert.assertEquals(0, Util.arrayCompare(bootKeyValue, (short) 0,
+        KMByteBlob.cast(bootKey).getBuffer(), KMByteBlob.cast(bootKey).getStartOff(),
+        (short) bootKeyValue.length));
+    cleanUp();
+  }
+
   @Test
   public void testDestroyAttIds() {
     init();
@@ -2872,6 +4268,477 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testOperationEviction() {
+    // Install the applet with two operation slots.
+    AID appletAID = AIDUtil.create("A000000062");
+    byte[] installParams = {0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01, 0x02};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    provisionCmd(simulator);
+    short aesDesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesDesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[][] opHandleBufs = new byte[3][KMRepository.OPERATION_HANDLE_SIZE];
+    byte[] plainData = "Hello World 123!".getBytes();
+    short ret;
+    short opHandle;
+    for (short i = 0; i < opHandleBufs.length; i++) {
+      short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+      ret = begin(KMType.ENCRYPT,
+          KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+          KMKeyParameters.instance(inParams), (short) 0);
+      Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+      opHandle = KMArray.cast(ret).get((short) 2);
+      KMInteger.cast(opHandle).getValue(opHandleBufs[i], (short) 0,
+          (short) opHandleBufs[i].length);
+    }
+    // The first operation is the least recently used one, so it is evicted.
+    opHandle = KMInteger.uint_64(opHandleBufs[0], (short) 0);
+    ret = update(opHandle,
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length),
+        (short) 0, (short) 0, (short) 0);
+    Assert.assertEquals(KMError.INVALID_OPERATION_HANDLE, ret);
+    opHandle = KMInteger.uint_64(opHandleBufs[2], (short) 0);
+    Assert.assertEquals(KMError.OK, abort(opHandle));
+    // Max operations, evictions and rejections.
+    ret = getOperationStats();
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    Assert.assertEquals(2, KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort());
+    Assert.assertEquals(1, KMInteger.cast(KMArray.cast(ret).get((short) 2)).getShort());
+    Assert.assertEquals(0, KMInteger.cast(KMArray.cast(ret).get((short) 3)).getShort());
+    cleanUp();
+  }
+
+  @Test
+  public void testOperationEvictionAfterSequenceWrap() {
+    // Install the applet with two operation slots.
+    AID appletAID = AIDUtil.create("A000000062");
+    byte[] installParams = {0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01, 0x02};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    provisionCmd(simulator);
+    short aesDesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesDesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    byte[][] opHandleBufs = new byte[3][KMRepository.OPERATION_HANDLE_SIZE];
+    byte[] plainData = "Hello World 123!".getBytes();
+    short ret;
+    short opHandle;
+    for (short i = 0; i < 2; i++) {
+      short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+      ret = begin(KMType.ENCRYPT,
+          KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+          KMKeyParameters.instance(inParams), (short) 0);
+      Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+      opHandle = KMArray.cast(ret).get((short) 2);
+      KMInteger.cast(opHandle).getValue(opHandleBufs[i], (short) 0,
+          (short) opHandleBufs[i].length);
+    }
+    // Use the second operation until the sequence has passed the point where it would wrap,
+    // while the first one is left stale.
+    KMRepository repository = KMRepository.instance();
+    for (int i = 0; i < 0x8000; i++) {
+      short mark = repository.markHeap();
+      opHandle = KMInteger.uint_64(opHandleBufs[1], (short) 0);
+      Assert.assertNotNull(repository.findOperation(opHandle));
+      repository.resetHeap(mark);
+    }
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    opHandle = KMArray.cast(ret).get((short) 2);
+    KMInteger.cast(opHandle).getValue(opHandleBufs[2], (short) 0,
+        (short) opHandleBufs[2].length);
+    // The stale operation is evicted and the live one is kept.
+    opHandle = KMInteger.uint_64(opHandleBufs[0], (short) 0);
+    ret = update(opHandle,
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length),
+        (short) 0, (short) 0, (short) 0);
+    Assert.assertEquals(KMError.INVALID_OPERATION_HANDLE, ret);
+    opHandle = KMInteger.uint_64(opHandleBufs[1], (short) 0);
+    Assert.assertEquals(KMError.OK, abort(opHandle));
+    opHandle = KMInteger.uint_64(opHandleBufs[2], (short) 0);
+    Assert.assertEquals(KMError.OK, abort(opHandle));
+    cleanUp();
+  }
+
+  @Test
+  public void testLoadKey() {
+    init();
+    // Encrypt with the key blob and decrypt with the loaded key.
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    int aesKey = loadKey(keyBlob);
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    byte[] plainData = "Hello World 123!".getBytes();
+    ret = processMessage(plainData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.ENCRYPT,
+        KMKeyParameters.instance(inParams),
+        (short) 0, null, false, false
+    );
+    short dataPtr = KMArray.cast(ret).get((short) 2);
+    byte[] cipherData = new byte[KMByteBlob.cast(dataPtr).length()];
+    KMByteBlob.cast(dataPtr).getValues(cipherData, (short) 0);
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = processMessage(cipherData, keyHandle(aesKey), KMType.DECRYPT,
+        KMKeyParameters.instance(inParams), (short) 0, null, false, false);
+    dataPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(0, Util.arrayCompare(plainData, (short) 0,
+        KMByteBlob.cast(dataPtr).getBuffer(), KMByteBlob.cast(dataPtr).getStartOff(),
+        (short) plainData.length));
+    // Sign with the loaded key, which needs the public key too.
+    ret = generateRsaKey(null, null);
+    keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    int rsaKey = loadKey(keyBlob);
+    Assert.assertNotEquals(aesKey, rsaKey);
+    inParams = getRsaParams(KMType.SHA2_256, KMType.RSA_PKCS1_1_5_SIGN);
+    ret = processMessage(plainData, keyHandle(rsaKey), KMType.SIGN,
+        KMKeyParameters.instance(inParams), (short) 0, null, false, false);
+    short signPtr = KMArray.cast(ret).get((short) 2);
+    byte[] signatureData = new byte[KMByteBlob.cast(signPtr).length()];
+    KMByteBlob.cast(signPtr).getValues(signatureData, (short) 0);
+    Assert.assertTrue(rsaVerifyMessage(plainData, (short) 0, (short) plainData.length,
+        signatureData, (short) 0, (short) signatureData.length,
+        KMType.SHA2_256, KMType.RSA_PKCS1_1_5_SIGN, keyBlob));
+    // Unloaded keys can neither be used nor unloaded again.
+    Assert.assertEquals(KMError.OK, unloadKey(aesKey));
+    Assert.assertEquals(KMError.INVALID_ARGUMENT, unloadKey(aesKey));
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = begin(KMType.DECRYPT, keyHandle(aesKey), KMKeyParameters.instance(inParams),
+        (short) 0);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    // The slot is reused with a new handle.
+    Assert.assertNotEquals(aesKey, loadKey(keyBlob));
+    cleanUp();
+  }
+
+  @Test
+  public void testLoadKeyBinding() {
+    init();
+    byte[] clientId = "clientId".getBytes();
+    byte[] appData = "appData".getBytes();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, clientId, appData, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB,
+        loadKeyError(keyBlob, clientId, "wrongAppData".getBytes()));
+    int handle = loadKey(keyBlob, clientId, appData);
+    // The handle is only accepted along with the application id and application data.
+    ret = begin(KMType.ENCRYPT, keyHandle(handle),
+        KMKeyParameters.instance(getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null)),
+        (short) 0);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    ret = begin(KMType.ENCRYPT, keyHandle(handle),
+        getAppBoundAesParams(clientId, "wrongAppData".getBytes()), (short) 0);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    ret = begin(KMType.ENCRYPT, keyHandle(handle),
+        getAppBoundAesParams(clientId, appData), (short) 0);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short opHandle = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(KMError.OK, abort(opHandle));
+    // Setting the version and patch levels unloads the keys.
+    setAndroidOSSystemProperties(simulator, (short) OS_VERSION, (short) OS_PATCH_LEVEL,
+        (short) VENDOR_PATCH_LEVEL);
+    ret = begin(KMType.ENCRYPT, keyHandle(handle),
+        getAppBoundAesParams(clientId, appData), (short) 0);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    cleanUp();
+  }
+
+  // Returns the AES ECB parameters along with the application id and application data.
+  private short getAppBoundAesParams(byte[] appId, byte[] appData) {
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    short blockMode = KMArray.cast(inParams).get((short) 0);
+    short padding = KMArray.cast(inParams).get((short) 1);
+    short arrPtr = KMArray.instance((short) 4);
+    KMArray.cast(arrPtr).add((short) 0, blockMode);
+    KMArray.cast(arrPtr).add((short) 1, padding);
+    KMArray.cast(arrPtr).add((short) 2, KMByteTag.instance(KMType.APPLICATION_ID,
+        KMByteBlob.instance(appId, (short) 0, (short) appId.length)));
+    KMArray.cast(arrPtr).add((short) 3, KMByteTag.instance(KMType.APPLICATION_DATA,
+        KMByteBlob.instance(appData, (short) 0, (short) appData.length)));
+    return KMKeyParameters.instance(arrPtr);
+  }
+
+  @Test
+  public void testKeySlotInstallParameter() {
+    // Install the applet with the default number of operations and one key slot.
+    AID appletAID = AIDUtil.create("A000000062");
+    byte[] installParams =
+        {0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x02, 0x04, 0x01};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    provisionCmd(simulator);
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    int handle = loadKey(keyBlob);
+    Assert.assertEquals(KMError.TOO_MANY_OPERATIONS,
+        loadKeyError(keyBlob, new byte[0], new byte[0]));
+    Assert.assertEquals(KMError.OK, unloadKey(handle));
+    loadKey(keyBlob);
+    cleanUp();
+  }
+
+  @Test
+  public void testKeyHandleAfterReloads() {
+    init();
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    int firstHandle = loadKey(keyBlob);
+    Assert.assertEquals(KMError.OK, unloadKey(firstHandle));
+    // Reload the key into the same slot more often than a one byte load count can tell apart.
+    // The handle of the first key never refers to any of the reloaded keys.
+    for (short i = 0; i < 0x100; i++) {
+      int handle = loadKey(keyBlob);
+      Assert.assertNotEquals(firstHandle, handle);
+      Assert.assertEquals(KMError.INVALID_ARGUMENT, unloadKey(firstHandle));
+      Assert.assertEquals(KMError.OK, unloadKey(handle));
+    }
+    cleanUp();
+  }
+
+  @Test
+  public void testOneShotOperation() {
+    // Install the applet with one operation slot.
+    AID appletAID = AIDUtil.create("A000000062");
+    byte[] installParams = {0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01, 0x01};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    provisionCmd(simulator);
+    // Begin an operation which holds the only operation slot.
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] aesKeyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(aesKeyBlob, (short) 0);
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(aesKeyBlob, (short) 0, (short) aesKeyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0);
+    short opHandle = KMArray.cast(ret).get((short) 2);
+    byte[] opHandleBuf = new byte[KMRepository.OPERATION_HANDLE_SIZE];
+    KMInteger.cast(opHandle).getValue(opHandleBuf, (short) 0, (short) opHandleBuf.length);
+    // Sign with EC.
+    byte[] plainData = "Hello World 123!".getBytes();
+    ret = generateEcKey(null, null);
+    keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    ret = oneShot(KMType.SIGN, keyBlob, KMKeyParameters.instance(getEcParams(KMType.SHA2_256)),
+        plainData, null);
+    short dataPtr = KMArray.cast(ret).get((short) 2);
+    byte[] signatureData = new byte[KMByteBlob.cast(dataPtr).length()];
+    KMByteBlob.cast(dataPtr).getValues(signatureData, (short) 0);
+    Assert.assertTrue(ecVerifyMessage(plainData, (short) 0, (short) plainData.length,
+        signatureData, (short) 0, (short) signatureData.length, keyBlob));
+    // Sign and verify with HMAC.
+    ret = generateHmacKey(null, null);
+    keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    ret = oneShot(KMType.SIGN, keyBlob,
+        KMKeyParameters.instance(getHmacParams(KMType.SHA2_256, true)), plainData, null);
+    dataPtr = KMArray.cast(ret).get((short) 2);
+    signatureData = new byte[KMByteBlob.cast(dataPtr).length()];
+    KMByteBlob.cast(dataPtr).getValues(signatureData, (short) 0);
+    ret = oneShot(KMType.VERIFY, keyBlob,
+        KMKeyParameters.instance(getHmacParams(KMType.SHA2_256, false)), plainData,
+        signatureData);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    // Encrypt with AES and decrypt with the begun operation's key.
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = oneShot(KMType.ENCRYPT, aesKeyBlob, KMKeyParameters.instance(inParams), plainData,
+        null);
+    dataPtr = KMArray.cast(ret).get((short) 2);
+    byte[] cipherData = new byte[KMByteBlob.cast(dataPtr).length()];
+    KMByteBlob.cast(dataPtr).getValues(cipherData, (short) 0);
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = oneShot(KMType.DECRYPT, aesKeyBlob, KMKeyParameters.instance(inParams), cipherData,
+        null);
+    dataPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(plainData.length, KMByteBlob.cast(dataPtr).length());
+    Assert.assertEquals(0, Util.arrayCompare(plainData, (short) 0,
+        KMByteBlob.cast(dataPtr).getBuffer(), KMByteBlob.cast(dataPtr).getStartOff(),
+        (short) plainData.length));
+    // The begun operation was neither evicted nor rejected.
+    opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    ret = finish(opHandle, KMByteBlob.instance(plainData, (short) 0, (short) plainData.length),
+        null, (short) 0, (short) 0, (short) 0, KMError.OK);
+    dataPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(0, Util.arrayCompare(cipherData, (short) 0,
+        KMByteBlob.cast(dataPtr).getBuffer(), KMByteBlob.cast(dataPtr).getStartOff(),
+        (short) cipherData.length));
+    ret = getOperationStats();
+    Assert.assertEquals(0, KMInteger.cast(KMArray.cast(ret).get((short) 2)).getShort());
+    Assert.assertEquals(0, KMInteger.cast(KMArray.cast(ret).get((short) 3)).getShort());
+    cleanUp();
+  }
+
+  @Test
+  public void testOneShotOperationWithAllSlotsBusy() {
+    // Install the applet with two operation slots.
+    AID appletAID = AIDUtil.create("A000000062");
+    byte[] installParams = {0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01, 0x02};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    provisionCmd(simulator);
+    short ret = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    // Begin an operation in every slot, which reserves every pooled operation instance.
+    byte[][] opHandleBufs = new byte[2][KMRepository.OPERATION_HANDLE_SIZE];
+    short inParams;
+    short opHandle;
+    for (short i = 0; i < opHandleBufs.length; i++) {
+      inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+      ret = begin(KMType.ENCRYPT, KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+          KMKeyParameters.instance(inParams), (short) 0);
+      Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+      opHandle = KMArray.cast(ret).get((short) 2);
+      KMInteger.cast(opHandle).getValue(opHandleBufs[i], (short) 0,
+          (short) opHandleBufs[i].length);
+    }
+    // One-shot operations use the instance reserved outside the slots, and release it again.
+    byte[] plainData = "Hello World 123!".getBytes();
+    byte[] cipherData = null;
+    for (short i = 0; i < 2; i++) {
+      inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+      ret = oneShot(KMType.ENCRYPT, keyBlob, KMKeyParameters.instance(inParams), plainData, null);
+      short dataPtr = KMArray.cast(ret).get((short) 2);
+      cipherData = new byte[KMByteBlob.cast(dataPtr).length()];
+      KMByteBlob.cast(dataPtr).getValues(cipherData, (short) 0);
+    }
+    // The begun operations still own their instances.
+    for (short i = 0; i < opHandleBufs.length; i++) {
+      opHandle = KMInteger.uint_64(opHandleBufs[i], (short) 0);
+      ret = finish(opHandle, KMByteBlob.instance(plainData, (short) 0, (short) plainData.length),
+          null, (short) 0, (short) 0, (short) 0, KMError.OK);
+      short dataPtr = KMArray.cast(ret).get((short) 2);
+      Assert.assertEquals(0, Util.arrayCompare(cipherData, (short) 0,
+          KMByteBlob.cast(dataPtr).getBuffer(), KMByteBlob.cast(dataPtr).getStartOff(),
+          (short) cipherData.length));
+    }
+    cleanUp();
+  }
+
+  public short oneShot(byte keyPurpose, byte[] keyBlob, short keyParams, byte[] data,
+      byte[] signature) {
+    short arrPtr = KMArray.instance((short) 7);
+    KMArray.cast(arrPtr).add((short) 0, KMEnum.instance(KMType.PURPOSE, keyPurpose));
+    KMArray.cast(arrPtr).add((short) 1,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(arrPtr).add((short) 2, keyParams);
+    KMArray.cast(arrPtr).add((short) 3, KMByteBlob.instance(data, (short) 0, (short) data.length));
+    if (signature == null) {
+      signature = new byte[0];
+    }
+    KMArray.cast(arrPtr).add((short) 4,
+        KMByteBlob.instance(signature, (short) 0, (short) signature.length));
+    short hwToken = KMHardwareAuthToken.instance();
+    KMArray.cast(arrPtr).add((short) 5, hwToken);
+    short verToken = KMVerificationToken.instance();
+    KMArray.cast(arrPtr).add((short) 6, verToken);
+    CommandAPDU apdu = encodeApdu((byte) INS_ONESHOT_OPERATION_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMKeyParameters.exp());
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    return ret;
+  }
+
+  public int loadKey(byte[] keyBlob) {
+    return loadKey(keyBlob, new byte[0], new byte[0]);
+  }
+
+  public int loadKey(byte[] keyBlob, byte[] appId, byte[] appData) {
+    ResponseAPDU response = transmitLoadKey(keyBlob, appId, appData);
+    short ret = KMArray.instance((short) 2);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short handle = KMArray.cast(ret).get((short) 1);
+    Assert.assertEquals(4, KMInteger.cast(handle).length());
+    byte[] buf = new byte[4];
+    KMInteger.cast(handle).getValue(buf, (short) 0, (short) buf.length);
+    return (Util.getShort(buf, (short) 0) << 16) | (Util.getShort(buf, (short) 2) & 0xFFFF);
+  }
+
+  // Returns the key handle as the KMInteger sent to the applet.
+  private short keyHandle(int handle) {
+    byte[] buf = new byte[4];
+    Util.setShort(buf, (short) 0, (short) (handle >>> 16));
+    Util.setShort(buf, (short) 2, (short) handle);
+    return KMInteger.uint_32(buf, (short) 0);
+  }
+
+  // Returns the error of a failing loadKey.
+  private short loadKeyError(byte[] keyBlob, byte[] appId, byte[] appData) {
+    byte[] respBuf = transmitLoadKey(keyBlob, appId, appData).getBytes();
+    short ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    return translateExtendedErrorCodes(KMInteger.cast(ret).getShort());
+  }
+
+  private ResponseAPDU transmitLoadKey(byte[] keyBlob, byte[] appId, byte[] appData) {
+    short arrPtr = KMArray.instance((short) 3);
+    KMArray.cast(arrPtr).add((short) 0,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(arrPtr).add((short) 1, KMByteBlob.instance(appId, (short) 0, (short) appId.length));
+    KMArray.cast(arrPtr).add((short) 2,
+        KMByteBlob.instance(appData, (short) 0, (short) appData.length));
+    CommandAPDU apdu = encodeApdu((byte) INS_LOAD_KEY_CMD, arrPtr);
+    return simulator.transmitCommand(apdu);
+  }
+
+  public short unloadKey(int keyHandle) {
+    short arrPtr = KMArray.instance((short) 1);
+    KMArray.cast(arrPtr).add((short) 0, keyHandle(keyHandle));
+    CommandAPDU apdu = encodeApdu((byte) INS_UNLOAD_KEY_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    byte[] respBuf = response.getBytes();
+    short ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    return KMInteger.cast(ret).getShort();
+  }
+
+  public short getOperationStats() {
+    CommandAPDU commandAPDU = new CommandAPDU(0x80, INS_GET_OPERATION_STATS_CMD, 0x40, 0x00);
+    ResponseAPDU response = simulator.transmitCommand(commandAPDU);
+    short ret = KMArray.instance((short) 4);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    KMArray.cast(ret).add((short) 2, KMInteger.exp());
+    KMArray.cast(ret).add((short) 3, KMInteger.exp());
+    byte[] respBuf = response.getBytes();
+    return decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+  }
+
   public void testEncryptDecryptWithAesDes(byte alg, byte blockMode, byte padding, boolean update) {
     short aesDesKeyArr;
     boolean aesGcmFlag = false;
@@ -2925,7 +4792,7 @@ public class KMFunctionalTest {
     Assert.assertTrue(equal == 0);
   }
 
-  public void testEncryptDecryptWithRsa(byte digest, byte padding) {
+  public void testEncryptDecryptWithRsa(byte digest, byte padding, boolean update) {
     short rsaKeyArr = generateRsaKey(null, null);
     short keyBlobPtr = KMArray.cast(rsaKeyArr).get((short) 1);
     byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
@@ -2950,7 +4817,7 @@ public class KMFunctionalTest {
         KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
         KMType.DECRYPT,
         KMKeyParameters.instance(inParams),
-        (short) 0, null, false, false
+        (short) 0, null, update, false
     );
     keyBlobPtr = KMArray.cast(ret).get((short) 2);
     short len = KMByteBlob.cast(keyBlobPtr).length();
@@ -3232,7 +5099,12 @@ public class KMFunctionalTest {
       hwToken = KMHardwareAuthToken.instance();
     }
     KMArray.cast(arrPtr).add((short) 3, hwToken);
-    CommandAPDU apdu = encodeApdu((byte) INS_BEGIN_OPERATION_CMD, arrPtr);
+    // Keys loaded with loadKey are referenced by their handle.
+    byte ins = INS_BEGIN_OPERATION_CMD;
+    if (KMType.getType(keyBlob) == KMType.INTEGER_TYPE) {
+      ins = INS_BEGIN_LOADED_KEY_CMD;
+    }
+    CommandAPDU apdu = encodeApdu(ins, arrPtr);
     //print(apdu.getBytes(),(short)0,(short)apdu.getBytes().length);
     ResponseAPDU response = simulator.transmitCommand(apdu);
     short ret = KMArray.instance((short) 3);
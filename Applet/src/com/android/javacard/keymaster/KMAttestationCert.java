@@ -137,28 +137,36 @@ public interface KMAttestationCert {
   KMAttestationCert issuer(short obj);
 
   /**
-   * Set byte buffer to be used to generate certificate.
+   * Encode the parts of the certificate which are the same for all the keys into the given
+   * buffer, i.e. the fields up to the issuer and the root of trust. The issuer and the verified
+   * boot values have to be set before. The template stays valid until the issuer or the boot
+   * parameters change.
    *
    * @param buf This is byte[] buffer.
    * @param bufStart This is short start offset.
    * @param maxLen This is short length of the buffer.
-   * @return instance of KMAttestationCert
+   * @return length of the template or 0 if it does not fit into the buffer.
    */
-  KMAttestationCert buffer(byte[] buf, short bufStart, short maxLen);
+  short encodeTemplate(byte[] buf, short bufStart, short maxLen);
 
   /**
-   * Get the start of the certificate
+   * Set the template made by encodeTemplate, which is then used instead of encoding its fields.
    *
-   * @return start of the attestation cert.
+   * @param obj This is KMByteBlob containing the template.
+   * @return instance of KMAttestationCert
    */
-  short getCertStart();
+  KMAttestationCert template(short obj);
 
   /**
-   * Get the end of the certificate
+   * Set byte buffer to be used to generate certificate. The certificate is generated in pieces,
+   * so the size of this buffer does not depend on the size of the certificate.
    *
-   * @return end of the attestation cert.
+   * @param buf This is byte[] buffer.
+   * @param bufStart This is short start offset.
+   * @param maxLen This is short length of the buffer.
+   * @return instance of KMAttestationCert
    */
-  short getCertEnd();
+  KMAttestationCert buffer(byte[] buf, short bufStart, short maxLen);
 
   /**
    * Get the length of the certificate
@@ -168,7 +176,13 @@ public interface KMAttestationCert {
   short getCertLength();
 
   /**
-   * Build the certificate. After this method the certificate is ready.
+   * Build the certificate. After this method the certificate is signed and its length is known.
    */
   void build();
+
+  /**
+   * Send the certificate as outgoing data of the current apdu. The outgoing length has to be set
+   * before.
+   */
+  void send();
 }
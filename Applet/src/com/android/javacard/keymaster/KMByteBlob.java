@@ -42,6 +42,9 @@ public class KMByteBlob extends KMType {
 
   // pointer to an empty instance used as expression
   public static short exp() {
+    if (schemaTable[BYTE_BLOB_SCHEMA] != 0) {
+      return schemaTable[BYTE_BLOB_SCHEMA];
+    }
     return KMType.exp(BYTE_BLOB_TYPE);
   }
 
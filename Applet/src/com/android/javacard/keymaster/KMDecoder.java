@@ -16,6 +16,7 @@
 
 package com.android.javacard.keymaster;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -43,18 +44,26 @@ public class KMDecoder {
   private static final short START_OFFSET = 0;
   private static final short LEN_OFFSET = 2;
   private static final short TAG_KEY_OFFSET = 4;
+  // The tag types are held in the most significant nibble of the tag.
+  private static final byte TAG_TYPE_SHIFT = 12;
+  private static final short TAG_TABLE_SIZE = 16;
   private Object[] bufferRef;
   private short[] scratchBuf;
+  // Expressions of the allowed tags indexed by the tag type, or 0 if the tag type is not allowed.
+  private short[] tagTable;
 
   public KMDecoder() {
     bufferRef = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
     scratchBuf = (short[]) JCSystem.makeTransientShortArray(SCRATCH_BUF_SIZE, JCSystem.CLEAR_ON_RESET);
+    tagTable = JCSystem.makeTransientShortArray(TAG_TABLE_SIZE, JCSystem.CLEAR_ON_RESET);
     bufferRef[0] = null;
     scratchBuf[START_OFFSET] = (short) 0;
     scratchBuf[LEN_OFFSET] = (short) 0;
     scratchBuf[TAG_KEY_OFFSET] = (short) 0;
   }
 
+  // A null buffer decodes the data of the current apdu in place. The apdu buffer is a global array
+  // and so it cannot be stored, it is looked up on each access instead.
   public short decode(short expression, byte[] buffer, short startOff, short length) {
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
@@ -164,40 +173,39 @@ public class KMDecoder {
     short vals = KMArray.instance(payloadLength);
     short length = KMArray.cast(allowedTags).length();
     short index = 0;
-    boolean tagFound;
-    short tagInd;
     short tagType;
     short tagClass;
-    short allowedType;
     short obj;
-    // For each tag in payload ...
+    // Index the allowed tags by their tag type ...
+    while (index < TAG_TABLE_SIZE) {
+      tagTable[index] = 0;
+      index++;
+    }
+    index = 0;
+    while (index < length) {
+      tagClass = KMArray.cast(allowedTags).get(index);
+      tagTable[tagTableIndex(KMTag.getTagType(tagClass))] = tagClass;
+      index++;
+    }
+    index = 0;
+    // then decode each tag in payload with the allowed tag of its type.
     while (index < payloadLength) {
-      tagFound = false;
-      tagInd = 0;
       tagType = peekTagType();
-      // Check against the allowed tags ...
-      while (tagInd < length) {
-        tagClass = KMArray.cast(allowedTags).get(tagInd);
-        allowedType = KMTag.getTagType(tagClass);
-        // If it is part of allowed tags ...
-        if (tagType == allowedType) {
-          // then decodeByteBlob and add that to the array.
-          obj = decode(tagClass);
-          KMArray.cast(vals).add(index, obj);
-          tagFound = true;
-          break;
-        }
-        tagInd++;
-      }
-      if (!tagFound) {
+      tagClass = tagTable[tagTableIndex(tagType)];
+      if (tagClass == 0) {
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-      } else {
-        index++;
       }
+      obj = decodeTag(tagType, tagClass);
+      KMArray.cast(vals).add(index, obj);
+      index++;
     }
     return KMKeyParameters.instance(vals);
   }
 
+  private static short tagTableIndex(short tagType) {
+    return (short) ((tagType >> TAG_TYPE_SHIFT) & 0x0F);
+  }
+
   private short decodeEnumArrayTag(short exp) {
     readTagKey(KMEnumArrayTag.cast(exp).getTagType());
     return KMEnumArrayTag.instance(scratchBuf[TAG_KEY_OFFSET], decode(KMEnumArrayTag.cast(exp).getValues()));
@@ -255,7 +263,7 @@ public class KMDecoder {
 
   private short decodeEnumTag(short exp) {
     readTagKey(KMEnumTag.cast(exp).getTagType());
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // Enum Tag value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -282,7 +290,7 @@ public class KMDecoder {
 
   private short decodeBoolTag(short exp) {
     readTagKey(KMBoolTag.cast(exp).getTagType());
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // BOOL Tag is a leaf node and it must always have tiny encoded uint value = 1.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -296,7 +304,7 @@ public class KMDecoder {
   }
 
   private short decodeEnum(short exp) {
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // Enum value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -324,7 +332,7 @@ public class KMDecoder {
   private short decodeInteger(short exp) {
     short inst;
     short startOff = scratchBuf[START_OFFSET];
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
     }
@@ -356,13 +364,13 @@ public class KMDecoder {
 
   private short decodeByteBlob(short exp) {
     short payloadLength = readMajorTypeWithPayloadLength(BYTES_TYPE);
-    short inst = KMByteBlob.instance((byte[])bufferRef[0], scratchBuf[START_OFFSET], payloadLength);
+    short inst = KMByteBlob.instance(getBuffer(), scratchBuf[START_OFFSET], payloadLength);
     incrementStartOff(payloadLength);
     return inst;
   }
 
   private short peekTagType() {
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -377,7 +385,7 @@ public class KMDecoder {
   }
 
   private void readTagKey(short expectedTagType) {
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -415,7 +423,7 @@ public class KMDecoder {
   }
 
   private short readShort() {
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     short val = Util.makeShort(buffer[startOff], buffer[(short) (startOff + 1)]);
     incrementStartOff((short) 2);
@@ -424,11 +432,18 @@ public class KMDecoder {
 
   private byte readByte() {
     short startOff = scratchBuf[START_OFFSET];
-    byte val = ((byte[])bufferRef[0])[startOff];
+    byte val = (getBuffer())[startOff];
     incrementStartOff((short) 1);
     return val;
   }
 
+  private byte[] getBuffer() {
+    if (bufferRef[0] == null) {
+      return APDU.getCurrentAPDUBuffer();
+    }
+    return (byte[]) bufferRef[0];
+  }
+
   private void incrementStartOff(short inc) {
     scratchBuf[START_OFFSET] += inc;
     if (scratchBuf[START_OFFSET] > scratchBuf[LEN_OFFSET]) {
@@ -436,6 +451,19 @@ public class KMDecoder {
     }
   }
 
+  // Returns the version of the key blob, which is the first element of the key blob array if it
+  // is an integer. Key blobs without a version start with the secret and are of version 0.
+  public short readKeyBlobVersion(byte[] buf, short bufOffset, short bufLen) {
+    bufferRef[0] = buf;
+    scratchBuf[START_OFFSET] = bufOffset;
+    scratchBuf[LEN_OFFSET] = (short) (bufOffset + bufLen);
+    readMajorTypeWithPayloadLength(ARRAY_TYPE);
+    if ((buf[scratchBuf[START_OFFSET]] & MAJOR_TYPE_MASK) != UINT_TYPE) {
+      return 0;
+    }
+    return KMInteger.cast(decodeInteger((short) 0)).getShort();
+  }
+
   public short readCertificateChainLengthAndHeaderLen(byte[] buf, short bufOffset,
       short bufLen) {
     bufferRef[0] = buf;
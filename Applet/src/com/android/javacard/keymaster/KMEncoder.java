@@ -16,6 +16,7 @@
 
 package com.android.javacard.keymaster;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -40,10 +41,17 @@ public class KMEncoder {
   private static final short TINY_PAYLOAD = 0x17;
   private static final short SHORT_PAYLOAD = 0x100;
   private static final short STACK_SIZE = (short) 50;
-  private static final short SCRATCH_BUF_SIZE = (short) 6;
+  private static final short SCRATCH_BUF_SIZE = (short) 8;
   private static final short START_OFFSET = (short) 0;
   private static final short LEN_OFFSET = (short) 2;
   private static final short STACK_PTR_OFFSET = (short) 4;
+  private static final short MODE_OFFSET = (short) 6;
+
+  // Encoding modes - into a buffer, only counting the encoded length, or into the apdu buffer
+  // which is sent whenever it is full.
+  private static final short MODE_BUFFER = 0;
+  private static final short MODE_LENGTH = 1;
+  private static final short MODE_STREAM = 2;
 
   private Object[] bufferRef;
   private short[] scratchBuf;
@@ -75,6 +83,7 @@ public class KMEncoder {
 
   public short encode(short object, byte[] buffer, short startOff) {
     scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
     short len = (short) buffer.length;
@@ -89,8 +98,50 @@ public class KMEncoder {
     return (short) (scratchBuf[START_OFFSET] - startOff);
   }
 
+  // Returns the length of the encoded object without encoding it.
+  public short getEncodedLength(short object) {
+    scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[MODE_OFFSET] = MODE_LENGTH;
+    scratchBuf[START_OFFSET] = 0;
+    scratchBuf[LEN_OFFSET] = KMKeymasterApplet.MAX_LENGTH;
+    push(object);
+    encode();
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+    return scratchBuf[START_OFFSET];
+  }
+
+  // Encodes the object as the response of the apdu. The encoded object is written to the apdu
+  // buffer, which is sent each time it is full, so the response is never held in memory as a
+  // whole. The length is computed upfront, which also validates the object before anything is
+  // sent. The apdu and its buffer cannot be stored, so they are looked up on each access.
+  public void encode(short object, APDU apdu) {
+    short len = getEncodedLength(object);
+    apdu.setOutgoing();
+    apdu.setOutgoingLength(len);
+    scratchBuf[MODE_OFFSET] = MODE_STREAM;
+    bufferRef[0] = null;
+    scratchBuf[START_OFFSET] = 0;
+    scratchBuf[LEN_OFFSET] = (short) apdu.getBuffer().length;
+    if ((scratchBuf[LEN_OFFSET] < 0) || (scratchBuf[LEN_OFFSET] > KMKeymasterApplet.MAX_LENGTH)) {
+      scratchBuf[LEN_OFFSET] = KMKeymasterApplet.MAX_LENGTH;
+    }
+    push(object);
+    encode();
+    flush();
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+  }
+
+  // Sends the encoded bytes held in the apdu buffer.
+  private void flush() {
+    if (scratchBuf[START_OFFSET] > 0) {
+      APDU.getCurrentAPDU().sendBytes((short) 0, scratchBuf[START_OFFSET]);
+      scratchBuf[START_OFFSET] = 0;
+    }
+  }
+
   // array{KMError.OK,Array{KMByteBlobs}}
   public void encodeCertChain(byte[] buffer, short offset, short length) {
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = offset;
     scratchBuf[LEN_OFFSET] = (short) (offset + 3);
@@ -99,34 +150,36 @@ public class KMEncoder {
     writeByte(UINT_TYPE); // Error.OK
   }
 
-  //array{KMError.OK,Array{KMByteBlobs}}
-  public short encodeCert(byte[] certBuffer, short bufferStart, short certStart, short certLength) {
-    bufferRef[0] = certBuffer;
-    scratchBuf[START_OFFSET] = certStart;
-    scratchBuf[LEN_OFFSET] = (short) (certStart + 1);
-    //Array header - 2 elements i.e. 1 byte
-    scratchBuf[START_OFFSET]--;
-    // Error.Ok - 1 byte
-    scratchBuf[START_OFFSET]--;
-    //Array header - 2 elements i.e. 1 byte
-    scratchBuf[START_OFFSET]--;
-    // Cert Byte blob - typically 2 bytes length i.e. 3 bytes header
-    scratchBuf[START_OFFSET] -= 2;
-    if (certLength >= SHORT_PAYLOAD) {
-      scratchBuf[START_OFFSET]--;
-    }
-    bufferStart = scratchBuf[START_OFFSET];
-    if (scratchBuf[START_OFFSET] < bufferStart) {
-      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-    }
+  // array{KMError.OK,Array{KMByteBlob}} - only the headers, the cert is sent after them.
+  public short encodeCertHeader(short certLength, byte[] buffer, short startOff) {
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+    bufferRef[0] = buffer;
+    scratchBuf[START_OFFSET] = startOff;
+    scratchBuf[LEN_OFFSET] = (short) buffer.length;
     writeMajorTypeWithLength(ARRAY_TYPE, (short) 2); // Array of 2 elements
     writeByte(UINT_TYPE); // Error.OK
     writeMajorTypeWithLength(ARRAY_TYPE, (short) 1); // Array of 1 element
     writeMajorTypeWithLength(BYTES_TYPE, certLength); // Cert Byte Blob of length
-    return bufferStart;
+    return (short) (scratchBuf[START_OFFSET] - startOff);
+  }
+
+  // array{KMError.OK,Integer,KMByteBlob} - only the headers, the part of the cert chain is sent
+  // after them.
+  public short encodeCertChainPartHeader(short chainLength, short partLength, byte[] buffer,
+      short startOff) {
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+    bufferRef[0] = buffer;
+    scratchBuf[START_OFFSET] = startOff;
+    scratchBuf[LEN_OFFSET] = (short) buffer.length;
+    writeMajorTypeWithLength(ARRAY_TYPE, (short) 3); // Array of 3 elements
+    writeByte(UINT_TYPE); // Error.OK
+    writeMajorTypeWithLength(UINT_TYPE, chainLength); // Total length of the cert chain
+    writeMajorTypeWithLength(BYTES_TYPE, partLength); // Part Byte Blob of length
+    return (short) (scratchBuf[START_OFFSET] - startOff);
   }
 
   public short encodeError(short err, byte[] buffer, short startOff, short length) {
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
     scratchBuf[LEN_OFFSET] = (short) (startOff + length);
@@ -359,29 +412,58 @@ public class KMEncoder {
   }
 
   private void writeBytes(byte[] buf, short start, short len) {
-    byte[] buffer = (byte[]) bufferRef[0];
+    if (scratchBuf[MODE_OFFSET] == MODE_LENGTH) {
+      incrementStartOff(len);
+      return;
+    }
+    byte[] buffer = getBuffer();
+    if (scratchBuf[MODE_OFFSET] == MODE_STREAM) {
+      // Copy as much as fits in the apdu buffer at a time.
+      short chunk;
+      while (len > 0) {
+        chunk = (short) (scratchBuf[LEN_OFFSET] - scratchBuf[START_OFFSET]);
+        if (chunk > len) {
+          chunk = len;
+        }
+        Util.arrayCopyNonAtomic(buf, start, buffer, scratchBuf[START_OFFSET], chunk);
+        incrementStartOff(chunk);
+        start += chunk;
+        len -= chunk;
+      }
+      return;
+    }
     Util.arrayCopyNonAtomic(buf, start, buffer, scratchBuf[START_OFFSET], len);
     incrementStartOff(len);
   }
 
   private void writeShort(short val) {
-    byte[] buffer = (byte[]) bufferRef[0];
-    buffer[scratchBuf[START_OFFSET]] = (byte) ((val >> 8) & 0xFF);
-    incrementStartOff((short) 1);
-    buffer[scratchBuf[START_OFFSET]] = (byte) ((val & 0xFF));
-    incrementStartOff((short) 1);
+    writeByte((byte) ((val >> 8) & 0xFF));
+    writeByte((byte) ((val & 0xFF)));
   }
 
   private void writeByte(byte val) {
-    byte[] buffer = (byte[]) bufferRef[0];
-    buffer[scratchBuf[START_OFFSET]] = val;
+    if (scratchBuf[MODE_OFFSET] != MODE_LENGTH) {
+      byte[] buffer = getBuffer();
+      buffer[scratchBuf[START_OFFSET]] = val;
+    }
     incrementStartOff((short) 1);
   }
 
+  private byte[] getBuffer() {
+    if (scratchBuf[MODE_OFFSET] == MODE_STREAM) {
+      return APDU.getCurrentAPDUBuffer();
+    }
+    return (byte[]) bufferRef[0];
+  }
+
   private void incrementStartOff(short inc) {
     scratchBuf[START_OFFSET] += inc;
     if (scratchBuf[START_OFFSET] >= scratchBuf[LEN_OFFSET]) {
-      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      if (scratchBuf[MODE_OFFSET] == MODE_STREAM) {
+        flush();
+      } else {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
     }
   }
 }
@@ -42,6 +42,9 @@ public class KMHardwareAuthToken extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[HW_AUTH_TOKEN_SCHEMA] != 0) {
+      return schemaTable[HW_AUTH_TOKEN_SCHEMA];
+    }
     short arrPtr = KMArray.instance((short) 6);
     KMArray arr = KMArray.cast(arrPtr);
     arr.add(CHALLENGE, KMInteger.exp());
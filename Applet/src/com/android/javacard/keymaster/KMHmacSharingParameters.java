@@ -37,6 +37,9 @@ public class KMHmacSharingParameters extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[HMAC_SHARING_PARAMETERS_SCHEMA] != 0) {
+      return schemaTable[HMAC_SHARING_PARAMETERS_SCHEMA];
+    }
     short arrPtr = KMArray.instance((short) 2);
     KMArray arr = KMArray.cast(arrPtr);
     arr.add(SEED, KMByteBlob.exp());
@@ -42,6 +42,9 @@ public class KMInteger extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[INTEGER_SCHEMA] != 0) {
+      return schemaTable[INTEGER_SCHEMA];
+    }
     return KMType.exp(INTEGER_TYPE);
   }
 
@@ -36,6 +36,9 @@ public class KMKeyCharacteristics extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[KEY_CHARACTERISTICS_SCHEMA] != 0) {
+      return schemaTable[KEY_CHARACTERISTICS_SCHEMA];
+    }
     short softEnf = KMKeyParameters.exp();
     short hwEnf = KMKeyParameters.exp();
     short arrPtr = KMArray.instance((short) 2);
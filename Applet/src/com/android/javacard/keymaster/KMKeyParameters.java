@@ -22,11 +22,72 @@ import javacard.framework.Util;
 
 /**
  * KMKeyParameters represents KeyParameters structure from android keymaster hal specifications. It
- * corresponds to CBOR map type. struct{byte KEY_PARAM_TYPE; short length=2; short arrayPtr} where
- * arrayPtr is a pointer to array with any KMTag subtype instances.
+ * corresponds to CBOR map type. struct{byte KEY_PARAM_TYPE; short length=4; short arrayPtr; short
+ * indexPtr} where arrayPtr is a pointer to array with any KMTag subtype instances. indexPtr is 0
+ * or points to the tags sorted by type and key, see findTag. The index is built when the instance
+ * is created, so the array must be complete by then.
  */
 public class KMKeyParameters extends KMType {
 
+  // Each index entry holds the tag type, the tag key and the tag pointer.
+  private static final byte INDEX_ENTRY_SIZE = 6;
+  // Shorter arrays are searched linearly.
+  private static final byte INDEX_MIN_LENGTH = 8;
+  // Packed tag records, see writeRecords.
+  public static final short RECORD_MAX_COUNT = 0xFF;
+  private static final short RECORD_HEADER_SIZE = 3;
+  private static final byte RECORD_INTEGER_UINT_64 = (byte) 0x80;
+  private static final byte RECORD_INTEGER_LENGTH_MASK = 0x0F;
+
+  // Tag classes
+  public static final byte OTHER = 0;
+  public static final byte HW_ENFORCED = 1;
+  public static final byte SW_ENFORCED = 2;
+  public static final byte HIDDEN = 3;
+  public static final byte UNSUPPORTED = 4;
+  public static final byte INVALID = 5;
+  // Tag type, tag key and tag class of the classified tags, sorted by tag type and key as signed
+  // shorts. KDF, ECIES_SINGLE_HASH_MODE, ALL_USERS and EXPORTABLE are missing from types.hal.
+  private static final short[] TAG_CLASS_TABLE = {
+      KMType.BYTES_TAG, KMType.APPLICATION_ID, HIDDEN,
+      KMType.BYTES_TAG, KMType.APPLICATION_DATA, HIDDEN,
+      KMType.BYTES_TAG, KMType.UNIQUE_ID, INVALID,
+      KMType.BYTES_TAG, KMType.ASSOCIATED_DATA, INVALID,
+      KMType.BYTES_TAG, KMType.NONCE, INVALID,
+      KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID, HW_ENFORCED,
+      KMType.ENUM_TAG, KMType.ALGORITHM, HW_ENFORCED,
+      KMType.ENUM_TAG, KMType.ECCURVE, HW_ENFORCED,
+      KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ, HW_ENFORCED,
+      KMType.ENUM_TAG, KMType.USER_AUTH_TYPE, HW_ENFORCED,
+      KMType.ENUM_TAG, KMType.ORIGIN, HW_ENFORCED,
+      KMType.ENUM_ARRAY_TAG, KMType.PURPOSE, HW_ENFORCED,
+      KMType.ENUM_ARRAY_TAG, KMType.BLOCK_MODE, HW_ENFORCED,
+      KMType.ENUM_ARRAY_TAG, KMType.DIGEST, HW_ENFORCED,
+      KMType.ENUM_ARRAY_TAG, KMType.PADDING, HW_ENFORCED,
+      KMType.UINT_TAG, KMType.KEYSIZE, HW_ENFORCED,
+      KMType.UINT_TAG, KMType.MIN_MAC_LENGTH, HW_ENFORCED,
+      KMType.UINT_TAG, KMType.MIN_SEC_BETWEEN_OPS, UNSUPPORTED,
+      KMType.UINT_TAG, KMType.MAX_USES_PER_BOOT, UNSUPPORTED,
+      KMType.UINT_TAG, KMType.USERID, SW_ENFORCED,
+      KMType.UINT_TAG, KMType.AUTH_TIMEOUT, HW_ENFORCED,
+      KMType.UINT_TAG, KMType.MAC_LENGTH, INVALID,
+      KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT, HW_ENFORCED,
+      KMType.DATE_TAG, KMType.ACTIVE_DATETIME, SW_ENFORCED,
+      KMType.DATE_TAG, KMType.ORIGINATION_EXPIRE_DATETIME, SW_ENFORCED,
+      KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME, SW_ENFORCED,
+      KMType.DATE_TAG, KMType.CREATION_DATETIME, SW_ENFORCED,
+      KMType.BOOL_TAG, KMType.CALLER_NONCE, HW_ENFORCED,
+      KMType.BOOL_TAG, KMType.INCLUDE_UNIQUE_ID, HW_ENFORCED,
+      KMType.BOOL_TAG, KMType.BOOTLOADER_ONLY, INVALID,
+      KMType.BOOL_TAG, KMType.ROLLBACK_RESISTANCE, HW_ENFORCED,
+      KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED, HW_ENFORCED,
+      KMType.BOOL_TAG, KMType.ALLOW_WHILE_ON_BODY, UNSUPPORTED,
+      KMType.BOOL_TAG, KMType.TRUSTED_USER_PRESENCE_REQUIRED, UNSUPPORTED,
+      KMType.BOOL_TAG, KMType.TRUSTED_CONFIRMATION_REQUIRED, UNSUPPORTED,
+      KMType.BOOL_TAG, KMType.UNLOCKED_DEVICE_REQUIRED, HW_ENFORCED,
+      KMType.BOOL_TAG, KMType.RESET_SINCE_ID_ROTATION, HW_ENFORCED,
+  };
+
   private static KMKeyParameters prototype;
 
   private KMKeyParameters() {
@@ -41,6 +102,9 @@ public class KMKeyParameters extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[KEY_PARAMETERS_SCHEMA] != 0) {
+      return schemaTable[KEY_PARAMETERS_SCHEMA];
+    }
     short arrPtr = KMArray.instance((short) 9);
     KMArray arr = KMArray.cast(arrPtr);
     arr.add((short) 0, KMIntegerTag.exp(UINT_TAG));
@@ -52,12 +116,30 @@ public class KMKeyParameters extends KMType {
     arr.add((short) 6, KMEnumArrayTag.exp());
     arr.add((short) 7, KMByteTag.exp());
     arr.add((short) 8, KMBoolTag.exp());
-    return instance(arrPtr);
+    // The expression is never searched, so it is not indexed.
+    return instance(arrPtr, false);
   }
 
   public static short instance(short vals) {
-    short ptr = KMType.instance(KEY_PARAM_TYPE, (short) 2);
+    return instance(vals, true);
+  }
+
+  // The index is allocated right after the instance, so it is freed along with the instance.
+  // Callers often pass the instance straight to KMArray.add, so the array flyweight is restored.
+  private static short instance(short vals, boolean indexed) {
+    short ptr = KMType.instance(KEY_PARAM_TYPE, (short) 4);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), vals);
+    short index = 0;
+    if (indexed) {
+      short arr = instanceTable[KM_ARRAY_OFFSET];
+      short length = KMArray.cast(vals).length();
+      if (length >= INDEX_MIN_LENGTH
+          && (short) (length * INDEX_ENTRY_SIZE) <= repository.getAvailableMemory()) {
+        index = buildIndex(vals, length);
+      }
+      instanceTable[KM_ARRAY_OFFSET] = arr;
+    }
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2), index);
     return ptr;
   }
 
@@ -86,171 +168,176 @@ public class KMKeyParameters extends KMType {
     return instParam.findTag(tagType, tagKey);
   }
 
+  // The tag is found by binary search in the index, if the parameters are indexed.
   public short findTag(short tagType, short tagKey) {
-    KMArray vals = KMArray.cast(getVals());
+    short ptr = instanceTable[KM_KEY_PARAMETERS_OFFSET];
+    short arrPtr = getVals();
+    short length = KMArray.cast(arrPtr).length();
+    short index = Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2));
+    if (index == 0) {
+      return linearSearch(arrPtr, length, tagType, tagKey);
+    }
+    // Find the first entry which is not less than the tag.
+    short low = 0;
+    short high = length;
+    short mid;
+    short entry;
+    while (low < high) {
+      mid = (short) ((short) (low + high) >> 1);
+      entry = (short) (index + (short) (mid * INDEX_ENTRY_SIZE));
+      if (compareTag(entry, tagType, tagKey) < 0) {
+        low = (short) (mid + 1);
+      } else {
+        high = mid;
+      }
+    }
+    entry = (short) (index + (short) (low * INDEX_ENTRY_SIZE));
+    if (low < length && compareTag(entry, tagType, tagKey) == 0) {
+      return Util.getShort(heap, (short) (entry + 4));
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  private static short linearSearch(short arrPtr, short length, short tagType, short tagKey) {
     short index = 0;
-    short length = vals.length();
-    short key;
-    short type;
-    short ret = KMType.INVALID_VALUE;
     short obj;
     while (index < length) {
-      obj = vals.get(index);
-      key = KMTag.getKey(obj);
-      type = KMTag.getTagType(obj);
-      if ((tagKey == key) && (tagType == type)) {
-        ret = obj;
-        break;
+      obj = KMArray.cast(arrPtr).get(index);
+      if ((tagKey == KMTag.getKey(obj)) && (tagType == KMTag.getTagType(obj))) {
+        return obj;
       }
       index++;
     }
-    return ret;
+    return KMType.INVALID_VALUE;
   }
 
-  public static boolean hasUnsupportedTags(short keyParamsPtr) {
-    final short[] tagArr = {
-        // Unsupported tags.
-        KMType.BOOL_TAG, KMType.TRUSTED_CONFIRMATION_REQUIRED,
-        KMType.BOOL_TAG, KMType.TRUSTED_USER_PRESENCE_REQUIRED,
-        KMType.BOOL_TAG, KMType.ALLOW_WHILE_ON_BODY,
-        KMType.UINT_TAG, KMType.MIN_SEC_BETWEEN_OPS,
-        KMType.UINT_TAG, KMType.MAX_USES_PER_BOOT
-    };
-    byte index = 0;
-    short tagInd;
-    short tagPtr;
-    short tagKey;
+  // Sorts the tags into the index by insertion sort. The tags with the same type and key are
+  // kept in the array order, so that the first of them is found as in the linear search.
+  private static short buildIndex(short arrPtr, short length) {
+    short index = repository.alloc((short) (length * INDEX_ENTRY_SIZE));
+    short arrInd = 0;
+    short entInd;
+    short entry;
+    short obj;
     short tagType;
+    short tagKey;
+    while (arrInd < length) {
+      obj = KMArray.cast(arrPtr).get(arrInd);
+      tagType = KMTag.getTagType(obj);
+      tagKey = KMTag.getKey(obj);
+      entInd = arrInd;
+      while (entInd > 0) {
+        entry = (short) (index + (short) ((short) (entInd - 1) * INDEX_ENTRY_SIZE));
+        if (compareTag(entry, tagType, tagKey) <= 0) {
+          break;
+        }
+        Util.arrayCopyNonAtomic(heap, entry, heap, (short) (entry + INDEX_ENTRY_SIZE),
+            INDEX_ENTRY_SIZE);
+        entInd--;
+      }
+      entry = (short) (index + (short) (entInd * INDEX_ENTRY_SIZE));
+      Util.setShort(heap, entry, tagType);
+      Util.setShort(heap, (short) (entry + 2), tagKey);
+      Util.setShort(heap, (short) (entry + 4), obj);
+      arrInd++;
+    }
+    return index;
+  }
+
+  // Compares the index entry with the given tag type and key.
+  private static short compareTag(short entry, short tagType, short tagKey) {
+    short type = Util.getShort(heap, entry);
+    if (type != tagType) {
+      return (short) (type < tagType ? -1 : 1);
+    }
+    short key = Util.getShort(heap, (short) (entry + 2));
+    if (key != tagKey) {
+      return (short) (key < tagKey ? -1 : 1);
+    }
+    return 0;
+  }
+
+  public static boolean hasUnsupportedTags(short keyParamsPtr) {
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
+    short index = 0;
+    short tagPtr;
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      while (tagInd < (short) tagArr.length) {
-        if ((tagArr[tagInd] == tagType)
-            && (tagArr[(short) (tagInd + 1)] == tagKey)) {
-          return true;
-        }
-        tagInd += 2;
+      if (getTagClass(KMTag.getTagType(tagPtr), KMTag.getKey(tagPtr)) == UNSUPPORTED) {
+        return true;
       }
       index++;
     }
     return false;
   }
 
-  // KDF, ECIES_SINGLE_HASH_MODE missing from types.hal
-  public static short makeHwEnforced(short keyParamsPtr, byte origin,
+  /**
+   * Makes the key characteristics from the key parameters in a single pass, which puts each tag
+   * in the hardware or software enforced list according to its class. The hardware enforced
+   * list also gets the origin and the system properties. The tag pointers are collected in the
+   * scratch pad, the hardware enforced ones from the start and the software enforced ones back
+   * from the end of the space which the hardware enforced list needs at most.
+   */
+  public static short makeKeyCharacteristics(short keyParamsPtr, byte origin,
       short osVersionObjPtr, short osPatchObjPtr, short vendorPatchObjPtr,
       short bootPatchObjPtr, byte[] scratchPad) {
-    final short[] hwEnforcedTagArr = {
-        // HW Enforced
-        KMType.ENUM_TAG, KMType.ORIGIN,
-        KMType.ENUM_ARRAY_TAG, KMType.PURPOSE,
-        KMType.ENUM_TAG, KMType.ALGORITHM,
-        KMType.UINT_TAG, KMType.KEYSIZE,
-        KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
-        KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ,
-        KMType.ENUM_ARRAY_TAG, KMType.DIGEST,
-        KMType.ENUM_ARRAY_TAG, KMType.PADDING,
-        KMType.ENUM_ARRAY_TAG, KMType.BLOCK_MODE,
-        KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID,
-        KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED,
-        KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
-        KMType.BOOL_TAG, KMType.CALLER_NONCE,
-        KMType.UINT_TAG, KMType.MIN_MAC_LENGTH,
-        KMType.ENUM_TAG, KMType.ECCURVE,
-        KMType.BOOL_TAG, KMType.INCLUDE_UNIQUE_ID,
-        KMType.BOOL_TAG, KMType.ROLLBACK_RESISTANCE,
-        KMType.ENUM_TAG, KMType.USER_AUTH_TYPE,
-        KMType.BOOL_TAG, KMType.UNLOCKED_DEVICE_REQUIRED,
-        KMType.BOOL_TAG, KMType.RESET_SINCE_ID_ROTATION
-    };
-    byte index = 0;
-    short tagInd;
-    short arrInd = 0;
-    short tagPtr;
-    short tagKey;
-    short tagType;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
+    short swEnd = (short) ((short) (len + 5) * 2);
+    short hwInd = 0;
+    short swInd = swEnd;
+    short index = 0;
+    short tagPtr;
+    short tagKey;
+    byte tagClass;
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
       tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
+      tagClass = getTagClass(KMTag.getTagType(tagPtr), tagKey);
+      if (tagKey == KMType.INVALID_TAG || tagClass == INVALID) {
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
       }
-      while (tagInd < (short) hwEnforcedTagArr.length) {
-        if ((hwEnforcedTagArr[tagInd] == tagType)
-            && (hwEnforcedTagArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
+      if (tagClass == HW_ENFORCED) {
+        Util.setShort(scratchPad, hwInd, tagPtr);
+        hwInd += 2;
+      } else if (tagClass == SW_ENFORCED) {
+        swInd -= 2;
+        Util.setShort(scratchPad, swInd, tagPtr);
       }
       index++;
     }
     short originTag = KMEnumTag.instance(KMType.ORIGIN, origin);
-    Util.setShort(scratchPad, arrInd, originTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, originTag);
+    hwInd += 2;
     short osVersionTag = KMIntegerTag.instance(KMType.UINT_TAG, KMType.OS_VERSION, osVersionObjPtr);
-    Util.setShort(scratchPad, arrInd, osVersionTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, osVersionTag);
+    hwInd += 2;
     short osPatchTag = KMIntegerTag.instance(KMType.UINT_TAG, KMType.OS_PATCH_LEVEL, osPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, osPatchTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, osPatchTag);
+    hwInd += 2;
     short vendorPatchTag = KMIntegerTag
         .instance(KMType.UINT_TAG, KMType.VENDOR_PATCH_LEVEL, vendorPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, vendorPatchTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, vendorPatchTag);
+    hwInd += 2;
     short bootPatchTag = KMIntegerTag
         .instance(KMType.UINT_TAG, KMType.BOOT_PATCH_LEVEL, bootPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, bootPatchTag);
-    arrInd += 2;
-    return createKeyParameters(scratchPad, (short) (arrInd / 2));
-  }
-
-  // ALL_USERS, EXPORTABLE missing from types.hal
-  public static short makeSwEnforced(short keyParamsPtr, byte[] scratchPad) {
-    final short[] swEnforcedTagsArr = {
-        KMType.DATE_TAG, KMType.ACTIVE_DATETIME,
-        KMType.DATE_TAG, KMType.ORIGINATION_EXPIRE_DATETIME,
-        KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME,
-        KMType.UINT_TAG, KMType.USERID,
-        KMType.DATE_TAG, KMType.CREATION_DATETIME
-    };
-    byte index = 0;
-    short tagInd;
-    short arrInd = 0;
-    short tagPtr;
-    short tagKey;
-    short tagType;
-    short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
-    short len = KMArray.cast(arrPtr).length();
-    while (index < len) {
-      tagInd = 0;
-      tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      while (tagInd < (short) swEnforcedTagsArr.length) {
-        if ((swEnforcedTagsArr[tagInd] == tagType)
-            && (swEnforcedTagsArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
-      }
+    Util.setShort(scratchPad, hwInd, bootPatchTag);
+    hwInd += 2;
+    short hwParams = createKeyParameters(scratchPad, (short) (hwInd / 2));
+    // The software enforced tags are collected in reverse order.
+    short swArrPtr = KMArray.instance((short) ((short) (swEnd - swInd) / 2));
+    index = 0;
+    while (swEnd > swInd) {
+      swEnd -= 2;
+      KMArray.cast(swArrPtr).add(index, Util.getShort(scratchPad, swEnd));
       index++;
     }
-    return createKeyParameters(scratchPad, (short) (arrInd / 2));
+    short swParams = KMKeyParameters.instance(swArrPtr);
+    short keyChars = KMKeyCharacteristics.instance();
+    KMKeyCharacteristics.cast(keyChars).setHardwareEnforced(hwParams);
+    KMKeyCharacteristics.cast(keyChars).setSoftwareEnforced(swParams);
+    return keyChars;
   }
 
   public static short makeHidden(short keyParamsPtr, short rootOfTrustBlob, byte[] scratchPad) {
@@ -287,24 +374,239 @@ public class KMKeyParameters extends KMType {
   }
 
   public static boolean isValidTag(short tagType, short tagKey) {
-    short[] invalidTagsArr = {
-        KMType.BYTES_TAG, KMType.NONCE,
-        KMType.BYTES_TAG, KMType.ASSOCIATED_DATA,
-        KMType.BYTES_TAG, KMType.UNIQUE_ID,
-        KMType.UINT_TAG, KMType.MAC_LENGTH,
-        KMType.BOOL_TAG, KMType.BOOTLOADER_ONLY
-    };
-    short index = 0;
     if (tagKey == KMType.INVALID_TAG) {
       return false;
     }
-    while (index < invalidTagsArr.length) {
-      if ((tagType == invalidTagsArr[index]) && (tagKey == invalidTagsArr[(short) (index + 1)])) {
-        return false;
+    return getTagClass(tagType, tagKey) != INVALID;
+  }
+
+  // Returns the class of the tag from the tag class table, or OTHER if it is not in the table.
+  public static byte getTagClass(short tagType, short tagKey) {
+    short low = 0;
+    short high = (short) (TAG_CLASS_TABLE.length / 3);
+    short mid;
+    short entry;
+    short type;
+    short key;
+    while (low < high) {
+      mid = (short) ((short) (low + high) >> 1);
+      entry = (short) (mid * 3);
+      type = TAG_CLASS_TABLE[entry];
+      key = TAG_CLASS_TABLE[(short) (entry + 1)];
+      if (type == tagType && key == tagKey) {
+        return (byte) TAG_CLASS_TABLE[(short) (entry + 2)];
       }
-      index += 2;
+      if (type < tagType || (type == tagType && key < tagKey)) {
+        low = (short) (mid + 1);
+      } else {
+        high = mid;
+      }
+    }
+    return OTHER;
+  }
+
+  /**
+   * Writes the tags of the key parameters as packed records and returns the offset following the
+   * last record. A record starts with the high byte of the tag type and the two byte tag key.
+   * Enum values take a byte and integers a length byte followed by their significant bytes,
+   * where the high bit of the length byte marks a 64 bit integer. Enum arrays and integer arrays
+   * take a count byte followed by the values and byte strings a two byte length followed by the
+   * bytes. Boolean tags have no value.
+   */
+  public static short writeRecords(short keyParamsPtr, byte[] buf, short off) {
+    short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
+    short len = KMArray.cast(arrPtr).length();
+    short index = 0;
+    short tagPtr;
+    short tagType;
+    short obj;
+    short count;
+    short i;
+    while (index < len) {
+      tagPtr = KMArray.cast(arrPtr).get(index);
+      tagType = KMTag.getTagType(tagPtr);
+      buf[off] = (byte) (tagType >> 8);
+      off = Util.setShort(buf, (short) (off + 1), KMTag.getKey(tagPtr));
+      switch (tagType) {
+        case KMType.ENUM_TAG:
+          buf[off] = KMEnumTag.cast(tagPtr).getValue();
+          off++;
+          break;
+        case KMType.UINT_TAG:
+        case KMType.ULONG_TAG:
+        case KMType.DATE_TAG:
+          off = writeInteger(KMIntegerTag.cast(tagPtr).getValue(), buf, off);
+          break;
+        case KMType.ENUM_ARRAY_TAG:
+          obj = KMEnumArrayTag.cast(tagPtr).getValues();
+          count = KMByteBlob.cast(obj).length();
+          if (count > RECORD_MAX_COUNT) {
+            KMException.throwIt(KMError.INVALID_KEY_BLOB);
+          }
+          buf[off] = (byte) count;
+          off++;
+          off += KMByteBlob.cast(obj).getValues(buf, off);
+          break;
+        case KMType.UINT_ARRAY_TAG:
+        case KMType.ULONG_ARRAY_TAG:
+          obj = KMIntegerArrayTag.cast(tagPtr).getValues();
+          count = KMArray.cast(obj).length();
+          if (count > RECORD_MAX_COUNT) {
+            KMException.throwIt(KMError.INVALID_KEY_BLOB);
+          }
+          buf[off] = (byte) count;
+          off++;
+          i = 0;
+          while (i < count) {
+            off = writeInteger(KMArray.cast(obj).get(i), buf, off);
+            i++;
+          }
+          break;
+        case KMType.BYTES_TAG:
+          obj = KMByteTag.cast(tagPtr).getValue();
+          off = Util.setShort(buf, off, KMByteBlob.cast(obj).length());
+          off += KMByteBlob.cast(obj).getValues(buf, off);
+          break;
+        case KMType.BOOL_TAG:
+          break;
+        default:
+          KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      }
+      index++;
+    }
+    return off;
+  }
+
+  /**
+   * Reads count tags, written by writeRecords, from the len bytes at off and returns them as key
+   * parameters. The records must fill the bytes exactly, else INVALID_KEY_BLOB is thrown.
+   */
+  public static short readRecords(byte[] buf, short off, short len, short count) {
+    // Every record takes at least its header.
+    if (len < 0 || count < 0 || count > (short) (len / RECORD_HEADER_SIZE)) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    short end = (short) (off + len);
+    short arrPtr = KMArray.instance(count);
+    short index = 0;
+    short tagType;
+    short tagKey;
+    short tagPtr = KMType.INVALID_VALUE;
+    short obj;
+    short num;
+    short i;
+    while (index < count) {
+      checkRecordBytes(off, RECORD_HEADER_SIZE, end);
+      tagType = (short) (buf[off] << 8);
+      tagKey = Util.getShort(buf, (short) (off + 1));
+      off += RECORD_HEADER_SIZE;
+      // The tag instances reject unknown keys and enum values.
+      try {
+        switch (tagType) {
+          case KMType.ENUM_TAG:
+            checkRecordBytes(off, (short) 1, end);
+            tagPtr = KMEnumTag.instance(tagKey, buf[off]);
+            off++;
+            break;
+          case KMType.UINT_TAG:
+          case KMType.ULONG_TAG:
+          case KMType.DATE_TAG:
+            obj = readInteger(buf, off, end);
+            off += (short) ((buf[off] & RECORD_INTEGER_LENGTH_MASK) + 1);
+            tagPtr = KMIntegerTag.instance(tagType, tagKey, obj);
+            break;
+          case KMType.ENUM_ARRAY_TAG:
+            checkRecordBytes(off, (short) 1, end);
+            num = (short) (buf[off] & 0xFF);
+            off++;
+            checkRecordBytes(off, num, end);
+            obj = KMByteBlob.instance(buf, off, num);
+            off += num;
+            tagPtr = KMEnumArrayTag.instance(tagKey, obj);
+            break;
+          case KMType.UINT_ARRAY_TAG:
+          case KMType.ULONG_ARRAY_TAG:
+            checkRecordBytes(off, (short) 1, end);
+            num = (short) (buf[off] & 0xFF);
+            off++;
+            // Every integer takes at least its length byte.
+            checkRecordBytes(off, num, end);
+            obj = KMArray.instance(num);
+            i = 0;
+            while (i < num) {
+              tagPtr = readInteger(buf, off, end);
+              KMArray.cast(obj).add(i, tagPtr);
+              off += (short) ((buf[off] & RECORD_INTEGER_LENGTH_MASK) + 1);
+              i++;
+            }
+            tagPtr = KMIntegerArrayTag.instance(tagType, tagKey, obj);
+            break;
+          case KMType.BYTES_TAG:
+            checkRecordBytes(off, (short) 2, end);
+            num = Util.getShort(buf, off);
+            off += 2;
+            checkRecordBytes(off, num, end);
+            obj = KMByteBlob.instance(buf, off, num);
+            off += num;
+            tagPtr = KMByteTag.instance(tagKey, obj);
+            break;
+          case KMType.BOOL_TAG:
+            tagPtr = KMBoolTag.instance(tagKey);
+            break;
+          default:
+            KMException.throwIt(KMError.INVALID_KEY_BLOB);
+        }
+      } catch (ISOException e) {
+        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      }
+      KMArray.cast(arrPtr).add(index, tagPtr);
+      index++;
+    }
+    if (off != end) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    return KMKeyParameters.instance(arrPtr);
+  }
+
+  // Throws INVALID_KEY_BLOB unless len bytes are left between off and end.
+  private static void checkRecordBytes(short off, short len, short end) {
+    if (len < 0 || (short) (end - off) < len) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+  }
+
+  private static short writeInteger(short intPtr, byte[] buf, short off) {
+    short start = KMInteger.cast(intPtr).getStartOff();
+    short len = KMInteger.cast(intPtr).length();
+    byte flags = 0;
+    if (len == KMInteger.UINT_64) {
+      flags = RECORD_INTEGER_UINT_64;
+    }
+    while (len > 0 && heap[start] == 0) {
+      start++;
+      len--;
+    }
+    buf[off] = (byte) (flags | len);
+    off++;
+    return Util.arrayCopyNonAtomic(heap, start, buf, off, len);
+  }
+
+  private static short readInteger(byte[] buf, short off, short end) {
+    checkRecordBytes(off, (short) 1, end);
+    short size = KMInteger.UINT_32;
+    if ((buf[off] & RECORD_INTEGER_UINT_64) != 0) {
+      size = KMInteger.UINT_64;
+    }
+    short len = (short) (buf[off] & RECORD_INTEGER_LENGTH_MASK);
+    if (len > size) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
-    return true;
+    checkRecordBytes((short) (off + 1), len, end);
+    short intPtr = KMInteger.instance(size);
+    short start = KMInteger.cast(intPtr).getStartOff();
+    Util.arrayFillNonAtomic(heap, start, (short) (size - len), (byte) 0);
+    Util.arrayCopyNonAtomic(buf, (short) (off + 1), heap, (short) (start + size - len), len);
+    return intPtr;
   }
 
   public static short createKeyParameters(byte[] ptrArr, short len) {
@@ -111,6 +111,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_GET_OPERATION_STATS_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_LOAD_KEY_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  private static final byte INS_UNLOAD_KEY_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
+  private static final byte INS_BEGIN_LOADED_KEY_CMD = INS_END_KM_PROVISION_CMD + 26; //0x3A
+  private static final byte INS_ONESHOT_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 27; //0x3B
+  private static final byte INS_GET_CERT_CHAIN_PART_CMD = INS_END_KM_PROVISION_CMD + 28; //0x3C
 
   private static final byte INS_END_KM_CMD = 0x7F;
 
@@ -157,22 +163,63 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte HW_TOKEN = 26;
   public static final byte VERIFICATION_TOKEN = 27;
   protected static final byte SIGNATURE = 28;
+  public static final byte KEY_BLOB_VERSION = 29;
 
   // AddRngEntropy
   protected static final short MAX_SEED_SIZE = 2048;
-  // Keyblob constants
+  // Keyblob constants - key blobs without a version have the version 0 layout.
+  public static final byte KEY_BLOB_VERSION_0 = 0;
+  public static final byte KEY_BLOB_VERSION_1 = 1;
+  public static final byte KEY_BLOB_VERSION_2 = 2;
   public static final byte KEY_BLOB_SECRET = 0;
   public static final byte KEY_BLOB_NONCE = 1;
   public static final byte KEY_BLOB_AUTH_TAG = 2;
   public static final byte KEY_BLOB_KEYCHAR = 3;
   public static final byte KEY_BLOB_PUB_KEY = 4;
+  // Version 1 key blob - the key characteristics and the public key are encoded in the auth data
+  // byte blob, which is authenticated as it is.
+  public static final byte KEY_BLOB_V1_VERSION = 0;
+  public static final byte KEY_BLOB_V1_SECRET = 1;
+  public static final byte KEY_BLOB_V1_NONCE = 2;
+  public static final byte KEY_BLOB_V1_AUTH_TAG = 3;
+  public static final byte KEY_BLOB_V1_AUTH_DATA = 4;
+  public static final byte KEY_BLOB_V1_SIZE = 5;
+  public static final byte AUTH_DATA_KEYCHAR = 0;
+  public static final byte AUTH_DATA_PUB_KEY = 1;
+  // Version 2 key blob - a fixed header followed by the hardware and software enforced tags as
+  // packed records, the public key, the nonce, the auth tag and the secret. The header holds the
+  // version, the algorithm, the key size, the tag counts and the short offsets of the sections.
+  // Everything ahead of the nonce is authenticated as it is.
+  public static final byte KEY_BLOB_V2_VERSION = 0;
+  public static final byte KEY_BLOB_V2_ALGORITHM = 1;
+  public static final byte KEY_BLOB_V2_KEY_SIZE = 2;
+  public static final byte KEY_BLOB_V2_HW_COUNT = 4;
+  public static final byte KEY_BLOB_V2_SW_COUNT = 5;
+  public static final byte KEY_BLOB_V2_HW_PARAMS = 6;
+  public static final byte KEY_BLOB_V2_SW_PARAMS = 8;
+  public static final byte KEY_BLOB_V2_PUB_KEY = 10;
+  public static final byte KEY_BLOB_V2_NONCE = 12;
+  public static final byte KEY_BLOB_V2_AUTH_TAG = 14;
+  public static final byte KEY_BLOB_V2_SECRET = 16;
+  public static final byte KEY_BLOB_V2_HEADER_SIZE = 18;
   // AES GCM constants
   private static final byte AES_GCM_AUTH_TAG_LENGTH = 16;
   private static final byte AES_GCM_NONCE_LENGTH = 12;
+  // RSA CRT constants - secret of the key blob is P, Q, DP, DQ and PQ, each right aligned in
+  // RSA_CRT_COMPONENT_SIZE bytes. Older key blobs hold the private exponent instead.
+  private static final short RSA_CRT_COMPONENT_SIZE = 128;
+  private static final short RSA_CRT_KEY_SIZE = 640;
+  // Maximum size of the encoded key blob.
+  private static final short MAX_KEY_BLOB_SIZE = 1536;
+  // Imported RSA key material - private exponent, modulus and optional CRT parameters.
+  private static final byte RSA_IMPORT_KEY_MATERIAL_SIZE = 7;
+  private static final byte RSA_IMPORT_CRT_OFFSET = 2;
   // ComputeHMAC constants
   private static final short HMAC_SHARED_PARAM_MAX_SIZE = 64;
-  // Maximum certificate size.
-  private static final short MAX_CERT_SIZE = 2048;
+  // Size of the buffer the attestation certificate is built through.
+  private static final short CERT_BUF_SIZE = 256;
+  // Size of the array{KMError.OK,Integer,KMByteBlob} headers of a part of the cert chain.
+  private static final short CERT_CHAIN_PART_HEADER_SIZE = 8;
   // Buffer constants.
   private static final short BUF_START_OFFSET = 0;
   private static final short BUF_LEN_OFFSET = 2;
@@ -191,11 +238,15 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   /**
    * Registers this applet.
+   *
+   * @param seImpl the SE provider
+   * @param maxOperations the number of operations which can be active at the same time
+   * @param keySlots the number of keys which can be loaded at the same time
    */
-  protected KMKeymasterApplet(KMSEProvider seImpl) {
+  protected KMKeymasterApplet(KMSEProvider seImpl, short maxOperations, short keySlots) {
     seProvider = seImpl;
     boolean isUpgrading = seImpl.isUpgrading();
-    repository = new KMRepository(isUpgrading);
+    repository = new KMRepository(isUpgrading, maxOperations, keySlots);
     initializeTransientArrays();
     if (!isUpgrading) {
       keymasterState = KMKeymasterApplet.INIT_STATE;
@@ -206,6 +257,60 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     decoder = new KMDecoder();
   }
 
+  /**
+   * Reads the maximum number of active operations from the application specific install
+   * parameters, which follow the instance AID and the privileges in the install data. The first
+   * byte of the application specific parameters is the number of operations. The default is used
+   * if it is absent or out of range.
+   *
+   * @param bArray the array containing installation parameters
+   * @param bOffset the starting offset in bArray
+   * @param bLength the length in bytes of the parameter data in bArray
+   * @return the maximum number of active operations
+   */
+  protected static short readMaxOperations(byte[] bArray, short bOffset, byte bLength) {
+    return readInstallParameter(bArray, bOffset, bLength, (short) 0,
+        KMRepository.DEFAULT_MAX_OPS, KMRepository.MAX_OPS_LIMIT);
+  }
+
+  /**
+   * Reads the number of key slots from the second byte of the application specific install
+   * parameters. The default is used if it is absent or out of range.
+   *
+   * @param bArray the array containing installation parameters
+   * @param bOffset the starting offset in bArray
+   * @param bLength the length in bytes of the parameter data in bArray
+   * @return the number of keys which can be loaded at the same time
+   */
+  protected static short readKeySlots(byte[] bArray, short bOffset, byte bLength) {
+    return readInstallParameter(bArray, bOffset, bLength, (short) 1,
+        KMRepository.DEFAULT_KEY_SLOTS, KMRepository.KEY_SLOTS_LIMIT);
+  }
+
+  // Returns the byte at the given index of the application specific install parameters, or the
+  // default if it is absent or not between 1 and the limit.
+  private static short readInstallParameter(byte[] bArray, short bOffset, byte bLength,
+      short index, short defaultValue, short limit) {
+    short end = (short) (bOffset + (short) (bLength & 0xFF));
+    if (bArray == null || bLength == 0) {
+      return defaultValue;
+    }
+    // Skip the instance AID and the privileges.
+    short offset = (short) (bOffset + (short) (bArray[bOffset] & 0xFF) + 1);
+    if (offset >= end) {
+      return defaultValue;
+    }
+    offset += (short) ((short) (bArray[offset] & 0xFF) + 1);
+    // Application specific parameters.
+    if ((short) (offset + index + 1) < end && (short) (bArray[offset] & 0xFF) > index) {
+      short value = (short) (bArray[(short) (offset + index + 1)] & 0xFF);
+      if (value > 0 && value <= limit) {
+        return value;
+      }
+    }
+    return defaultValue;
+  }
+
   private void initializeTransientArrays() {
     data = JCSystem.makeTransientShortArray((short) DATA_ARRAY_SIZE, JCSystem.CLEAR_ON_RESET);
     bufferRef = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
@@ -310,6 +415,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public void process(APDU apdu) {
     try {
       repository.onProcess();
+      KMType.buildSchemas();
       // Verify whether applet is in correct state.
       if ((keymasterState == KMKeymasterApplet.INIT_STATE)
           || (keymasterState == KMKeymasterApplet.ILLEGAL_STATE)) {
@@ -468,6 +574,24 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           case INS_GET_CERT_CHAIN_CMD:
             processGetCertChainCmd(apdu);
             break;
+          case INS_GET_CERT_CHAIN_PART_CMD:
+            processGetCertChainPartCmd(apdu);
+            break;
+          case INS_GET_OPERATION_STATS_CMD:
+            processGetOperationStatsCmd(apdu);
+            break;
+          case INS_LOAD_KEY_CMD:
+            processLoadKeyCmd(apdu);
+            break;
+          case INS_UNLOAD_KEY_CMD:
+            processUnloadKeyCmd(apdu);
+            break;
+          case INS_BEGIN_LOADED_KEY_CMD:
+            processBeginLoadedKeyCmd(apdu);
+            break;
+          case INS_ONESHOT_OPERATION_CMD:
+            processOneShotOperationCmd(apdu);
+            break;
           case INS_SET_VERSION_PATCHLEVEL_CMD:
             processSetVersionAndPatchLevels(apdu);
             break;
@@ -520,6 +644,20 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         repository.releaseOperation(op);
       }
     }
+    KMOperationState.releaseOneShot();
+  }
+
+  private void processGetOperationStatsCmd(APDU apdu) {
+    // No arguments expected
+    // Make the response - error, max operations, evictions and rejections.
+    short resp = KMArray.instance((short) 4);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, KMInteger.uint_16(repository.getMaxOperations()));
+    KMArray.cast(resp).add((short) 2,
+        KMInteger.uint_16(repository.getOpStats(KMRepository.OP_STATS_EVICTIONS)));
+    KMArray.cast(resp).add((short) 3,
+        KMInteger.uint_16(repository.getOpStats(KMRepository.OP_STATS_REJECTIONS)));
+    sendOutgoing(apdu, resp);
   }
 
   private void processEarlyBootEndedCmd(APDU apdu) {
@@ -536,7 +674,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     tmpVariables[1] = KMArray.cast(tmpVariables[0]).get((short) 0);
     tmpVariables[1] = KMInteger.cast(tmpVariables[1]).getByte();
@@ -571,8 +709,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
    * Sends a response, may be extended response, as requested by the command.
    */
   public static void sendOutgoing(APDU apdu) {
-    if (((short) (bufferProp[BUF_LEN_OFFSET] + bufferProp[BUF_START_OFFSET])) > ((short) repository
-        .getHeap().length)) {
+    if (((short) (bufferProp[BUF_LEN_OFFSET] + bufferProp[BUF_START_OFFSET]))
+        > KMRepository.HEAP_SIZE) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
     // Send data
@@ -582,13 +720,29 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   /**
-   * Receives data, which can be extended data, as requested by the command instance.
+   * Encodes and sends the response. The response is streamed through the apdu buffer, so it does
+   * not take up any heap memory.
+   */
+  public static void sendOutgoing(APDU apdu, short resp) {
+    encoder.encode(resp, apdu);
+  }
+
+  /**
+   * Receives data, which can be extended data, as requested by the command instance. If all the
+   * data is received at once it is decoded from the apdu buffer, otherwise it is copied to the
+   * heap.
    */
   public static void receiveIncoming(APDU apdu) {
     byte[] srcBuffer = apdu.getBuffer();
     short recvLen = apdu.setIncomingAndReceive();
     short srcOffset = apdu.getOffsetCdata();
     bufferProp[BUF_LEN_OFFSET] = apdu.getIncomingLength();
+    if (recvLen == bufferProp[BUF_LEN_OFFSET]) {
+      // The apdu buffer cannot be stored, a null buffer makes the decoder read from it.
+      bufferRef[0] = null;
+      bufferProp[BUF_START_OFFSET] = srcOffset;
+      return;
+    }
     bufferProp[BUF_START_OFFSET] = repository.allocReclaimableMemory(bufferProp[BUF_LEN_OFFSET]);
     short index = bufferProp[BUF_START_OFFSET];
 
@@ -599,6 +753,18 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
+  /**
+   * Releases the data received by receiveIncoming once it is decoded. The apdu buffer is then
+   * free to be used as scratch pad.
+   */
+  private static void reclaimIncoming() {
+    if (bufferRef[0] == null) {
+      bufferRef[0] = repository.getHeap();
+    } else {
+      repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    }
+  }
+
   private void processGetHwInfoCmd(APDU apdu) {
     // No arguments expected
     final byte[] JavacardKeymasterDevice = {
@@ -617,11 +783,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             JavacardKeymasterDevice, (short) 0, (short) JavacardKeymasterDevice.length));
     resp.add((short) 2, KMByteBlob.instance(Google, (short) 0, (short) Google.length));
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response - actual bufferProp[BUF_LEN_OFFSET] is 86
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(respPtr, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    // send buffer to master
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, respPtr);
   }
 
   private void processAddRngEntropyCmd(APDU apdu) {
@@ -633,7 +795,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     // Process
     KMByteBlob blob = KMByteBlob.cast(KMArray.cast(args).get((short) 0));
@@ -662,7 +824,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     tmpVariables[1] = KMArray.cast(args).get((short) 1);
@@ -683,24 +845,69 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMInteger.cast(tmpVariables[2]).getStartOff(),
       KMInteger.cast(tmpVariables[2]).length());
 
+    // Loaded keys skip the version and patch level check of the key blob, so they have to be
+    // loaded again.
+    repository.clearKeySlots();
     sendError(apdu, KMError.OK);
   }
 
   private void processGetCertChainCmd(APDU apdu) {
-    // Make the response
     tmpVariables[0] = seProvider.getCertificateChainLength();
-    // Add arrayHeader and KMError.OK
-    tmpVariables[0] += 2;
-    tmpVariables[1] = KMByteBlob.instance(tmpVariables[0]);
-    bufferRef[0] = KMByteBlob.cast(tmpVariables[1]).getBuffer();
-    bufferProp[BUF_START_OFFSET] = KMByteBlob.cast(tmpVariables[1]).getStartOff();
-    bufferProp[BUF_LEN_OFFSET] = KMByteBlob.cast(tmpVariables[1]).length();
-    // read the cert chain from non-volatile memory. Cert chain is already in
-    // CBOR format.
-    seProvider.readCertificateChain((byte[]) bufferRef[0], (short) (bufferProp[BUF_START_OFFSET] + 2));
-    // Encode cert chain.
-    encoder.encodeCertChain((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode arrayHeader and KMError.OK, the cert chain is already in CBOR format.
+    tmpVariables[1] = KMByteBlob.instance((short) 2);
+    encoder.encodeCertChain(
+        KMByteBlob.cast(tmpVariables[1]).getBuffer(),
+        KMByteBlob.cast(tmpVariables[1]).getStartOff(),
+        (short) 2);
+    apdu.setOutgoing();
+    apdu.setOutgoingLength((short) (tmpVariables[0] + 2));
+    apdu.sendBytesLong(
+        KMByteBlob.cast(tmpVariables[1]).getBuffer(),
+        KMByteBlob.cast(tmpVariables[1]).getStartOff(),
+        (short) 2);
+    // The cert chain is sent from non-volatile memory without copying it to the heap.
+    seProvider.sendCertificateChain((short) 0, tmpVariables[0]);
+  }
+
+  private void processGetCertChainPartCmd(APDU apdu) {
+    receiveIncoming(apdu);
+    // Arguments
+    tmpVariables[0] = KMArray.instance((short) 2);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.exp()); // Offset
+    KMArray.cast(tmpVariables[0]).add((short) 1, KMInteger.exp()); // Length
+    // Decode the arguments
+    tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    //reclaim memory
+    reclaimIncoming();
+
+    tmpVariables[1] = KMArray.cast(tmpVariables[0]).get((short) 0);
+    tmpVariables[2] = KMArray.cast(tmpVariables[0]).get((short) 1);
+    if (KMInteger.cast(tmpVariables[1]).getSignificantShort() != 0
+        || KMInteger.cast(tmpVariables[2]).getSignificantShort() != 0) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    tmpVariables[1] = KMInteger.cast(tmpVariables[1]).getShort();
+    tmpVariables[2] = KMInteger.cast(tmpVariables[2]).getShort();
+    // The part must lie within the cert chain, which is the CBOR encoded byte blob of the certs.
+    tmpVariables[0] = seProvider.getCertificateChainLength();
+    if (tmpVariables[1] < 0 || tmpVariables[2] < 0
+        || tmpVariables[1] > (short) (tmpVariables[0] - tmpVariables[2])) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    tmpVariables[3] = KMByteBlob.instance(CERT_CHAIN_PART_HEADER_SIZE);
+    tmpVariables[4] =
+        encoder.encodeCertChainPartHeader(
+            tmpVariables[0],
+            tmpVariables[2],
+            KMByteBlob.cast(tmpVariables[3]).getBuffer(),
+            KMByteBlob.cast(tmpVariables[3]).getStartOff());
+    apdu.setOutgoing();
+    apdu.setOutgoingLength((short) (tmpVariables[4] + tmpVariables[2]));
+    apdu.sendBytesLong(
+        KMByteBlob.cast(tmpVariables[3]).getBuffer(),
+        KMByteBlob.cast(tmpVariables[3]).getStartOff(),
+        tmpVariables[4]);
+    seProvider.sendCertificateChain(tmpVariables[1], tmpVariables[2]);
   }
 
   private void processProvisionAttestationCertParams(APDU apdu) {
@@ -713,7 +920,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument.
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     // save issuer - DER Encoded
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
@@ -740,22 +947,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     short recvLen = apdu.setIncomingAndReceive();
     short srcOffset = apdu.getOffsetCdata();
     bufferProp[BUF_LEN_OFFSET] = apdu.getIncomingLength();
-    bufferProp[BUF_START_OFFSET] = repository.alloc(bufferProp[BUF_LEN_OFFSET]);
     short bytesRead = 0;
-    Util.arrayCopyNonAtomic(srcBuffer, srcOffset, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET],
-        recvLen);
-    // tmpVariables[1] holds the total length + Header length.
-    tmpVariables[1] = decoder.readCertificateChainLengthAndHeaderLen((byte[]) bufferRef[0],
-        bufferProp[BUF_START_OFFSET], recvLen);
+    // tmpVariables[1] holds the total length + Header length. A null buffer makes the decoder read
+    // the apdu buffer.
+    tmpVariables[1] = decoder.readCertificateChainLengthAndHeaderLen(null, srcOffset, recvLen);
+    // Each received part is persisted directly from the apdu buffer, so the cert chain does not
+    // take up any heap memory.
     while (recvLen > 0 && ((short) bytesRead <= bufferProp[BUF_LEN_OFFSET])) {
-      seProvider.persistPartialCertificateChain((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET],
-          recvLen, bufferProp[BUF_LEN_OFFSET]);
+      seProvider.persistPartialCertificateChain(srcBuffer, srcOffset, recvLen,
+          bufferProp[BUF_LEN_OFFSET]);
       bytesRead += recvLen;
       recvLen = apdu.receiveBytes(srcOffset);
-      if (recvLen > 0) {
-        Util.arrayCopyNonAtomic(srcBuffer, srcOffset, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET],
-            recvLen);
-      }
     }
     if (tmpVariables[1] != bytesRead) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
@@ -778,7 +980,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     // key params should have os patch, os version and verified root of trust
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 0);
@@ -843,7 +1045,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument.
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 0);
     // persist attestation Ids - if any is missing then exception occurs
@@ -866,7 +1068,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument.
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     if (tmpVariables[0] != KMType.INVALID_VALUE
@@ -885,9 +1087,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, KMInteger.uint_16(provisionStatus));
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void saveAttId(short attTag) {
@@ -940,7 +1140,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_BLOB] = KMArray.cast(tmpVariables[0]).get((short) 0);
     data[APP_ID] = KMArray.cast(tmpVariables[0]).get((short) 1);
@@ -960,10 +1160,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void processGetHmacSharingParamCmd(APDU apdu) {
@@ -977,15 +1174,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[3]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[3]).add((short) 1, tmpVariables[2]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[3], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[3]);
   }
 
   private void processDeleteAllKeysCmd(APDU apdu) {
 
     // No arguments
+    repository.clearKeyBlobCache();
+    repository.clearKeySlots();
     // Send ok
     sendError(apdu, KMError.OK);
   }
@@ -1000,32 +1196,101 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     // Process
     data[KEY_BLOB] = KMArray.cast(args).get((short) 0);
-    tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
-    tmpVariables[1] = KMArray.instance((short) 5);
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE, KMByteBlob.exp());
-    tmpVariables[2] = KMKeyCharacteristics.exp();
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, tmpVariables[2]);
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, KMByteBlob.exp());
     try {
-      data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
-          KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
-          KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
-          KMByteBlob.cast(data[KEY_BLOB]).length());
+      tmpVariables[1] = readKeyBlobVersion();
+      if (tmpVariables[1] != KEY_BLOB_VERSION_2) {
+        data[KEY_BLOB] = decodeKeyBlob(tmpVariables[1]);
+      }
     } catch (ISOException e) {
       // As per VTS, deleteKey should return KMError.OK but in case if
       // input is empty then VTS accepts UNIMPLEMENTED errorCode as well.
       KMException.throwIt(KMError.UNIMPLEMENTED);
     }
-    tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
-    if (tmpVariables[0] < 4) {
-      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    if (tmpVariables[1] == KEY_BLOB_VERSION_2) {
+      tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).length();
+      if (tmpVariables[0] < KEY_BLOB_V2_HEADER_SIZE) {
+        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      }
+    } else {
+      tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
+      if (tmpVariables[0] < 4) {
+        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      }
+    }
+    // Send ok
+    sendError(apdu, KMError.OK);
+  }
+
+  private void processLoadKeyCmd(APDU apdu) {
+    // Receive the incoming request fully from the master.
+    receiveIncoming(apdu);
+    // Re-purpose the apdu buffer as scratch pad.
+    byte[] scratchPad = apdu.getBuffer();
+    // Arguments - same as getKeyCharacteristics.
+    tmpVariables[0] = KMArray.instance((short) 3);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp());
+    KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp());
+    KMArray.cast(tmpVariables[0]).add((short) 2, KMByteBlob.exp());
+    // Decode the arguments
+    tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    //reclaim memory
+    reclaimIncoming();
+
+    data[KEY_BLOB] = KMArray.cast(tmpVariables[0]).get((short) 0);
+    data[APP_ID] = KMArray.cast(tmpVariables[0]).get((short) 1);
+    data[APP_DATA] = KMArray.cast(tmpVariables[0]).get((short) 2);
+    if (!KMByteBlob.cast(data[APP_ID]).isValid()) {
+      data[APP_ID] = KMType.INVALID_VALUE;
+    }
+    if (!KMByteBlob.cast(data[APP_DATA]).isValid()) {
+      data[APP_DATA] = KMType.INVALID_VALUE;
     }
+    // Parse Key Blob
+    parseEncryptedKeyBlob(scratchPad);
+    // Check Version and Patch Level
+    checkVersionAndPatchLevel(scratchPad);
+    // Only version 2 key blobs are loaded, older ones need to be upgraded first.
+    if (data[KEY_BLOB_VERSION] != KEY_BLOB_VERSION_2) {
+      KMException.throwIt(KMError.KEY_REQUIRES_UPGRADE);
+    }
+    // Replace the encrypted secret by the decrypted secret, which has the same length, and load
+    // the key blob.
+    tmpVariables[1] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    copyToKeyBlob(data[SECRET], tmpVariables[1], KEY_BLOB_V2_SECRET);
+    // The loaded key is bound to the application id and application data, which every use of
+    // the key handle must present again.
+    tmpVariables[3] = makeAppBinding();
+    tmpVariables[2] = repository.loadKeySlot(
+        KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+        tmpVariables[1],
+        KMByteBlob.cast(data[KEY_BLOB]).length(),
+        repository.getHeap(),
+        tmpVariables[3]);
+    // make response.
+    tmpVariables[0] = KMArray.instance((short) 2);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[2]);
+
+    sendOutgoing(apdu, tmpVariables[0]);
+  }
+
+  private void processUnloadKeyCmd(APDU apdu) {
+    // Receive the incoming request fully from the master.
+    receiveIncoming(apdu);
+    // Arguments
+    tmpVariables[0] = KMArray.instance((short) 1);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.exp());
+    // Decode the argument
+    tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    //reclaim memory
+    reclaimIncoming();
+
+    tmpVariables[0] = KMArray.cast(tmpVariables[0]).get((short) 0);
+    repository.unloadKeySlot(tmpVariables[0]);
     // Send ok
     sendError(apdu, KMError.OK);
   }
@@ -1041,11 +1306,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[0] = decoder.decode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[HMAC_SHARING_PARAMS] = KMArray.cast(tmpVariables[0]).get((short) 0);
     // Concatenate HMAC Params
     tmpVariables[0] = KMArray.cast(data[HMAC_SHARING_PARAMS]).length(); // total number of params
+    short mark = repository.markHeap();
     tmpVariables[1] = repository.alloc((short) (tmpVariables[0] * HMAC_SHARED_PARAM_MAX_SIZE));
     tmpVariables[2] = 0; // index for params
     tmpVariables[3] = 0; // index for concatenation buffer
@@ -1122,6 +1388,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             tmpVariables[3],
             scratchPad,
             (short) 0);
+    // The concatenated params are no longer needed.
+    repository.resetHeap(mark);
     // persist the computed hmac key.
     repository.initComputedHmac(scratchPad, (short) 0, tmpVariables[6]);
 
@@ -1143,10 +1411,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private boolean isKeyUpgradeRequired(short tag, short systemParam) {
@@ -1185,7 +1450,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_BLOB] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -1207,6 +1472,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     isKeyUpgradeRequired |= isKeyUpgradeRequired(KMType.OS_PATCH_LEVEL, repository.getOsPatch());
     isKeyUpgradeRequired |= isKeyUpgradeRequired(KMType.VENDOR_PATCH_LEVEL, repository.getVendorPatchLevel());
     isKeyUpgradeRequired |= isKeyUpgradeRequired(KMType.BOOT_PATCH_LEVEL, repository.getBootPatchLevel());
+    // Key blobs of older versions are migrated to the current version.
+    isKeyUpgradeRequired |= (data[KEY_BLOB_VERSION] != KEY_BLOB_VERSION_2);
 
     if (isKeyUpgradeRequired) {
       // copy origin
@@ -1221,10 +1488,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void processExportKeyCmd(APDU apdu) {
@@ -1254,7 +1518,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     short args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     // Step -0 - check whether the key format and algorithm supported
     // read algorithm
@@ -1407,7 +1671,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_BLOB] = KMArray.cast(args).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 1);
@@ -1486,18 +1750,38 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     cert.verifiedBootKey(repository.getVerifiedBootKey());
     cert.verifiedBootState(repository.getBootState());
-    // buffer for cert - we allocate 2KBytes buffer
-    // make this buffer size configurable
-    tmpVariables[3] = KMByteBlob.instance(MAX_CERT_SIZE);
-    bufferRef[0] = KMByteBlob.cast(tmpVariables[3]).getBuffer();
-    bufferProp[BUF_START_OFFSET] = KMByteBlob.cast(tmpVariables[3]).getStartOff();
-    bufferProp[BUF_LEN_OFFSET] = KMByteBlob.cast(tmpVariables[3]).length();
-    cert.buffer((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    // The fields which only depend on the issuer and the boot parameters are encoded once and
+    // reused by all the attestations. If they do not fit they are encoded for each cert.
+    tmpVariables[5] = repository.readCertTemplate();
+    if (tmpVariables[5] == KMType.INVALID_VALUE) {
+      tmpVariables[6] = cert.encodeTemplate(repository.getHeap(),
+          repository.getCertTemplateStart(), KMRepository.CERT_TEMPLATE_MAX_SIZE);
+      if (tmpVariables[6] > 0) {
+        tmpVariables[5] = repository.setCertTemplate(tmpVariables[6]);
+      }
+    }
+    cert.template(tmpVariables[5]);
+    // The cert is signed and sent in pieces through a small buffer, which is independent of the
+    // size of the cert.
+    tmpVariables[3] = KMByteBlob.instance(CERT_BUF_SIZE);
+    cert.buffer(
+        KMByteBlob.cast(tmpVariables[3]).getBuffer(),
+        KMByteBlob.cast(tmpVariables[3]).getStartOff(),
+        CERT_BUF_SIZE);
     cert.build();
-    bufferProp[BUF_START_OFFSET] =
-        encoder.encodeCert((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], cert.getCertStart(), cert.getCertLength());
-    bufferProp[BUF_LEN_OFFSET] = (short) (cert.getCertLength() + (cert.getCertStart() - bufferProp[BUF_START_OFFSET]));
-    sendOutgoing(apdu);
+    // Send the response header and then the cert.
+    tmpVariables[4] =
+        encoder.encodeCertHeader(
+            cert.getCertLength(),
+            KMByteBlob.cast(tmpVariables[3]).getBuffer(),
+            KMByteBlob.cast(tmpVariables[3]).getStartOff());
+    apdu.setOutgoing();
+    apdu.setOutgoingLength((short) (tmpVariables[4] + cert.getCertLength()));
+    apdu.sendBytesLong(
+        KMByteBlob.cast(tmpVariables[3]).getBuffer(),
+        KMByteBlob.cast(tmpVariables[3]).getStartOff(),
+        tmpVariables[4]);
+    cert.send();
   }
 
   // --------------------------------
@@ -1596,7 +1880,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[1]).add((short) 0, KMInteger.exp());
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     KMOperationState op = repository.findOperation(data[OP_HANDLE]);
@@ -1624,7 +1908,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -1664,10 +1948,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 1, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 2, data[OUTPUT_DATA]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[2]);
   }
 
   private void finishEncryptOperation(KMOperationState op, byte[] scratchPad) {
@@ -1722,9 +2003,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       case KMType.RSA:
         // Fill the scratch pad with zero
         Util.arrayFillNonAtomic(scratchPad, (short) 0, (short) 256, (byte) 0);
-        if (op.getPadding() == KMType.PADDING_NONE && len != 256) {
-          KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
-        }
+        // The operation checks the length of the input, including any buffered by update.
         len =
             op.getOperation()
                 .finish(
@@ -1913,6 +2192,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       }
       op.setAuthTimeoutValidated(true);
     } else if (op.isAuthPerOperationReqd()) { // If Auth per operation is required
+      // The same token is presented with every update and finish, so after the first time its mac
+      // is found in the auth token cache.
+      if (!validateHwToken(data[HW_TOKEN], scratchPad)) {
+        KMException.throwIt(KMError.KEY_USER_NOT_AUTHENTICATED);
+      }
       tmpVariables[0] = KMHardwareAuthToken.cast(data[HW_TOKEN]).getChallenge();
       if (KMInteger.compare(data[OP_HANDLE], tmpVariables[0]) != 0) {
         KMException.throwIt(KMError.KEY_USER_NOT_AUTHENTICATED);
@@ -2004,6 +2288,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
     // hmac the data
     ptr = KMVerificationToken.cast(verToken).getMac();
+    if (isAuthTokenCached(scratchPad, len, ptr)) {
+      return;
+    }
     short key = repository.getComputedHmacKey();
     boolean verified =
         seProvider.hmacVerify(
@@ -2020,6 +2307,29 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (!verified) {
       KMException.throwIt(KMError.VERIFICATION_FAILED);
     }
+    cacheAuthToken(scratchPad, len, ptr);
+  }
+
+  // Returns true if the token with the mac input in the scratch pad and the given mac is already
+  // verified with the current computed hmac key.
+  private boolean isAuthTokenCached(byte[] scratchPad, short len, short mac) {
+    return repository.isAuthTokenCached(
+        scratchPad,
+        (short) 0,
+        len,
+        KMByteBlob.cast(mac).getBuffer(),
+        KMByteBlob.cast(mac).getStartOff(),
+        KMByteBlob.cast(mac).length());
+  }
+
+  private void cacheAuthToken(byte[] scratchPad, short len, short mac) {
+    repository.cacheAuthToken(
+        scratchPad,
+        (short) 0,
+        len,
+        KMByteBlob.cast(mac).getBuffer(),
+        KMByteBlob.cast(mac).getStartOff(),
+        KMByteBlob.cast(mac).length());
   }
 
   private void processUpdateOperationCmd(APDU apdu) {
@@ -2038,7 +2348,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -2068,11 +2378,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
               KMByteBlob.cast(data[INPUT_DATA]).length());
       data[OUTPUT_DATA] = KMType.INVALID_VALUE;
     } else if (op.getPurpose() == KMType.ENCRYPT || op.getPurpose() == KMType.DECRYPT) {
-      // Update for encrypt/decrypt using RSA will not be supported because to do this op state
-      //  will have to buffer the data - so reject the update if it is rsa algorithm.
-      if (op.getAlgorithm() == KMType.RSA) {
-        KMException.throwIt(KMError.OPERATION_CANCELLED);
-      }
+      // RSA input is buffered by the operation until finish, so it produces no output.
       tmpVariables[0] = KMByteBlob.cast(data[INPUT_DATA]).length();
       short additionalExpOutLen = 0;
       if (op.getAlgorithm() == KMType.AES) {
@@ -2147,10 +2453,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 2, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 3, data[OUTPUT_DATA]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[2]);
   }
 
   private void processBeginOperationCmd(APDU apdu) {
@@ -2169,11 +2472,18 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
     data[KEY_BLOB] = KMArray.cast(args).get((short) 1);
-    // Check for app id and app data.
+    readApplicationIdAndData();
+    // Parse the encrypted blob and decrypt it.
+    parseEncryptedKeyBlob(scratchPad);
+    beginOperation(apdu, args, scratchPad);
+  }
+
+  // Reads the app id and the app data, if any, from the key parameters.
+  private void readApplicationIdAndData() {
     data[APP_ID] =
         KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_ID, data[KEY_PARAMETERS]);
     data[APP_DATA] =
@@ -2184,8 +2494,106 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (data[APP_DATA] != KMTag.INVALID_VALUE) {
       data[APP_DATA] = KMByteTag.cast(data[APP_DATA]).getValue();
     }
+  }
+
+  // Begins, authorizes and finishes an operation in a single command. The operation is never
+  // kept in an operation state record, so it is not limited by the number of operations. Keys
+  // which require authentication per operation can not be used, as there is no operation
+  // handle to bind the auth token to.
+  private void processOneShotOperationCmd(APDU apdu) {
+    // Receive the incoming request fully from the master into buffer.
+    receiveIncoming(apdu);
+    byte[] scratchPad = apdu.getBuffer();
+    tmpVariables[1] = KMArray.instance((short) 7);
+    // Arguments - the begin arguments followed by the input data, the signature and the
+    // verification token of finish.
+    tmpVariables[2] = KMKeyParameters.exp();
+    KMArray.cast(tmpVariables[1]).add((short) 0, KMEnum.instance(KMType.PURPOSE));
+    KMArray.cast(tmpVariables[1]).add((short) 1, KMByteBlob.exp());
+    KMArray.cast(tmpVariables[1]).add((short) 2, tmpVariables[2]);
+    KMArray.cast(tmpVariables[1]).add((short) 3, KMByteBlob.exp());
+    KMArray.cast(tmpVariables[1]).add((short) 4, KMByteBlob.exp());
+    tmpVariables[3] = KMHardwareAuthToken.exp();
+    KMArray.cast(tmpVariables[1]).add((short) 5, tmpVariables[3]);
+    tmpVariables[4] = KMVerificationToken.exp();
+    KMArray.cast(tmpVariables[1]).add((short) 6, tmpVariables[4]);
+    // Decode the arguments
+    short args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    //reclaim memory
+    reclaimIncoming();
+
+    data[KEY_BLOB] = KMArray.cast(args).get((short) 1);
+    data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
+    data[INPUT_DATA] = KMArray.cast(args).get((short) 3);
+    data[SIGNATURE] = KMArray.cast(args).get((short) 4);
+    data[HW_TOKEN] = KMArray.cast(args).get((short) 5);
+    data[VERIFICATION_TOKEN] = KMArray.cast(args).get((short) 6);
+    readApplicationIdAndData();
     // Parse the encrypted blob and decrypt it.
     parseEncryptedKeyBlob(scratchPad);
+    tmpVariables[0] = KMArray.cast(args).get((short) 0);
+    KMOperationState op = KMOperationState.oneShot();
+    startOperation(op, KMEnum.cast(tmpVariables[0]).getVal(), scratchPad);
+    if (op.isAuthPerOperationReqd()) {
+      KMException.throwIt(KMError.KEY_USER_NOT_AUTHENTICATED);
+    }
+    // Authorize and finish the operation.
+    authorizeUpdateFinishOperation(op, scratchPad);
+    switch (op.getPurpose()) {
+      case KMType.SIGN:
+      case KMType.VERIFY:
+        finishSigningVerifyingOperation(op, scratchPad);
+        break;
+      case KMType.ENCRYPT:
+        finishEncryptOperation(op, scratchPad);
+        break;
+      case KMType.DECRYPT:
+        finishDecryptOperation(op, scratchPad);
+        break;
+    }
+    tmpVariables[1] = makeBeginOutParams(op);
+    op.release();
+    // make response
+    tmpVariables[2] = KMArray.instance((short) 3);
+    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
+    }
+    KMArray.cast(tmpVariables[2]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[2]).add((short) 1, tmpVariables[1]);
+    KMArray.cast(tmpVariables[2]).add((short) 2, data[OUTPUT_DATA]);
+
+    sendOutgoing(apdu, tmpVariables[2]);
+  }
+
+  private void processBeginLoadedKeyCmd(APDU apdu) {
+    // Receive the incoming request fully from the master into buffer.
+    receiveIncoming(apdu);
+    byte[] scratchPad = apdu.getBuffer();
+    short args;
+    tmpVariables[1] = KMArray.instance((short) 4);
+    // Arguments - same as begin, with the key handle in place of the key blob.
+    tmpVariables[2] = KMKeyParameters.exp();
+    KMArray.cast(tmpVariables[1]).add((short) 0, KMEnum.instance(KMType.PURPOSE));
+    KMArray.cast(tmpVariables[1]).add((short) 1, KMInteger.exp());
+    KMArray.cast(tmpVariables[1]).add((short) 2, tmpVariables[2]);
+    tmpVariables[3] = KMHardwareAuthToken.exp();
+    KMArray.cast(tmpVariables[1]).add((short) 3, tmpVariables[3]);
+    // Decode the arguments
+    args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    //reclaim memory
+    reclaimIncoming();
+
+    data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
+    tmpVariables[0] = KMArray.cast(args).get((short) 1);
+    readApplicationIdAndData();
+    // The loaded key was verified and decrypted by loadKey.
+    readLoadedKey(tmpVariables[0]);
+    beginOperation(apdu, args, scratchPad);
+  }
+
+  // Begins the operation with the key in data, for the purpose and the hardware auth token
+  // in the begin arguments.
+  private void beginOperation(APDU apdu, short args, byte[] scratchPad) {
     // Authorize the begin operation and reserve op - data[OP_HANDLE] will have the handle.
     // It will also set data[IV] field if required.
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
@@ -2207,7 +2615,19 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
     }
     data[OP_HANDLE] = op.getHandle();
-    op.setPurpose((byte) tmpVariables[0]);
+    startOperation(op, tmpVariables[0], scratchPad);
+    tmpVariables[1] = makeBeginOutParams(op);
+    tmpVariables[0] = KMArray.instance((short) 3);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
+    KMArray.cast(tmpVariables[0]).add((short) 2, data[OP_HANDLE]);
+
+    sendOutgoing(apdu, tmpVariables[0]);
+  }
+
+  // Authorizes and begins the operation with the key in data for the given purpose.
+  private void startOperation(KMOperationState op, short purpose, byte[] scratchPad) {
+    op.setPurpose((byte) purpose);
     op.setKeySize(KMByteBlob.cast(data[SECRET]).length());
     authorizeAndBeginOperation(op, scratchPad);
     switch (op.getPurpose()) {
@@ -2223,6 +2643,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMException.throwIt(KMError.UNIMPLEMENTED);
         break;
     }
+  }
+
+  // Returns the out parameters of begin, which hold the nonce if it is to be returned.
+  private short makeBeginOutParams(KMOperationState op) {
     // If the data[IV] is required to be returned.
     // As per VTS, for the decryption operation don't send the iv back.
     if (data[IV] != KMType.INVALID_VALUE
@@ -2246,16 +2670,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     } else {
       tmpVariables[2] = KMArray.instance((short) 0);
     }
-    tmpVariables[1] = KMKeyParameters.instance(tmpVariables[2]);
-    tmpVariables[0] = KMArray.instance((short) 3);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
-    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
-    KMArray.cast(tmpVariables[0]).add((short) 2, data[OP_HANDLE]);
-
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    return KMKeyParameters.instance(tmpVariables[2]);
   }
 
   private void authorizeAlgorithm(KMOperationState op) {
@@ -2768,17 +3183,25 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     len += 8;
     // hmac the data
     ptr = KMHardwareAuthToken.cast(hwToken).getMac();
+    if (isAuthTokenCached(scratchPad, len, ptr)) {
+      return true;
+    }
     short key = repository.getComputedHmacKey();
-    return seProvider.hmacVerify(
-        KMByteBlob.cast(key).getBuffer(),
-        KMByteBlob.cast(key).getStartOff(),
-        KMByteBlob.cast(key).length(),
-        scratchPad,
-        (short) 0,
-        len,
-        KMByteBlob.cast(ptr).getBuffer(),
-        KMByteBlob.cast(ptr).getStartOff(),
-        KMByteBlob.cast(ptr).length());
+    boolean verified =
+        seProvider.hmacVerify(
+            KMByteBlob.cast(key).getBuffer(),
+            KMByteBlob.cast(key).getStartOff(),
+            KMByteBlob.cast(key).length(),
+            scratchPad,
+            (short) 0,
+            len,
+            KMByteBlob.cast(ptr).getBuffer(),
+            KMByteBlob.cast(ptr).getStartOff(),
+            KMByteBlob.cast(ptr).length());
+    if (verified) {
+      cacheAuthToken(scratchPad, len, ptr);
+    }
+    return verified;
   }
 
   private void processImportKeyCmd(APDU apdu) {
@@ -2794,7 +3217,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 0);
     tmpVariables[3] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -2862,10 +3285,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void importECKeys(byte[] scratchPad) {
@@ -2938,8 +3358,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, tmpVariables[4]);
     // validate updated key parameters.
     validateECKeys();
-    data[KEY_BLOB] = KMArray.instance((short) 5);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private void importHmacKey(byte[] scratchPad) {
@@ -2982,8 +3400,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, tmpVariables[4]);
     // validate HMAC Key parameters
     validateHmacKey();
-
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private void importTDESKey(byte[] scratchPad) {
@@ -3024,8 +3440,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, tmpVariables[4]);
     // validate TDES Key parameters
     validateTDESKey();
-
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private void importAESKey(byte[] scratchPad) {
@@ -3067,20 +3481,29 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, tmpVariables[4]);
     // validate AES Key parameters
     validateAESKey();
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private void importRSAKey(byte[] scratchPad) {
     // Decode key material
-    tmpVariables[0] = KMArray.instance((short) 2);
+    tmpVariables[0] = KMArray.instance(RSA_IMPORT_KEY_MATERIAL_SIZE);
     KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret = private exponent
     KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp()); // modulus
+    tmpVariables[1] = RSA_IMPORT_CRT_OFFSET; // P, Q, DP, DQ and PQ
+    while (tmpVariables[1] < RSA_IMPORT_KEY_MATERIAL_SIZE) {
+      KMArray.cast(tmpVariables[0]).add(tmpVariables[1], KMByteBlob.exp());
+      tmpVariables[1]++;
+    }
     tmpVariables[0] =
-        decoder.decode(
+        decoder.decodeArray(
             tmpVariables[0],
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
+    tmpVariables[1] = KMArray.cast(tmpVariables[0]).length();
+    if (tmpVariables[1] != RSA_IMPORT_CRT_OFFSET
+        && tmpVariables[1] != RSA_IMPORT_KEY_MATERIAL_SIZE) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
     data[SECRET] = KMArray.cast(tmpVariables[0]).get((short) 0);
     data[PUB_KEY] = KMArray.cast(tmpVariables[0]).get((short) 1);
     tmpVariables[4] = 0; // index in scratchPad for update parameters.
@@ -3125,22 +3548,53 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       tmpVariables[4] += 2;
     }
 
-    // Check whether key can be created
-    seProvider.importAsymmetricKey(
+    // Store the CRT parameters instead of the private exponent if they are imported.
+    if (KMArray.cast(tmpVariables[0]).length() == RSA_IMPORT_KEY_MATERIAL_SIZE) {
+      data[SECRET] = makeRsaCrtSecret(tmpVariables[0]);
+    }
+    // Check whether key can be created. The CRT parameters must also match the modulus and the
+    // public exponent.
+    if (!seProvider.importAsymmetricKey(
         KMType.RSA,
         KMByteBlob.cast(data[SECRET]).getBuffer(),
         KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[SECRET]).length(),
         KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
         KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
-        KMByteBlob.cast(data[PUB_KEY]).length());
+        KMByteBlob.cast(data[PUB_KEY]).length())) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
 
     // update the key parameters list
     updateKeyParameters(scratchPad, tmpVariables[4]);
     // validate RSA Key parameters
     validateRSAKey(scratchPad);
-    data[KEY_BLOB] = KMArray.instance((short) 5);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
+  }
+
+  private static short makeRsaCrtSecret(short keyMaterial) {
+    short secret = KMByteBlob.instance(RSA_CRT_KEY_SIZE);
+    short secretOff = KMByteBlob.cast(secret).getStartOff();
+    Util.arrayFillNonAtomic(KMByteBlob.cast(secret).getBuffer(), secretOff, RSA_CRT_KEY_SIZE,
+        (byte) 0);
+    short index = RSA_IMPORT_CRT_OFFSET;
+    short component;
+    short len;
+    while (index < RSA_IMPORT_KEY_MATERIAL_SIZE) {
+      component = KMArray.cast(keyMaterial).get(index);
+      len = KMByteBlob.cast(component).length();
+      if (len > RSA_CRT_COMPONENT_SIZE) {
+        KMException.throwIt(KMError.INVALID_ARGUMENT);
+      }
+      Util.arrayCopyNonAtomic(
+          KMByteBlob.cast(component).getBuffer(),
+          KMByteBlob.cast(component).getStartOff(),
+          KMByteBlob.cast(secret).getBuffer(),
+          (short) (secretOff + RSA_CRT_COMPONENT_SIZE - len),
+          len);
+      secretOff += RSA_CRT_COMPONENT_SIZE;
+      index++;
+    }
+    return secret;
   }
 
   private void updateKeyParameters(byte[] ptrArr, short len) {
@@ -3200,7 +3654,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the arguments
     short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     tmpVariables[1] = KMArray.cast(args).get((short) 1);
@@ -3246,6 +3700,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     //Clear all the operation state.
     repository.releaseAllOperations();
 
+    // Root of trust is changed, so the cached and loaded key blobs are no longer valid.
+    repository.clearKeyBlobCache();
+    repository.clearKeySlots();
+
     // Hmac is cleared, so generate a new Hmac nonce.
     seProvider.newRandomNumber(scratchPad, (short) 0, KMRepository.HMAC_SEED_NONCE_SIZE);
     repository.initHmacNonce(scratchPad, (short) 0, KMRepository.HMAC_SEED_NONCE_SIZE);
@@ -3264,7 +3722,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Decode the argument
     tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
     //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    reclaimIncoming();
 
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 0);
     // Check if EarlyBootEnded tag is present.
@@ -3342,11 +3800,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-
-    sendOutgoing(apdu);
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private static void validateRSAKey(byte[] scratchPad) {
@@ -3381,10 +3835,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static void generateRSAKey(byte[] scratchPad) {
     // Validate RSA Key
     validateRSAKey(scratchPad);
-    // Now generate 2048 bit RSA keypair for the given exponent
+    // Now generate 2048 bit RSA keypair for the given exponent. The private key is kept as
+    // CRT parameters.
     short[] lengths = tmpVariables;
     data[PUB_KEY] = KMByteBlob.instance((short) 256);
-    data[SECRET] = KMByteBlob.instance((short) 256);
+    data[SECRET] = KMByteBlob.instance(RSA_CRT_KEY_SIZE);
     seProvider.createAsymmetricKey(
         KMType.RSA,
         KMByteBlob.cast(data[SECRET]).getBuffer(),
@@ -3395,8 +3850,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[PUB_KEY]).length(),
         lengths);
 
-    data[KEY_BLOB] = KMArray.instance((short) 5);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private static void validateAESKey() {
@@ -3442,7 +3895,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[0] =
         seProvider.createSymmetricKey(KMType.AES, tmpVariables[0], scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, tmpVariables[0]);
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private static void validateECKeys() {
@@ -3473,8 +3925,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         lengths);
     data[PUB_KEY] = KMByteBlob.instance(scratchPad, (short) 128, lengths[1]);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, lengths[0]);
-    data[KEY_BLOB] = KMArray.instance((short) 5);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private static void validateTDESKey() {
@@ -3499,7 +3949,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     validateTDESKey();
     tmpVariables[0] = seProvider.createSymmetricKey(KMType.DES, (short) 168, scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, tmpVariables[0]);
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private static void validateHmacKey() {
@@ -3545,7 +3994,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[0] =
         seProvider.createSymmetricKey(KMType.HMAC, tmpVariables[0], scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, tmpVariables[0]);
-    data[KEY_BLOB] = KMArray.instance((short) 4);
   }
 
   private void checkVersionAndPatchLevel(byte[] scratchPad) {
@@ -3593,8 +4041,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[1] = repository.getOsVersion();
     tmpVariables[2] = repository.getVendorPatchLevel();
     tmpVariables[3] = repository.getBootPatchLevel();
-    data[HW_PARAMETERS] =
-        KMKeyParameters.makeHwEnforced(
+    data[KEY_CHARACTERISTICS] =
+        KMKeyParameters.makeKeyCharacteristics(
             data[KEY_PARAMETERS],
             (byte) data[ORIGIN],
             tmpVariables[1],
@@ -3602,10 +4050,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             tmpVariables[2],
             tmpVariables[3],
             scratchPad);
-    data[SW_PARAMETERS] = KMKeyParameters.makeSwEnforced(data[KEY_PARAMETERS], scratchPad);
-    data[KEY_CHARACTERISTICS] = KMKeyCharacteristics.instance();
-    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setHardwareEnforced(data[HW_PARAMETERS]);
-    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setSoftwareEnforced(data[SW_PARAMETERS]);
+    data[HW_PARAMETERS] =
+        KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced();
+    data[SW_PARAMETERS] =
+        KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced();
   }
 
   private static void createEncryptedKeyBlob(byte[] scratchPad) {
@@ -3620,21 +4068,73 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // make hidden key params list
     data[HIDDEN_PARAMETERS] =
         KMKeyParameters.makeHidden(data[KEY_PARAMETERS], data[ROT], scratchPad);
-    // make authorization data
-    makeAuthData(scratchPad);
+    // the key is derived as for the version of the key blob being created, which differs from
+    // the parsed one when a key blob is upgraded
+    data[KEY_BLOB_VERSION] = KEY_BLOB_VERSION_2;
+    // lay out the key blob and write the auth data, which is everything ahead of the nonce
+    makeKeyBlob();
     // encrypt the secret and cryptographically attach that to authorization data
     encryptSecret(scratchPad);
+    short start = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    copyToKeyBlob(data[NONCE], start, KEY_BLOB_V2_NONCE);
+    copyToKeyBlob(data[AUTH_TAG], start, KEY_BLOB_V2_AUTH_TAG);
+    copyToKeyBlob(data[SECRET], start, KEY_BLOB_V2_SECRET);
+  }
 
-    // create key blob array
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_SECRET, data[SECRET]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_AUTH_TAG, data[AUTH_TAG]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_NONCE, data[NONCE]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_KEYCHAR, data[KEY_CHARACTERISTICS]);
+  // Writes the header, the key characteristics and the public key of the version 2 key blob in
+  // data[KEY_BLOB] and reserves the space for the nonce, the auth tag and the secret.
+  private static void makeKeyBlob() {
+    // Everything read from the parameters is read before the key blob is allocated, as the heap
+    // above the key blob is freed at the end.
+    short alg = KMEnumTag.getValue(KMType.ALGORITHM, data[HW_PARAMETERS]);
+    short keySize = KMIntegerTag.getShortValue(KMType.UINT_TAG, KMType.KEYSIZE, data[HW_PARAMETERS]);
+    if (keySize == KMType.INVALID_VALUE) {
+      keySize = 0;
+    }
+    // The tag counts take a byte each.
+    short hwCount = KMKeyParameters.cast(data[HW_PARAMETERS]).length();
+    short swCount = KMKeyParameters.cast(data[SW_PARAMETERS]).length();
+    if (hwCount > KMKeyParameters.RECORD_MAX_COUNT || swCount > KMKeyParameters.RECORD_MAX_COUNT) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    data[KEY_BLOB] = KMByteBlob.instance(MAX_KEY_BLOB_SIZE);
+    byte[] buf = KMByteBlob.cast(data[KEY_BLOB]).getBuffer();
+    short start = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    buf[(short) (start + KEY_BLOB_V2_VERSION)] = KEY_BLOB_VERSION_2;
+    buf[(short) (start + KEY_BLOB_V2_ALGORITHM)] = (byte) alg;
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_KEY_SIZE), keySize);
+    buf[(short) (start + KEY_BLOB_V2_HW_COUNT)] = (byte) hwCount;
+    buf[(short) (start + KEY_BLOB_V2_SW_COUNT)] = (byte) swCount;
+    short index = (short) (start + KEY_BLOB_V2_HEADER_SIZE);
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_HW_PARAMS), (short) (index - start));
+    index = KMKeyParameters.writeRecords(data[HW_PARAMETERS], buf, index);
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_SW_PARAMS), (short) (index - start));
+    index = KMKeyParameters.writeRecords(data[SW_PARAMETERS], buf, index);
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_PUB_KEY), (short) (index - start));
+    if (data[PUB_KEY] != KMType.INVALID_VALUE) {
+      index += KMByteBlob.cast(data[PUB_KEY]).getValues(buf, index);
+    }
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_NONCE), (short) (index - start));
+    data[AUTH_DATA] = start;
+    data[AUTH_DATA_LENGTH] = (short) (index - start);
+    index += AES_GCM_NONCE_LENGTH;
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_AUTH_TAG), (short) (index - start));
+    index += AES_GCM_AUTH_TAG_LENGTH;
+    Util.setShort(buf, (short) (start + KEY_BLOB_V2_SECRET), (short) (index - start));
+    index += KMByteBlob.cast(data[SECRET]).length();
+    KMByteBlob.cast(data[KEY_BLOB])
+        .decrementLength((short) (MAX_KEY_BLOB_SIZE - (short) (index - start)));
+    // The key blob is the last allocation, so the unused space at its end is freed.
+    repository.resetHeap(index);
+  }
 
-    // allocate reclaimable memory.
-    tmpVariables[0] = repository.alloc((short) 1024);
-    tmpVariables[1] = encoder.encode(data[KEY_BLOB], repository.getHeap(), tmpVariables[0]);
-    data[KEY_BLOB] = KMByteBlob.instance(repository.getHeap(), tmpVariables[0], tmpVariables[1]);
+  private static void copyToKeyBlob(short blob, short start, byte section) {
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(),
+        repository.getHeap(),
+        (short) (start + Util.getShort(repository.getHeap(), (short) (start + section))),
+        KMByteBlob.cast(blob).length());
   }
 
   private static void parseEncryptedKeyBlob(byte[] scratchPad) {
@@ -3643,37 +4143,29 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     try {
-      tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
-      tmpVariables[1] = KMArray.instance((short) 5);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET,
-              KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG,
-              KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE,
-              KMByteBlob.exp());
-      tmpVariables[2] = KMKeyCharacteristics.exp();
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR,
-              tmpVariables[2]);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY,
-              KMByteBlob.exp());
-      data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
-              KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
-              KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
-              KMByteBlob.cast(data[KEY_BLOB]).length());
-      tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
-      if (tmpVariables[0] < 4) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      data[AUTH_TAG] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_AUTH_TAG);
-
-      // initialize data
-      data[NONCE] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_NONCE);
-      data[SECRET] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_SECRET);
-      data[KEY_CHARACTERISTICS] = KMArray.cast(data[KEY_BLOB]).get(
-              KEY_BLOB_KEYCHAR);
+      // Fingerprint the key blob so that an already verified key blob can be served from the
+      // key blob cache.
+      short digest = makeKeyBlobDigest();
+      data[KEY_BLOB_VERSION] = readKeyBlobVersion();
       data[PUB_KEY] = KMType.INVALID_VALUE;
-      if (tmpVariables[0] == 5) {
-        data[PUB_KEY] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_PUB_KEY);
+      if (data[KEY_BLOB_VERSION] == KEY_BLOB_VERSION_2) {
+        parseKeyBlobV2();
+      } else if (data[KEY_BLOB_VERSION] == KEY_BLOB_VERSION_1) {
+        data[KEY_BLOB] = decodeKeyBlob(data[KEY_BLOB_VERSION]);
+        parseKeyBlobV1();
+      } else {
+        data[KEY_BLOB] = decodeKeyBlob(data[KEY_BLOB_VERSION]);
+        tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
+        if (tmpVariables[0] < 4) {
+          KMException.throwIt(KMError.INVALID_KEY_BLOB);
+        }
+        data[AUTH_TAG] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_AUTH_TAG);
+        data[NONCE] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_NONCE);
+        data[SECRET] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_SECRET);
+        data[KEY_CHARACTERISTICS] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_KEYCHAR);
+        if (tmpVariables[0] == 5) {
+          data[PUB_KEY] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_PUB_KEY);
+        }
       }
       data[HW_PARAMETERS] = KMKeyCharacteristics
               .cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced();
@@ -3682,16 +4174,217 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
       data[HIDDEN_PARAMETERS] = KMKeyParameters.makeHidden(data[APP_ID],
               data[APP_DATA], data[ROT], scratchPad);
-      // make auth data
-      makeAuthData(scratchPad);
+      // A cache hit means this exact key blob has already been verified with the same
+      // application id and application data in this boot.
+      tmpVariables[0] = repository.readCachedKeyBlobSecret(repository.getHeap(), digest);
+      if (tmpVariables[0] != KMType.INVALID_VALUE) {
+        data[SECRET] = tmpVariables[0];
+        return;
+      }
+      // Key blobs since version 1 carry their auth data, older ones need it to be encoded again.
+      if (data[KEY_BLOB_VERSION] == KEY_BLOB_VERSION_0) {
+        makeLegacyAuthData(scratchPad);
+      }
       // Decrypt Secret and verify auth tag
       decryptSecret(scratchPad);
+      repository.cacheKeyBlobSecret(repository.getHeap(), digest,
+          KMByteBlob.cast(data[SECRET]).getBuffer(),
+          KMByteBlob.cast(data[SECRET]).getStartOff(),
+          KMByteBlob.cast(data[SECRET]).length());
     } catch (Exception e) {
       KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
   }
 
+  // Version 2 key blobs start with the version byte and older ones with a CBOR array header.
+  private static short readKeyBlobVersion() {
+    if (KMByteBlob.cast(data[KEY_BLOB]).length() > 0
+        && KMByteBlob.cast(data[KEY_BLOB]).get((short) 0) == KEY_BLOB_VERSION_2) {
+      return KEY_BLOB_VERSION_2;
+    }
+    return decoder.readKeyBlobVersion(
+        KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+        KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+        KMByteBlob.cast(data[KEY_BLOB]).length());
+  }
+
+  // Decodes the key blob in data[KEY_BLOB] into the array of its fields.
+  private static short decodeKeyBlob(short version) {
+    short exp;
+    if (version == KEY_BLOB_VERSION_1) {
+      exp = KMArray.instance(KEY_BLOB_V1_SIZE);
+      KMArray.cast(exp).add(KEY_BLOB_V1_VERSION, KMInteger.exp());
+      KMArray.cast(exp).add(KEY_BLOB_V1_SECRET, KMByteBlob.exp());
+      KMArray.cast(exp).add(KEY_BLOB_V1_NONCE, KMByteBlob.exp());
+      KMArray.cast(exp).add(KEY_BLOB_V1_AUTH_TAG, KMByteBlob.exp());
+      KMArray.cast(exp).add(KEY_BLOB_V1_AUTH_DATA, KMByteBlob.exp());
+    } else if (version == KEY_BLOB_VERSION_0) {
+      exp = KMArray.instance((short) 5);
+      KMArray.cast(exp).add(KEY_BLOB_SECRET, KMByteBlob.exp());
+      KMArray.cast(exp).add(KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
+      KMArray.cast(exp).add(KEY_BLOB_NONCE, KMByteBlob.exp());
+      short keyChar = KMKeyCharacteristics.exp();
+      KMArray.cast(exp).add(KEY_BLOB_KEYCHAR, keyChar);
+      KMArray.cast(exp).add(KEY_BLOB_PUB_KEY, KMByteBlob.exp());
+    } else {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      return KMType.INVALID_VALUE;
+    }
+    return decoder.decodeArray(exp,
+        KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+        KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+        KMByteBlob.cast(data[KEY_BLOB]).length());
+  }
+
+  // The auth data of version 1 key blobs is used as it is for authentication and only decoded
+  // for the key characteristics and the public key.
+  private static void parseKeyBlobV1() {
+    if (KMArray.cast(data[KEY_BLOB]).length() != KEY_BLOB_V1_SIZE) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    data[SECRET] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_V1_SECRET);
+    data[NONCE] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_V1_NONCE);
+    data[AUTH_TAG] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_V1_AUTH_TAG);
+    tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_V1_AUTH_DATA);
+    data[AUTH_DATA] = KMByteBlob.cast(tmpVariables[0]).getStartOff();
+    data[AUTH_DATA_LENGTH] = KMByteBlob.cast(tmpVariables[0]).length();
+    tmpVariables[1] = KMArray.instance((short) 2);
+    tmpVariables[2] = KMKeyCharacteristics.exp();
+    KMArray.cast(tmpVariables[1]).add(AUTH_DATA_KEYCHAR, tmpVariables[2]);
+    KMArray.cast(tmpVariables[1]).add(AUTH_DATA_PUB_KEY, KMByteBlob.exp());
+    tmpVariables[1] = decoder.decodeArray(tmpVariables[1], repository.getHeap(),
+        data[AUTH_DATA], data[AUTH_DATA_LENGTH]);
+    data[KEY_CHARACTERISTICS] = KMArray.cast(tmpVariables[1]).get(AUTH_DATA_KEYCHAR);
+    if (KMArray.cast(tmpVariables[1]).length() == 2) {
+      data[PUB_KEY] = KMArray.cast(tmpVariables[1]).get(AUTH_DATA_PUB_KEY);
+    }
+  }
+
+  // The sections of version 2 key blobs are located through the offsets in the header and the
+  // tags are read from their packed records.
+  private static void parseKeyBlobV2() {
+    byte[] buf = KMByteBlob.cast(data[KEY_BLOB]).getBuffer();
+    short start = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    short len = KMByteBlob.cast(data[KEY_BLOB]).length();
+    if (len < KEY_BLOB_V2_HEADER_SIZE) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    short hwParams = Util.getShort(buf, (short) (start + KEY_BLOB_V2_HW_PARAMS));
+    short swParams = Util.getShort(buf, (short) (start + KEY_BLOB_V2_SW_PARAMS));
+    short pubKey = Util.getShort(buf, (short) (start + KEY_BLOB_V2_PUB_KEY));
+    short nonce = Util.getShort(buf, (short) (start + KEY_BLOB_V2_NONCE));
+    short authTag = Util.getShort(buf, (short) (start + KEY_BLOB_V2_AUTH_TAG));
+    short secret = Util.getShort(buf, (short) (start + KEY_BLOB_V2_SECRET));
+    // The sections follow each other in this order and the nonce is checked against the length
+    // first, so that the auth tag and secret offsets cannot overflow.
+    if (hwParams != KEY_BLOB_V2_HEADER_SIZE || swParams < hwParams || pubKey < swParams
+        || nonce < pubKey
+        || nonce > (short) (len - AES_GCM_NONCE_LENGTH - AES_GCM_AUTH_TAG_LENGTH)
+        || authTag != (short) (nonce + AES_GCM_NONCE_LENGTH)
+        || secret != (short) (authTag + AES_GCM_AUTH_TAG_LENGTH)) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    short hw = KMKeyParameters.readRecords(buf, (short) (start + hwParams),
+        (short) (swParams - hwParams), (short) (buf[(short) (start + KEY_BLOB_V2_HW_COUNT)] & 0xFF));
+    short sw = KMKeyParameters.readRecords(buf, (short) (start + swParams),
+        (short) (pubKey - swParams), (short) (buf[(short) (start + KEY_BLOB_V2_SW_COUNT)] & 0xFF));
+    data[KEY_CHARACTERISTICS] = KMKeyCharacteristics.instance();
+    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setHardwareEnforced(hw);
+    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setSoftwareEnforced(sw);
+    if (nonce > pubKey) {
+      data[PUB_KEY] = KMByteBlob.instance(buf, (short) (start + pubKey), (short) (nonce - pubKey));
+    }
+    data[NONCE] = KMByteBlob.instance(buf, (short) (start + nonce), AES_GCM_NONCE_LENGTH);
+    data[AUTH_TAG] = KMByteBlob.instance(buf, (short) (start + authTag), AES_GCM_AUTH_TAG_LENGTH);
+    data[SECRET] = KMByteBlob.instance(buf, (short) (start + secret), (short) (len - secret));
+    data[AUTH_DATA] = start;
+    data[AUTH_DATA_LENGTH] = nonce;
+  }
+
+  // Reads the key blob loaded in the key slot of the given KMInteger handle, if it was loaded with
+  // the application id and application data in data. Its secret is already decrypted, so it is
+  // only parsed.
+  private static void readLoadedKey(short handle) {
+    data[KEY_BLOB] = repository.readKeySlot(handle, repository.getHeap(), makeAppBinding());
+    if (data[KEY_BLOB] == KMType.INVALID_VALUE) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    data[PUB_KEY] = KMType.INVALID_VALUE;
+    parseKeyBlobV2();
+    data[HW_PARAMETERS] = KMKeyCharacteristics
+        .cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced();
+    data[SW_PARAMETERS] = KMKeyCharacteristics
+        .cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced();
+  }
+
+  // Computes the digest of the encoded key blob along with the application id and application
+  // data and returns the offset of the digest in the heap.
+  private static short makeKeyBlobDigest() {
+    byte[] heap = repository.getHeap();
+    short len = (short) (KMRepository.KEY_BLOB_DIGEST_SIZE + 4);
+    if (data[APP_ID] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_ID]).length();
+    }
+    if (data[APP_DATA] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_DATA]).length();
+    }
+    short digest = repository.alloc(len);
+    // Digest the key blob in place and then digest it again along with the application id and
+    // application data, so that the key blob itself is never copied.
+    short index = seProvider.messageDigest256(
+        KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+        KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+        KMByteBlob.cast(data[KEY_BLOB]).length(),
+        heap,
+        digest);
+    index = addToKeyBlobDigest(data[APP_ID], heap, (short) (digest + index));
+    addToKeyBlobDigest(data[APP_DATA], heap, index);
+    seProvider.messageDigest256(heap, digest, len, heap, digest);
+    // Only the digest is kept.
+    repository.resetHeap((short) (digest + KMRepository.KEY_BLOB_DIGEST_SIZE));
+    return digest;
+  }
+
+  // Computes the digest of the application id and application data, which binds a loaded key to
+  // its callers, and returns the offset of the digest in the heap.
+  private static short makeAppBinding() {
+    byte[] heap = repository.getHeap();
+    short len = 4;
+    if (data[APP_ID] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_ID]).length();
+    }
+    if (data[APP_DATA] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_DATA]).length();
+    }
+    if (len < KMRepository.KEY_SLOT_BINDING_SIZE) {
+      len = KMRepository.KEY_SLOT_BINDING_SIZE;
+    }
+    short digest = repository.alloc(len);
+    short index = addToKeyBlobDigest(data[APP_ID], heap, digest);
+    index = addToKeyBlobDigest(data[APP_DATA], heap, index);
+    seProvider.messageDigest256(heap, digest, (short) (index - digest), heap, digest);
+    // Only the digest is kept.
+    repository.resetHeap((short) (digest + KMRepository.KEY_SLOT_BINDING_SIZE));
+    return digest;
+  }
+
+  private static short addToKeyBlobDigest(short blob, byte[] buf, short index) {
+    // Length prefix distinguishes an absent blob from an empty blob.
+    if (blob == KMType.INVALID_VALUE) {
+      return Util.setShort(buf, index, KMType.INVALID_VALUE);
+    }
+    index = Util.setShort(buf, index, KMByteBlob.cast(blob).length());
+    return Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(),
+        buf,
+        index,
+        KMByteBlob.cast(blob).length());
+  }
+
   private static void decryptSecret(byte[] scratchPad) {
+    // The derived key is freed, and zeroed, right after use.
+    short mark = repository.markHeap();
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
     if (!seProvider.aesGCMDecrypt(
@@ -3714,6 +4407,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[AUTH_TAG]).length())) {
       KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
+    repository.resetHeap(mark);
     // Copy the decrypted secret
     data[SECRET] =
         KMByteBlob.instance(scratchPad, (short) 0, KMByteBlob.cast(data[SECRET]).length());
@@ -3733,6 +4427,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[NONCE]).getBuffer(),
         KMByteBlob.cast(data[NONCE]).getStartOff(),
         KMByteBlob.cast(data[NONCE]).length());
+    // The derived key is freed, and zeroed, right after use.
+    short mark = repository.markHeap();
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
     tmpVariables[1] =
@@ -3754,6 +4450,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[AUTH_TAG]).getBuffer(),
             KMByteBlob.cast(data[AUTH_TAG]).getStartOff(),
             KMByteBlob.cast(data[AUTH_TAG]).length());
+    repository.resetHeap(mark);
     if (tmpVariables[1] > 0) {
       if (tmpVariables[1] != KMByteBlob.cast(data[SECRET]).length()) {
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
@@ -3762,7 +4459,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
-  private static void makeAuthData(byte[] scratchPad) {
+  // Version 0 key blobs authenticate the hardware enforced, software enforced and hidden
+  // parameters and the public key, encoded together in an array.
+  private static void makeLegacyAuthData(byte[] scratchPad) {
+    // Only the encoded auth data is kept.
+    short mark = repository.markHeap();
     tmpVariables[0] =
         addPtrToAAD(KMKeyParameters.cast(data[HW_PARAMETERS]).getVals(), scratchPad, (short) 0);
     tmpVariables[0] +=
@@ -3791,6 +4492,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     data[AUTH_DATA] = repository.alloc(MAX_AUTH_DATA_SIZE);
     short len = encoder.encode(tmpVariables[1], repository.getHeap(), data[AUTH_DATA]);
+    Util.arrayCopyNonAtomic(repository.getHeap(), data[AUTH_DATA], repository.getHeap(), mark,
+        len);
+    repository.resetHeap((short) (mark + len));
+    data[AUTH_DATA] = mark;
     data[AUTH_DATA_LENGTH] = len;
   }
 
@@ -3810,20 +4515,37 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private static short deriveKey(byte[] scratchPad) {
     tmpVariables[0] = KMKeyParameters.cast(data[HIDDEN_PARAMETERS]).getVals();
+    short mark = repository.markHeap();
     tmpVariables[1] = repository.alloc(DERIVE_KEY_INPUT_SIZE);
     // generate derivation material from hidden parameters
     tmpVariables[2] = encoder.encode(tmpVariables[0], repository.getHeap(), tmpVariables[1]);
+    if (data[KEY_BLOB_VERSION] != KEY_BLOB_VERSION_0) {
+      // Unlike version 0, the hidden parameters are not part of the auth data of the key blob,
+      // so bind all of them through their digest, which cannot be pushed out by the truncation
+      // below.
+      tmpVariables[2] = seProvider.messageDigest256(repository.getHeap(), tmpVariables[1],
+          tmpVariables[2], repository.getHeap(), tmpVariables[1]);
+    }
     if (DERIVE_KEY_INPUT_SIZE > tmpVariables[2]) {
-      // Copy KeyCharacteristics in the remaining space of DERIVE_KEY_INPUT_SIZE
+      // Copy KeyCharacteristics in the remaining space of DERIVE_KEY_INPUT_SIZE, and pad the
+      // rest with zeros if the auth data is shorter.
+      short len = (short) (DERIVE_KEY_INPUT_SIZE - tmpVariables[2]);
+      if (len > data[AUTH_DATA_LENGTH]) {
+        Util.arrayFillNonAtomic(repository.getHeap(),
+            (short) (tmpVariables[1] + tmpVariables[2] + data[AUTH_DATA_LENGTH]),
+            (short) (len - data[AUTH_DATA_LENGTH]), (byte) 0);
+        len = data[AUTH_DATA_LENGTH];
+      }
       Util.arrayCopyNonAtomic(repository.getHeap(), (short) (data[AUTH_DATA]),
           repository.getHeap(),
           (short) (tmpVariables[1] + tmpVariables[2]),
-          (short) (DERIVE_KEY_INPUT_SIZE - tmpVariables[2]));
+          len);
     }
     // KeyDerivation:
     // 1. Do HMAC Sign, with below input parameters.
     //    Key - 128 bit master key
     //    Input data - HIDDEN_PARAMETERS + KeyCharacateristics
+    //               - Digest of HIDDEN_PARAMETERS for version 1 and later key blobs.
     //               - Truncate beyond 256 bytes.
     // 2. HMAC Sign generates an output of 32 bytes length.
     //    Consume only first 16 bytes as derived key.
@@ -3839,14 +4561,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     tmpVariables[3] = 16;
-    // store the derived secret in data dictionary
-    data[DERIVED_KEY] = tmpVariables[1];
+    // free the derivation material and store the derived secret in data dictionary
+    repository.resetHeap(mark);
+    data[DERIVED_KEY] = repository.alloc(tmpVariables[3]);
     Util.arrayCopyNonAtomic(
         scratchPad, (short) 0, repository.getHeap(), data[DERIVED_KEY], tmpVariables[3]);
     return tmpVariables[3];
   }
 
   private static void sendError(APDU apdu, short err) {
+    // The error may be raised before the received data is reclaimed.
+    bufferRef[0] = repository.getHeap();
     bufferProp[BUF_START_OFFSET] = repository.alloc((short) 2);
     bufferProp[BUF_LEN_OFFSET] = encoder.encodeError(err, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], (short) 5);
     sendOutgoing(apdu);
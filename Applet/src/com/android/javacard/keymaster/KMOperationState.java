@@ -21,9 +21,11 @@ import javacard.framework.Util;
 
 /**
  * KMOperationState is the container of an active operation started by beginOperation function. This
- * operation state is persisted by the applet in non volatile memory. However, this state is not
- * retained if applet is upgraded. There will be four operation state records maintained i.e. only
- * four active operations are supported at any given time.
+ * operation state is kept by the applet in transient memory, so it is not retained across a reset
+ * or an applet upgrade. The number of operation state records is an install parameter of
+ * the applet. When all the records are in use, the least recently used operation which does not
+ * require authentication per operation is pruned to make room for a new one. One-shot operations,
+ * which are begun and finished by the same command, have no operation state record.
  */
 public class KMOperationState {
 
@@ -83,6 +85,20 @@ public class KMOperationState {
     return opState;
   }
 
+  // Returns the operation state of a one-shot operation, which is neither kept in nor persisted
+  // to an operation state record.
+  public static KMOperationState oneShot() {
+    return instance(KMType.INVALID_VALUE, null);
+  }
+
+  // Aborts the current one-shot operation, if any.
+  public static void releaseOneShot() {
+    if (prototype != null && prototype.objRefs[SLOT] == null
+        && prototype.objRefs[KMOPERATION] != null) {
+      prototype.release();
+    }
+  }
+
   public static KMOperationState read(byte[] oprHandle, short off, Object[] slot) {
     KMOperationState opState = proto();
     opState.reset();
@@ -94,8 +110,14 @@ public class KMOperationState {
     return opState;
   }
 
+  // Operations which require authentication per operation cannot be pruned, because the auth
+  // token bound to the operation handle cannot be presented again for a new operation.
+  public static boolean isPruneable(Object[] slot) {
+    return (((byte[]) slot[DATA])[FLAGS] & AUTH_PER_OP_REQD) == 0;
+  }
+
   public void persist() {
-    if (FALSE == isDataUpdated[0]) {
+    if (FALSE == isDataUpdated[0] || objRefs[SLOT] == null) {
       return;
     }
     KMRepository.instance().persistOperation(data,
@@ -126,13 +148,18 @@ public class KMOperationState {
 
   public void release() {
     Object[] slots = (Object[]) objRefs[SLOT];
+    if (slots == null) {
+      if (objRefs[KMOPERATION] != null) {
+        ((KMOperation) objRefs[KMOPERATION]).abort();
+      }
+      reset();
+      return;
+    }
     Object[] ops = ((Object[]) slots[REFS]);
     ((KMOperation) ops[OPERATION]).abort();
-    JCSystem.beginTransaction();
     Util.arrayFillNonAtomic(
         (byte[]) slots[0], (short) 0, (short) ((byte[]) slots[0]).length, (byte) 0);
     ops[OPERATION] = null;
-    JCSystem.commitTransaction();
     reset();
   }
 
@@ -34,6 +34,10 @@ public class KMRepository implements KMUpgradable {
   public static final short DATA_INDEX_ENTRY_SIZE = 4;
   public static final short DATA_MEM_SIZE = 2048;
   public static final short HEAP_SIZE = 10000;
+  // The data cache is held in DATA_CACHE_SIZE bytes after the HEAP_SIZE bytes of the heap which
+  // are allocated. The root of trust blob follows the data cache.
+  public static final short DATA_CACHE_SIZE = 256;
+  private static final short ROT_OFFSET = HEAP_SIZE + DATA_CACHE_SIZE;
   public static final short DATA_INDEX_ENTRY_LENGTH = 0;
   public static final short DATA_INDEX_ENTRY_OFFSET = 2;
   public static final short OPERATION_HANDLE_SIZE = 8; /* 8 bytes */
@@ -79,17 +83,108 @@ public class KMRepository implements KMUpgradable {
   public static final short DEVICE_LOCK_TS_SIZE = 8;
   public static final short DEVICE_LOCK_FLAG_SIZE = 1;
   public static final short BOOT_STATE_SIZE = 1;
-  public static final short MAX_OPS = 4;
+  // Number of operation slots, configurable through the install parameters.
+  public static final short DEFAULT_MAX_OPS = 4;
+  public static final short MAX_OPS_LIMIT = 8;
   public static final byte BOOT_KEY_MAX_SIZE = 32;
   public static final byte BOOT_HASH_MAX_SIZE = 32;
+  public static final short ROT_MAX_SIZE =
+      BOOT_KEY_MAX_SIZE + BOOT_HASH_MAX_SIZE + BOOT_STATE_SIZE + DEVICE_LOCK_FLAG_SIZE;
+  // The attestation certificate template, see KMAttestationCert.encodeTemplate, is held in
+  // CERT_TEMPLATE_MAX_SIZE bytes after the root of trust.
+  public static final short CERT_TEMPLATE_MAX_SIZE = 320;
+  private static final short CERT_TEMPLATE_OFFSET =
+      ROT_OFFSET + KMType.TLV_HEADER_SIZE + ROT_MAX_SIZE;
+  // The decode schemas, see KMType.buildSchemas, are held in SCHEMA_SIZE bytes after the
+  // certificate template.
+  public static final short SCHEMA_SIZE = 320;
+  private static final short SCHEMA_OFFSET =
+      CERT_TEMPLATE_OFFSET + KMType.TLV_HEADER_SIZE + CERT_TEMPLATE_MAX_SIZE;
+
+  // Operation statistics
+  public static final byte OP_STATS_EVICTIONS = 0;
+  public static final byte OP_STATS_REJECTIONS = 1;
+  private static final short OP_STATS_MAX_COUNT = 0x7FFF;
+  private static final short OP_SEQUENCE_MAX = 0x7FFF;
+
+  // Key blob cache configuration - an entry holds the decrypted secret of a verified key blob.
+  // The entries are sized for the secrets of symmetric, HMAC and EC keys. RSA keys are not cached,
+  // their secrets are stored as the CRT parameters which are larger than an entry, and are always
+  // decrypted from the key blob.
+  public static final short KEY_BLOB_CACHE_ENTRIES = 4;
+  public static final short KEY_BLOB_DIGEST_SIZE = 32;
+  public static final short KEY_BLOB_SECRET_MAX_SIZE = 256;
+  private static final short KEY_BLOB_CACHE_LENGTH_OFFSET = 0;
+  private static final short KEY_BLOB_CACHE_DIGEST_OFFSET = 2;
+  private static final short KEY_BLOB_CACHE_SECRET_OFFSET =
+      KEY_BLOB_CACHE_DIGEST_OFFSET + KEY_BLOB_DIGEST_SIZE;
+  private static final short KEY_BLOB_CACHE_ENTRY_SIZE =
+      KEY_BLOB_CACHE_SECRET_OFFSET + KEY_BLOB_SECRET_MAX_SIZE;
+
+  // Auth token cache configuration - an entry holds the mac input and the mac of a verified hardware
+  // auth token or verification token, so that presenting the same token again is a comparison
+  // instead of an hmac. Both mac inputs are 37 bytes, the verification token without verified
+  // parameters, and they differ in the first byte. The cache is cleared whenever the computed
+  // hmac key changes, so the entries are always verified with the current key.
+  public static final short AUTH_TOKEN_CACHE_ENTRIES = 4;
+  public static final short AUTH_TOKEN_MAC_INPUT_SIZE = 37;
+  public static final short AUTH_TOKEN_MAC_SIZE = 32;
+  private static final short AUTH_TOKEN_CACHE_FLAG_OFFSET = 0;
+  private static final short AUTH_TOKEN_CACHE_INPUT_OFFSET = 1;
+  private static final short AUTH_TOKEN_CACHE_MAC_OFFSET =
+      AUTH_TOKEN_CACHE_INPUT_OFFSET + AUTH_TOKEN_MAC_INPUT_SIZE;
+  private static final short AUTH_TOKEN_CACHE_ENTRY_SIZE =
+      AUTH_TOKEN_CACHE_MAC_OFFSET + AUTH_TOKEN_MAC_SIZE;
+
+  // Key slot configuration - a key slot holds a loaded version 2 key blob with its secret
+  // decrypted in place and the digest of the application id and application data it was loaded
+  // with, which a caller must present to use the key. A key handle is the 32 bit count of the
+  // keys loaded since the last reset, so that the handles of unloaded keys are not accepted
+  // again. Every slot takes KEY_SLOT_SIZE bytes of RAM, so the number of slots is an install
+  // parameter.
+  public static final short DEFAULT_KEY_SLOTS = 2;
+  public static final short KEY_SLOTS_LIMIT = 4;
+  public static final short KEY_SLOT_MAX_SIZE = 1088;
+  public static final short KEY_SLOT_BINDING_SIZE = 32;
+  private static final short KEY_HANDLE_SIZE = 4;
+  private static final short KEY_SLOT_LENGTH_OFFSET = 0;
+  private static final short KEY_SLOT_HANDLE_OFFSET = 2;
+  private static final short KEY_SLOT_BINDING_OFFSET = KEY_SLOT_HANDLE_OFFSET + KEY_HANDLE_SIZE;
+  private static final short KEY_SLOT_BLOB_OFFSET =
+      KEY_SLOT_BINDING_OFFSET + KEY_SLOT_BINDING_SIZE;
+  private static final short KEY_SLOT_SIZE = KEY_SLOT_BLOB_OFFSET + KEY_SLOT_MAX_SIZE;
 
   // Class Attributes
   private Object[] operationStateTable;
+  private short maxOps;
+  // Command sequence counter and the value of the counter when each operation slot was last
+  // used, which is used to find the least recently used operation.
+  private short[] opSequence;
+  private short[] opLastUsed;
+  private short[] opStats;
   private byte[] heap;
   private short[] heapIndex;
+  // Highest heap index reached by alloc since the last resetHeapPeak.
+  private short[] heapPeak;
   private byte[] dataTable;
   private short dataIndex;
   private short[] reclaimIndex;
+  private byte[] keyBlobCache;
+  private short[] keyBlobCacheIndex;
+  private byte[] keySlots;
+  private short keySlotCount;
+  private byte[] keySlotLoads;
+  private byte[] authTokenCache;
+  private short[] authTokenCacheIndex;
+  // Read-through cache of the frequently read data table entries. Cached entries are KMByteBlob or
+  // KMInteger instances at the end of the heap, which is neither allocated nor cleaned. They are
+  // copied out of RAM instead of NVM when they are read, so callers can never modify the cache.
+  // dataCacheIndex holds the heap pointer of each cached entry or 0 if it is not cached. The cache
+  // is transient and refilled on first use after a reset.
+  private short[] dataCacheIndex;
+  private short[] dataCacheSize;
+  // Heap and reclaim indexes saved while the decode schemas are built.
+  private short[] schemaAllocState;
 
   // Singleton instance
   private static KMRepository repository;
@@ -98,22 +193,50 @@ public class KMRepository implements KMUpgradable {
     return repository;
   }
 
-  public KMRepository(boolean isUpgrading) {
-    heap = JCSystem.makeTransientByteArray(HEAP_SIZE, JCSystem.CLEAR_ON_RESET);
+  public KMRepository(boolean isUpgrading, short maxOperations, short keySlotCount) {
+    heap = JCSystem.makeTransientByteArray((short) (SCHEMA_OFFSET + SCHEMA_SIZE),
+        JCSystem.CLEAR_ON_RESET);
+    schemaAllocState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
     heapIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    heapPeak = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     reclaimIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     heapIndex[0] = (short) 0;
     reclaimIndex[0] = HEAP_SIZE;
+    dataCacheIndex = JCSystem.makeTransientShortArray(DATA_INDEX_SIZE, JCSystem.CLEAR_ON_RESET);
+    dataCacheSize = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    // Decrypted key blob secrets are cached only in transient memory, so the cache is
+    // implicitly cleared on every reset.
+    keyBlobCache = JCSystem.makeTransientByteArray(
+        (short) (KEY_BLOB_CACHE_ENTRIES * KEY_BLOB_CACHE_ENTRY_SIZE), JCSystem.CLEAR_ON_RESET);
+    keyBlobCacheIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    // Loaded keys do not survive a reset either.
+    this.keySlotCount = keySlotCount;
+    keySlots = JCSystem.makeTransientByteArray((short) (keySlotCount * KEY_SLOT_SIZE),
+        JCSystem.CLEAR_ON_RESET);
+    keySlotLoads = JCSystem.makeTransientByteArray(KEY_HANDLE_SIZE, JCSystem.CLEAR_ON_RESET);
+    authTokenCache = JCSystem.makeTransientByteArray(
+        (short) (AUTH_TOKEN_CACHE_ENTRIES * AUTH_TOKEN_CACHE_ENTRY_SIZE), JCSystem.CLEAR_ON_RESET);
+    authTokenCacheIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     newDataTable(isUpgrading);
-    operationStateTable = new Object[MAX_OPS];
+    maxOps = maxOperations;
+    operationStateTable = new Object[maxOps];
+    opSequence = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    opLastUsed = JCSystem.makeTransientShortArray(maxOps, JCSystem.CLEAR_ON_RESET);
+    opStats = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
     // create and initialize operation state table.
     //First byte in the operation handle buffer denotes whether the operation is
     //reserved or unreserved.
+    // Operations do not survive a reset, so the operation state is kept in transient memory.
+    // This way beginning, updating and finishing an operation does not write to persistent
+    // memory.
     byte index = 0;
-    while (index < MAX_OPS) {
-      operationStateTable[index] = new Object[]{new byte[OPERATION_HANDLE_ENTRY_SIZE],
-          new Object[]{new byte[KMOperationState.MAX_DATA],
-              new Object[KMOperationState.MAX_REFS]}};
+    while (index < maxOps) {
+      operationStateTable[index] = new Object[]{
+          JCSystem.makeTransientByteArray(OPERATION_HANDLE_ENTRY_SIZE, JCSystem.CLEAR_ON_RESET),
+          new Object[]{
+              JCSystem.makeTransientByteArray(KMOperationState.MAX_DATA, JCSystem.CLEAR_ON_RESET),
+              JCSystem.makeTransientObjectArray(KMOperationState.MAX_REFS,
+                  JCSystem.CLEAR_ON_RESET)}};
       index++;
     }
     //Initialize the device locked status
@@ -132,19 +255,26 @@ public class KMRepository implements KMUpgradable {
   }
 
   public KMOperationState findOperation(byte[] buf, short off, short len) {
+    short index = findOperationIndex(buf, off, len);
+    if (index < 0) {
+      return null;
+    }
+    return KMOperationState
+        .read((byte[]) ((Object[]) operationStateTable[index])[0], OPERATION_HANDLE_OFFSET,
+            (Object[]) ((Object[]) operationStateTable[index])[1]);
+  }
+
+  private short findOperationIndex(byte[] buf, short off, short len) {
     short index = 0;
     byte[] opId;
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       opId = ((byte[]) ((Object[]) operationStateTable[index])[0]);
       if (0 == Util.arrayCompare(buf, off, opId, OPERATION_HANDLE_OFFSET, len)) {
-        return KMOperationState
-            .read(opId, OPERATION_HANDLE_OFFSET,
-                (Object[]) ((Object[]) operationStateTable[index])[1]);
+        return index;
       }
       index++;
     }
-
-    return null;
+    return -1;
   }
 
   /* operationHandle is a KMInteger */
@@ -155,17 +285,24 @@ public class KMRepository implements KMUpgradable {
         KMByteBlob.cast(buf).getBuffer(),
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
-    return findOperation(
+    short index = findOperationIndex(
         KMByteBlob.cast(buf).getBuffer(),
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
+    if (index < 0) {
+      return null;
+    }
+    touchOperation(index);
+    return KMOperationState
+        .read((byte[]) ((Object[]) operationStateTable[index])[0], OPERATION_HANDLE_OFFSET,
+            (Object[]) ((Object[]) operationStateTable[index])[1]);
   }
 
   /* opHandle is a KMInteger */
   public KMOperationState reserveOperation(short opHandle) {
     short index = 0;
     byte[] opId;
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       opId = (byte[]) ((Object[]) operationStateTable[index])[0];
       /* Check for unreserved operation state */
       if (opId[OPERATION_HANDLE_STATUS_OFFSET] == 0) {
@@ -174,7 +311,67 @@ public class KMRepository implements KMUpgradable {
       }
       index++;
     }
-    return null;
+    // All the slots are in use, so evict the least recently used operation.
+    index = findEvictableOperation();
+    if (index < 0) {
+      incrementOpStats(OP_STATS_REJECTIONS);
+      return null;
+    }
+    clearOperation(index);
+    incrementOpStats(OP_STATS_EVICTIONS);
+    return KMOperationState
+        .instance(opHandle, (Object[]) ((Object[]) operationStateTable[index])[1]);
+  }
+
+  // Returns the least recently used operation which can be pruned or -1 if there is none.
+  // Operations which require authentication per operation are never pruned.
+  private short findEvictableOperation() {
+    short index = 0;
+    short lruIndex = -1;
+    short age;
+    short lruAge = -1;
+    while (index < maxOps) {
+      if (KMOperationState.isPruneable((Object[]) ((Object[]) operationStateTable[index])[1])) {
+        // The sequence never wraps, so the age is never negative.
+        age = (short) (opSequence[0] - opLastUsed[index]);
+        if (age > lruAge) {
+          lruAge = age;
+          lruIndex = index;
+        }
+      }
+      index++;
+    }
+    return lruIndex;
+  }
+
+  private void touchOperation(short index) {
+    if (opSequence[0] == OP_SEQUENCE_MAX) {
+      // Halve the sequence and the last use of all the slots instead of letting the sequence
+      // wrap, which keeps the order in which the slots were used.
+      opSequence[0] = (short) (opSequence[0] >> 1);
+      short slot = 0;
+      while (slot < maxOps) {
+        opLastUsed[slot] = (short) (opLastUsed[slot] >> 1);
+        slot++;
+      }
+    }
+    opSequence[0]++;
+    opLastUsed[index] = opSequence[0];
+  }
+
+  private void incrementOpStats(byte stat) {
+    if (opStats[stat] < OP_STATS_MAX_COUNT) {
+      opStats[stat]++;
+    }
+  }
+
+  // Returns the number of operations evicted or rejected since the last reset.
+  public short getOpStats(byte stat) {
+    return opStats[stat];
+  }
+
+  public short getMaxOperations() {
+    return maxOps;
   }
 
   public void persistOperation(byte[] data, short opHandle, KMOperation op) {
@@ -187,7 +384,7 @@ public class KMRepository implements KMUpgradable {
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
     //Update an existing operation state.
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       opId = (byte[]) ((Object[]) operationStateTable[index])[0];
       if ((1 == opId[OPERATION_HANDLE_STATUS_OFFSET])
           && (0 == Util.arrayCompare(
@@ -197,12 +394,11 @@ public class KMRepository implements KMUpgradable {
           KMByteBlob.cast(buf).getStartOff(),
           KMByteBlob.cast(buf).length()))) {
         Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        JCSystem.beginTransaction();
-        Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
+        Util.arrayCopyNonAtomic(data, (short) 0, (byte[]) slot[0], (short) 0,
             (short) ((byte[]) slot[0]).length);
         Object[] ops = ((Object[]) slot[1]);
         ops[0] = op;
-        JCSystem.commitTransaction();
+        touchOperation(index);
         return;
       }
       index++;
@@ -210,23 +406,22 @@ public class KMRepository implements KMUpgradable {
 
     index = 0;
     //Persist a new operation.
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       opId = (byte[]) ((Object[]) operationStateTable[index])[0];
       if (0 == opId[OPERATION_HANDLE_STATUS_OFFSET]) {
         Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        JCSystem.beginTransaction();
         opId[OPERATION_HANDLE_STATUS_OFFSET] = 1;/*reserved */
-        Util.arrayCopy(
+        Util.arrayCopyNonAtomic(
             KMByteBlob.cast(buf).getBuffer(),
             KMByteBlob.cast(buf).getStartOff(),
             opId,
             OPERATION_HANDLE_OFFSET,
             OPERATION_HANDLE_SIZE);
-        Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
+        Util.arrayCopyNonAtomic(data, (short) 0, (byte[]) slot[0], (short) 0,
             (short) ((byte[]) slot[0]).length);
         Object[] ops = ((Object[]) slot[1]);
         ops[0] = op;
-        JCSystem.commitTransaction();
+        touchOperation(index);
         break;
       }
       index++;
@@ -242,7 +437,7 @@ public class KMRepository implements KMUpgradable {
         KMByteBlob.cast(buf).getBuffer(),
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
       if ((oprHandleBuf[OPERATION_HANDLE_STATUS_OFFSET] == 1) &&
           (0 == Util.arrayCompare(oprHandleBuf,
@@ -250,9 +445,7 @@ public class KMRepository implements KMUpgradable {
               KMByteBlob.cast(buf).getBuffer(),
               KMByteBlob.cast(buf).getStartOff(),
               KMByteBlob.cast(buf).length()))) {
-        JCSystem.beginTransaction();
         Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
-        JCSystem.commitTransaction();
         op.release();
         break;
       }
@@ -263,28 +456,205 @@ public class KMRepository implements KMUpgradable {
   public void releaseAllOperations() {
     short index = 0;
     byte[] oprHandleBuf;
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
       if (oprHandleBuf[OPERATION_HANDLE_STATUS_OFFSET] == 1) {
-        Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        Object[] ops = ((Object[]) slot[1]);
-        ((KMOperation) ops[0]).abort();
-        JCSystem.beginTransaction();
-        Util.arrayFillNonAtomic((byte[]) slot[0], (short) 0,
-                (short) ((byte[]) slot[0]).length, (byte) 0);
-        Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
-        ops[0] = null;
-        JCSystem.commitTransaction();
+        clearOperation(index);
       }
       index++;
     }
   }
 
+  // Aborts the operation and clears its slot.
+  private void clearOperation(short index) {
+    byte[] oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
+    Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
+    Object[] ops = ((Object[]) slot[1]);
+    ((KMOperation) ops[0]).abort();
+    Util.arrayFillNonAtomic((byte[]) slot[0], (short) 0,
+            (short) ((byte[]) slot[0]).length, (byte) 0);
+    Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
+    ops[0] = null;
+  }
+
+  // Returns the cached secret of the key blob identified by the given digest as a KMByteBlob or
+  // KMType.INVALID_VALUE if the key blob is not in the cache.
+  public short readCachedKeyBlobSecret(byte[] digest, short digestOff) {
+    short entry = 0;
+    short len;
+    while (entry < (short) (KEY_BLOB_CACHE_ENTRIES * KEY_BLOB_CACHE_ENTRY_SIZE)) {
+      len = Util.getShort(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_LENGTH_OFFSET));
+      if ((len != 0)
+          && (0 == Util.arrayCompare(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_DIGEST_OFFSET),
+          digest, digestOff, KEY_BLOB_DIGEST_SIZE))) {
+        return KMByteBlob.instance(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_SECRET_OFFSET),
+            len);
+      }
+      entry += KEY_BLOB_CACHE_ENTRY_SIZE;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  // Caches the decrypted secret of a verified key blob. Entries are replaced in round robin order.
+  // Secrets larger than KEY_BLOB_SECRET_MAX_SIZE, i.e. RSA secrets, are not cached.
+  public void cacheKeyBlobSecret(byte[] digest, short digestOff, byte[] secret, short secretOff,
+      short secretLen) {
+    if (secretLen <= 0 || secretLen > KEY_BLOB_SECRET_MAX_SIZE) {
+      return;
+    }
+    short entry = (short) (keyBlobCacheIndex[0] * KEY_BLOB_CACHE_ENTRY_SIZE);
+    Util.setShort(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_LENGTH_OFFSET), secretLen);
+    Util.arrayCopyNonAtomic(digest, digestOff, keyBlobCache,
+        (short) (entry + KEY_BLOB_CACHE_DIGEST_OFFSET), KEY_BLOB_DIGEST_SIZE);
+    Util.arrayCopyNonAtomic(secret, secretOff, keyBlobCache,
+        (short) (entry + KEY_BLOB_CACHE_SECRET_OFFSET), secretLen);
+    keyBlobCacheIndex[0] = (short) ((short) (keyBlobCacheIndex[0] + 1) % KEY_BLOB_CACHE_ENTRIES);
+  }
+
+  public void clearKeyBlobCache() {
+    Util.arrayFillNonAtomic(keyBlobCache, (short) 0, (short) keyBlobCache.length, (byte) 0);
+    keyBlobCacheIndex[0] = 0;
+  }
+
+  // Returns true if the token with the given mac input and mac is in the auth token cache.
+  public boolean isAuthTokenCached(byte[] input, short inputOff, short inputLen, byte[] mac,
+      short macOff, short macLen) {
+    if (inputLen != AUTH_TOKEN_MAC_INPUT_SIZE || macLen != AUTH_TOKEN_MAC_SIZE) {
+      return false;
+    }
+    short entry = 0;
+    while (entry < (short) (AUTH_TOKEN_CACHE_ENTRIES * AUTH_TOKEN_CACHE_ENTRY_SIZE)) {
+      if ((authTokenCache[(short) (entry + AUTH_TOKEN_CACHE_FLAG_OFFSET)] != 0)
+          && (0 == Util.arrayCompare(authTokenCache, (short) (entry + AUTH_TOKEN_CACHE_MAC_OFFSET),
+          mac, macOff, AUTH_TOKEN_MAC_SIZE))
+          && (0 == Util.arrayCompare(authTokenCache,
+          (short) (entry + AUTH_TOKEN_CACHE_INPUT_OFFSET), input, inputOff,
+          AUTH_TOKEN_MAC_INPUT_SIZE))) {
+        return true;
+      }
+      entry += AUTH_TOKEN_CACHE_ENTRY_SIZE;
+    }
+    return false;
+  }
+
+  // Caches a token whose mac is verified. Entries are replaced in round robin order.
+  public void cacheAuthToken(byte[] input, short inputOff, short inputLen, byte[] mac,
+      short macOff, short macLen) {
+    if (inputLen != AUTH_TOKEN_MAC_INPUT_SIZE || macLen != AUTH_TOKEN_MAC_SIZE) {
+      return;
+    }
+    short entry = (short) (authTokenCacheIndex[0] * AUTH_TOKEN_CACHE_ENTRY_SIZE);
+    authTokenCache[(short) (entry + AUTH_TOKEN_CACHE_FLAG_OFFSET)] = 1;
+    Util.arrayCopyNonAtomic(input, inputOff, authTokenCache,
+        (short) (entry + AUTH_TOKEN_CACHE_INPUT_OFFSET), AUTH_TOKEN_MAC_INPUT_SIZE);
+    Util.arrayCopyNonAtomic(mac, macOff, authTokenCache,
+        (short) (entry + AUTH_TOKEN_CACHE_MAC_OFFSET), AUTH_TOKEN_MAC_SIZE);
+    authTokenCacheIndex[0] =
+        (short) ((short) (authTokenCacheIndex[0] + 1) % AUTH_TOKEN_CACHE_ENTRIES);
+  }
+
+  public void clearAuthTokenCache() {
+    Util.arrayFillNonAtomic(authTokenCache, (short) 0, (short) authTokenCache.length, (byte) 0);
+    authTokenCacheIndex[0] = 0;
+  }
+
+  // Loads the key blob into a free key slot, bound to the given application digest, and returns
+  // the key handle as a KMInteger.
+  public short loadKeySlot(byte[] keyBlob, short keyBlobOff, short keyBlobLen, byte[] binding,
+      short bindingOff) {
+    if (keyBlobLen <= 0 || keyBlobLen > KEY_SLOT_MAX_SIZE) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    short index = 0;
+    short slot;
+    while (index < keySlotCount) {
+      slot = (short) (index * KEY_SLOT_SIZE);
+      if (Util.getShort(keySlots, (short) (slot + KEY_SLOT_LENGTH_OFFSET)) == 0) {
+        countKeySlotLoad();
+        Util.arrayCopyNonAtomic(keySlotLoads, (short) 0, keySlots,
+            (short) (slot + KEY_SLOT_HANDLE_OFFSET), KEY_HANDLE_SIZE);
+        Util.arrayCopyNonAtomic(binding, bindingOff, keySlots,
+            (short) (slot + KEY_SLOT_BINDING_OFFSET), KEY_SLOT_BINDING_SIZE);
+        Util.arrayCopyNonAtomic(keyBlob, keyBlobOff, keySlots,
+            (short) (slot + KEY_SLOT_BLOB_OFFSET), keyBlobLen);
+        Util.setShort(keySlots, (short) (slot + KEY_SLOT_LENGTH_OFFSET), keyBlobLen);
+        return KMInteger.uint_32(keySlots, (short) (slot + KEY_SLOT_HANDLE_OFFSET));
+      }
+      index++;
+    }
+    KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    return KMType.INVALID_VALUE;
+  }
+
+  // Returns the key blob loaded in the key slot of the given KMInteger handle as a KMByteBlob or
+  // KMType.INVALID_VALUE if the handle is not valid or the key was loaded with another
+  // application digest.
+  public short readKeySlot(short handle, byte[] binding, short bindingOff) {
+    short slot = getKeySlot(handle);
+    if (slot == KMType.INVALID_VALUE
+        || Util.arrayCompare(keySlots, (short) (slot + KEY_SLOT_BINDING_OFFSET), binding,
+            bindingOff, KEY_SLOT_BINDING_SIZE) != 0) {
+      return KMType.INVALID_VALUE;
+    }
+    return KMByteBlob.instance(keySlots, (short) (slot + KEY_SLOT_BLOB_OFFSET),
+        Util.getShort(keySlots, (short) (slot + KEY_SLOT_LENGTH_OFFSET)));
+  }
+
+  public void unloadKeySlot(short handle) {
+    short slot = getKeySlot(handle);
+    if (slot == KMType.INVALID_VALUE) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    Util.arrayFillNonAtomic(keySlots, slot, KEY_SLOT_SIZE, (byte) 0);
+  }
+
+  public void clearKeySlots() {
+    Util.arrayFillNonAtomic(keySlots, (short) 0, (short) keySlots.length, (byte) 0);
+  }
+
+  // Increments the load count, which starts at 1 so that a key handle is never 0. Loading 2^32
+  // keys without a reset is not practical, but if the count wraps, all the keys are unloaded
+  // before it starts at 1 again.
+  private void countKeySlotLoad() {
+    short index = KEY_HANDLE_SIZE;
+    do {
+      index--;
+      keySlotLoads[index]++;
+    } while (keySlotLoads[index] == 0 && index > 0);
+    if (index == 0 && keySlotLoads[0] == 0) {
+      clearKeySlots();
+      keySlotLoads[(short) (KEY_HANDLE_SIZE - 1)] = 1;
+    }
+  }
+
+  // Returns the offset of the key slot of the given KMInteger handle or KMType.INVALID_VALUE if
+  // no key is loaded with that handle.
+  private short getKeySlot(short handle) {
+    if (KMInteger.cast(handle).length() != KEY_HANDLE_SIZE) {
+      return KMType.INVALID_VALUE;
+    }
+    byte[] buf = KMInteger.cast(handle).getBuffer();
+    short start = KMInteger.cast(handle).getStartOff();
+    short index = 0;
+    short slot;
+    while (index < keySlotCount) {
+      slot = (short) (index * KEY_SLOT_SIZE);
+      if (Util.getShort(keySlots, (short) (slot + KEY_SLOT_LENGTH_OFFSET)) != 0
+          && Util.arrayCompare(keySlots, (short) (slot + KEY_SLOT_HANDLE_OFFSET), buf, start,
+              KEY_HANDLE_SIZE) == 0) {
+        return slot;
+      }
+      index++;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
   public void initComputedHmac(byte[] key, short start, short len) {
     if (len != COMPUTED_HMAC_KEY_SIZE) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(COMPUTED_HMAC_KEY, key, start, len);
+    clearAuthTokenCache();
   }
 
   public void initHmacNonce(byte[] nonce, short offset, short len) {
@@ -300,6 +670,7 @@ public class KMRepository implements KMUpgradable {
 
   public void clearComputedHmac() {
     clearDataEntry(COMPUTED_HMAC_KEY);
+    clearAuthTokenCache();
   }
 
   public void onUninstall() {
@@ -320,7 +691,7 @@ public class KMRepository implements KMUpgradable {
   }
 
   public void onSelect() {
-    // If write through caching is implemented then this method will restore the data into cache
+    // The data cache is filled on first use of each entry, so nothing is restored here.
   }
 
   // This function uses memory from the back of the heap(transient memory). Call
@@ -342,24 +713,63 @@ public class KMRepository implements KMUpgradable {
     reclaimIndex[0] += length;
   }
 
-  public short allocAvailableMemory() {
-    if (heapIndex[0] >= heap.length) {
+  // Returns a mark of the heap. The memory allocated by alloc after the mark is freed by
+  // resetHeap, so that a phase of a command can free its temporaries as soon as it is done.
+  // Marks nest, the heap is reset to an inner mark before or along with an outer one.
+  public short markHeap() {
+    return heapIndex[0];
+  }
+
+  // Frees and zeroes the memory allocated since the mark.
+  public void resetHeap(short mark) {
+    if (mark < 0 || mark > heapIndex[0]) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
-    short index = heapIndex[0];
-    heapIndex[0] = (short) heap.length;
-    return index;
+    Util.arrayFillNonAtomic(heap, mark, (short) (heapIndex[0] - mark), (byte) 0);
+    heapIndex[0] = mark;
+  }
+
+  // Returns the number of bytes which can still be allocated by alloc.
+  public short getAvailableMemory() {
+    return (short) (reclaimIndex[0] - heapIndex[0]);
   }
 
   public short alloc(short length) {
-    if ((((short) (heapIndex[0] + length)) > heap.length) ||
-        (((short) (heapIndex[0] + length)) > reclaimIndex[0])) {
+    // The reclaim index never exceeds HEAP_SIZE, except while the schemas are built.
+    if (((short) (heapIndex[0] + length)) > reclaimIndex[0]) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     heapIndex[0] += length;
+    // The schema region lies above the heap and is not counted.
+    if (heapIndex[0] > heapPeak[0] && heapIndex[0] <= HEAP_SIZE) {
+      heapPeak[0] = heapIndex[0];
+    }
     return (short) (heapIndex[0] - length);
   }
 
+  // Returns the highest number of bytes allocated from the heap since the last resetHeapPeak.
+  public short getHeapPeak() {
+    return heapPeak[0];
+  }
+
+  public void resetHeapPeak() {
+    heapPeak[0] = heapIndex[0];
+  }
+
+  // Until endSchemas is called all the allocations are made from the schema region, which is
+  // neither cleaned nor reused until the next reset.
+  public void beginSchemas() {
+    schemaAllocState[0] = heapIndex[0];
+    schemaAllocState[1] = reclaimIndex[0];
+    heapIndex[0] = SCHEMA_OFFSET;
+    reclaimIndex[0] = (short) heap.length;
+  }
+
+  public void endSchemas() {
+    heapIndex[0] = schemaAllocState[0];
+    reclaimIndex[0] = schemaAllocState[1];
+  }
+
   private short dataAlloc(short length) {
     if (((short) (dataIndex + length)) > dataTable.length) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -386,6 +796,7 @@ public class KMRepository implements KMUpgradable {
         KMByteBlob.cast(blob).length()
     );
     JCSystem.commitTransaction();
+    clearDataCache();
   }
 
   public byte[] getDataTable() {
@@ -394,6 +805,7 @@ public class KMRepository implements KMUpgradable {
 
   private void clearDataEntry(short id) {
     JCSystem.beginTransaction();
+    short cachePtr = dataCacheIndex[id];
     id = (short) (id * DATA_INDEX_ENTRY_SIZE);
     short dataLen = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH));
     if (dataLen != 0) {
@@ -401,11 +813,16 @@ public class KMRepository implements KMUpgradable {
       Util.arrayFillNonAtomic(dataTable, dataPtr, dataLen, (byte) 0);
     }
     JCSystem.commitTransaction();
+    if (cachePtr != 0) {
+      Util.arrayFillNonAtomic(heap, (short) (cachePtr + KMType.TLV_HEADER_SIZE), dataLen,
+          (byte) 0);
+    }
   }
 
   private void writeDataEntry(short id, byte[] buf, short offset, short len) {
     JCSystem.beginTransaction();
     short dataPtr;
+    short cachePtr = dataCacheIndex[id];
     id = (short) (id * DATA_INDEX_ENTRY_SIZE);
     short dataLen = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH));
     if (dataLen == 0) {
@@ -421,6 +838,10 @@ public class KMRepository implements KMUpgradable {
       Util.arrayCopyNonAtomic(buf, offset, dataTable, dataPtr, len);
     }
     JCSystem.commitTransaction();
+    // The length of an entry never changes, so the cached entry is updated in place.
+    if (cachePtr != 0) {
+      Util.arrayCopyNonAtomic(buf, offset, heap, (short) (cachePtr + KMType.TLV_HEADER_SIZE), len);
+    }
   }
 
   private short readDataEntry(short id, byte[] buf, short offset) {
@@ -442,6 +863,62 @@ public class KMRepository implements KMUpgradable {
     return Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH));
   }
 
+  // Returns the type of the cached instance of the data table entry or 0 if it is not cached.
+  private static byte dataCacheType(short id) {
+    switch (id) {
+      case BOOT_OS_VERSION:
+      case BOOT_OS_PATCH_LEVEL:
+      case VENDOR_PATCH_LEVEL:
+      case BOOT_PATCH_LEVEL:
+        return KMType.INTEGER_TYPE;
+      case COMPUTED_HMAC_KEY:
+      case HMAC_NONCE:
+      case DEVICE_LOCKED_TIME:
+        return 0;
+      default:
+        return KMType.BYTE_BLOB_TYPE;
+    }
+  }
+
+  // Returns the cached instance of the data table entry, which is created on first use. Returns 0
+  // if the entry is empty and KMType.INVALID_VALUE if it is not cached of the given type or if the
+  // cache is full.
+  private short readCachedData(short id, byte type) {
+    if (dataCacheType(id) != type) {
+      return KMType.INVALID_VALUE;
+    }
+    short ptr = dataCacheIndex[id];
+    if (ptr != 0) {
+      return ptr;
+    }
+    short len = dataLength(id);
+    if (len == 0) {
+      return 0;
+    }
+    ptr = (short) (HEAP_SIZE + dataCacheSize[0]);
+    if ((short) (dataCacheSize[0] + KMType.TLV_HEADER_SIZE + len) > DATA_CACHE_SIZE) {
+      return KMType.INVALID_VALUE;
+    }
+    heap[ptr] = type;
+    Util.setShort(heap, (short) (ptr + 1), len);
+    readDataEntry(id, heap, (short) (ptr + KMType.TLV_HEADER_SIZE));
+    dataCacheSize[0] += (short) (KMType.TLV_HEADER_SIZE + len);
+    dataCacheIndex[id] = ptr;
+    return ptr;
+  }
+
+  private void clearDataCache() {
+    Util.arrayFillNonAtomic(heap, HEAP_SIZE, DATA_CACHE_SIZE, (byte) 0);
+    clearROT();
+    clearCertTemplate();
+    short index = 0;
+    while (index < DATA_INDEX_SIZE) {
+      dataCacheIndex[index] = 0;
+      index++;
+    }
+    dataCacheSize[0] = 0;
+  }
+
   public byte[] getHeap() {
     return heap;
   }
@@ -477,8 +954,17 @@ public class KMRepository implements KMUpgradable {
     return readData(CERT_ISSUER);
   }
 
+  // Returns a copy of the data table entry as a KMByteBlob or 0 if the entry is empty.
   public short readData(short id) {
-    short blob = KMByteBlob.instance(dataLength(id));
+    short blob = readCachedData(id, KMType.BYTE_BLOB_TYPE);
+    if (blob == 0) {
+      return 0;
+    }
+    if (blob != KMType.INVALID_VALUE) {
+      return KMByteBlob.instance(heap, (short) (blob + KMType.TLV_HEADER_SIZE),
+          Util.getShort(heap, (short) (blob + 1)));
+    }
+    blob = KMByteBlob.instance(dataLength(id));
     if (readDataEntry(id, KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff())
         == 0) {
       return 0;
@@ -488,6 +974,7 @@ public class KMRepository implements KMUpgradable {
 
   public void setIssuer(byte[] buf, short start, short len) {
     writeDataEntry(CERT_ISSUER, buf, start, len);
+    clearCertTemplate();
   }
 
 
@@ -501,47 +988,46 @@ public class KMRepository implements KMUpgradable {
 
   private static final byte[] zero = {0, 0, 0, 0, 0, 0, 0, 0};
 
-  public short getOsVersion() {
-    short blob = readData(BOOT_OS_VERSION);
-    if (blob != 0) {
-      return KMInteger.uint_32(
-          KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff());
-    } else {
+  // Returns a copy of the data table entry as a KMInteger, which is zero if the entry is empty.
+  private short readIntegerData(short id) {
+    short ptr = readCachedData(id, KMType.INTEGER_TYPE);
+    if (ptr == 0) {
       return KMInteger.uint_32(zero, (short) 0);
     }
+    if (ptr != KMType.INVALID_VALUE) {
+      return KMInteger.uint_32(heap, (short) (ptr + KMType.TLV_HEADER_SIZE));
+    }
+    ptr = readData(id);
+    if (ptr != 0) {
+      return KMInteger.uint_32(
+          KMByteBlob.cast(ptr).getBuffer(), KMByteBlob.cast(ptr).getStartOff());
+    }
+    return KMInteger.uint_32(zero, (short) 0);
+  }
+
+  public short getOsVersion() {
+    return readIntegerData(BOOT_OS_VERSION);
   }
 
   public short getVendorPatchLevel() {
-    short blob = readData(VENDOR_PATCH_LEVEL);
-    if (blob != 0) {
-      return KMInteger.uint_32(
-          KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff());
-    } else {
-      return KMInteger.uint_32(zero, (short) 0);
-    }
+    return readIntegerData(VENDOR_PATCH_LEVEL);
   }
 
   public short getBootPatchLevel() {
-    short blob = readData(BOOT_PATCH_LEVEL);
-    if (blob != 0) {
-      return KMInteger.uint_32(
-          KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff());
-    } else {
-      return KMInteger.uint_32(zero, (short) 0);
-    }
+    return readIntegerData(BOOT_PATCH_LEVEL);
   }
 
   public short getOsPatch() {
-    short blob = readData(BOOT_OS_PATCH_LEVEL);
-    if (blob != 0) {
-      return KMInteger.uint_32(
-          KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff());
-    } else {
-      return KMInteger.uint_32(zero, (short) 0);
-    }
+    return readIntegerData(BOOT_OS_PATCH_LEVEL);
   }
 
+  // Returns the root of trust as a KMByteBlob or KMType.INVALID_VALUE if the boot parameters are
+  // not set. The root of trust is built once per boot, or again after the boot parameters change,
+  // in a dedicated part of the heap, so the returned blob must not be modified.
   public short readROT() {
+    if (heap[ROT_OFFSET] == KMType.BYTE_BLOB_TYPE) {
+      return ROT_OFFSET;
+    }
     short totalLength = 0;
     short length = dataLength(BOOT_VERIFIED_BOOT_KEY);
     if (length == 0) {
@@ -561,22 +1047,48 @@ public class KMRepository implements KMUpgradable {
     }
     totalLength += length;
 
-    short blob = KMByteBlob.instance(totalLength);
-    length = readDataEntry(BOOT_VERIFIED_BOOT_KEY, KMByteBlob.cast(blob)
-        .getBuffer(), KMByteBlob.cast(blob).getStartOff());
+    short start = (short) (ROT_OFFSET + KMType.TLV_HEADER_SIZE);
+    length = readDataEntry(BOOT_VERIFIED_BOOT_KEY, heap, start);
+    length += readDataEntry(BOOT_VERIFIED_BOOT_HASH, heap, (short) (start + length));
+    length += readDataEntry(BOOT_VERIFIED_BOOT_STATE, heap, (short) (start + length));
+    readDataEntry(BOOT_DEVICE_LOCKED_STATUS, heap, (short) (start + length));
+    Util.setShort(heap, (short) (ROT_OFFSET + 1), totalLength);
+    // The type is set last as it marks the root of trust as valid.
+    heap[ROT_OFFSET] = KMType.BYTE_BLOB_TYPE;
+    return ROT_OFFSET;
+  }
 
-    length += readDataEntry(BOOT_VERIFIED_BOOT_HASH, KMByteBlob.cast(blob)
-            .getBuffer(),
-        (short) (KMByteBlob.cast(blob).getStartOff() + length));
+  private void clearROT() {
+    heap[ROT_OFFSET] = 0;
+  }
 
-    length += readDataEntry(BOOT_VERIFIED_BOOT_STATE, KMByteBlob.cast(blob)
-            .getBuffer(),
-        (short) (KMByteBlob.cast(blob).getStartOff() + length));
+  // Returns the attestation certificate template as a KMByteBlob or KMType.INVALID_VALUE if it is
+  // not built yet. The template is built once per boot, or again after the issuer or the boot
+  // parameters change, so the returned blob must not be modified.
+  public short readCertTemplate() {
+    if (heap[CERT_TEMPLATE_OFFSET] == KMType.BYTE_BLOB_TYPE) {
+      return CERT_TEMPLATE_OFFSET;
+    }
+    return KMType.INVALID_VALUE;
+  }
 
-    readDataEntry(BOOT_DEVICE_LOCKED_STATUS, KMByteBlob.cast(blob)
-            .getBuffer(),
-        (short) (KMByteBlob.cast(blob).getStartOff() + length));
-    return blob;
+  // Returns the offset in the heap where the template is to be encoded, before setCertTemplate.
+  public short getCertTemplateStart() {
+    return (short) (CERT_TEMPLATE_OFFSET + KMType.TLV_HEADER_SIZE);
+  }
+
+  public short setCertTemplate(short length) {
+    if (length > CERT_TEMPLATE_MAX_SIZE) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    Util.setShort(heap, (short) (CERT_TEMPLATE_OFFSET + 1), length);
+    // The type is set last as it marks the template as valid.
+    heap[CERT_TEMPLATE_OFFSET] = KMType.BYTE_BLOB_TYPE;
+    return CERT_TEMPLATE_OFFSET;
+  }
+
+  private void clearCertTemplate() {
+    heap[CERT_TEMPLATE_OFFSET] = 0;
   }
 
   public short getVerifiedBootKey() {
@@ -587,24 +1099,30 @@ public class KMRepository implements KMUpgradable {
     return readData(BOOT_VERIFIED_BOOT_HASH);
   }
 
+  // Returns the first byte of a flag entry. The byte is read from the cached entry in place, as
+  // the entry itself is not returned.
+  private byte readDataFlags(short id) {
+    short blob = readCachedData(id, KMType.BYTE_BLOB_TYPE);
+    if (blob == KMType.INVALID_VALUE || blob == 0) {
+      blob = readData(id);
+    }
+    return (getHeap())[KMByteBlob.cast(blob).getStartOff()];
+  }
+
   public boolean getBootLoaderLock() {
-    short blob = readData(BOOT_DEVICE_LOCKED_STATUS);
-    return (byte) ((getHeap())[KMByteBlob.cast(blob).getStartOff()] & 0xFE) != 0;
+    return (byte) (readDataFlags(BOOT_DEVICE_LOCKED_STATUS) & 0xFE) != 0;
   }
 
   public byte getBootState() {
-    short blob = readData(BOOT_VERIFIED_BOOT_STATE);
-    return (getHeap())[KMByteBlob.cast(blob).getStartOff()];
+    return readDataFlags(BOOT_VERIFIED_BOOT_STATE);
   }
 
   public boolean getDeviceLock() {
-    short blob = readData(DEVICE_LOCKED);
-    return (byte) ((getHeap())[KMByteBlob.cast(blob).getStartOff()] & 0xFE) != 0;
+    return (byte) (readDataFlags(DEVICE_LOCKED) & 0xFE) != 0;
   }
 
   public boolean getDeviceLockPasswordOnly() {
-    short blob = readData(DEVICE_LOCKED);
-    return (byte) ((getHeap())[KMByteBlob.cast(blob).getStartOff()] & 0xFD) != 0;
+    return (byte) (readDataFlags(DEVICE_LOCKED) & 0xFD) != 0;
   }
 
   public short getDeviceTimeStamp() {
@@ -654,6 +1172,8 @@ public class KMRepository implements KMUpgradable {
       (getHeap())[start] = (byte) ((getHeap())[start] & 0xFE);
     }
     writeDataEntry(BOOT_DEVICE_LOCKED_STATUS, getHeap(), start, DEVICE_LOCK_FLAG_SIZE);
+    clearROT();
+    clearCertTemplate();
   }
 
   public void setDeviceLock(boolean flag) {
@@ -699,6 +1219,8 @@ public class KMRepository implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_VERIFIED_BOOT_KEY, buf, start, len);
+    clearROT();
+    clearCertTemplate();
   }
 
 
@@ -707,12 +1229,16 @@ public class KMRepository implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_VERIFIED_BOOT_HASH, buf, start, len);
+    clearROT();
+    clearCertTemplate();
   }
 
   public void setBootState(byte state) {
     short start = alloc(BOOT_STATE_SIZE);
     (getHeap())[start] = state;
     writeDataEntry(BOOT_VERIFIED_BOOT_STATE, getHeap(), start, BOOT_STATE_SIZE);
+    clearROT();
+    clearCertTemplate();
   }
 
   @Override
@@ -41,11 +41,13 @@ public interface KMSEProvider extends KMUpgradable {
   /**
    * Create a asymmetric key pair. If the algorithms are not supported then it should throw a
    * CryptoException. For RSA the public key exponent must always be 0x010001. The key size of RSA
-   * key pair must be 2048 bits and key size of EC key pair must be for p256 curve.
+   * key pair must be 2048 bits and key size of EC key pair must be for p256 curve. For RSA, if the
+   * private key buffer is 640 bytes long then the CRT parameters P, Q, DP, DQ and PQ are returned
+   * in it, each right aligned in 128 bytes, otherwise the private exponent is returned.
    *
    * @param alg will be KMType.RSA or KMType.EC.
-   * @param privKeyBuf is the buffer to return the private key exponent in case of RSA or private
-   * key in case of EC.
+   * @param privKeyBuf is the buffer to return the private key exponent or CRT parameters in case
+   * of RSA or private key in case of EC.
    * @param privKeyStart is the start offset.
    * @param privKeyMaxLength is the maximum length of this private key buffer.
    * @param pubModBuf is the buffer to return the modulus in case of RSA or public key in case of
@@ -83,18 +85,20 @@ public interface KMSEProvider extends KMUpgradable {
    * Validate that the imported asymmetric key pair is valid. For RSA the public key exponent must
    * always be 0x010001. The key size of RSA key pair must be 2048 bits and key size of EC key pair
    * must be for p256 curve. If the algorithms are not supported then it should throw a
-   * CryptoException.
+   * CryptoException. The RSA private key is in one of the formats returned by
+   * createAsymmetricKey.
    *
    * @param alg will be KMType.RSA or KMType.EC.
-   * @param privKeyBuf is the buffer that contains the private key exponent in case of RSA or
-   * private key in case of EC.
+   * @param privKeyBuf is the buffer that contains the private key exponent or CRT parameters in
+   * case of RSA or private key in case of EC.
    * @param privKeyStart is the start offset.
    * @param privKeyLength is the length of this private key buffer.
    * @param pubModBuf is the buffer that contains the modulus in case of RSA or public key in case
    * of EC.
    * @param pubModStart is the start of offset.
    * @param pubModLength is the length of this public key buffer.
-   * @return true if the key pair is supported and valid.
+   * @return true if the key pair is supported and valid. In case of RSA CRT parameters, false if
+   * they do not match the modulus and the public exponent 0x010001.
    */
   boolean importAsymmetricKey(
       byte alg,
@@ -313,12 +317,29 @@ public interface KMSEProvider extends KMUpgradable {
       short signatureStart,
       short signatureLen);
 
+  /**
+   * This is a oneshot operation that computes the SHA-256 digest of the data.
+   *
+   * @param data is the buffer containing data to be digested.
+   * @param dataStart is the start of the data.
+   * @param dataLength is the length of the data.
+   * @param digest is the output digest buffer.
+   * @param digestStart is the start of the digest buffer.
+   * @return length of the digest buffer in bytes, which is always 32.
+   */
+  short messageDigest256(
+      byte[] data,
+      short dataStart,
+      short dataLength,
+      byte[] digest,
+      short digestStart);
+
   /**
    * This is a oneshot operation that decrypts the data using RSA algorithm with oaep256 padding.
    * The public exponent is always 0x010001. It throws CryptoException if OAEP encoding validation
    * fails.
    *
-   * @param privExp is the private exponent (2048 bit) buffer.
+   * @param privExp is the private exponent (2048 bit) or CRT parameters buffer.
    * @param privExpStart is the start of the private exponent buffer.
    * @param privExpLength is the length of the private exponent buffer in bytes.
    * @param modBuffer is the modulus (2048 bit) buffer.
@@ -413,7 +434,8 @@ public interface KMSEProvider extends KMUpgradable {
    * @param padding is KMType.PADDING_NONE or KMType.RSA_OAEP, KMType.RSA_PKCS1_1_5_ENCRYPT,
    * KMType.RSA_PKCS1_1_5_SIGN or KMType.RSA_PSS.
    * @param digest is KMType.DIGEST_NONE or KMType.SHA2_256.
-   * @param privKeyBuf is the private key in case of EC or private key exponent is case of RSA.
+   * @param privKeyBuf is the private key in case of EC or private key exponent or CRT parameters
+   * in case of RSA.
    * @param privKeyStart is the start of the private key.
    * @param privKeyLength is the length of the private key.
    * @param pubModBuf is the modulus (in case of RSA) or public key (in case of EC).
@@ -468,6 +490,15 @@ public interface KMSEProvider extends KMUpgradable {
    */
   short readCertificateChain(byte[] buf, short offset);
 
+  /**
+   * This operation sends a part of the certificate chain directly from persistent memory as the
+   * outgoing data of the current apdu. The outgoing length must be set before.
+   *
+   * @param offset is the start of the part in the certificate chain.
+   * @param len is the length of the part in bytes.
+   */
+  void sendCertificateChain(short offset, short len);
+
   /**
    * This function returns the cert chain length.
    *
@@ -294,18 +294,55 @@ public abstract class KMType {
   public static final byte KM_KEY_PARAMETERS_OFFSET = KM_TYPE_BASE_OFFSET + 13;
   public static final byte KM_VERIFICATION_TOKEN_OFFSET = KM_TYPE_BASE_OFFSET + 14;
 
+  // Decode schemas
+  public static final byte BYTE_BLOB_SCHEMA = 0;
+  public static final byte INTEGER_SCHEMA = 1;
+  public static final byte KEY_PARAMETERS_SCHEMA = 2;
+  public static final byte KEY_CHARACTERISTICS_SCHEMA = 3;
+  public static final byte HW_AUTH_TOKEN_SCHEMA = 4;
+  public static final byte VERIFICATION_TOKEN_SCHEMA = 5;
+  public static final byte HMAC_SHARING_PARAMETERS_SCHEMA = 6;
+  public static final byte SCHEMA_TABLE_SIZE = 7;
+
   protected static KMRepository repository;
   protected static byte[] heap;
   // Instance table
   public static final byte INSTANCE_TABLE_SIZE = 15;
   protected static short[] instanceTable;
+  // Pointers to the shared decode schemas or 0 if they are not built.
+  protected static short[] schemaTable;
 
   public static void initialize() {
     instanceTable = JCSystem.makeTransientShortArray(INSTANCE_TABLE_SIZE, JCSystem.CLEAR_ON_RESET);
+    schemaTable = JCSystem.makeTransientShortArray(SCHEMA_TABLE_SIZE, JCSystem.CLEAR_ON_RESET);
     KMType.repository = KMRepository.instance();
     KMType.heap = repository.getHeap();
   }
 
+  /**
+   * Builds the expressions which are used by the decoder for every command, once after each
+   * reset. They are built in the schema region of the heap, which is not cleaned after each
+   * command, and returned by the exp() methods from then on. So decoding a command only
+   * allocates the argument array of the command and the decoded values. The schemas are shared,
+   * so they must never be modified. Nested schemas are built first, so that the schemas built
+   * later refer to them.
+   */
+  public static void buildSchemas() {
+    if (schemaTable[BYTE_BLOB_SCHEMA] != 0) {
+      return;
+    }
+    repository.beginSchemas();
+    schemaTable[INTEGER_SCHEMA] = KMInteger.exp();
+    schemaTable[KEY_PARAMETERS_SCHEMA] = KMKeyParameters.exp();
+    schemaTable[KEY_CHARACTERISTICS_SCHEMA] = KMKeyCharacteristics.exp();
+    schemaTable[HW_AUTH_TOKEN_SCHEMA] = KMHardwareAuthToken.exp();
+    schemaTable[VERIFICATION_TOKEN_SCHEMA] = KMVerificationToken.exp();
+    schemaTable[HMAC_SHARING_PARAMETERS_SCHEMA] = KMHmacSharingParameters.exp();
+    // The byte blob schema is set last as it marks the schemas as built.
+    schemaTable[BYTE_BLOB_SCHEMA] = KMByteBlob.exp();
+    repository.endSchemas();
+  }
+
   public static byte getType(short ptr) {
     return heap[ptr];
   }
@@ -41,6 +41,9 @@ public class KMVerificationToken extends KMType {
   }
 
   public static short exp() {
+    if (schemaTable[VERIFICATION_TOKEN_SCHEMA] != 0) {
+      return schemaTable[VERIFICATION_TOKEN_SCHEMA];
+    }
     short arrPtr = KMArray.instance((short) 5);
     KMArray arr = KMArray.cast(arrPtr);
     arr.add(CHALLENGE, KMInteger.exp());
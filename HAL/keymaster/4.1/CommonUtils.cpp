@@ -200,10 +200,17 @@ publicKey, EcCurve& ecCurve) {
     return ErrorCode::OK;
 }
 
+static void appendBignum(const BIGNUM *bn, std::vector<std::vector<uint8_t>>& params) {
+    std::vector<uint8_t> param(BN_num_bytes(bn));
+    BN_bn2bin(bn, param.data());
+    params.push_back(param);
+}
+
 ErrorCode rsaRawKeyFromPKCS8(const std::vector<uint8_t>& pkcs8Blob, std::vector<uint8_t>& privateExp, std::vector<uint8_t>&
-pubModulus) {
+pubModulus, std::vector<std::vector<uint8_t>>& crtParams) {
     ErrorCode errorCode = ErrorCode::INVALID_KEY_BLOB;
     const BIGNUM *n=NULL, *e=NULL, *d=NULL;
+    const BIGNUM *p=NULL, *q=NULL, *dmp1=NULL, *dmq1=NULL, *iqmp=NULL;
     EVP_PKEY *pkey = nullptr;
     const uint8_t *data = pkcs8Blob.data();
 
@@ -230,6 +237,17 @@ pubModulus) {
 
         privateExp.insert(privateExp.begin(), privExp.get(), privExp.get()+privExpLen);
         pubModulus.insert(pubModulus.begin(), pubMod.get(), pubMod.get()+pubModLen);
+
+        /* CRT parameters P, Q, DP, DQ and PQ, if present */
+        RSA_get0_factors(rsa_key.get(), &p, &q);
+        RSA_get0_crt_params(rsa_key.get(), &dmp1, &dmq1, &iqmp);
+        if(p != NULL && q != NULL && dmp1 != NULL && dmq1 != NULL && iqmp != NULL) {
+            appendBignum(p, crtParams);
+            appendBignum(q, crtParams);
+            appendBignum(dmp1, crtParams);
+            appendBignum(dmq1, crtParams);
+            appendBignum(iqmp, crtParams);
+        }
     } else {
         return errorCode;
     }
@@ -303,11 +303,17 @@ ErrorCode prepareCborArrayFromKeyData(const hidl_vec<KeyParameter>& keyParams, K
         if(KM_ALGORITHM_RSA == algorithm) {
             std::vector<uint8_t> privExp;
             std::vector<uint8_t> modulus;
-            if(ErrorCode::OK != (errorCode = rsaRawKeyFromPKCS8(std::vector<uint8_t>(blob), privExp, modulus))) {
+            std::vector<std::vector<uint8_t>> crtParams;
+            if(ErrorCode::OK != (errorCode = rsaRawKeyFromPKCS8(std::vector<uint8_t>(blob), privExp, modulus,
+                            crtParams))) {
                 return errorCode;
             }
             array.add(privExp);
             array.add(modulus);
+            /* Optional CRT parameters, used by the applet for faster private key operations. */
+            for(auto& param : crtParams) {
+                array.add(param);
+            }
         } else if(KM_ALGORITHM_EC == algorithm) {
             std::vector<uint8_t> privKey;
             std::vector<uint8_t> pubKey;